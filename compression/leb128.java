@@ -58,4 +58,54 @@ public class LEB128 {
 
         return result;
     }
+
+    /**
+     * Writes an unsigned LEB128 value into a byte array without allocating.
+     *
+     * @param out   destination array, with room for up to 10 bytes at pos
+     * @param pos   index of the first byte to write
+     * @param value the unsigned long to encode
+     * @return the index just past the last byte written
+     */
+    public static int putUnsigned(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Reads one unsigned LEB128 value at the buffer's position and advances past it.
+     *
+     * @param in the buffer to read from, e.g. a MappedByteBuffer
+     * @return the decoded unsigned long value
+     */
+    public static long getUnsigned(java.nio.ByteBuffer in) {
+        byte b = in.get();
+        if (b >= 0) {
+            return b;
+        }
+        long result = b & 0x7F;
+        int shift = 7;
+        do {
+            b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    /**
+     * Number of bytes the unsigned LEB128 encoding of value takes.
+     */
+    public static int sizeUnsigned(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+/*
+ * BK-Tree (Burkhard-Keller tree) for fuzzy dictionary search
+ * Every node stores a word, and the child under edge label d holds words at edit
+ * distance exactly d from it. By the triangle inequality, a query within k of
+ * some word can only lie under edges d - k .. d + k of a node at distance d, so
+ * most of the dictionary is never compared. Nodes live in flat arrays, distances
+ * use MyersLevenshtein with the query pattern preprocessed once per query, and
+ * batches of queries are answered in parallel against the read-only tree.
+ */
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class BKTree {
+
+    private String[] words = new String[16];
+    private int[] firstChild = new int[16];
+    private int[] nextSibling = new int[16];
+    private int[] edge = new int[16];
+    private int size;
+
+    public BKTree() {
+    }
+
+    public BKTree(Collection<String> dictionary) {
+        for (String word : dictionary) {
+            add(word);
+        }
+    }
+
+    public void add(String word) {
+        if (size == 0) {
+            newNode(word, 0);
+            return;
+        }
+        int node = 0;
+        while (true) {
+            int d = MyersLevenshtein.distance(words[node], word);
+            if (d == 0) {
+                return;
+            }
+            int child = firstChild[node];
+            while (child >= 0 && edge[child] != d) {
+                child = nextSibling[child];
+            }
+            if (child < 0) {
+                int created = newNode(word, d);
+                nextSibling[created] = firstChild[node];
+                firstChild[node] = created;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private int newNode(String word, int d) {
+        if (size == words.length) {
+            int capacity = size * 2;
+            words = Arrays.copyOf(words, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            edge = Arrays.copyOf(edge, capacity);
+        }
+        int node = size++;
+        words[node] = word;
+        firstChild[node] = -1;
+        nextSibling[node] = -1;
+        edge[node] = d;
+        return node;
+    }
+
+    // All dictionary words within edit distance k of the query
+    public List<String> search(String query, int k) {
+        List<String> result = new ArrayList<>();
+        if (size == 0) {
+            return result;
+        }
+        MyersLevenshtein.Pattern pattern = new MyersLevenshtein.Pattern(query);
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int d = MyersLevenshtein.distance(pattern, words[node], Integer.MAX_VALUE - 1);
+            if (d <= k) {
+                result.add(words[node]);
+            }
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (edge[child] >= d - k && edge[child] <= d + k) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Answers each query independently; the tree must not be modified while a batch runs
+    public List<List<String>> searchBatch(List<String> queries, int k) {
+        List<List<String>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        IntStream.range(0, queries.size()).parallel()
+                .forEach(i -> results.set(i, search(queries.get(i), k)));
+        return results;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public static void main(String[] args) {
+        BKTree tree = new BKTree(Arrays.asList(
+                "book", "books", "cake", "boo", "boon", "cook", "cape", "cart", "hook", "brook"));
+        System.out.println(tree.search("bok", 1));
+        System.out.println(tree.searchBatch(Arrays.asList("cape", "bork", "zzz"), 1));
+    }
+}
@@ -0,0 +1,315 @@
+/* Measured Finger Tree
+   A 2-3 finger tree whose elements carry an integer measure (for a rope: the length of a chunk
+   of text). Every node caches the sum of the measures below it, so the tree can be split at a
+   position in O(log n), as in Hinze and Paterson. Prepend and append are amortized O(1), and
+   concatenation is O(log min(n, m)).
+   The tree is immutable; every operation returns a new tree that shares most of its nodes
+   with the old one. */
+
+import java.util.*;
+import java.util.function.Consumer;
+
+public abstract class MeasuredFingerTree<T extends MeasuredFingerTree.Measured> {
+
+    public interface Measured {
+        int measure();
+    }
+
+    /* The element covering a position, with everything before and after it */
+    public static final class Split<T extends Measured> {
+        public final MeasuredFingerTree<T> left;
+        public final T item;
+        public final MeasuredFingerTree<T> right;
+
+        Split(MeasuredFingerTree<T> left, T item, MeasuredFingerTree<T> right) {
+            this.left = left;
+            this.item = item;
+            this.right = right;
+        }
+    }
+
+    private static final MeasuredFingerTree<?> EMPTY = new Empty<>();
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Measured> MeasuredFingerTree<T> empty() {
+        return (MeasuredFingerTree<T>) EMPTY;
+    }
+
+    public static <T extends Measured> MeasuredFingerTree<T> of(Collection<? extends T> items) {
+        MeasuredFingerTree<T> tree = empty();
+        for (T item : items) tree = tree.append(item);
+        return tree;
+    }
+
+    public abstract int measure();
+    public abstract boolean isEmpty();
+    public abstract MeasuredFingerTree<T> prepend(T item);
+    public abstract MeasuredFingerTree<T> append(T item);
+    public abstract T first();
+    public abstract T last();
+    public abstract MeasuredFingerTree<T> removeFirst();
+    public abstract MeasuredFingerTree<T> removeLast();
+    public abstract void forEach(Consumer<? super T> action);
+
+    // Assumes 0 <= position < measure()
+    abstract Split<T> splitTree(int position);
+
+    // Number of elements; walks the tree
+    public int count() {
+        int[] total = new int[1];
+        forEach(item -> total[0]++);
+        return total[0];
+    }
+
+    public MeasuredFingerTree<T> concat(MeasuredFingerTree<T> that) {
+        return app3(this, new Object[0], that);
+    }
+
+    /* Splits at the element whose measure covers the position, so that
+       left.measure() <= position < left.measure() + item.measure() */
+    public Split<T> split(int position) {
+        if (position < 0 || position >= measure()) {
+            throw new IndexOutOfBoundsException("position " + position + ", measure " + measure());
+        }
+        return splitTree(position);
+    }
+
+    /* Internal node of two or three elements */
+    static final class Node<T extends Measured> implements Measured {
+        final Object[] items;
+        final int size;
+
+        Node(Object... items) {
+            this.items = items;
+            this.size = sum(items);
+        }
+
+        @Override public int measure() { return size; }
+    }
+
+    static int sum(Object[] items) {
+        int s = 0;
+        for (Object o : items) s += ((Measured) o).measure();
+        return s;
+    }
+
+    /* ---------------------------------------------------------------- shapes */
+
+    static final class Empty<T extends Measured> extends MeasuredFingerTree<T> {
+        @Override public int measure() { return 0; }
+        @Override public boolean isEmpty() { return true; }
+        @Override public MeasuredFingerTree<T> prepend(T item) { return new Single<>(item); }
+        @Override public MeasuredFingerTree<T> append(T item) { return new Single<>(item); }
+        @Override public T first() { throw new NoSuchElementException(); }
+        @Override public T last() { throw new NoSuchElementException(); }
+        @Override public MeasuredFingerTree<T> removeFirst() { throw new NoSuchElementException(); }
+        @Override public MeasuredFingerTree<T> removeLast() { throw new NoSuchElementException(); }
+        @Override public void forEach(Consumer<? super T> action) { }
+        @Override Split<T> splitTree(int position) { throw new NoSuchElementException(); }
+    }
+
+    static final class Single<T extends Measured> extends MeasuredFingerTree<T> {
+        final T value;
+
+        Single(T value) { this.value = value; }
+
+        @Override public int measure() { return value.measure(); }
+        @Override public boolean isEmpty() { return false; }
+        @Override public MeasuredFingerTree<T> prepend(T item) { return new Deep<>(new Object[]{item}, empty(), new Object[]{value}); }
+        @Override public MeasuredFingerTree<T> append(T item) { return new Deep<>(new Object[]{value}, empty(), new Object[]{item}); }
+        @Override public T first() { return value; }
+        @Override public T last() { return value; }
+        @Override public MeasuredFingerTree<T> removeFirst() { return empty(); }
+        @Override public MeasuredFingerTree<T> removeLast() { return empty(); }
+        @Override public void forEach(Consumer<? super T> action) { action.accept(value); }
+        @Override Split<T> splitTree(int position) { return new Split<>(empty(), value, empty()); }
+    }
+
+    /* Prefix and suffix digits of one to four elements around a tree of nodes */
+    static final class Deep<T extends Measured> extends MeasuredFingerTree<T> {
+        final Object[] prefix;
+        final MeasuredFingerTree<Node<T>> middle;
+        final Object[] suffix;
+        final int size;
+
+        Deep(Object[] prefix, MeasuredFingerTree<Node<T>> middle, Object[] suffix) {
+            this.prefix = prefix;
+            this.middle = middle;
+            this.suffix = suffix;
+            this.size = sum(prefix) + middle.measure() + sum(suffix);
+        }
+
+        @Override public int measure() { return size; }
+        @Override public boolean isEmpty() { return false; }
+
+        @SuppressWarnings("unchecked")
+        @Override public T first() { return (T) prefix[0]; }
+
+        @SuppressWarnings("unchecked")
+        @Override public T last() { return (T) suffix[suffix.length - 1]; }
+
+        @Override public MeasuredFingerTree<T> prepend(T item) {
+            if (prefix.length < 4) return new Deep<>(with(item, prefix), middle, suffix);
+            Node<T> node = new Node<>(prefix[1], prefix[2], prefix[3]);
+            return new Deep<>(new Object[]{item, prefix[0]}, middle.prepend(node), suffix);
+        }
+
+        @Override public MeasuredFingerTree<T> append(T item) {
+            if (suffix.length < 4) return new Deep<>(prefix, middle, with(suffix, item));
+            Node<T> node = new Node<>(suffix[0], suffix[1], suffix[2]);
+            return new Deep<>(prefix, middle.append(node), new Object[]{suffix[3], item});
+        }
+
+        @Override public MeasuredFingerTree<T> removeFirst() {
+            return deepLeft(Arrays.copyOfRange(prefix, 1, prefix.length), middle, suffix);
+        }
+
+        @Override public MeasuredFingerTree<T> removeLast() {
+            return deepRight(prefix, middle, Arrays.copyOf(suffix, suffix.length - 1));
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public void forEach(Consumer<? super T> action) {
+            for (Object o : prefix) action.accept((T) o);
+            middle.forEach(node -> forEachIn(node, action));
+            for (Object o : suffix) action.accept((T) o);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override Split<T> splitTree(int position) {
+            int before = sum(prefix);
+            if (position < before) {
+                int i = indexOf(prefix, position);
+                return new Split<>(toTree(Arrays.copyOf(prefix, i)), (T) prefix[i],
+                        deepLeft(Arrays.copyOfRange(prefix, i + 1, prefix.length), middle, suffix));
+            }
+            position -= before;
+            if (position < middle.measure()) {
+                Split<Node<T>> s = middle.splitTree(position);
+                position -= s.left.measure();
+                Object[] items = s.item.items;
+                int i = indexOf(items, position);
+                return new Split<>(deepRight(prefix, s.left, Arrays.copyOf(items, i)), (T) items[i],
+                        deepLeft(Arrays.copyOfRange(items, i + 1, items.length), s.right, suffix));
+            }
+            position -= middle.measure();
+            int i = indexOf(suffix, position);
+            return new Split<>(deepRight(prefix, middle, Arrays.copyOf(suffix, i)), (T) suffix[i],
+                    toTree(Arrays.copyOfRange(suffix, i + 1, suffix.length)));
+        }
+    }
+
+    /* ---------------------------------------------------------------- helpers */
+
+    @SuppressWarnings("unchecked")
+    static <T extends Measured> void forEachIn(Node<T> node, Consumer<? super T> action) {
+        for (Object o : node.items) action.accept((T) o);
+    }
+
+    static Object[] with(Object first, Object[] rest) {
+        Object[] a = new Object[rest.length + 1];
+        a[0] = first;
+        System.arraycopy(rest, 0, a, 1, rest.length);
+        return a;
+    }
+
+    static Object[] with(Object[] rest, Object last) {
+        Object[] a = Arrays.copyOf(rest, rest.length + 1);
+        a[rest.length] = last;
+        return a;
+    }
+
+    // Index of the element covering the position within a digit or node
+    static int indexOf(Object[] items, int position) {
+        int i = 0;
+        for (int acc = 0; i < items.length - 1; i++) {
+            acc += ((Measured) items[i]).measure();
+            if (position < acc) break;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Measured> MeasuredFingerTree<T> toTree(Object[] items) {
+        MeasuredFingerTree<T> tree = empty();
+        for (Object o : items) tree = tree.append((T) o);
+        return tree;
+    }
+
+    // A deep tree whose prefix may have been emptied by a split: borrows a node from the middle
+    static <T extends Measured> MeasuredFingerTree<T> deepLeft(Object[] prefix, MeasuredFingerTree<Node<T>> middle, Object[] suffix) {
+        if (prefix.length > 0) return new Deep<>(prefix, middle, suffix);
+        if (middle.isEmpty()) return toTree(suffix);
+        return new Deep<>(middle.first().items, middle.removeFirst(), suffix);
+    }
+
+    static <T extends Measured> MeasuredFingerTree<T> deepRight(Object[] prefix, MeasuredFingerTree<Node<T>> middle, Object[] suffix) {
+        if (suffix.length > 0) return new Deep<>(prefix, middle, suffix);
+        if (middle.isEmpty()) return toTree(prefix);
+        return new Deep<>(prefix, middle.removeLast(), middle.last().items);
+    }
+
+    /* Concatenation with a few loose elements in between, grouped into nodes one level down */
+    @SuppressWarnings("unchecked")
+    static <T extends Measured> MeasuredFingerTree<T> app3(MeasuredFingerTree<T> a, Object[] between, MeasuredFingerTree<T> b) {
+        if (a.isEmpty()) {
+            for (int i = between.length - 1; i >= 0; i--) b = b.prepend((T) between[i]);
+            return b;
+        }
+        if (b.isEmpty()) {
+            for (Object o : between) a = a.append((T) o);
+            return a;
+        }
+        if (a instanceof Single) return app3(empty(), between, b).prepend(((Single<T>) a).value);
+        if (b instanceof Single) return app3(a, between, empty()).append(((Single<T>) b).value);
+        Deep<T> x = (Deep<T>) a;
+        Deep<T> y = (Deep<T>) b;
+        Object[] loose = new Object[x.suffix.length + between.length + y.prefix.length];
+        System.arraycopy(x.suffix, 0, loose, 0, x.suffix.length);
+        System.arraycopy(between, 0, loose, x.suffix.length, between.length);
+        System.arraycopy(y.prefix, 0, loose, x.suffix.length + between.length, y.prefix.length);
+        return new Deep<>(x.prefix, app3(x.middle, nodes(loose), y.middle), y.suffix);
+    }
+
+    // Groups 2 or more elements into nodes of three, ending with one or two nodes of two
+    static Object[] nodes(Object[] items) {
+        int n = items.length;
+        int count = (n + 2) / 3;
+        Object[] out = new Object[count];
+        int i = 0;
+        int k = 0;
+        while (n - i > 4) {
+            out[k++] = new Node<>(items[i], items[i + 1], items[i + 2]);
+            i += 3;
+        }
+        if (n - i == 4) {
+            out[k++] = new Node<>(items[i], items[i + 1]);
+            out[k++] = new Node<>(items[i + 2], items[i + 3]);
+        } else if (n - i == 3) {
+            out[k++] = new Node<>(items[i], items[i + 1], items[i + 2]);
+        } else {
+            out[k++] = new Node<>(items[i], items[i + 1]);
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    /* Example usage: a sequence of weighted items, split by position */
+    static final class Piece implements Measured {
+        final String text;
+
+        Piece(String text) { this.text = text; }
+
+        @Override public int measure() { return text.length(); }
+    }
+
+    public static void main(String[] args) {
+        MeasuredFingerTree<Piece> tree = empty();
+        for (String s : "the quick brown fox jumps over the lazy dog".split(" ")) tree = tree.append(new Piece(s + " "));
+        Split<Piece> s = tree.split(17);
+        StringBuilder left = new StringBuilder();
+        s.left.forEach(p -> left.append(p.text));
+        System.out.println("[" + left + "] [" + s.item.text + "] " + s.right.count() + " more");   // [the quick brown ] [fox ] 5 more
+        MeasuredFingerTree<Piece> joined = s.left.append(s.item).concat(s.right);
+        System.out.println(joined.measure() + " " + joined.count());                               // 44 9
+    }
+}
@@ -48,6 +48,37 @@ public class SimHash {
         return Integer.bitCount((int) (a ^ b));
     }
 
+    /**
+     * Computes a full 64-bit SimHash fingerprint from precomputed 64-bit token hashes.
+     *
+     * @param hashes token hashes, e.g. from MinHashIndex.hash64
+     * @param n      number of hashes to use
+     * @return the fingerprint; bit i is set if most hashes have bit i set
+     */
+    public static long fingerprint(long[] hashes, int n) {
+        int[] weights = new int[BITS];
+        for (int t = 0; t < n; t++) {
+            long hash = hashes[t];
+            for (int i = 0; i < BITS; i++) {
+                weights[i] += (int) ((hash >>> i) & 1L) * 2 - 1;
+            }
+        }
+        long fingerprint = 0L;
+        for (int i = 0; i < BITS; i++) {
+            if (weights[i] > 0) {
+                fingerprint |= 1L << i;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Hamming distance over all 64 bits of two fingerprints.
+     */
+    public static int hammingDistance64(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
     // Example usage
     public static void main(String[] args) {
         List<String> doc1 = Arrays.asList("apple", "banana", "orange");
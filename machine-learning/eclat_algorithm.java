@@ -0,0 +1,183 @@
+/* Eclat Algorithm
+   Mines frequent item sets depth-first over the vertical database layout: every item
+   keeps the set of transaction IDs containing it as a long[] bitset, and the support
+   of an extended item set is the popcount of the intersected bitsets. Each bitset
+   also tracks the range of non-zero words so intersections skip empty regions.
+   Equivalence classes of the top-level items are mined in parallel and results are
+   streamed to a callback. */
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class Eclat {
+
+    // Receives every frequent item set with its absolute support; may be called from several threads
+    public interface ItemsetCallback {
+        void accept(int[] itemset, int support);
+    }
+
+    private final int numItems;
+    private final double minSupport;
+    private int minCount;
+
+    public Eclat(int numItems, double minSupport) {
+        this.numItems = numItems;
+        this.minSupport = minSupport;
+    }
+
+    static class TidSet {
+        final long[] words;
+        final int lo;
+        final int hi;
+        final int support;
+
+        TidSet(long[] words, int lo, int hi, int support) {
+            this.words = words;
+            this.lo = lo;
+            this.hi = hi;
+            this.support = support;
+        }
+
+        TidSet intersect(TidSet other) {
+            int from = Math.max(lo, other.lo);
+            int to = Math.min(hi, other.hi);
+            if (from >= to) {
+                return new TidSet(new long[0], 0, 0, 0);
+            }
+            long[] out = new long[to - from];
+            int support = 0;
+            int newLo = -1;
+            int newHi = 0;
+            for (int w = from; w < to; w++) {
+                long x = words[w - lo] & other.words[w - other.lo];
+                out[w - from] = x;
+                if (x != 0) {
+                    support += Long.bitCount(x);
+                    if (newLo < 0) newLo = w;
+                    newHi = w + 1;
+                }
+            }
+            if (newLo < 0) {
+                return new TidSet(new long[0], 0, 0, 0);
+            }
+            // keep only the non-zero window
+            long[] trimmed = (newLo == from && newHi == to) ? out
+                    : Arrays.copyOfRange(out, newLo - from, newHi - from);
+            return new TidSet(trimmed, newLo, newHi, support);
+        }
+    }
+
+    public void mine(int[][] transactions, ItemsetCallback callback) {
+        int n = transactions.length;
+        minCount = (int) Math.max(1, Math.ceil(minSupport * n));
+        int numWords = (n + 63) >>> 6;
+
+        // An item repeated within a transaction counts once
+        int[] counts = new int[numItems];
+        int[] lastSeen = new int[numItems];
+        Arrays.fill(lastSeen, -1);
+        for (int t = 0; t < n; t++) {
+            for (int item : transactions[t]) {
+                if (lastSeen[item] != t) {
+                    lastSeen[item] = t;
+                    counts[item]++;
+                }
+            }
+        }
+        long[][] bits = new long[numItems][];
+        for (int i = 0; i < numItems; i++) {
+            if (counts[i] >= minCount) {
+                bits[i] = new long[numWords];
+            }
+        }
+        for (int t = 0; t < n; t++) {
+            for (int item : transactions[t]) {
+                if (bits[item] != null) {
+                    bits[item][t >>> 6] |= 1L << t;
+                }
+            }
+        }
+
+        // Ascending support keeps the intermediate equivalence classes small
+        Integer[] order = IntStream.range(0, numItems)
+                .filter(i -> bits[i] != null)
+                .boxed()
+                .toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> Integer.compare(counts[a], counts[b]));
+        int m = order.length;
+        int[] items = new int[m];
+        TidSet[] tidSets = new TidSet[m];
+        for (int i = 0; i < m; i++) {
+            items[i] = order[i];
+            long[] words = bits[order[i]];
+            int lo = 0;
+            while (lo < numWords && words[lo] == 0) lo++;
+            int hi = numWords;
+            while (hi > lo && words[hi - 1] == 0) hi--;
+            tidSets[i] = new TidSet(Arrays.copyOfRange(words, lo, hi), lo, hi, counts[order[i]]);
+            bits[order[i]] = null;
+        }
+
+        IntStream.range(0, m).parallel().forEach(i -> {
+            int[] prefix = new int[m];
+            prefix[0] = items[i];
+            callback.accept(new int[]{items[i]}, tidSets[i].support);
+            List<Integer> classItems = new ArrayList<>();
+            List<TidSet> classSets = new ArrayList<>();
+            for (int j = i + 1; j < m; j++) {
+                TidSet joined = tidSets[i].intersect(tidSets[j]);
+                if (joined.support >= minCount) {
+                    classItems.add(items[j]);
+                    classSets.add(joined);
+                }
+            }
+            mineClass(prefix, 1, classItems, classSets, callback);
+        });
+    }
+
+    private void mineClass(int[] prefix, int prefixLen, List<Integer> classItems, List<TidSet> classSets,
+                           ItemsetCallback callback) {
+        int size = classItems.size();
+        for (int i = 0; i < size; i++) {
+            prefix[prefixLen] = classItems.get(i);
+            TidSet base = classSets.get(i);
+            callback.accept(Arrays.copyOf(prefix, prefixLen + 1), base.support);
+            List<Integer> nextItems = new ArrayList<>();
+            List<TidSet> nextSets = new ArrayList<>();
+            for (int j = i + 1; j < size; j++) {
+                TidSet joined = base.intersect(classSets.get(j));
+                if (joined.support >= minCount) {
+                    nextItems.add(classItems.get(j));
+                    nextSets.add(joined);
+                }
+            }
+            if (!nextItems.isEmpty()) {
+                mineClass(prefix, prefixLen + 1, nextItems, nextSets, callback);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        // Items: 0=bread, 1=milk, 2=diaper, 3=beer, 4=egg, 5=cola
+        String[] names = {"bread", "milk", "diaper", "beer", "egg", "cola"};
+        int[][] transactions = {
+            {0, 1},
+            {0, 2, 3, 4, 4, 4},     // egg repeated still counts once, and stays infrequent
+            {1, 2, 3, 5},
+            {0, 1, 2, 3},
+            {0, 1, 2, 5}
+        };
+
+        Eclat eclat = new Eclat(names.length, 0.6);
+        eclat.mine(transactions, (itemset, support) -> {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < itemset.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(names[itemset[i]]);
+            }
+            synchronized (System.out) {
+                System.out.println(sb.append("] support=").append(support));
+            }
+        });
+    }
+}
@@ -0,0 +1,279 @@
+/* FP-Growth Algorithm
+   Mines frequent item sets without candidate generation. Transactions are compressed
+   into a prefix tree (FP-tree) ordered by item frequency, and each frequent item is
+   mined recursively from its conditional FP-tree. Items are integer IDs, the tree is
+   stored in flat int arrays, and the conditional trees of the top-level items are
+   mined in parallel. Results are streamed to a callback instead of being collected. */
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class FPGrowth {
+
+    // Receives every frequent item set with its absolute support; may be called from several threads
+    public interface ItemsetCallback {
+        void accept(int[] itemset, int support);
+    }
+
+    private final int numItems;
+    private final double minSupport;
+    private int minCount;
+    private int[] rankToItem;
+    private int[] itemToRank;
+
+    public FPGrowth(int numItems, double minSupport) {
+        this.numItems = numItems;
+        this.minSupport = minSupport;
+    }
+
+    // Two passes over the transactions: one to count items, one to build the tree.
+    // An item repeated within a transaction counts once.
+    public void mine(Iterable<int[]> transactions, ItemsetCallback callback) {
+        long[] counts = new long[numItems];
+        long[] lastSeen = new long[numItems];
+        long n = 0;
+        for (int[] transaction : transactions) {
+            n++;
+            for (int item : transaction) {
+                if (lastSeen[item] != n) {
+                    lastSeen[item] = n;
+                    counts[item]++;
+                }
+            }
+        }
+        minCount = (int) Math.max(1, Math.ceil(minSupport * n));
+        rankItems(counts);
+        if (rankToItem.length == 0) {
+            return;
+        }
+
+        FPTree tree = new FPTree(rankToItem.length);
+        int[] path = new int[rankToItem.length];
+        long[] inPath = new long[rankToItem.length];
+        long t = 0;
+        for (int[] transaction : transactions) {
+            t++;
+            int len = 0;
+            for (int item : transaction) {
+                int rank = itemToRank[item];
+                if (rank >= 0 && inPath[rank] != t) {
+                    inPath[rank] = t;
+                    path[len++] = rank;
+                }
+            }
+            Arrays.sort(path, 0, len);
+            tree.insert(path, len, 1);
+        }
+
+        IntStream.range(0, rankToItem.length).parallel().forEach(rank -> {
+            int[] suffix = new int[rankToItem.length];
+            mineItem(tree, rank, suffix, 0, callback);
+        });
+    }
+
+    public void mine(int[][] transactions, ItemsetCallback callback) {
+        mine(Arrays.asList(transactions), callback);
+    }
+
+    // Most frequent item gets rank 0, so shared prefixes sit near the root
+    private void rankItems(long[] counts) {
+        Integer[] order = IntStream.range(0, numItems)
+                .filter(i -> counts[i] >= minCount)
+                .boxed()
+                .toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+        rankToItem = new int[order.length];
+        itemToRank = new int[numItems];
+        Arrays.fill(itemToRank, -1);
+        for (int r = 0; r < order.length; r++) {
+            rankToItem[r] = order[r];
+            itemToRank[order[r]] = r;
+        }
+    }
+
+    private void mineItem(FPTree tree, int rank, int[] suffix, int suffixLen, ItemsetCallback callback) {
+        int support = tree.headerCount[rank];
+        if (support < minCount) {
+            return;
+        }
+        suffix[suffixLen] = rank;
+        emit(suffix, suffixLen + 1, support, callback);
+        FPTree conditional = tree.conditional(rank, minCount);
+        if (conditional == null) {
+            return;
+        }
+        for (int r = conditional.headerCount.length - 1; r >= 0; r--) {
+            mineItem(conditional, r, suffix, suffixLen + 1, callback);
+        }
+    }
+
+    private void emit(int[] ranks, int len, int support, ItemsetCallback callback) {
+        int[] itemset = new int[len];
+        for (int i = 0; i < len; i++) {
+            itemset[i] = rankToItem[ranks[i]];
+        }
+        callback.accept(itemset, support);
+    }
+
+    /* FP-tree in struct-of-arrays form. Node 0 is the root. Children are kept in
+       sibling lists and every node is threaded onto the node-link list of its item. */
+    static class FPTree {
+        int[] item;
+        int[] count;
+        int[] parent;
+        int[] firstChild;
+        int[] nextSibling;
+        int[] nodeLink;
+        int size;
+        final int[] headerHead;
+        final int[] headerCount;
+
+        FPTree(int numRanks) {
+            int capacity = 64;
+            item = new int[capacity];
+            count = new int[capacity];
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            nodeLink = new int[capacity];
+            headerHead = new int[numRanks];
+            headerCount = new int[numRanks];
+            Arrays.fill(headerHead, -1);
+            newNode(-1, -1);
+        }
+
+        private int newNode(int it, int par) {
+            if (size == item.length) {
+                int capacity = size * 2;
+                item = Arrays.copyOf(item, capacity);
+                count = Arrays.copyOf(count, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                nodeLink = Arrays.copyOf(nodeLink, capacity);
+            }
+            int node = size++;
+            item[node] = it;
+            count[node] = 0;
+            parent[node] = par;
+            firstChild[node] = -1;
+            nextSibling[node] = -1;
+            nodeLink[node] = -1;
+            if (it >= 0) {
+                nodeLink[node] = headerHead[it];
+                headerHead[it] = node;
+            }
+            return node;
+        }
+
+        // path must be sorted by ascending rank
+        void insert(int[] path, int len, int cnt) {
+            int node = 0;
+            for (int i = 0; i < len; i++) {
+                int it = path[i];
+                int child = firstChild[node];
+                while (child >= 0 && item[child] != it) {
+                    child = nextSibling[child];
+                }
+                if (child < 0) {
+                    child = newNode(it, node);
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                count[child] += cnt;
+                headerCount[it] += cnt;
+                node = child;
+            }
+        }
+
+        // Builds the conditional FP-tree of rank from its prefix paths; null if nothing is frequent
+        FPTree conditional(int rank, int minCount) {
+            if (rank == 0) {
+                return null;
+            }
+            int[] support = new int[rank];
+            for (int node = headerHead[rank]; node >= 0; node = nodeLink[node]) {
+                int c = count[node];
+                for (int p = parent[node]; p > 0; p = parent[p]) {
+                    support[item[p]] += c;
+                }
+            }
+            int maxRank = -1;
+            for (int r = 0; r < rank; r++) {
+                if (support[r] >= minCount) {
+                    maxRank = r;
+                }
+            }
+            if (maxRank < 0) {
+                return null;
+            }
+            FPTree tree = new FPTree(maxRank + 1);
+            int[] path = new int[rank];
+            for (int node = headerHead[rank]; node >= 0; node = nodeLink[node]) {
+                int len = 0;
+                for (int p = parent[node]; p > 0; p = parent[p]) {
+                    if (support[item[p]] >= minCount) {
+                        path[len++] = item[p];
+                    }
+                }
+                // walked leaf-to-root, so reverse to get ascending rank order
+                for (int i = 0, j = len - 1; i < j; i++, j--) {
+                    int t = path[i];
+                    path[i] = path[j];
+                    path[j] = t;
+                }
+                tree.insert(path, len, count[node]);
+            }
+            return tree;
+        }
+    }
+
+    // Maps string items to dense integer IDs; dictionary receives the ID -> name mapping
+    public static int[][] encode(List<Set<String>> transactions, List<String> dictionary) {
+        Map<String, Integer> ids = new HashMap<>();
+        for (String name : dictionary) {
+            ids.put(name, ids.size());
+        }
+        int[][] encoded = new int[transactions.size()][];
+        for (int t = 0; t < transactions.size(); t++) {
+            Set<String> transaction = transactions.get(t);
+            int[] row = new int[transaction.size()];
+            int i = 0;
+            for (String name : transaction) {
+                Integer id = ids.get(name);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(name, id);
+                    dictionary.add(name);
+                }
+                row[i++] = id;
+            }
+            encoded[t] = row;
+        }
+        return encoded;
+    }
+
+    public static void main(String[] args) {
+        List<Set<String>> transactions = new ArrayList<>();
+        transactions.add(new HashSet<>(Arrays.asList("bread", "milk")));
+        transactions.add(new HashSet<>(Arrays.asList("bread", "diaper", "beer", "egg")));
+        transactions.add(new HashSet<>(Arrays.asList("milk", "diaper", "beer", "cola")));
+        transactions.add(new HashSet<>(Arrays.asList("bread", "milk", "diaper", "beer")));
+        transactions.add(new HashSet<>(Arrays.asList("bread", "milk", "diaper", "cola")));
+
+        List<String> dictionary = new ArrayList<>();
+        int[][] encoded = encode(transactions, dictionary);
+
+        FPGrowth fpGrowth = new FPGrowth(dictionary.size(), 0.6);
+        fpGrowth.mine(encoded, (itemset, support) -> {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < itemset.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(dictionary.get(itemset[i]));
+            }
+            synchronized (System.out) {
+                System.out.println(sb.append("] support=").append(support));
+            }
+        });
+    }
+}
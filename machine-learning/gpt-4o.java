@@ -135,6 +135,26 @@ public class GPT4oModel {
             }
             return out;
         }
+
+        // forward for the first n rows at once: each weight row is read once for all of them.
+        // The sums run in the same order as forward, so every row gets the same result
+        public double[][] forwardBatch(double[][] inputs, int n) {
+            double[][] out = new double[n][];
+            for (int b = 0; b < n; b++) {
+                out[b] = bias.clone();
+            }
+            for (int i = 0; i < inDim; i++) {
+                double[] w = weight[i];
+                for (int b = 0; b < n; b++) {
+                    double x = inputs[b][i];
+                    double[] row = out[b];
+                    for (int j = 0; j < outDim; j++) {
+                        row[j] += x * w[j];
+                    }
+                }
+            }
+            return out;
+        }
     }
 
     public static class TransformerBlock {
@@ -167,6 +187,39 @@ public class GPT4oModel {
             }
             return addNorm2;
         }
+
+        // Processes a single new position, attending over the cached keys/values of this layer
+        public double[] forwardStep(double[] x, KVCache cache) {
+            double[] attnOut = attn.forwardStep(x, cache);
+            double[] addNorm1 = new double[dim];
+            for (int j = 0; j < dim; j++) {
+                addNorm1[j] = x[j] + attnOut[j];
+            }
+            double[] ffOut = ff.forward(new double[][]{addNorm1})[0];
+            double[] addNorm2 = new double[dim];
+            for (int j = 0; j < dim; j++) {
+                addNorm2[j] = addNorm1[j] + ffOut[j];
+            }
+            return addNorm2;
+        }
+
+        // forwardStep for the first n rows of x, row b being the new position of the sequence in caches[b]
+        public double[][] forwardStepBatch(double[][] x, int n, KVCache[] caches) {
+            double[][] attnOut = attn.forwardStepBatch(x, n, caches);
+            double[][] addNorm1 = new double[n][dim];
+            for (int b = 0; b < n; b++) {
+                for (int j = 0; j < dim; j++) {
+                    addNorm1[b][j] = x[b][j] + attnOut[b][j];
+                }
+            }
+            double[][] ffOut = ff.forwardBatch(addNorm1, n);
+            for (int b = 0; b < n; b++) {
+                for (int j = 0; j < dim; j++) {
+                    addNorm1[b][j] += ffOut[b][j];
+                }
+            }
+            return addNorm1;
+        }
     }
 
     public static class Attention {
@@ -245,6 +298,59 @@ public class GPT4oModel {
             return out;
         }
 
+        // Incremental attention: appends this position's key/value to the cache and
+        // attends over every position still held in the cache (causal by construction)
+        public double[] forwardStep(double[] x, KVCache cache) {
+            double[] q = qLinear.forward(x);
+            cache.append(kLinear.forward(x), vLinear.forward(x));
+            return outLinear.forward(attend(q, cache));
+        }
+
+        // forwardStep for the first n rows of x; the projections are batched, attention is per cache
+        public double[][] forwardStepBatch(double[][] x, int n, KVCache[] caches) {
+            double[][] q = qLinear.forwardBatch(x, n);
+            double[][] k = kLinear.forwardBatch(x, n);
+            double[][] v = vLinear.forwardBatch(x, n);
+            double[][] attnOut = new double[n][];
+            for (int b = 0; b < n; b++) {
+                caches[b].append(k[b], v[b]);
+                attnOut[b] = attend(q[b], caches[b]);
+            }
+            return outLinear.forwardBatch(attnOut, n);
+        }
+
+        private double[] attend(double[] q, KVCache cache) {
+            double[] scores = cache.scores;
+            double[] attnOut = new double[dim];
+            int size = cache.size();
+            for (int h = 0; h < numHeads; h++) {
+                int offset = h * headDim;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < size; i++) {
+                    double[] key = cache.key(i);
+                    double sum = 0;
+                    for (int d = 0; d < headDim; d++) {
+                        sum += q[offset + d] * key[offset + d];
+                    }
+                    scores[i] = sum;
+                    if (sum > max) max = sum;
+                }
+                double total = 0;
+                for (int i = 0; i < size; i++) {
+                    scores[i] = Math.exp(scores[i] - max);
+                    total += scores[i];
+                }
+                for (int i = 0; i < size; i++) {
+                    double weight = scores[i] / total;
+                    double[] value = cache.value(i);
+                    for (int d = 0; d < headDim; d++) {
+                        attnOut[offset + d] += weight * value[offset + d];
+                    }
+                }
+            }
+            return attnOut;
+        }
+
         private double[][][] reshapeToHeads(double[][] x) {
             int seqLen = x.length;
             double[][][] result = new double[numHeads][seqLen][headDim];
@@ -302,6 +408,319 @@ public class GPT4oModel {
             }
             return out;
         }
+
+        public double[][] forwardBatch(double[][] x, int n) {
+            double[][] hidden = fc1.forwardBatch(x, n);
+            for (int b = 0; b < n; b++) {
+                for (int j = 0; j < hidden[b].length; j++) {
+                    hidden[b][j] = Math.max(0, hidden[b][j]); // ReLU
+                }
+            }
+            return fc2.forwardBatch(hidden, n);
+        }
+    }
+
+    /* Per-layer key/value cache backed by a preallocated ring buffer.
+       Once the capacity is reached the oldest position is overwritten, which turns
+       the attention into a sliding window over the most recent positions. */
+    public static class KVCache {
+        private final double[][] keys;
+        private final double[][] values;
+        private final double[] scores;
+        private final int capacity;
+        private int start;
+        private int size;
+
+        public KVCache(int capacity, int dim) {
+            this.capacity = capacity;
+            this.keys = new double[capacity][dim];
+            this.values = new double[capacity][dim];
+            this.scores = new double[capacity];
+        }
+
+        public void append(double[] key, double[] value) {
+            int slot;
+            if (size < capacity) {
+                slot = (start + size) % capacity;
+                size++;
+            } else {
+                slot = start;
+                start = (start + 1) % capacity;
+            }
+            System.arraycopy(key, 0, keys[slot], 0, key.length);
+            System.arraycopy(value, 0, values[slot], 0, value.length);
+        }
+
+        // i-th cached position, oldest first
+        public double[] key(int i) {
+            return keys[(start + i) % capacity];
+        }
+
+        public double[] value(int i) {
+            return values[(start + i) % capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+
+        public void clear() {
+            start = 0;
+            size = 0;
+        }
+    }
+
+    public GenerationSession newSession(int capacity) {
+        return new GenerationSession(this, capacity);
+    }
+
+    /* Stateful autoregressive generation.
+       The prompt is run through the layers once, filling the caches; afterwards every
+       nextToken call only processes the newly sampled position. */
+    public static class GenerationSession {
+        private final GPT4oModel model;
+        private final KVCache[] caches;
+        private final LogitsSampler sampler;
+        private final float[] samplerLogits;
+        private double[] lastLogits;
+        private int position;
+
+        private long startNanos;
+        private long lastTokenNanos;
+        private long timeToFirstTokenNanos = -1;
+        private long interTokenNanosTotal;
+        private long interTokenNanosMax;
+        private int generatedTokens;
+
+        public GenerationSession(GPT4oModel model, int capacity) {
+            this.model = model;
+            this.caches = new KVCache[model.numLayers];
+            for (int i = 0; i < model.numLayers; i++) {
+                caches[i] = new KVCache(capacity, model.modelDim);
+            }
+            this.sampler = new LogitsSampler(model.vocabSize, System.nanoTime());
+            this.samplerLogits = new float[model.vocabSize];
+        }
+
+        // Feeds the prompt (tokens followed by image features, as in forward) and returns the last logits
+        public double[] prefill(int[] tokenIds, double[][] imageFeatures) {
+            startNanos = System.nanoTime();
+            for (int tokenId : tokenIds) {
+                lastLogits = step(model.tokenEmbedding.forward(tokenId));
+            }
+            if (imageFeatures != null) {
+                for (double[] feature : imageFeatures) {
+                    lastLogits = step(model.imageEmbedding.forwardArray(feature));
+                }
+            }
+            return lastLogits;
+        }
+
+        // Appends an externally chosen token (e.g. forced decoding) and returns the new logits
+        public double[] append(int tokenId) {
+            lastLogits = step(model.tokenEmbedding.forward(tokenId));
+            return lastLogits;
+        }
+
+        // Samples the next token from the current logits with top-p, then advances by one position
+        public int nextToken(double p) {
+            int token = sample(p);
+            append(token);
+            return token;
+        }
+
+        // Samples from the current logits without advancing
+        private int sample(double p) {
+            if (lastLogits == null) {
+                throw new IllegalStateException("prefill must be called before nextToken");
+            }
+            for (int i = 0; i < lastLogits.length; i++) {
+                samplerLogits[i] = (float) lastLogits[i];
+            }
+            int token = sampler.sampleTopP(samplerLogits, (float) p);
+            recordToken();
+            return token;
+        }
+
+        public int[] generate(int maxTokens, double p) {
+            int[] out = new int[maxTokens];
+            for (int i = 0; i < maxTokens; i++) {
+                out[i] = nextToken(p);
+            }
+            return out;
+        }
+
+        private double[] step(double[] embedding) {
+            double[] hidden = embedding;
+            for (int l = 0; l < model.numLayers; l++) {
+                hidden = model.layers[l].forwardStep(hidden, caches[l]);
+            }
+            position++;
+            return model.lmHead.forward(hidden);
+        }
+
+        private void recordToken() {
+            long now = System.nanoTime();
+            if (timeToFirstTokenNanos < 0) {
+                timeToFirstTokenNanos = now - startNanos;
+            } else {
+                long gap = now - lastTokenNanos;
+                interTokenNanosTotal += gap;
+                interTokenNanosMax = Math.max(interTokenNanosMax, gap);
+            }
+            lastTokenNanos = now;
+            generatedTokens++;
+        }
+
+        public double[] getLastLogits() {
+            return lastLogits;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getGeneratedTokens() {
+            return generatedTokens;
+        }
+
+        public double getTimeToFirstTokenMillis() {
+            return timeToFirstTokenNanos / 1e6;
+        }
+
+        public double getMeanInterTokenMillis() {
+            return generatedTokens > 1 ? interTokenNanosTotal / 1e6 / (generatedTokens - 1) : 0;
+        }
+
+        public double getMaxInterTokenMillis() {
+            return interTokenNanosMax / 1e6;
+        }
+
+        public void reset() {
+            for (KVCache cache : caches) {
+                cache.clear();
+            }
+            lastLogits = null;
+            position = 0;
+            timeToFirstTokenNanos = -1;
+            interTokenNanosTotal = 0;
+            interTokenNanosMax = 0;
+            generatedTokens = 0;
+        }
+    }
+
+    /* Lockstep generation for a group of sequences whose prompts have different lengths.
+       Each lane keeps its own KV caches, so sequences of any length sit side by side
+       without padding; what varies per step is a mask over the lanes. A step stacks the
+       new position of every masked-in lane and runs each layer once for all of them, so
+       the weights are read once per step rather than once per lane. During prefill a lane
+       drops out of the mask once its prompt is used up; while decoding, once it has
+       emitted the end token. */
+    public static class BatchGenerationSession {
+        private final GPT4oModel model;
+        private final GenerationSession[] lanes;
+        private final boolean[] finished;
+        private final boolean[] mask;
+        private final double[][] rows;
+        private final int[] laneOfRow;
+        private final KVCache[] rowCaches;
+
+        public BatchGenerationSession(GPT4oModel model, int batchSize, int capacity) {
+            this.model = model;
+            this.lanes = new GenerationSession[batchSize];
+            this.finished = new boolean[batchSize];
+            this.mask = new boolean[batchSize];
+            this.rows = new double[batchSize][];
+            this.laneOfRow = new int[batchSize];
+            this.rowCaches = new KVCache[batchSize];
+            for (int b = 0; b < batchSize; b++) {
+                lanes[b] = new GenerationSession(model, capacity);
+            }
+        }
+
+        // One non-empty prompt per lane. Prompt position t of every lane that has one is fed in the same step
+        public void prefill(int[][] prompts) {
+            if (prompts.length != lanes.length) {
+                throw new IllegalArgumentException("Expected " + lanes.length + " prompts, got " + prompts.length);
+            }
+            int maxLength = 0;
+            for (int b = 0; b < lanes.length; b++) {
+                if (prompts[b] == null || prompts[b].length == 0) {
+                    throw new IllegalArgumentException("Prompt for lane " + b + " is empty");
+                }
+                maxLength = Math.max(maxLength, prompts[b].length);
+            }
+            long start = System.nanoTime();
+            for (int b = 0; b < lanes.length; b++) {
+                lanes[b].reset();
+                lanes[b].startNanos = start;
+                finished[b] = false;
+            }
+            int[] tokens = new int[lanes.length];
+            for (int t = 0; t < maxLength; t++) {
+                for (int b = 0; b < lanes.length; b++) {
+                    mask[b] = t < prompts[b].length;
+                    if (mask[b]) tokens[b] = prompts[b][t];
+                }
+                step(tokens);
+            }
+        }
+
+        /* Returns the sampled token per lane, or -1 for lanes that have finished.
+           All lanes share the prefill and each decode step, so a lane's time to first token
+           and inter-token gaps are the batch's step times, which is what its caller waits. */
+        public int[] nextTokens(double p, int eosToken) {
+            int[] out = new int[lanes.length];
+            for (int b = 0; b < lanes.length; b++) {
+                if (finished[b]) {
+                    out[b] = -1;
+                    mask[b] = false;
+                    continue;
+                }
+                out[b] = lanes[b].sample(p);
+                finished[b] = out[b] == eosToken;
+                mask[b] = !finished[b];
+            }
+            step(out);
+            return out;
+        }
+
+        // Runs token[b] through the model for every lane in the mask, as one batch
+        private void step(int[] tokens) {
+            int n = 0;
+            for (int b = 0; b < lanes.length; b++) {
+                if (mask[b]) {
+                    rows[n] = model.tokenEmbedding.forward(tokens[b]);
+                    laneOfRow[n++] = b;
+                }
+            }
+            if (n == 0) return;
+            double[][] hidden = rows;
+            for (int l = 0; l < model.numLayers; l++) {
+                for (int r = 0; r < n; r++) {
+                    rowCaches[r] = lanes[laneOfRow[r]].caches[l];
+                }
+                hidden = model.layers[l].forwardStepBatch(hidden, n, rowCaches);
+            }
+            double[][] logits = model.lmHead.forwardBatch(hidden, n);
+            for (int r = 0; r < n; r++) {
+                GenerationSession lane = lanes[laneOfRow[r]];
+                lane.lastLogits = logits[r];
+                lane.position++;
+            }
+        }
+
+        public boolean isFinished(int lane) {
+            return finished[lane];
+        }
+
+        public GenerationSession lane(int b) {
+            return lanes[b];
+        }
     }
 
     public static void main(String[] args) {
@@ -310,5 +729,53 @@ public class GPT4oModel {
         double[][] imageFeat = new double[][]{{0.1, 0.2, 0.3}}; // placeholder
         double[][] logits = model.forward(tokens, imageFeat);
         System.out.println("Logits shape: " + logits.length + "x" + logits[0].length);
+
+        GenerationSession session = model.newSession(64);
+        session.prefill(tokens, imageFeat);
+        int[] generated = session.generate(8, 0.9);
+        System.out.println("Generated: " + Arrays.toString(generated));
+        System.out.printf("TTFT: %.2f ms, inter-token: %.2f ms (max %.2f ms)%n",
+                session.getTimeToFirstTokenMillis(), session.getMeanInterTokenMillis(),
+                session.getMaxInterTokenMillis());
+
+        int[][] prompts = {model.tokenize("Hello world"), model.tokenize("a longer prompt here"),
+                model.tokenize("one"), model.tokenize("the fourth prompt of this batch is the longest")};
+        BatchGenerationSession batch = new BatchGenerationSession(model, prompts.length, 64);
+        batch.prefill(prompts);
+
+        // A lane must see exactly what a session of its own would
+        boolean same = true;
+        for (int b = 0; b < prompts.length; b++) {
+            GenerationSession alone = model.newSession(64);
+            alone.prefill(prompts[b], null);
+            same &= Arrays.equals(alone.getLastLogits(), batch.lane(b).getLastLogits());
+        }
+        System.out.println("Batched prefill matches per-lane sessions: " + same);
+
+        batch.prefill(prompts);
+
+        int steps = 8;
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            System.out.println("Batch step: " + Arrays.toString(batch.nextTokens(0.9, -1)));
+        }
+        double batched = (System.nanoTime() - start) / 1e6;
+        for (int b = 0; b < prompts.length; b++) {
+            GenerationSession lane = batch.lane(b);
+            System.out.printf("lane %d (%d prompt tokens): TTFT %.2f ms, inter-token %.2f ms%n",
+                    b, prompts[b].length, lane.getTimeToFirstTokenMillis(), lane.getMeanInterTokenMillis());
+        }
+        GenerationSession[] serial = new GenerationSession[prompts.length];
+        for (int b = 0; b < prompts.length; b++) {
+            serial[b] = model.newSession(64);
+            serial[b].prefill(prompts[b], null);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            for (GenerationSession lane : serial) lane.nextToken(0.9);
+        }
+        double oneByOne = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%d decode steps x %d lanes: batched %.0f ms, one lane at a time %.0f ms%n",
+                steps, prompts.length, batched, oneByOne);
     }
 }
\ No newline at end of file
@@ -0,0 +1,404 @@
+/*
+ * Hidden Markov Model engine shared by Viterbi decoding, forward-backward and Baum-Welch.
+ * States and observation symbols are integer coded and the parameters are kept in flat
+ * arrays laid out for the inner loops (transitions transposed for the recursions,
+ * emissions grouped by symbol). Viterbi runs in log space and forward-backward uses
+ * per-step scaling, so long sequences do not underflow. Trellis buffers are reused
+ * across sequences, batches of sequences are processed in parallel, and Baum-Welch
+ * accumulates expected counts per worker and reduces them once per iteration.
+ */
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class HmmEngine {
+
+    private final int N; // number of states
+    private final int M; // number of observation symbols
+
+    private final double[] pi;     // pi[i]
+    private final double[] A;      // A[i * N + j] = P(j | i)
+    private final double[] AT;     // AT[j * N + i] = P(j | i)
+    private final double[] BT;     // BT[o * N + i] = P(o | i)
+    private final double[] logPi;
+    private final double[] logAT;
+    private final double[] logBT;
+
+    public HmmEngine(int N, int M, double[][] A, double[][] B, double[] pi) {
+        this.N = N;
+        this.M = M;
+        this.pi = new double[N];
+        this.A = new double[N * N];
+        this.AT = new double[N * N];
+        this.BT = new double[M * N];
+        this.logPi = new double[N];
+        this.logAT = new double[N * N];
+        this.logBT = new double[M * N];
+        setParameters(A, B, pi);
+    }
+
+    private void setParameters(double[][] a, double[][] b, double[] p) {
+        for (int i = 0; i < N; i++) {
+            pi[i] = p[i];
+            logPi[i] = Math.log(p[i]);
+            for (int j = 0; j < N; j++) {
+                A[i * N + j] = a[i][j];
+                AT[j * N + i] = a[i][j];
+                logAT[j * N + i] = Math.log(a[i][j]);
+            }
+            for (int o = 0; o < M; o++) {
+                BT[o * N + i] = b[i][o];
+                logBT[o * N + i] = Math.log(b[i][o]);
+            }
+        }
+    }
+
+    // Builds an engine from the string-keyed tables used by Viterbi; missing entries are zero
+    public static HmmEngine fromMaps(String[] states, String[] symbols,
+                                     Map<String, Map<String, Double>> transProb,
+                                     Map<String, Map<String, Double>> emitProb,
+                                     Map<String, Double> initProb) {
+        int n = states.length;
+        int m = symbols.length;
+        double[][] a = new double[n][n];
+        double[][] b = new double[n][m];
+        double[] p = new double[n];
+        for (int i = 0; i < n; i++) {
+            p[i] = initProb.getOrDefault(states[i], 0.0);
+            Map<String, Double> trans = transProb.getOrDefault(states[i], Collections.emptyMap());
+            Map<String, Double> emit = emitProb.getOrDefault(states[i], Collections.emptyMap());
+            for (int j = 0; j < n; j++) {
+                a[i][j] = trans.getOrDefault(states[j], 0.0);
+            }
+            for (int o = 0; o < m; o++) {
+                b[i][o] = emit.getOrDefault(symbols[o], 0.0);
+            }
+        }
+        return new HmmEngine(n, m, a, b, p);
+    }
+
+    /* Reusable per-thread buffers, grown to the longest sequence seen */
+    public static final class Trellis {
+        private final int N;
+        double[] alpha = new double[0];
+        double[] beta = new double[0];
+        double[] scale = new double[0];
+        int[] backpointer = new int[0];
+        double[] deltaPrev;
+        double[] deltaCurr;
+
+        public Trellis(int N) {
+            this.N = N;
+            this.deltaPrev = new double[N];
+            this.deltaCurr = new double[N];
+        }
+
+        void ensure(int T) {
+            if (scale.length < T) {
+                int capacity = Math.max(T, scale.length * 2);
+                alpha = new double[capacity * N];
+                beta = new double[capacity * N];
+                scale = new double[capacity];
+                backpointer = new int[capacity * N];
+            }
+        }
+    }
+
+    public Trellis newTrellis() {
+        return new Trellis(N);
+    }
+
+    /**
+     * Log-space Viterbi decoding.
+     *
+     * @return log probability of the best path, which is written to path[0 .. T)
+     */
+    public double viterbi(int[] obs, Trellis tr, int[] path) {
+        int T = obs.length;
+        tr.ensure(T);
+        double[] prev = tr.deltaPrev;
+        double[] curr = tr.deltaCurr;
+        int[] bp = tr.backpointer;
+        int o0 = obs[0] * N;
+        for (int i = 0; i < N; i++) {
+            prev[i] = logPi[i] + logBT[o0 + i];
+        }
+        for (int t = 1; t < T; t++) {
+            int ot = obs[t] * N;
+            int row = t * N;
+            for (int j = 0; j < N; j++) {
+                int col = j * N;
+                double best = Double.NEGATIVE_INFINITY;
+                int arg = 0;
+                for (int i = 0; i < N; i++) {
+                    double score = prev[i] + logAT[col + i];
+                    if (score > best) {
+                        best = score;
+                        arg = i;
+                    }
+                }
+                curr[j] = best + logBT[ot + j];
+                bp[row + j] = arg;
+            }
+            double[] tmp = prev;
+            prev = curr;
+            curr = tmp;
+        }
+        double best = Double.NEGATIVE_INFINITY;
+        int state = 0;
+        for (int i = 0; i < N; i++) {
+            if (prev[i] > best) {
+                best = prev[i];
+                state = i;
+            }
+        }
+        for (int t = T - 1; t >= 0; t--) {
+            path[t] = state;
+            state = bp[t * N + state];
+        }
+        return best;
+    }
+
+    /**
+     * Scaled forward and backward passes. After the call, alpha[t * N + i] * beta[t * N + i]
+     * in the trellis is the posterior P(state i at t | obs).
+     *
+     * @return log-likelihood of the sequence
+     */
+    public double forwardBackward(int[] obs, Trellis tr) {
+        int T = obs.length;
+        tr.ensure(T);
+        double[] alpha = tr.alpha;
+        double[] beta = tr.beta;
+        double[] scale = tr.scale;
+
+        int o0 = obs[0] * N;
+        double sum = 0;
+        for (int i = 0; i < N; i++) {
+            alpha[i] = pi[i] * BT[o0 + i];
+            sum += alpha[i];
+        }
+        scale[0] = sum;
+        for (int i = 0; i < N; i++) {
+            alpha[i] /= sum;
+        }
+        for (int t = 1; t < T; t++) {
+            int prevRow = (t - 1) * N;
+            int row = t * N;
+            int ot = obs[t] * N;
+            sum = 0;
+            for (int j = 0; j < N; j++) {
+                int col = j * N;
+                double acc = 0;
+                for (int i = 0; i < N; i++) {
+                    acc += alpha[prevRow + i] * AT[col + i];
+                }
+                double value = acc * BT[ot + j];
+                alpha[row + j] = value;
+                sum += value;
+            }
+            scale[t] = sum;
+            for (int j = 0; j < N; j++) {
+                alpha[row + j] /= sum;
+            }
+        }
+
+        int last = (T - 1) * N;
+        for (int i = 0; i < N; i++) {
+            beta[last + i] = 1.0;
+        }
+        for (int t = T - 2; t >= 0; t--) {
+            int row = t * N;
+            int nextRow = (t + 1) * N;
+            int on = obs[t + 1] * N;
+            double c = scale[t + 1];
+            for (int i = 0; i < N; i++) {
+                int base = i * N;
+                double acc = 0;
+                for (int j = 0; j < N; j++) {
+                    acc += A[base + j] * BT[on + j] * beta[nextRow + j];
+                }
+                beta[row + i] = acc / c;
+            }
+        }
+
+        double logLikelihood = 0;
+        for (int t = 0; t < T; t++) {
+            logLikelihood += Math.log(scale[t]);
+        }
+        return logLikelihood;
+    }
+
+    // Posterior state marginals as a T x N matrix
+    public double[][] posteriors(int[] obs) {
+        Trellis tr = newTrellis();
+        forwardBackward(obs, tr);
+        double[][] gamma = new double[obs.length][N];
+        for (int t = 0; t < obs.length; t++) {
+            for (int i = 0; i < N; i++) {
+                gamma[t][i] = tr.alpha[t * N + i] * tr.beta[t * N + i];
+            }
+        }
+        return gamma;
+    }
+
+    // Decodes every sequence in parallel; each worker thread reuses one trellis
+    public int[][] viterbiBatch(int[][] sequences) {
+        int[][] paths = new int[sequences.length][];
+        ThreadLocal<Trellis> trellis = ThreadLocal.withInitial(this::newTrellis);
+        IntStream.range(0, sequences.length).parallel().forEach(s -> {
+            int[] path = new int[sequences[s].length];
+            if (path.length > 0) {
+                viterbi(sequences[s], trellis.get(), path);
+            }
+            paths[s] = path;
+        });
+        return paths;
+    }
+
+    /* Expected counts collected by one worker; merged at the end of each E-step */
+    private final class Counts {
+        final Trellis trellis = newTrellis();
+        final double[] init = new double[N];
+        final double[] trans = new double[N * N];
+        final double[] transFrom = new double[N];
+        final double[] emit = new double[N * M];
+        final double[] occupancy = new double[N];
+        double logLikelihood;
+
+        void add(int[] obs) {
+            int T = obs.length;
+            if (T == 0) return;
+            logLikelihood += forwardBackward(obs, trellis);
+            double[] alpha = trellis.alpha;
+            double[] beta = trellis.beta;
+            double[] scale = trellis.scale;
+            for (int t = 0; t < T; t++) {
+                int row = t * N;
+                for (int i = 0; i < N; i++) {
+                    double gamma = alpha[row + i] * beta[row + i];
+                    if (t == 0) init[i] += gamma;
+                    emit[i * M + obs[t]] += gamma;
+                    occupancy[i] += gamma;
+                    if (t < T - 1) transFrom[i] += gamma;
+                }
+            }
+            for (int t = 0; t < T - 1; t++) {
+                int row = t * N;
+                int nextRow = (t + 1) * N;
+                int on = obs[t + 1] * N;
+                double c = scale[t + 1];
+                for (int i = 0; i < N; i++) {
+                    double a = alpha[row + i] / c;
+                    int base = i * N;
+                    for (int j = 0; j < N; j++) {
+                        trans[base + j] += a * A[base + j] * BT[on + j] * beta[nextRow + j];
+                    }
+                }
+            }
+        }
+
+        Counts merge(Counts other) {
+            for (int i = 0; i < N; i++) {
+                init[i] += other.init[i];
+                transFrom[i] += other.transFrom[i];
+                occupancy[i] += other.occupancy[i];
+            }
+            for (int k = 0; k < trans.length; k++) trans[k] += other.trans[k];
+            for (int k = 0; k < emit.length; k++) emit[k] += other.emit[k];
+            logLikelihood += other.logLikelihood;
+            return this;
+        }
+    }
+
+    /**
+     * Baum-Welch re-estimation over many sequences. Expected counts are accumulated per
+     * worker in parallel and reduced once per iteration.
+     *
+     * @return total log-likelihood of the data under the model before the last update
+     */
+    public double baumWelch(int[][] sequences, int maxIterations, double tolerance) {
+        double previous = Double.NEGATIVE_INFINITY;
+        double logLikelihood = previous;
+        for (int iter = 0; iter < maxIterations; iter++) {
+            Counts counts = IntStream.range(0, sequences.length).parallel()
+                    .collect(Counts::new, (c, s) -> c.add(sequences[s]), Counts::merge);
+            logLikelihood = counts.logLikelihood;
+
+            double[][] a = new double[N][N];
+            double[][] b = new double[N][M];
+            double[] p = new double[N];
+            double initTotal = 0;
+            for (int i = 0; i < N; i++) initTotal += counts.init[i];
+            for (int i = 0; i < N; i++) {
+                p[i] = counts.init[i] / initTotal;
+                for (int j = 0; j < N; j++) {
+                    a[i][j] = counts.transFrom[i] > 0 ? counts.trans[i * N + j] / counts.transFrom[i] : A[i * N + j];
+                }
+                for (int o = 0; o < M; o++) {
+                    b[i][o] = counts.occupancy[i] > 0 ? counts.emit[i * M + o] / counts.occupancy[i] : BT[o * N + i];
+                }
+            }
+            setParameters(a, b, p);
+            if (logLikelihood - previous < tolerance) {
+                break;
+            }
+            previous = logLikelihood;
+        }
+        return logLikelihood;
+    }
+
+    public double[][] getTransitionMatrix() {
+        double[][] a = new double[N][N];
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(A, i * N, a[i], 0, N);
+        }
+        return a;
+    }
+
+    public double[][] getEmissionMatrix() {
+        double[][] b = new double[N][M];
+        for (int i = 0; i < N; i++) {
+            for (int o = 0; o < M; o++) {
+                b[i][o] = BT[o * N + i];
+            }
+        }
+        return b;
+    }
+
+    public static void main(String[] args) {
+        double[][] A = {{0.7, 0.3}, {0.4, 0.6}};
+        double[][] B = {{0.5, 0.4, 0.1}, {0.1, 0.3, 0.6}};
+        double[] pi = {0.6, 0.4};
+        HmmEngine hmm = new HmmEngine(2, 3, A, B, pi);
+
+        // Sample sequences from the model
+        Random rand = new Random(1);
+        int[][] sequences = new int[2000][];
+        for (int s = 0; s < sequences.length; s++) {
+            int T = 50 + rand.nextInt(2000);
+            int[] obs = new int[T];
+            int state = rand.nextDouble() < pi[0] ? 0 : 1;
+            for (int t = 0; t < T; t++) {
+                double r = rand.nextDouble();
+                obs[t] = r < B[state][0] ? 0 : r < B[state][0] + B[state][1] ? 1 : 2;
+                state = rand.nextDouble() < A[state][0] ? 0 : 1;
+            }
+            sequences[s] = obs;
+        }
+
+        long start = System.nanoTime();
+        int[][] paths = hmm.viterbiBatch(sequences);
+        System.out.printf("Decoded %d sequences in %.1f ms, first path length %d%n",
+                paths.length, (System.nanoTime() - start) / 1e6, paths[0].length);
+
+        HmmEngine learner = new HmmEngine(2, 3,
+                new double[][]{{0.5, 0.5}, {0.5, 0.5}},
+                new double[][]{{0.4, 0.3, 0.3}, {0.2, 0.3, 0.5}},
+                new double[]{0.5, 0.5});
+        double ll = learner.baumWelch(sequences, 50, 1e-4);
+        System.out.println("Log-likelihood: " + ll);
+        System.out.println("Learned A: " + Arrays.deepToString(learner.getTransitionMatrix()));
+        System.out.println("Learned B: " + Arrays.deepToString(learner.getEmissionMatrix()));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Sparse Item-Item Collaborative Filtering
+ * Idea: Same recommender as ItemItemRecommender, but the ratings live in a
+ * SparseRatingMatrix and only the K most similar neighbors of each item are kept.
+ * Cosine similarities of item i are accumulated by walking the users who rated i
+ * and the items those users rated, so only co-rated pairs are ever touched. Items
+ * are processed in parallel blocks over per-thread scratch accumulators, and a
+ * bounded min-heap per item retains the top K neighbors.
+ */
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class SparseItemItemRecommender {
+
+    private static final int BLOCK_SIZE = 256;
+
+    private final SparseRatingMatrix ratings;
+    private final int k;
+
+    // neighbors of item i: neighborIds/neighborSims[i * k .. i * k + neighborCount[i]), best first
+    private final int[] neighborIds;
+    private final float[] neighborSims;
+    private final int[] neighborCount;
+
+    public SparseItemItemRecommender(SparseRatingMatrix ratings, int k) {
+        this.ratings = ratings;
+        this.k = k;
+        int numItems = ratings.numItems();
+        int slots = SparseRatingMatrix.arrayLength((long) numItems * k, numItems + " items x " + k + " neighbors");
+        this.neighborIds = new int[slots];
+        this.neighborSims = new float[slots];
+        this.neighborCount = new int[numItems];
+        computeTopKSimilarities();
+    }
+
+    private void computeTopKSimilarities() {
+        int numItems = ratings.numItems();
+        float[] norms = new float[numItems];
+        for (int i = 0; i < numItems; i++) {
+            double sum = 0;
+            for (int p = ratings.itemStart(i); p < ratings.itemEnd(i); p++) {
+                double r = ratings.itemRatingAt(p);
+                sum += r * r;
+            }
+            norms[i] = (float) Math.sqrt(sum);
+        }
+
+        // Scratch is per worker thread, not per block, since it is sized to the catalog
+        ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(() -> new Scratch(numItems, k));
+        int numBlocks = (numItems + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, numBlocks).parallel().forEach(block -> {
+            Scratch s = scratch.get();
+            float[] dot = s.dot;
+            int[] mark = s.mark;
+            int[] touched = s.touched;
+            int[] heapIds = s.heapIds;
+            float[] heapSims = s.heapSims;
+            int from = block * BLOCK_SIZE;
+            int to = Math.min(numItems, from + BLOCK_SIZE);
+            for (int i = from; i < to; i++) {
+                if (norms[i] == 0) continue;
+                int numTouched = 0;
+                for (int p = ratings.itemStart(i); p < ratings.itemEnd(i); p++) {
+                    int user = ratings.userAt(p);
+                    float ri = ratings.itemRatingAt(p);
+                    for (int q = ratings.userStart(user); q < ratings.userEnd(user); q++) {
+                        int j = ratings.itemAt(q);
+                        if (j == i) continue;
+                        if (mark[j] != i + 1) {
+                            mark[j] = i + 1;
+                            dot[j] = 0;
+                            touched[numTouched++] = j;
+                        }
+                        dot[j] += ri * ratings.userRatingAt(q);
+                    }
+                }
+                int heapSize = 0;
+                for (int t = 0; t < numTouched; t++) {
+                    int j = touched[t];
+                    float sim = dot[j] / (norms[i] * norms[j]);
+                    if (sim <= 0) continue;
+                    if (heapSize < k) {
+                        heapIds[heapSize] = j;
+                        heapSims[heapSize] = sim;
+                        siftUp(heapIds, heapSims, heapSize++);
+                    } else if (sim > heapSims[0]) {
+                        heapIds[0] = j;
+                        heapSims[0] = sim;
+                        siftDown(heapIds, heapSims, heapSize);
+                    }
+                }
+                // Drain the min-heap from the back so the stored list is best first
+                neighborCount[i] = heapSize;
+                int base = i * k;
+                for (int n = heapSize - 1; n >= 0; n--) {
+                    neighborIds[base + n] = heapIds[0];
+                    neighborSims[base + n] = heapSims[0];
+                    heapIds[0] = heapIds[n];
+                    heapSims[0] = heapSims[n];
+                    siftDown(heapIds, heapSims, n);
+                }
+            }
+        });
+    }
+
+    private static class Scratch {
+        final float[] dot;
+        final int[] mark;
+        final int[] touched;
+        final int[] heapIds;
+        final float[] heapSims;
+
+        Scratch(int numItems, int k) {
+            dot = new float[numItems];
+            mark = new int[numItems];
+            touched = new int[numItems];
+            heapIds = new int[k];
+            heapSims = new float[k];
+        }
+    }
+
+    private static void siftUp(int[] ids, float[] sims, int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (sims[parent] <= sims[pos]) break;
+            swap(ids, sims, parent, pos);
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(int[] ids, float[] sims, int size) {
+        int pos = 0;
+        while (true) {
+            int left = 2 * pos + 1;
+            if (left >= size) break;
+            int smallest = left;
+            if (left + 1 < size && sims[left + 1] < sims[left]) smallest = left + 1;
+            if (sims[pos] <= sims[smallest]) break;
+            swap(ids, sims, pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private static void swap(int[] ids, float[] sims, int a, int b) {
+        int id = ids[a]; ids[a] = ids[b]; ids[b] = id;
+        float s = sims[a]; sims[a] = sims[b]; sims[b] = s;
+    }
+
+    public int neighborCount(int item) {
+        return neighborCount[item];
+    }
+
+    public int neighbor(int item, int n) {
+        return neighborIds[item * k + n];
+    }
+
+    public float similarity(int item, int n) {
+        return neighborSims[item * k + n];
+    }
+
+    // Generate top N recommendations for a given user from the neighbors of the items they rated
+    public List<Integer> recommend(int user, int topN) {
+        Map<Integer, double[]> scores = new HashMap<>();
+        Set<Integer> rated = new HashSet<>();
+        for (int p = ratings.userStart(user); p < ratings.userEnd(user); p++) {
+            rated.add(ratings.itemAt(p));
+        }
+        for (int p = ratings.userStart(user); p < ratings.userEnd(user); p++) {
+            int item = ratings.itemAt(p);
+            float rating = ratings.userRatingAt(p);
+            for (int n = 0; n < neighborCount[item]; n++) {
+                int candidate = neighborIds[item * k + n];
+                if (rated.contains(candidate)) continue;
+                float sim = neighborSims[item * k + n];
+                double[] acc = scores.computeIfAbsent(candidate, c -> new double[2]);
+                acc[0] += sim * rating;
+                acc[1] += sim;
+            }
+        }
+        List<Integer> candidates = new ArrayList<>(scores.keySet());
+        candidates.sort((a, b) -> Double.compare(
+                scores.get(b)[0] / scores.get(b)[1], scores.get(a)[0] / scores.get(a)[1]));
+        return candidates.subList(0, Math.min(topN, candidates.size()));
+    }
+
+    public static void main(String[] args) {
+        SparseRatingMatrix.Builder builder = new SparseRatingMatrix.Builder(5, 6);
+        builder.add(0, 0, 5).add(0, 1, 3).add(0, 3, 1);
+        builder.add(1, 0, 4).add(1, 3, 1).add(1, 5, 2);
+        builder.add(2, 0, 1).add(2, 1, 1).add(2, 3, 5).add(2, 4, 4);
+        builder.add(3, 0, 1).add(3, 3, 4).add(3, 4, 5);
+        builder.add(4, 1, 1).add(4, 2, 5).add(4, 3, 4).add(4, 5, 3);
+
+        SparseItemItemRecommender recommender = new SparseItemItemRecommender(builder.build(), 2);
+        for (int i = 0; i < 6; i++) {
+            StringBuilder sb = new StringBuilder("item " + i + " neighbors:");
+            for (int n = 0; n < recommender.neighborCount(i); n++) {
+                sb.append(String.format(" %d(%.3f)", recommender.neighbor(i, n), recommender.similarity(i, n)));
+            }
+            System.out.println(sb);
+        }
+        System.out.println("Recommendations for user 1: " + recommender.recommend(1, 3));
+    }
+}
@@ -0,0 +1,149 @@
+/* Sparse Rating Matrix
+   Stores a user-item rating matrix in compressed sparse row (CSR) form for user
+   access and in compressed sparse column (CSC) form for item access. Both views are
+   built from coordinate triples with a counting sort, so memory is proportional to
+   the number of ratings rather than users x items. */
+
+import java.util.*;
+
+public class SparseRatingMatrix {
+
+    private final int numUsers;
+    private final int numItems;
+
+    // CSR: ratings of user u are rowItems/rowValues[rowPtr[u] .. rowPtr[u + 1])
+    private final int[] rowPtr;
+    private final int[] rowItems;
+    private final float[] rowValues;
+
+    // CSC: ratings of item i are colUsers/colValues[colPtr[i] .. colPtr[i + 1])
+    private final int[] colPtr;
+    private final int[] colUsers;
+    private final float[] colValues;
+
+    public SparseRatingMatrix(int numUsers, int numItems, int[] users, int[] items, float[] ratings, int nnz) {
+        this.numUsers = numUsers;
+        this.numItems = numItems;
+        this.rowPtr = new int[numUsers + 1];
+        this.rowItems = new int[nnz];
+        this.rowValues = new float[nnz];
+        this.colPtr = new int[numItems + 1];
+        this.colUsers = new int[nnz];
+        this.colValues = new float[nnz];
+
+        for (int k = 0; k < nnz; k++) {
+            rowPtr[users[k] + 1]++;
+            colPtr[items[k] + 1]++;
+        }
+        for (int u = 0; u < numUsers; u++) {
+            rowPtr[u + 1] += rowPtr[u];
+        }
+        for (int i = 0; i < numItems; i++) {
+            colPtr[i + 1] += colPtr[i];
+        }
+        int[] rowFill = Arrays.copyOf(rowPtr, numUsers);
+        int[] colFill = Arrays.copyOf(colPtr, numItems);
+        for (int k = 0; k < nnz; k++) {
+            int r = rowFill[users[k]]++;
+            rowItems[r] = items[k];
+            rowValues[r] = ratings[k];
+            int c = colFill[items[k]]++;
+            colUsers[c] = users[k];
+            colValues[c] = ratings[k];
+        }
+    }
+
+    // Largest array length the JVM reliably allocates
+    static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    // Checks a length computed in long arithmetic before it becomes an array size
+    static int arrayLength(long length, String what) {
+        if (length > MAX_ARRAY) {
+            throw new IllegalArgumentException(what + " needs " + length + " elements, more than a Java array holds");
+        }
+        return (int) length;
+    }
+
+    // Accumulates (user, item, rating) triples without boxing
+    public static class Builder {
+        private final int numUsers;
+        private final int numItems;
+        private int[] users = new int[1024];
+        private int[] items = new int[1024];
+        private float[] ratings = new float[1024];
+        private int size;
+
+        public Builder(int numUsers, int numItems) {
+            this.numUsers = numUsers;
+            this.numItems = numItems;
+        }
+
+        public Builder add(int user, int item, float rating) {
+            if (user < 0 || user >= numUsers || item < 0 || item >= numItems) {
+                throw new IndexOutOfBoundsException("rating (" + user + ", " + item + ") out of range");
+            }
+            if (size == users.length) {
+                int capacity = size == MAX_ARRAY ? arrayLength(size + 1L, "ratings")
+                        : (int) Math.min(MAX_ARRAY, size * 2L);
+                users = Arrays.copyOf(users, capacity);
+                items = Arrays.copyOf(items, capacity);
+                ratings = Arrays.copyOf(ratings, capacity);
+            }
+            users[size] = user;
+            items[size] = item;
+            ratings[size] = rating;
+            size++;
+            return this;
+        }
+
+        public SparseRatingMatrix build() {
+            return new SparseRatingMatrix(numUsers, numItems, users, items, ratings, size);
+        }
+    }
+
+    // Conversion from the nested-map layout used by CollaborativeFiltering
+    public static SparseRatingMatrix fromMap(Map<Integer, Map<Integer, Double>> ratings, int numUsers, int numItems) {
+        Builder builder = new Builder(numUsers, numItems);
+        for (Map.Entry<Integer, Map<Integer, Double>> userEntry : ratings.entrySet()) {
+            for (Map.Entry<Integer, Double> itemEntry : userEntry.getValue().entrySet()) {
+                builder.add(userEntry.getKey(), itemEntry.getKey(), itemEntry.getValue().floatValue());
+            }
+        }
+        return builder.build();
+    }
+
+    public int numUsers() { return numUsers; }
+    public int numItems() { return numItems; }
+    public int nnz() { return rowItems.length; }
+
+    public int userStart(int user) { return rowPtr[user]; }
+    public int userEnd(int user) { return rowPtr[user + 1]; }
+    public int itemAt(int k) { return rowItems[k]; }
+    public float userRatingAt(int k) { return rowValues[k]; }
+
+    public int itemStart(int item) { return colPtr[item]; }
+    public int itemEnd(int item) { return colPtr[item + 1]; }
+    public int userAt(int k) { return colUsers[k]; }
+    public float itemRatingAt(int k) { return colValues[k]; }
+
+    public int userDegree(int user) { return rowPtr[user + 1] - rowPtr[user]; }
+    public int itemDegree(int item) { return colPtr[item + 1] - colPtr[item]; }
+
+    public static void main(String[] args) {
+        SparseRatingMatrix m = new Builder(3, 4)
+                .add(0, 0, 5).add(0, 2, 3)
+                .add(1, 1, 4).add(1, 2, 2)
+                .add(2, 0, 1).add(2, 3, 5)
+                .build();
+        for (int u = 0; u < m.numUsers(); u++) {
+            StringBuilder sb = new StringBuilder("user " + u + ":");
+            for (int k = m.userStart(u); k < m.userEnd(u); k++) {
+                sb.append(" ").append(m.itemAt(k)).append("=").append(m.userRatingAt(k));
+            }
+            System.out.println(sb);
+        }
+        for (int i = 0; i < m.numItems(); i++) {
+            System.out.println("item " + i + " rated by " + m.itemDegree(i) + " users");
+        }
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * Packet-queue pipeline: a bounded multi-producer, single-consumer ring of preallocated
+ * packet descriptors, with active queue management (AQM) decided at dequeue time
+ * A descriptor is three fields stored in parallel arrays:
+ * - the enqueue timestamp, as a long
+ * - the packet length, as an int
+ * - a buffer slot, as an int index into the caller's packet buffer pool
+ * Producers claim a cell by CAS on the tail counter, write it, and publish it with a release
+ * store of the cell's sequence number. The consumer reads cells in order without atomics
+ * on its own side, and frees each cell by advancing its sequence one lap. Nothing is
+ * allocated per packet. A full ring tail-drops at offer().
+ * The consumer calls the AQM policy for every descriptor it takes off. The policy sees the
+ * packet's sojourn time, and the backlog left behind it. If the policy drops the packet,
+ * its slot goes back to the sink as a drop. Otherwise it is delivered. All policies keep
+ * only primitive state:
+ * - CoDel (RFC 8289) drops once the sojourn time has stayed above the target for a whole
+ *   interval. Further drops are spaced by interval / sqrt(count).
+ * - RED keeps an EWMA of the queue length, with decay while the queue is idle. It drops with
+ *   the count-corrected probability between the thresholds, using "gentle" ramping up to
+ *   twice the upper threshold.
+ * - PIE (RFC 8033) updates a drop probability every 15 ms from the queuing delay and its
+ *   trend, with auto-tuned gains and a burst allowance.
+ * The byte-backlog tests in the RFCs use the packet backlog here. Producers keep no byte
+ * count, so a backlog of one packet stands in for "at most one MTU queued".
+ * main pushes packets through the ring from several producer threads in real time, to
+ * measure raw descriptor throughput. It then runs each policy in virtual time, on a
+ * bottleneck shared by window-based flows and an unresponsive source, reporting
+ * throughput, sojourn-time percentiles and drop rates.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AqmPacketRing {
+
+    /* Decides, for each packet leaving the queue, whether to drop it */
+    public interface Policy {
+        boolean drop(long sojournNanos, int length, int backlogPackets, long now);
+    }
+
+    /* Receives the outcome of each dequeued descriptor */
+    public interface Sink {
+        void deliver(int slot, int length, long sojournNanos);
+
+        void dropped(int slot, int length);
+    }
+
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] lengths;
+    private final int[] slots;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;                          // consumer only
+    private final Policy policy;
+    private final AtomicLong tailDrops = new AtomicLong();
+    private long aqmDrops;
+    private long delivered;
+
+    public AqmPacketRing(int capacity, Policy policy) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        mask = capacity - 1;
+        timestamps = new long[capacity];
+        lengths = new int[capacity];
+        slots = new int[capacity];
+        sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequence.set(i, i);
+        this.policy = policy;
+    }
+
+    // Enqueues a descriptor; false (a tail drop) if the ring is full
+    public boolean offer(long timestamp, int length, int slot) {
+        while (true) {
+            long t = tail.get();
+            int i = (int) t & mask;
+            long s = sequence.get(i);
+            if (s == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    timestamps[i] = timestamp;
+                    lengths[i] = length;
+                    slots[i] = slot;
+                    sequence.lazySet(i, t + 1);
+                    return true;
+                }
+            } else if (s < t) {
+                tailDrops.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /*
+     * Takes up to max descriptors, asking the policy about each one. Returns the number taken
+     * off the ring, delivered or dropped. Consumer thread only.
+     */
+    public int drain(Sink sink, long now, int max) {
+        int n = 0;
+        while (n < max) {
+            int i = (int) head & mask;
+            if (sequence.get(i) != head + 1) break;
+            long sojourn = now - timestamps[i];
+            int length = lengths[i];
+            int slot = slots[i];
+            sequence.lazySet(i, head + mask + 1);
+            head++;
+            n++;
+            int backlog = (int) (tail.get() - head);
+            if (policy.drop(sojourn, length, backlog, now)) {
+                aqmDrops++;
+                sink.dropped(slot, length);
+            } else {
+                delivered++;
+                sink.deliver(slot, length, sojourn);
+            }
+        }
+        return n;
+    }
+
+    // Descriptors published but not yet drained (approximate while producers run)
+    public int size() {
+        return (int) (tail.get() - head);
+    }
+
+    public long tailDrops() {
+        return tailDrops.get();
+    }
+
+    public long aqmDrops() {
+        return aqmDrops;
+    }
+
+    public long delivered() {
+        return delivered;
+    }
+
+    /* ---------------------------------------------------------------- policies */
+
+    public static final class TailDrop implements Policy {
+        @Override
+        public boolean drop(long sojournNanos, int length, int backlogPackets, long now) {
+            return false;
+        }
+    }
+
+    public static final class CoDel implements Policy {
+        private final long target;
+        private final long interval;
+        private long firstAboveTime;
+        private long dropNext;
+        private int count;
+        private int lastCount;
+        private boolean dropping;
+
+        public CoDel(long targetNanos, long intervalNanos) {
+            target = targetNanos;
+            interval = intervalNanos;
+        }
+
+        public CoDel() {
+            this(5_000_000L, 100_000_000L);
+        }
+
+        private long controlLaw(long t, int count) {
+            return t + (long) (interval / Math.sqrt(count));
+        }
+
+        // True once the sojourn time has been above target for at least one interval
+        private boolean okToDrop(long sojourn, int backlog, long now) {
+            if (sojourn < target || backlog <= 1) {
+                firstAboveTime = 0;
+                return false;
+            }
+            if (firstAboveTime == 0) {
+                firstAboveTime = now + interval;
+                return false;
+            }
+            return now >= firstAboveTime;
+        }
+
+        @Override
+        public boolean drop(long sojournNanos, int length, int backlogPackets, long now) {
+            boolean ok = okToDrop(sojournNanos, backlogPackets, now);
+            if (dropping) {
+                if (!ok) {
+                    dropping = false;
+                    return false;
+                }
+                if (now >= dropNext) {
+                    count++;
+                    dropNext = controlLaw(dropNext, count);
+                    return true;
+                }
+                return false;
+            }
+            if (!ok) return false;
+            // Entering the dropping state; resume near the previous drop rate if it was recent
+            dropping = true;
+            int delta = count - lastCount;
+            count = delta > 1 && now - dropNext < 16 * interval ? delta : 1;
+            dropNext = controlLaw(now, count);
+            lastCount = count;
+            return true;
+        }
+    }
+
+    public static final class Red implements Policy {
+        private final double minThreshold;
+        private final double maxThreshold;
+        private final double maxP;
+        private final double weight;
+        private final long packetTime;          // typical transmission time, for idle decay
+        private double average;
+        private int count = -1;
+        private long idleSince = -1;
+        private long random = 0x2545F4914F6CDD1DL;
+
+        public Red(double minThreshold, double maxThreshold, double maxP, double weight, long packetTimeNanos) {
+            this.minThreshold = minThreshold;
+            this.maxThreshold = maxThreshold;
+            this.maxP = maxP;
+            this.weight = weight;
+            this.packetTime = packetTimeNanos;
+        }
+
+        private double nextDouble() {
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            return (random >>> 11) * 0x1.0p-53;
+        }
+
+        @Override
+        public boolean drop(long sojournNanos, int length, int backlogPackets, long now) {
+            if (idleSince >= 0) {
+                // The queue sat empty: decay as if m empty-queue samples had been taken
+                double m = (double) (now - sojournNanos - idleSince) / packetTime;
+                if (m > 0) average *= Math.pow(1 - weight, m);
+                idleSince = -1;
+            }
+            average += weight * (backlogPackets - average);
+            if (backlogPackets == 0) idleSince = now;
+            double pb;
+            if (average < minThreshold) {
+                count = -1;
+                return false;
+            } else if (average < maxThreshold) {
+                pb = maxP * (average - minThreshold) / (maxThreshold - minThreshold);
+            } else if (average < 2 * maxThreshold) {
+                pb = maxP + (1 - maxP) * (average - maxThreshold) / maxThreshold;
+            } else {
+                count = 0;
+                return true;
+            }
+            count++;
+            // Spread drops evenly: the probability rises with packets since the last drop
+            double pa = count * pb >= 1 ? 1 : pb / (1 - count * pb);
+            if (nextDouble() < pa) {
+                count = 0;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public static final class Pie implements Policy {
+        private static final long T_UPDATE = 15_000_000L;
+        private static final long MAX_BURST = 150_000_000L;
+        private static final double ALPHA = 0.125;      // per second of delay error
+        private static final double BETA = 1.25;
+        private final long target;
+        private double p;
+        private long qdelay;
+        private long qdelayOld;
+        private long burstAllowance = MAX_BURST;
+        private long nextUpdate;
+        private long random = 0x9E3779B97F4A7C15L;
+
+        public Pie(long targetNanos) {
+            target = targetNanos;
+        }
+
+        public Pie() {
+            this(15_000_000L);
+        }
+
+        private double nextDouble() {
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+            return (random >>> 11) * 0x1.0p-53;
+        }
+
+        // RFC 8033 section 4.2, with the gains scaled down while p is small
+        private void update(long now) {
+            double delta = ALPHA * (qdelay - target) / 1e9 + BETA * (qdelay - qdelayOld) / 1e9;
+            if (p < 0.000001) delta /= 2048;
+            else if (p < 0.00001) delta /= 512;
+            else if (p < 0.0001) delta /= 128;
+            else if (p < 0.001) delta /= 32;
+            else if (p < 0.01) delta /= 8;
+            else if (p < 0.1) delta /= 2;
+            if (p >= 0.1 && delta > 0.02) delta = 0.02;
+            p += delta;
+            if (qdelay == 0 && qdelayOld == 0) p *= 0.98;
+            p = Math.max(0, Math.min(1, p));
+            burstAllowance = Math.max(0, burstAllowance - T_UPDATE);
+            if (p == 0 && qdelay < target / 2 && qdelayOld < target / 2) burstAllowance = MAX_BURST;
+            qdelayOld = qdelay;
+            nextUpdate = now + T_UPDATE;
+        }
+
+        @Override
+        public boolean drop(long sojournNanos, int length, int backlogPackets, long now) {
+            qdelay = backlogPackets == 0 ? 0 : sojournNanos;
+            if (now >= nextUpdate) update(now);
+            if (burstAllowance > 0) return false;
+            if (qdelayOld < target / 2 && p < 0.2) return false;
+            if (backlogPackets <= 1) return false;
+            return nextDouble() < p;
+        }
+
+        public double probability() {
+            return p;
+        }
+    }
+
+    /* ---------------------------------------------------------------- measurement */
+
+    /* Log-linear histogram: 16 sub-buckets per power of two, about 6% resolution */
+    static final class Histogram {
+        final long[] counts = new long[64 * 16];
+        long total;
+
+        void record(long value) {
+            if (value < 16) {
+                counts[(int) Math.max(0, value)]++;
+            } else {
+                int exp = 63 - Long.numberOfLeadingZeros(value);
+                int sub = (int) (value >>> (exp - 4)) & 15;
+                counts[(exp - 3) * 16 + sub]++;
+            }
+            total++;
+        }
+
+        long percentile(double q) {
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank && counts[b] > 0) {
+                    if (b < 16) return b;
+                    int exp = b / 16 + 3;
+                    return (16L + b % 16) << (exp - 4);
+                }
+            }
+            return 0;
+        }
+    }
+
+    static class Counter implements Sink {
+        final Histogram sojourn = new Histogram();
+        long bytes;
+        long packets;
+        long drops;
+        long checksum;
+
+        @Override
+        public void deliver(int slot, int length, long sojournNanos) {
+            packets++;
+            bytes += length;
+            checksum += slot;
+            sojourn.record(sojournNanos);
+        }
+
+        @Override
+        public void dropped(int slot, int length) {
+            drops++;
+            checksum += slot;
+        }
+    }
+
+    // Raw descriptor throughput with real producer threads and no bottleneck
+    static void throughput(int producers, long perProducer) throws InterruptedException {
+        AqmPacketRing ring = new AqmPacketRing(1 << 14, new CoDel());
+        Counter sink = new Counter();
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            threads[p] = new Thread(() -> {
+                for (long n = 0; n < perProducer; ) {
+                    if (ring.offer(System.nanoTime(), 64 + (int) (n & 1023), id)) n++;
+                    else Thread.yield();
+                }
+            });
+            threads[p].start();
+        }
+        long total = producers * perProducer;
+        long taken = 0;
+        while (taken < total) {
+            int n = ring.drain(sink, System.nanoTime(), 256);
+            taken += n;
+            if (n == 0) Thread.yield();
+        }
+        long nanos = System.nanoTime() - start;
+        for (Thread t : threads) t.join();
+        System.out.printf("  %d producer(s): %.2fM packets/s through the ring, sojourn p50 %.1f us p99 %.1f us%n",
+                producers, total * 1e3 / nanos, sink.sojourn.percentile(0.5) / 1e3, sink.sojourn.percentile(0.99) / 1e3);
+    }
+
+    // The collection-based shape the policies had before: an object per packet in a concurrent queue
+    static void baseline(int producers, long perProducer) throws InterruptedException {
+        final class Boxed {
+            final long arrival;
+            final int length;
+
+            Boxed(long arrival, int length) {
+                this.arrival = arrival;
+                this.length = length;
+            }
+        }
+        ConcurrentLinkedQueue<Boxed> queue = new ConcurrentLinkedQueue<>();
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                for (long n = 0; n < perProducer; n++) queue.offer(new Boxed(System.nanoTime(), 64 + (int) (n & 1023)));
+            });
+            threads[p].start();
+        }
+        long total = producers * perProducer;
+        long taken = 0;
+        long sum = 0;
+        while (taken < total) {
+            Boxed b = queue.poll();
+            if (b == null) {
+                Thread.yield();
+                continue;
+            }
+            sum += b.length;
+            taken++;
+        }
+        long nanos = System.nanoTime() - start;
+        for (Thread t : threads) t.join();
+        System.out.printf("  %d producer(s): %.2fM packets/s through ConcurrentLinkedQueue (%d bytes)%n",
+                producers, total * 1e3 / nanos, sum);
+    }
+
+    /* Binary min-heap of (time, event) pairs in flat arrays, for the simulator */
+    static final class EventHeap {
+        long[] times = new long[1024];
+        int[] events = new int[1024];
+        int size;
+
+        void push(long time, int event) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                events = Arrays.copyOf(events, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (times[parent] <= time) break;
+                times[i] = times[parent];
+                events[i] = events[parent];
+                i = parent;
+            }
+            times[i] = time;
+            events[i] = event;
+        }
+
+        long peekTime() {
+            return size == 0 ? Long.MAX_VALUE : times[0];
+        }
+
+        int pop() {
+            int top = events[0];
+            long time = times[--size];
+            int event = events[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && times[child + 1] < times[child]) child++;
+                if (times[child] >= time) break;
+                times[i] = times[child];
+                events[i] = events[child];
+                i = child;
+            }
+            times[i] = time;
+            events[i] = event;
+            return top;
+        }
+    }
+
+    /*
+     * One bottleneck link in virtual time, carrying two kinds of traffic:
+     * - eight window-based flows with base RTTs of 10 to 80 ms. Each ACK grows the window
+     *   as in Reno, and a loss halves it at most once per round trip.
+     * - an unresponsive on/off source of IMIX-sized packets, averaging 10% of the link
+     * The link serves the head packet whenever it is free, and an ACK or a loss reaches the
+     * sender one base RTT after the link delivered or dropped the packet. With the same
+     * seed, every policy faces the same flows.
+     */
+    static void simulate(String name, Policy policy, long linkBitsPerSecond, long seconds) {
+        AqmPacketRing ring = new AqmPacketRing(1 << 12, policy);
+        int flows = 8;
+        int udp = flows;
+        long[] baseRtt = new long[flows];
+        double[] cwnd = new double[flows];
+        double[] ssthresh = new double[flows];
+        int[] inflight = new int[flows];
+        long[] recoverUntil = new long[flows];
+        for (int f = 0; f < flows; f++) {
+            baseRtt[f] = (10 + 10L * f) * 1_000_000L;
+            cwnd[f] = 10;
+            ssthresh[f] = 1e9;
+        }
+        EventHeap heap = new EventHeap();       // event = flow << 1 | lost
+        Random random = new Random(2024);
+        int[] imix = {64, 64, 64, 64, 64, 64, 64, 576, 576, 576, 576, 1500};
+        double meanBits = 0;
+        for (int length : imix) meanBits += 8.0 * length / imix.length;
+        double udpGap = meanBits * 1e9 / (linkBitsPerSecond * 0.2);    // on half the time
+        long udpNext = 0;
+        long udpOnUntil = 0;
+        long[] offered = new long[1];
+        long[] now = new long[1];
+        long[] linkFree = new long[1];
+
+        Counter sink = new Counter() {
+            @Override
+            public void deliver(int slot, int length, long sojournNanos) {
+                super.deliver(slot, length, sojournNanos);
+                linkFree[0] = now[0] + length * 8L * 1_000_000_000L / linkBitsPerSecond;
+                if (slot != udp) heap.push(linkFree[0] + baseRtt[slot], slot << 1);
+            }
+
+            @Override
+            public void dropped(int slot, int length) {
+                super.dropped(slot, length);
+                if (slot != udp) heap.push(now[0] + baseRtt[slot], slot << 1 | 1);
+            }
+        };
+        Runnable[] sendWindow = new Runnable[flows];
+        for (int f = 0; f < flows; f++) {
+            int flow = f;
+            sendWindow[f] = () -> {
+                while (inflight[flow] < (int) cwnd[flow]) {
+                    inflight[flow]++;
+                    offered[0]++;
+                    if (!ring.offer(now[0], 1500, flow)) heap.push(now[0] + baseRtt[flow], flow << 1 | 1);
+                }
+            };
+            sendWindow[f].run();
+        }
+
+        long end = seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        while (now[0] < end) {
+            long link = ring.size() > 0 ? Math.max(linkFree[0], now[0]) : Long.MAX_VALUE;
+            long event = heap.peekTime();
+            if (link <= event && link <= udpNext) {
+                now[0] = link;
+                ring.drain(sink, link, 1);
+            } else if (event <= udpNext) {
+                now[0] = event;
+                int e = heap.pop();
+                int flow = e >>> 1;
+                inflight[flow]--;
+                if ((e & 1) == 0) {
+                    cwnd[flow] += cwnd[flow] < ssthresh[flow] ? 1 : 1 / cwnd[flow];
+                } else if (now[0] >= recoverUntil[flow]) {
+                    ssthresh[flow] = Math.max(2, cwnd[flow] / 2);
+                    cwnd[flow] = ssthresh[flow];
+                    recoverUntil[flow] = now[0] + 2 * baseRtt[flow];
+                }
+                sendWindow[flow].run();
+            } else {
+                now[0] = udpNext;
+                if (udpOnUntil <= now[0]) {
+                    // An off period, then an on period, both exponential with a 50 ms mean
+                    long off = (long) (-Math.log(1 - random.nextDouble()) * 50_000_000L);
+                    udpNext = now[0] + off;
+                    udpOnUntil = udpNext + (long) (-Math.log(1 - random.nextDouble()) * 50_000_000L);
+                    continue;
+                }
+                offered[0]++;
+                ring.offer(now[0], imix[random.nextInt(imix.length)], udp);
+                udpNext = now[0] + (long) (-Math.log(1 - random.nextDouble()) * udpGap);
+            }
+        }
+        double wall = (System.nanoTime() - start) / 1e9;
+        Histogram h = sink.sojourn;
+        System.out.printf("  %-9s throughput %5.1f%% of link  sojourn p50 %6.2f ms  p99 %6.2f ms  p99.9 %6.2f ms"
+                        + "  drops: aqm %.2f%% tail %.2f%%  (%.1fM packets/s simulated)%n",
+                name, 100.0 * sink.bytes * 8 / (linkBitsPerSecond * (double) seconds),
+                h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6,
+                100.0 * ring.aqmDrops() / offered[0], 100.0 * ring.tailDrops() / offered[0],
+                offered[0] / wall / 1e6);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long perProducer = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        System.out.println("Descriptor throughput (" + cpus + " cpu):");
+        for (int round = 0; round < 2; round++) {
+            throughput(1, perProducer);
+            throughput(4, perProducer / 4);
+            baseline(1, perProducer);
+            baseline(4, perProducer / 4);
+        }
+
+        long link = 100_000_000L;
+        System.out.println("AQM on a 100 Mbit/s bottleneck, 4096-descriptor ring, 60 s of virtual time:");
+        simulate("tail-drop", new TailDrop(), link, 60);
+        simulate("RED", new Red(30, 300, 0.1, 0.002, 40_000L), link, 60);
+        simulate("CoDel", new CoDel(), link, 60);
+        simulate("PIE", new Pie(), link, 60);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * DIR-24-8 IPv4 forwarding table, updated incrementally, with RCU-style snapshot swap
+ * Lookup is one or two array reads. The first 24 bits index tbl24. An entry there is
+ * either the next hop, or a reference to a 256-entry tbl8 group, indexed by the last 8
+ * bits, for /24s that contain longer prefixes. Entries hold the next hop itself, or
+ * NO_ROUTE (-1). Group g is stored as -2 - g, so a single sign test tells them apart.
+ * tbl24 is split into 4096 pages of 4096 entries, behind a page table that stays in cache.
+ * A Snapshot holds the page table and the group table, and is never modified once published.
+ * Updates go to the RoutingTable first. Then the entries the prefix covers are repainted,
+ * by walking the trie below it, in the writer's working copy:
+ * - a page, the page table or the group table is copied the first time a commit epoch
+ *   writes to it
+ * - a changed group is always rebuilt into a fresh array
+ * - untouched pages are shared with every older snapshot, including one empty page that
+ *   stands in for all unrouted space
+ * commit() publishes the working copy with one volatile write. Readers take the current
+ * snapshot once per lookup, or once per batch, and never wait. A single writer thread is
+ * assumed.
+ */
+
+import java.util.*;
+
+public class Dir248 {
+
+    public static final int NO_ROUTE = RoutingTable.NO_ROUTE;
+    static final int PAGE_BITS = 12;
+    static final int PAGES = 1 << (24 - PAGE_BITS);
+    static final int[] EMPTY_PAGE = filled(1 << PAGE_BITS, NO_ROUTE);
+
+    public static final class Snapshot {
+        final int[][] pages;
+        final int[][] groups;
+
+        Snapshot(int[][] pages, int[][] groups) {
+            this.pages = pages;
+            this.groups = groups;
+        }
+
+        public int lookup(int address) {
+            int e = pages[address >>> 20][(address >>> 8) & 0xFFF];
+            return e >= NO_ROUTE ? e : groups[-2 - e][address & 0xFF];
+        }
+
+        public void lookup(int[] addresses, int[] out, int n) {
+            int[][] pages = this.pages;
+            int[][] groups = this.groups;
+            for (int i = 0; i < n; i++) {
+                int a = addresses[i];
+                int e = pages[a >>> 20][(a >>> 8) & 0xFFF];
+                out[i] = e >= NO_ROUTE ? e : groups[-2 - e][a & 0xFF];
+            }
+        }
+    }
+
+    private final RoutingTable rib;
+    private volatile Snapshot current;
+    private int[][] pages;
+    private boolean pagesShared;
+    private final boolean[] pageOwned = new boolean[PAGES];
+    private int[][] groups = new int[64][];
+    private boolean groupsShared;
+    private int groupCount;
+    private int[] freeGroups = new int[16];
+    private int freeCount;
+    private int liveGroups;
+
+    static int[] filled(int n, int value) {
+        int[] a = new int[n];
+        Arrays.fill(a, value);
+        return a;
+    }
+
+    // Compiles the table from the routes already in the RIB, which it then owns
+    public Dir248(RoutingTable rib) {
+        if (rib.width() != 32) throw new IllegalArgumentException("DIR-24-8 is an IPv4 table");
+        this.rib = rib;
+        pages = new int[PAGES][];
+        Arrays.fill(pages, EMPTY_PAGE);
+        paint(rib.root(), 0, 0, NO_ROUTE);
+        commit();
+    }
+
+    public Dir248() {
+        this(new RoutingTable(32));
+    }
+
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    public int lookup(int address) {
+        return current.lookup(address);
+    }
+
+    public void lookup(int[] addresses, int[] out, int n) {
+        current.lookup(addresses, out, n);
+    }
+
+    public RoutingTable routes() {
+        return rib;
+    }
+
+    public int groups() {
+        return liveGroups;
+    }
+
+    // Bytes reachable from the current snapshot, counting shared pages once
+    public long bytes() {
+        Snapshot s = current;
+        Set<int[]> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(Arrays.asList(s.pages));
+        long total = (long) distinct.size() * 4 * (1 << PAGE_BITS) + 4L * PAGES;
+        return total + (long) liveGroups * 4 * 256 + 4L * s.groups.length;
+    }
+
+    /* ---------------------------------------------------------------- updates */
+
+    public void add(int prefix, int length, int nextHop) {
+        rib.add(RoutingTable.v4(prefix), 0, length, nextHop);
+        repaint(prefix, length);
+    }
+
+    public void remove(int prefix, int length) {
+        if (rib.remove(RoutingTable.v4(prefix), 0, length) != NO_ROUTE) repaint(prefix, length);
+    }
+
+    // Makes every update since the last commit visible to readers at once
+    public void commit() {
+        current = new Snapshot(pages, groups);
+        pagesShared = true;
+        groupsShared = true;
+        Arrays.fill(pageOwned, false);
+    }
+
+    private void repaint(int prefix, int length) {
+        long key = RoutingTable.v4(prefix);
+        if (length <= 24) {
+            int above = length == 0 ? NO_ROUTE : rib.inherited(key, 0, length - 1);
+            int first = length == 0 ? 0 : (prefix >>> (32 - length)) << (24 - length);
+            paint(rib.find(key, 0, length), length, first, above);
+        } else {
+            set24(prefix >>> 8, rib.find(key, 0, 24), rib.inherited(key, 0, 24));
+        }
+    }
+
+    // Repaints the tbl24 range of a trie node at the given depth (-1: no routes below)
+    private void paint(int node, int depth, int first, int inherited) {
+        if (node >= 0 && rib.hop(node) != NO_ROUTE) inherited = rib.hop(node);
+        if (depth == 24) {
+            set24(first, node, inherited);
+        } else if (node < 0 || rib.isLeaf(node)) {
+            fill24(first, 1 << (24 - depth), inherited);
+        } else {
+            int half = 1 << (23 - depth);
+            paint(rib.child(node, 0), depth + 1, first, inherited);
+            paint(rib.child(node, 1), depth + 1, first + half, inherited);
+        }
+    }
+
+    // One tbl24 entry for the /24 at a trie node; inherited includes the node's own route
+    private void set24(int index, int node, int inherited) {
+        int old = read24(index);
+        if (node >= 0 && !rib.isLeaf(node)) {
+            int[] g = new int[256];
+            paint8(rib.child(node, 0), 25, g, 0, inherited);
+            paint8(rib.child(node, 1), 25, g, 128, inherited);
+            int id = old < NO_ROUTE ? -2 - old : allocateGroup();
+            writableGroups()[id] = g;
+            write24(index, -2 - id);
+        } else {
+            if (old < NO_ROUTE) releaseGroup(-2 - old);
+            write24(index, inherited);
+        }
+    }
+
+    private void paint8(int node, int depth, int[] g, int first, int inherited) {
+        int span = 1 << (32 - depth);
+        if (node < 0) {
+            Arrays.fill(g, first, first + span, inherited);
+            return;
+        }
+        if (rib.hop(node) != NO_ROUTE) inherited = rib.hop(node);
+        if (depth == 32 || rib.isLeaf(node)) {
+            Arrays.fill(g, first, first + span, inherited);
+        } else {
+            paint8(rib.child(node, 0), depth + 1, g, first, inherited);
+            paint8(rib.child(node, 1), depth + 1, g, first + span / 2, inherited);
+        }
+    }
+
+    private void fill24(int first, int count, int value) {
+        for (int i = first; i < first + count; ) {
+            int page = i >>> PAGE_BITS;
+            int end = Math.min(first + count, (page + 1) << PAGE_BITS);
+            // Group references never equal a next hop, so an unchanged run has none to release
+            if (!uniform(pages[page], i, end, value)) {
+                int[] p = writablePage(page);
+                for (int j = i; j < end; j++) {
+                    if (p[j & 0xFFF] < NO_ROUTE) releaseGroup(-2 - p[j & 0xFFF]);
+                    p[j & 0xFFF] = value;
+                }
+            }
+            i = end;
+        }
+    }
+
+    private static boolean uniform(int[] p, int from, int to, int value) {
+        for (int j = from; j < to; j++) if (p[j & 0xFFF] != value) return false;
+        return true;
+    }
+
+    private int read24(int index) {
+        return pages[index >>> PAGE_BITS][index & 0xFFF];
+    }
+
+    private void write24(int index, int value) {
+        if (read24(index) != value) writablePage(index >>> PAGE_BITS)[index & 0xFFF] = value;
+    }
+
+    private int[] writablePage(int page) {
+        if (pagesShared) {
+            pages = pages.clone();
+            pagesShared = false;
+        }
+        if (!pageOwned[page]) {
+            pages[page] = pages[page].clone();
+            pageOwned[page] = true;
+        }
+        return pages[page];
+    }
+
+    private int[][] writableGroups() {
+        if (groupsShared) {
+            groups = groups.clone();
+            groupsShared = false;
+        }
+        return groups;
+    }
+
+    private int allocateGroup() {
+        liveGroups++;
+        if (freeCount > 0) return freeGroups[--freeCount];
+        if (groupCount == groups.length) {
+            groups = Arrays.copyOf(groups, groupCount * 2);
+            groupsShared = false;
+        }
+        return groupCount++;
+    }
+
+    // Older snapshots keep their own reference, so the array is not touched
+    private void releaseGroup(int id) {
+        liveGroups--;
+        writableGroups()[id] = null;
+        if (freeCount == freeGroups.length) freeGroups = Arrays.copyOf(freeGroups, freeCount * 2);
+        freeGroups[freeCount++] = id;
+    }
+
+    public static void main(String[] args) {
+        Dir248 fib = new Dir248();
+        fib.add(0xC0A80000, 16, 1);     // 192.168.0.0/16
+        fib.add(0xC0A80100, 24, 2);     // 192.168.1.0/24
+        fib.add(0xC0A80180, 25, 4);     // 192.168.1.128/25
+        fib.add(0x0A000000, 8, 3);      // 10.0.0.0/8
+        fib.add(0, 0, 0);               // default
+        Snapshot before = fib.snapshot();
+        fib.commit();
+        System.out.println(fib.lookup(0xC0A8012A) + " " + fib.lookup(0xC0A801C8) + " " + fib.lookup(0xC0A83201)
+                + " " + fib.lookup(0x0A141E28) + " " + fib.lookup(0x08080808));    // 2 4 1 3 0
+        fib.remove(0xC0A80100, 24);
+        fib.remove(0xC0A80180, 25);
+        fib.commit();
+        System.out.println(fib.lookup(0xC0A8012A) + " " + fib.lookup(0xC0A801C8) + ", groups " + fib.groups()
+                + ", the first snapshot still answers " + before.lookup(0x08080808));  // 1 1, groups 0, -1
+        FibBenchmark.main(new String[]{"200000"});
+    }
+}
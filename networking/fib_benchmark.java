@@ -0,0 +1,270 @@
+/*
+ * Forwarding-table benchmark for Dir248 and Poptrie on a synthetic full BGP table
+ * No real RIB dump is available offline, so the IPv4 table is generated to look like one:
+ * - the prefix-length mix of today's default-free zone, about 60% /24s and a long tail up
+ *   to /8
+ * - a quarter of the prefixes are more-specifics carved out of an earlier prefix
+ * - a sprinkling of /25 to /32, so DIR-24-8's tbl8 groups get used
+ * - 256 next hops (peers)
+ * The IPv6 table follows the /48, /32, /44 and /40 mix inside 2000::/3.
+ * Each structure is checked against the RIB's bit-at-a-time lookup. Lookups are measured in
+ * batches of 1024, against uniformly random destinations and against destinations that fall
+ * inside routed prefixes. The update test applies random announce/withdraw churn with
+ * periodic commits, and checks that a snapshot taken before the churn still answers as it
+ * did.
+ */
+
+import java.util.*;
+
+public class FibBenchmark {
+
+    static final int[] V4_LENGTHS = {8, 12, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 32};
+    static final double[] V4_SHARE = {0.0002, 0.002, 0.003, 0.003, 0.012, 0.01, 0.015, 0.035, 0.045, 0.05, 0.12,
+            0.1, 0.6, 0.001, 0.001, 0.0005, 0.0005, 0.0005, 0.0005, 0.0005};
+    static final int[] V6_LENGTHS = {19, 20, 24, 28, 29, 32, 36, 40, 44, 46, 48, 56, 64};
+    static final double[] V6_SHARE = {0.002, 0.003, 0.01, 0.02, 0.04, 0.2, 0.05, 0.08, 0.1, 0.03, 0.45, 0.01, 0.005};
+    static final int BATCH = 1024;
+
+    static int pick(int[] lengths, double[] share, Random random) {
+        double total = 0;
+        for (double s : share) total += s;
+        double x = random.nextDouble() * total;
+        for (int i = 0; i < lengths.length; i++) {
+            x -= share[i];
+            if (x < 0) return lengths[i];
+        }
+        return lengths[lengths.length - 1];
+    }
+
+    static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    // Synthetic IPv4 table: parallel arrays of prefix, length and next hop
+    static int[][] ipv4Table(int n, Random random) {
+        int[] prefixes = new int[n];
+        int[] lengths = new int[n];
+        int[] hops = new int[n];
+        for (int i = 0; i < n; i++) {
+            int length = pick(V4_LENGTHS, V4_SHARE, random);
+            int address;
+            if (i > 100 && random.nextInt(4) == 0) {
+                // A more-specific of an earlier, shorter prefix
+                int parent = random.nextInt(i);
+                if (lengths[parent] < length) address = prefixes[parent] | (random.nextInt() & ~mask(lengths[parent]));
+                else address = random.nextInt();
+            } else {
+                // Unicast space only: 1.0.0.0 to 223.255.255.255
+                address = (1 + random.nextInt(223)) << 24 | random.nextInt(1 << 24);
+            }
+            prefixes[i] = address & mask(length);
+            lengths[i] = length;
+            hops[i] = random.nextInt(256);
+        }
+        return new int[][]{prefixes, lengths, hops};
+    }
+
+    // Uniform addresses, or addresses inside random routed prefixes
+    static int[] ipv4Traffic(int n, int[][] table, boolean routed, Random random) {
+        int[] addresses = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (routed) {
+                int r = random.nextInt(table[0].length);
+                addresses[i] = table[0][r] | (random.nextInt() & ~mask(table[1][r]));
+            } else {
+                addresses[i] = random.nextInt();
+            }
+        }
+        return addresses;
+    }
+
+    interface BatchLookup {
+        void lookup(int[] addresses, int[] out);
+    }
+
+    static int[][] batches(int[] pool) {
+        int[][] b = new int[pool.length / BATCH][];
+        for (int i = 0; i < b.length; i++) b[i] = Arrays.copyOfRange(pool, i * BATCH, (i + 1) * BATCH);
+        return b;
+    }
+
+    // Lookups per second over the address pool, a batch at a time
+    static double rate(String label, int[][] pool, long total, BatchLookup lookup) {
+        int[] out = new int[BATCH];
+        long checksum = 0;
+        long start = System.nanoTime();
+        long done = 0;
+        while (done < total) {
+            for (int b = 0; b < pool.length && done < total; b++) {
+                lookup.lookup(pool[b], out);
+                checksum += out[BATCH - 1];
+                done += BATCH;
+            }
+        }
+        double perSecond = done * 1e9 / (System.nanoTime() - start);
+        System.out.printf("  %-44s %7.1fM lookups/s  (%d)%n", label, perSecond / 1e6, checksum & 0xFF);
+        return perSecond;
+    }
+
+    static void ipv4(int n, Random random) {
+        int[][] table = ipv4Table(n, random);
+        // Each table owns its RIB, since updates go through the table that owns it
+        RoutingTable rib = new RoutingTable(32);
+        RoutingTable popRib = new RoutingTable(32);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) rib.add(RoutingTable.v4(table[0][i]), 0, table[1][i], table[2][i]);
+        System.out.printf("IPv4: %d routes (%d distinct), RIB trie %d nodes, built in %d ms%n", n, rib.size(),
+                rib.nodeCount(), (System.nanoTime() - start) / 1_000_000);
+        for (int i = 0; i < n; i++) popRib.add(RoutingTable.v4(table[0][i]), 0, table[1][i], table[2][i]);
+
+        start = System.nanoTime();
+        Dir248 dir = new Dir248(rib);
+        System.out.printf("  DIR-24-8: compiled in %d ms, %.1f MB, %d tbl8 groups%n",
+                (System.nanoTime() - start) / 1_000_000, dir.bytes() / 1e6, dir.groups());
+        start = System.nanoTime();
+        Poptrie pop = new Poptrie(popRib);
+        System.out.printf("  Poptrie:  compiled in %d ms, %.1f MB, %d nodes%n",
+                (System.nanoTime() - start) / 1_000_000, pop.bytes() / 1e6, pop.nodes());
+
+        int[] uniform = ipv4Traffic(1 << 22, table, false, random);
+        int[] routed = ipv4Traffic(1 << 22, table, true, random);
+        int mismatches = 0;
+        for (int i = 0; i < 1 << 20; i++) {
+            for (int[] pool : new int[][]{uniform, routed}) {
+                int expected = rib.lookup(pool[i]);
+                if (dir.lookup(pool[i]) != expected || pop.lookup(pool[i]) != expected) mismatches++;
+            }
+        }
+        System.out.println("  2M lookups checked against the RIB: " + mismatches + " mismatches");
+
+        long total = 200_000_000L;
+        int[][] uniformBatches = batches(uniform);
+        int[][] routedBatches = batches(routed);
+        Dir248.Snapshot d = dir.snapshot();
+        Poptrie.Snapshot p = pop.snapshot();
+        BatchLookup dirBatch = (a, out) -> d.lookup(a, out, BATCH);
+        BatchLookup popBatch = (a, out) -> p.lookup(a, out, BATCH);
+        rate("warm-up", routedBatches, total / 10, dirBatch);
+        rate("warm-up", routedBatches, total / 10, popBatch);
+        System.out.println("  lookup throughput, one core, batches of " + BATCH + ":");
+        rate("DIR-24-8, uniform destinations", uniformBatches, total, dirBatch);
+        rate("DIR-24-8, routed destinations", routedBatches, total, dirBatch);
+        rate("Poptrie, uniform destinations", uniformBatches, total, popBatch);
+        rate("Poptrie, routed destinations", routedBatches, total, popBatch);
+        rate("RIB binary trie, routed destinations", routedBatches, total / 50, (a, out) -> {
+            for (int i = 0; i < BATCH; i++) out[i] = rib.lookup(a[i]);
+        });
+
+        // Churn: announce and withdraw /24s and a few shorter prefixes, committing every 100
+        int[] probe = Arrays.copyOf(routed, 1 << 16);
+        int[] before = new int[probe.length];
+        Dir248.Snapshot oldDir = dir.snapshot();
+        Poptrie.Snapshot oldPop = pop.snapshot();
+        oldDir.lookup(probe, before, probe.length);
+        int updates = 100_000;
+        int[][] churn = ipv4Table(updates, random);
+        int[] withdraw = new int[updates];
+        for (int i = 0; i < updates; i++) withdraw[i] = random.nextInt(n);
+        for (Object fib : new Object[]{dir, pop}) {
+            start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                int prefix = i % 2 == 0 ? churn[0][i] : table[0][withdraw[i]];
+                int length = i % 2 == 0 ? churn[1][i] : table[1][withdraw[i]];
+                if (fib == dir) {
+                    if (i % 2 == 0) dir.add(prefix, length, churn[2][i]);
+                    else dir.remove(prefix, length);
+                    if (i % 100 == 99) dir.commit();
+                } else {
+                    if (i % 2 == 0) pop.add(prefix, length, churn[2][i]);
+                    else pop.remove(prefix, length);
+                    if (i % 100 == 99) pop.commit();
+                }
+            }
+            System.out.printf("  %s: %.0f updates/s with a commit every 100%n", fib == dir ? "DIR-24-8" : "Poptrie",
+                    updates * 1e9 / (System.nanoTime() - start));
+        }
+        dir.commit();
+        pop.commit();
+        int[] after = new int[probe.length];
+        int stale = 0;
+        int changed = 0;
+        int wrong = 0;
+        oldDir.lookup(probe, after, probe.length);
+        for (int i = 0; i < probe.length; i++) if (after[i] != before[i]) stale++;
+        oldPop.lookup(probe, after, probe.length);
+        for (int i = 0; i < probe.length; i++) if (after[i] != before[i]) stale++;
+        for (int i = 0; i < probe.length; i++) {
+            int expected = rib.lookup(probe[i]);
+            if (expected != before[i]) changed++;
+            if (dir.lookup(probe[i]) != expected || pop.lookup(probe[i]) != popRib.lookup(probe[i])) wrong++;
+        }
+        System.out.printf("  after churn: %d of %d probes changed route, %d wrong in the new snapshots,"
+                + " %d changed in the old ones%n", changed, probe.length, wrong, stale);
+    }
+
+    static void ipv6(int n, Random random) {
+        RoutingTable rib = new RoutingTable(128);
+        long[] prefixes = new long[2 * n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            int length = pick(V6_LENGTHS, V6_SHARE, random);
+            long hi = 0x2000_0000_0000_0000L | random.nextLong() >>> 3;
+            if (i > 100 && random.nextInt(4) == 0) {
+                int parent = random.nextInt(i);
+                if (lengths[parent] < length) {
+                    long keep = -1L << (64 - lengths[parent]);
+                    hi = prefixes[2 * parent] & keep | hi & ~keep;
+                }
+            }
+            hi &= -1L << (64 - length);
+            prefixes[2 * i] = hi;
+            lengths[i] = length;
+            rib.add(hi, 0, length, random.nextInt(256));
+        }
+        long start = System.nanoTime();
+        Poptrie pop = new Poptrie(rib);
+        System.out.printf("IPv6: %d routes, RIB trie %d nodes; Poptrie compiled in %d ms, %.1f MB, %d nodes%n",
+                rib.size(), rib.nodeCount(), (System.nanoTime() - start) / 1_000_000, pop.bytes() / 1e6, pop.nodes());
+        int pool = 1 << 21;
+        long[] routed = new long[2 * pool];
+        for (int i = 0; i < pool; i++) {
+            int r = random.nextInt(n);
+            long keep = -1L << (64 - lengths[r]);
+            routed[2 * i] = prefixes[2 * r] | random.nextLong() & ~keep;
+            routed[2 * i + 1] = random.nextLong();
+        }
+        int mismatches = 0;
+        for (int i = 0; i < pool; i++) {
+            if (pop.lookup(routed[2 * i], routed[2 * i + 1]) != rib.lookup(routed[2 * i], routed[2 * i + 1])) mismatches++;
+        }
+        System.out.println("  " + pool + " lookups checked against the RIB: " + mismatches + " mismatches");
+        Poptrie.Snapshot p = pop.snapshot();
+        long[] batch = new long[2 * BATCH];
+        int[] out = new int[BATCH];
+        for (int round = 0; round < 2; round++) {
+            long done = 0;
+            long checksum = 0;
+            start = System.nanoTime();
+            while (done < 50_000_000L) {
+                for (int from = 0; from + BATCH <= pool; from += BATCH) {
+                    System.arraycopy(routed, 2 * from, batch, 0, 2 * BATCH);
+                    p.lookup(batch, out, BATCH);
+                    checksum += out[0];
+                    done += BATCH;
+                }
+            }
+            if (round == 1) {
+                System.out.printf("  Poptrie, routed destinations %27.1fM lookups/s  (%d)%n",
+                        done * 1e3 / (System.nanoTime() - start), checksum & 0xFF);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int n6 = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1000, n / 5);
+        Random random = new Random(48);
+        ipv4(n, random);
+        ipv6(n6, random);
+    }
+}
@@ -0,0 +1,714 @@
+/*
+ * Kademlia DHT node: XOR routing on 160-bit IDs packed in long[3], LRU k-buckets and
+ * iterative lookups with alpha requests in flight
+ * An ID is three longs: bits 159..96, bits 95..32, and bits 31..0 in the low half of the
+ * third. Distances are never materialized. Two contacts are ordered by comparing
+ * (target ^ a) against (target ^ b) one word at a time, unsigned. The bucket of a contact
+ * is the position of the highest bit in which it differs from our own ID.
+ * Each bucket keeps at most k contacts in least-recently-seen order, in flat arrays. Any
+ * message from a contact moves it to the tail. If a new contact finds the bucket full,
+ * the head is pinged. The newcomer waits in a replacement cache, and takes the head's place
+ * only once the head has missed STALE_AFTER requests in a row, so a single lost datagram
+ * does not cost a contact. Long-lived contacts are kept in preference to new ones.
+ * A lookup keeps a shortlist of the 2k closest contacts seen so far, sorted by distance.
+ * It keeps alpha FIND_NODE / FIND_VALUE requests outstanding to the closest contacts not yet
+ * asked, skipping contacts that timed out. It ends when the k closest contacts that have not
+ * timed out have all answered, or when a value comes back. Contacts from our own table are one hop away, and contacts learned from a node
+ * d hops away are d + 1 hops away.
+ * The node is single-threaded and event driven. A Transport delivers datagrams to
+ * receive(), and runs timers, on one thread; KademliaSimulator and KademliaUdp provide it.
+ */
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Consumer;
+
+public class KademliaDht {
+
+    public static final int ID_BITS = 160;
+    static final int ID_BYTES = 20;
+    static final int HEADER = 1 + 8 + ID_BYTES;
+    static final int CONTACT_BYTES = ID_BYTES + 6;
+    public static final int MAX_VALUE = 1024;
+    static final int STALE_AFTER = 3;   // consecutive timeouts before a contact is evicted
+
+    static final byte PING = 1;
+    static final byte PONG = 2;
+    static final byte FIND_NODE = 3;
+    static final byte FIND_VALUE = 4;
+    static final byte NODES = 5;
+    static final byte VALUE = 6;
+    static final byte STORE = 7;
+
+    /* Delivers datagrams and runs timers; every call into the node comes from one thread */
+    public interface Transport {
+        // Sends message[position, limit) from one local node to an address; may drop it
+        void send(long from, long to, ByteBuffer message);
+
+        long now();
+
+        void schedule(long at, Runnable task);
+    }
+
+    public static final class LookupResult {
+        public final long[] target;
+        public final byte[] value;        // FIND_VALUE hit, else null
+        public final long[] closestIds;   // 3 longs per contact, nearest first
+        public final long[] closestAddresses;
+        public final int hops;
+        public final int messages;
+        public final long nanos;
+
+        LookupResult(long[] target, byte[] value, long[] closestIds, long[] closestAddresses, int hops,
+                     int messages, long nanos) {
+            this.target = target;
+            this.value = value;
+            this.closestIds = closestIds;
+            this.closestAddresses = closestAddresses;
+            this.hops = hops;
+            this.messages = messages;
+            this.nanos = nanos;
+        }
+
+        public int found() {
+            return closestAddresses.length;
+        }
+    }
+
+    /* ---------------------------------------------------------------- IDs */
+
+    public static long[] randomId(Random random) {
+        return new long[]{random.nextLong(), random.nextLong(), random.nextLong() & 0xFFFFFFFFL};
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // The SHA-1 of data as an ID, as keys are named in Kademlia
+    public static long[] hash(byte[] data) {
+        ByteBuffer d = ByteBuffer.wrap(SHA1.get().digest(data));
+        return new long[]{d.getLong(), d.getLong(), d.getInt() & 0xFFFFFFFFL};
+    }
+
+    static boolean equal(long[] a, int ai, long[] b, int bi) {
+        return a[ai] == b[bi] && a[ai + 1] == b[bi + 1] && a[ai + 2] == b[bi + 2];
+    }
+
+    // Highest differing bit (0..159), or -1 for equal IDs
+    static int bucketIndex(long[] a, int ai, long[] b, int bi) {
+        long x = a[ai] ^ b[bi];
+        if (x != 0) return 159 - Long.numberOfLeadingZeros(x);
+        x = a[ai + 1] ^ b[bi + 1];
+        if (x != 0) return 95 - Long.numberOfLeadingZeros(x);
+        x = a[ai + 2] ^ b[bi + 2];
+        return 63 - Long.numberOfLeadingZeros(x);
+    }
+
+    // Sign of distance(t, a) - distance(t, b)
+    static int compareDistance(long[] t, int ti, long[] a, int ai, long[] b, int bi) {
+        for (int w = 0; w < 3; w++) {
+            long da = t[ti + w] ^ a[ai + w];
+            long db = t[ti + w] ^ b[bi + w];
+            if (da != db) return Long.compareUnsigned(da, db);
+        }
+        return 0;
+    }
+
+    static void putId(ByteBuffer b, long[] id, int off) {
+        b.putLong(id[off]).putLong(id[off + 1]).putInt((int) id[off + 2]);
+    }
+
+    static void getId(ByteBuffer b, long[] id, int off) {
+        id[off] = b.getLong();
+        id[off + 1] = b.getLong();
+        id[off + 2] = b.getInt() & 0xFFFFFFFFL;
+    }
+
+    public static String toHex(long[] id) {
+        return String.format("%016x%016x%08x", id[0], id[1], id[2]);
+    }
+
+    /* ---------------------------------------------------------------- routing table */
+
+    static final class Bucket {
+        long[] ids;
+        long[] addresses;
+        byte[] failures;        // consecutive timeouts per contact
+        int size;               // contacts, least recently seen first
+        long[] spareIds;
+        long[] spareAddresses;
+        int spares;             // replacement cache, most recently seen last
+        long probe;             // rpc of the PING to the head, 0 if none
+
+        Bucket(int capacity) {
+            ids = new long[3 * capacity];
+            addresses = new long[capacity];
+            failures = new byte[capacity];
+        }
+
+        int find(long[] id, int off) {
+            for (int i = 0; i < size; i++) if (equal(ids, 3 * i, id, off)) return i;
+            return -1;
+        }
+
+        // Moves contact i to the tail (most recently seen)
+        void touch(int i, long address) {
+            long a = ids[3 * i];
+            long b = ids[3 * i + 1];
+            long c = ids[3 * i + 2];
+            System.arraycopy(ids, 3 * i + 3, ids, 3 * i, 3 * (size - i - 1));
+            System.arraycopy(addresses, i + 1, addresses, i, size - i - 1);
+            System.arraycopy(failures, i + 1, failures, i, size - i - 1);
+            ids[3 * size - 3] = a;
+            ids[3 * size - 2] = b;
+            ids[3 * size - 1] = c;
+            addresses[size - 1] = address;
+            failures[size - 1] = 0;
+        }
+
+        void append(long[] id, int off, long address, int k) {
+            if (size == addresses.length) {
+                int capacity = Math.min(k, size * 2);
+                ids = Arrays.copyOf(ids, 3 * capacity);
+                addresses = Arrays.copyOf(addresses, capacity);
+                failures = Arrays.copyOf(failures, capacity);
+            }
+            System.arraycopy(id, off, ids, 3 * size, 3);
+            failures[size] = 0;
+            addresses[size++] = address;
+        }
+
+        void remove(int i) {
+            System.arraycopy(ids, 3 * i + 3, ids, 3 * i, 3 * (size - i - 1));
+            System.arraycopy(addresses, i + 1, addresses, i, size - i - 1);
+            System.arraycopy(failures, i + 1, failures, i, size - i - 1);
+            size--;
+        }
+
+        void addSpare(long[] id, int off, long address, int k) {
+            if (spareIds == null) {
+                spareIds = new long[3 * k];
+                spareAddresses = new long[k];
+            }
+            for (int i = 0; i < spares; i++) {
+                if (equal(spareIds, 3 * i, id, off)) {
+                    removeSpare(i);
+                    break;
+                }
+            }
+            if (spares == spareAddresses.length) removeSpare(0);
+            System.arraycopy(id, off, spareIds, 3 * spares, 3);
+            spareAddresses[spares++] = address;
+        }
+
+        void removeSpare(int i) {
+            System.arraycopy(spareIds, 3 * i + 3, spareIds, 3 * i, 3 * (spares - i - 1));
+            System.arraycopy(spareAddresses, i + 1, spareAddresses, i, spares - i - 1);
+            spares--;
+        }
+
+        // Replaces a dead contact with the most recently seen spare
+        void promoteSpare(int k) {
+            if (spares == 0) return;
+            spares--;
+            append(spareIds, 3 * spares, spareAddresses[spares], k);
+        }
+    }
+
+    /* ---------------------------------------------------------------- pending requests */
+
+    private static final class Probe {
+        final int bucket;
+        final long[] id;
+
+        Probe(int bucket, long[] id) {
+            this.bucket = bucket;
+            this.id = id;
+        }
+    }
+
+    private static final class Query {
+        final Lookup lookup;
+        final long[] id;
+        final long address;
+
+        Query(Lookup lookup, long[] id, long address) {
+            this.lookup = lookup;
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    private static final class Join {
+        final Consumer<LookupResult> callback;
+
+        Join(Consumer<LookupResult> callback) {
+            this.callback = callback;
+        }
+    }
+
+    private static final byte NEW = 0;
+    private static final byte ASKED = 1;
+    private static final byte ANSWERED = 2;
+    private static final byte FAILED = 3;
+
+    private final class Lookup {
+        final long[] target;
+        final boolean wantValue;
+        final Consumer<LookupResult> callback;
+        final long started;
+        final long[] ids;
+        final long[] addresses;
+        final byte[] state;
+        final byte[] depth;
+        int size;
+        int inflight;
+        int messages;
+        boolean done;
+
+        Lookup(long[] target, boolean wantValue, Consumer<LookupResult> callback) {
+            this.target = target;
+            this.wantValue = wantValue;
+            this.callback = callback;
+            this.started = transport.now();
+            int capacity = 2 * k;
+            ids = new long[3 * capacity];
+            addresses = new long[capacity];
+            state = new byte[capacity];
+            depth = new byte[capacity];
+        }
+
+        // Inserts a contact in distance order unless it is known, us, or too far to matter
+        void offer(long[] id, int off, long address, int hops) {
+            if (equal(id, off, self, 0)) return;
+            int pos = size;
+            while (pos > 0 && compareDistance(target, 0, id, off, ids, 3 * (pos - 1)) < 0) pos--;
+            if (pos > 0 && equal(ids, 3 * (pos - 1), id, off)) return;
+            for (int i = pos; i < size; i++) if (equal(ids, 3 * i, id, off)) return;
+            if (pos == addresses.length) return;
+            int move = Math.min(size, addresses.length - 1) - pos;
+            System.arraycopy(ids, 3 * pos, ids, 3 * pos + 3, 3 * move);
+            System.arraycopy(addresses, pos, addresses, pos + 1, move);
+            System.arraycopy(state, pos, state, pos + 1, move);
+            System.arraycopy(depth, pos, depth, pos + 1, move);
+            System.arraycopy(id, off, ids, 3 * pos, 3);
+            addresses[pos] = address;
+            state[pos] = NEW;
+            depth[pos] = (byte) Math.min(hops, 127);
+            if (size < addresses.length) size++;
+        }
+
+        int indexOf(long[] id) {
+            for (int i = 0; i < size; i++) if (equal(ids, 3 * i, id, 0)) return i;
+            return -1;
+        }
+    }
+
+    /* ---------------------------------------------------------------- node */
+
+    private final long[] self;
+    private final long address;
+    private final Transport transport;
+    private final int k;
+    private final int alpha;
+    private final Bucket[] buckets = new Bucket[ID_BITS];
+    private int contacts;
+    private final Map<Long, Object> pending = new HashMap<>();
+    private long nextRpc = 1;
+    private final Map<Key, byte[]> storage = new HashMap<>();
+    private long rpcTimeoutNanos = 500_000_000L;
+
+    private final ByteBuffer out;
+    private final long[] scratch = new long[3];
+    private final long[] replyIds;
+    private final long[] replyAddresses;
+
+    private static final class Key {
+        final long a;
+        final long b;
+        final long c;
+
+        Key(long[] id, int off) {
+            a = id[off];
+            b = id[off + 1];
+            c = id[off + 2];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).a == a && ((Key) o).b == b && ((Key) o).c == c;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(a * 31 + b);
+        }
+    }
+
+    public KademliaDht(long[] id, long address, Transport transport, int k, int alpha) {
+        this.self = id.clone();
+        this.address = address;
+        this.transport = transport;
+        this.k = k;
+        this.alpha = alpha;
+        if (k < 1 || k > 255) throw new IllegalArgumentException("k must be in [1, 255]");
+        out = ByteBuffer.allocate(HEADER + 1 + Math.max(k * CONTACT_BYTES, 2 + MAX_VALUE + ID_BYTES));
+        replyIds = new long[3 * k];
+        replyAddresses = new long[k];
+    }
+
+    public KademliaDht setRpcTimeout(long nanos) {
+        rpcTimeoutNanos = nanos;
+        return this;
+    }
+
+    public long[] id() {
+        return self.clone();
+    }
+
+    public long address() {
+        return address;
+    }
+
+    public int contacts() {
+        return contacts;
+    }
+
+    public int storedValues() {
+        return storage.size();
+    }
+
+    /* ---------------------------------------------------------------- routing */
+
+    // Records that a contact is alive; a full bucket probes its least recently seen contact
+    private void seen(long[] id, int off, long from) {
+        int b = bucketIndex(self, 0, id, off);
+        if (b < 0) return;
+        Bucket bucket = buckets[b];
+        if (bucket == null) bucket = buckets[b] = new Bucket(Math.min(k, 4));
+        int i = bucket.find(id, off);
+        if (i >= 0) {
+            bucket.touch(i, from);
+        } else if (bucket.size < k) {
+            bucket.append(id, off, from, k);
+            contacts++;
+        } else {
+            bucket.addSpare(id, off, from, k);
+            if (bucket.probe == 0) {
+                long rpc = nextRpc++;
+                bucket.probe = rpc;
+                pending.put(rpc, new Probe(b, Arrays.copyOfRange(bucket.ids, 0, 3)));
+                send(bucket.addresses[0], begin(PING, rpc));
+                schedule(rpc);
+            }
+        }
+    }
+
+    // A contact did not answer; after STALE_AFTER misses in a row it is dropped and the replacement cache fills the gap
+    private void failed(long[] id) {
+        int b = bucketIndex(self, 0, id, 0);
+        if (b < 0 || buckets[b] == null) return;
+        Bucket bucket = buckets[b];
+        int i = bucket.find(id, 0);
+        if (i < 0 || ++bucket.failures[i] < STALE_AFTER) return;
+        bucket.remove(i);
+        contacts--;
+        int before = bucket.size;
+        bucket.promoteSpare(k);
+        contacts += bucket.size - before;
+    }
+
+    // Up to n contacts nearest the target, nearest first; returns how many
+    int closest(long[] target, int toff, int n, long[] outIds, long[] outAddresses) {
+        int found = 0;
+        for (Bucket bucket : buckets) {
+            if (bucket == null) continue;
+            for (int i = 0; i < bucket.size; i++) {
+                int pos = found;
+                while (pos > 0 && compareDistance(target, toff, bucket.ids, 3 * i, outIds, 3 * (pos - 1)) < 0) pos--;
+                if (pos >= n) continue;
+                int move = Math.min(found, n - 1) - pos;
+                System.arraycopy(outIds, 3 * pos, outIds, 3 * pos + 3, 3 * move);
+                System.arraycopy(outAddresses, pos, outAddresses, pos + 1, move);
+                System.arraycopy(bucket.ids, 3 * i, outIds, 3 * pos, 3);
+                outAddresses[pos] = bucket.addresses[i];
+                if (found < n) found++;
+            }
+        }
+        return found;
+    }
+
+    /* ---------------------------------------------------------------- wire */
+
+    private ByteBuffer begin(byte type, long rpc) {
+        out.clear();
+        out.put(type).putLong(rpc);
+        putId(out, self, 0);
+        return out;
+    }
+
+    private void send(long to, ByteBuffer message) {
+        message.flip();
+        transport.send(address, to, message);
+    }
+
+    private void schedule(long rpc) {
+        transport.schedule(transport.now() + rpcTimeoutNanos, () -> timeout(rpc));
+    }
+
+    private static void putAddress(ByteBuffer b, long address) {
+        b.putShort((short) (address >>> 32)).putInt((int) address);
+    }
+
+    private static long getAddress(ByteBuffer b) {
+        return (b.getShort() & 0xFFFFL) << 32 | b.getInt() & 0xFFFFFFFFL;
+    }
+
+    // Shortest well-formed body after the header for each message type; -1 for unknown types
+    private static int bodyLength(byte type) {
+        switch (type) {
+            case PING:
+            case PONG:
+                return 0;
+            case FIND_NODE:
+            case FIND_VALUE:
+                return ID_BYTES;
+            case STORE:
+                return ID_BYTES + 2;
+            case NODES:
+                return 1;
+            case VALUE:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    /* Handles one datagram from the given address; short or unknown datagrams are dropped */
+    public void receive(long from, ByteBuffer m) {
+        if (m.remaining() < HEADER) return;
+        int body = bodyLength(m.get(m.position()));
+        if (body < 0 || m.remaining() < HEADER + body) return;
+        byte type = m.get();
+        long rpc = m.getLong();
+        long[] sender = new long[3];
+        getId(m, sender, 0);
+        seen(sender, 0, from);
+        switch (type) {
+            case PING:
+                send(from, begin(PONG, rpc));
+                break;
+            case FIND_NODE:
+            case FIND_VALUE: {
+                getId(m, scratch, 0);
+                byte[] value = type == FIND_VALUE ? storage.get(new Key(scratch, 0)) : null;
+                if (value != null) {
+                    ByteBuffer reply = begin(VALUE, rpc);
+                    reply.putShort((short) value.length).put(value);
+                    send(from, reply);
+                } else {
+                    replyNodes(from, rpc, scratch);
+                }
+                break;
+            }
+            case STORE: {
+                getId(m, scratch, 0);
+                int length = m.getShort() & 0xFFFF;
+                if (length > MAX_VALUE || length > m.remaining()) return;
+                byte[] value = new byte[length];
+                m.get(value);
+                storage.put(new Key(scratch, 0), value);
+                break;
+            }
+            case PONG:
+            case NODES:
+            case VALUE:
+                onReply(type, rpc, sender, from, m);
+                break;
+            default:
+        }
+    }
+
+    private void replyNodes(long to, long rpc, long[] target) {
+        int n = closest(target, 0, k, replyIds, replyAddresses);
+        ByteBuffer reply = begin(NODES, rpc);
+        reply.put((byte) n);
+        for (int i = 0; i < n; i++) {
+            putId(reply, replyIds, 3 * i);
+            putAddress(reply, replyAddresses[i]);
+        }
+        send(to, reply);
+    }
+
+    private void onReply(byte type, long rpc, long[] sender, long from, ByteBuffer m) {
+        Object p = pending.get(rpc);
+        if (p == null) return;  // late, after a timeout
+        if (p instanceof Probe) {
+            pending.remove(rpc);
+            Bucket bucket = buckets[((Probe) p).bucket];
+            if (bucket.probe == rpc) bucket.probe = 0;
+        } else if (p instanceof Join) {
+            pending.remove(rpc);
+            findNode(self, ((Join) p).callback);
+        } else {
+            Query q = (Query) p;
+            if (q.address != from || !equal(q.id, 0, sender, 0)) return;
+            pending.remove(rpc);
+            Lookup l = q.lookup;
+            l.inflight--;
+            if (l.done) return;
+            int i = l.indexOf(q.id);
+            int hops = i >= 0 ? l.depth[i] : 1;
+            if (i >= 0) l.state[i] = ANSWERED;
+            if (type == VALUE) {
+                int length = m.getShort() & 0xFFFF;
+                if (length <= m.remaining()) {
+                    byte[] value = new byte[length];
+                    m.get(value);
+                    finish(l, value, hops);
+                    return;
+                }
+            } else if (type == NODES) {
+                int n = m.get() & 0xFF;
+                long[] id = scratch;
+                for (int c = 0; c < n && m.remaining() >= CONTACT_BYTES; c++) {
+                    getId(m, id, 0);
+                    l.offer(id, 0, getAddress(m), hops + 1);
+                }
+            }
+            advance(l);
+        }
+    }
+
+    private void timeout(long rpc) {
+        Object p = pending.remove(rpc);
+        if (p == null) return;
+        if (p instanceof Probe) {
+            // The head missed a ping; once it is stale the newest spare takes its place
+            Probe probe = (Probe) p;
+            Bucket bucket = buckets[probe.bucket];
+            if (bucket.probe == rpc) bucket.probe = 0;
+            failed(probe.id);
+        } else if (p instanceof Join) {
+            ((Join) p).callback.accept(new LookupResult(self, null, new long[0], new long[0], 0, 1, rpcTimeoutNanos));
+        } else {
+            Query q = (Query) p;
+            Lookup l = q.lookup;
+            l.inflight--;
+            failed(q.id);
+            int i = l.indexOf(q.id);
+            if (i >= 0) l.state[i] = FAILED;
+            if (!l.done) advance(l);
+        }
+    }
+
+    /* ---------------------------------------------------------------- lookups */
+
+    public void findNode(long[] target, Consumer<LookupResult> callback) {
+        start(target, false, callback);
+    }
+
+    public void findValue(long[] key, Consumer<LookupResult> callback) {
+        byte[] local = storage.get(new Key(key, 0));
+        if (local != null) {
+            callback.accept(new LookupResult(key, local, new long[0], new long[0], 0, 0, 0));
+            return;
+        }
+        start(key, true, callback);
+    }
+
+    // Finds the k nodes closest to the key and stores the value on each of them
+    public void store(long[] key, byte[] value, Consumer<LookupResult> callback) {
+        if (value.length > MAX_VALUE) throw new IllegalArgumentException("value longer than " + MAX_VALUE);
+        findNode(key, result -> {
+            for (int i = 0; i < result.found(); i++) {
+                ByteBuffer m = begin(STORE, nextRpc++);
+                putId(m, key, 0);
+                m.putShort((short) value.length).put(value);
+                send(result.closestAddresses[i], m);
+            }
+            if (result.found() == 0) storage.put(new Key(key, 0), value);
+            callback.accept(result);
+        });
+    }
+
+    // Pings a known node, then looks up our own ID, which fills our table and puts us in others'
+    public void join(long bootstrap, Consumer<LookupResult> callback) {
+        long rpc = nextRpc++;
+        pending.put(rpc, new Join(callback));
+        send(bootstrap, begin(PING, rpc));
+        schedule(rpc);
+    }
+
+    private void start(long[] target, boolean wantValue, Consumer<LookupResult> callback) {
+        Lookup l = new Lookup(target.clone(), wantValue, callback);
+        long[] ids = new long[3 * k];
+        long[] addresses = new long[k];
+        int n = closest(target, 0, k, ids, addresses);
+        for (int i = 0; i < n; i++) l.offer(ids, 3 * i, addresses[i], 1);
+        advance(l);
+    }
+
+    // Keeps alpha requests out to the closest unasked contacts; done when the k closest live ones have answered.
+    // Contacts that timed out do not count toward those k, so the lookup reaches further out instead
+    private void advance(Lookup l) {
+        int live = 0;
+        for (int i = 0; i < l.size && live < k; i++) {
+            if (l.state[i] == FAILED) continue;
+            live++;
+            if (l.state[i] != NEW || l.inflight >= alpha) continue;
+            l.state[i] = ASKED;
+            long rpc = nextRpc++;
+            long[] id = Arrays.copyOfRange(l.ids, 3 * i, 3 * i + 3);
+            pending.put(rpc, new Query(l, id, l.addresses[i]));
+            ByteBuffer m = begin(l.wantValue ? FIND_VALUE : FIND_NODE, rpc);
+            putId(m, l.target, 0);
+            send(l.addresses[i], m);
+            schedule(rpc);
+            l.inflight++;
+            l.messages++;
+        }
+        if (l.inflight == 0) {
+            int hops = 0;
+            for (int i = 0; i < l.size; i++) {
+                if (l.state[i] == ANSWERED) {
+                    hops = l.depth[i];
+                    break;
+                }
+            }
+            finish(l, null, hops);
+        }
+    }
+
+    private void finish(Lookup l, byte[] value, int hops) {
+        l.done = true;
+        int n = 0;
+        for (int i = 0; i < l.size && n < k; i++) if (l.state[i] == ANSWERED) n++;
+        long[] ids = new long[3 * n];
+        long[] addresses = new long[n];
+        for (int i = 0, j = 0; i < l.size && j < n; i++) {
+            if (l.state[i] != ANSWERED) continue;
+            System.arraycopy(l.ids, 3 * i, ids, 3 * j, 3);
+            addresses[j++] = l.addresses[i];
+        }
+        l.callback.accept(new LookupResult(l.target, value, ids, addresses, hops, l.messages,
+                transport.now() - l.started));
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        long[] a = randomId(random);
+        long[] b = a.clone();
+        b[1] ^= 1L << 40;
+        System.out.println("bucket of an ID differing in bit 72: " + bucketIndex(a, 0, b, 0));
+        System.out.println("key of \"kademlia\": " + toHex(hash("kademlia".getBytes())));
+        KademliaSimulator.main(new String[]{"2000", "1000"});
+    }
+}
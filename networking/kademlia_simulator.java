@@ -0,0 +1,240 @@
+/*
+ * Discrete-event simulator for KademliaDht: many nodes in one process on a virtual clock
+ * Every node shares one Transport. Its address is its index, and send() copies the datagram
+ * into an event for the receiver. The event fires after that link's one-way latency, a fixed
+ * 5..80 ms drawn from a hash of the two endpoints. Timers go on the same queue, so a timeout
+ * fires at the right point relative to the replies. One thread runs everything in time order,
+ * which makes a run reproducible from its seed.
+ * Nodes join one at a time through a random node that is already in the network. Lookups
+ * are then issued in rounds. We report the hop histogram, messages per lookup, virtual
+ * latency and wall-clock lookups per second. STORE and FIND_VALUE are checked before and
+ * after a fraction of the nodes goes silent.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class KademliaSimulator implements KademliaDht.Transport {
+
+    private static final class Event {
+        final long at;
+        final long seq;
+        final Runnable task;
+
+        Event(long at, long seq, Runnable task) {
+            this.at = at;
+            this.seq = seq;
+            this.task = task;
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>((a, b) ->
+            a.at != b.at ? Long.compare(a.at, b.at) : Long.compare(a.seq, b.seq));
+    private long now;
+    private long seq;
+    private long delivered;
+    private KademliaDht[] nodes = new KademliaDht[0];
+    private boolean[] dead = new boolean[0];
+    private int count;
+
+    @Override
+    public void send(long from, long to, ByteBuffer message) {
+        int target = (int) to;
+        if (target < 0 || target >= count || dead[target] || dead[(int) from]) return;
+        byte[] copy = new byte[message.remaining()];
+        message.get(copy);
+        KademliaDht node = nodes[target];
+        schedule(now + latency(from, to), () -> {
+            if (dead[target]) return;
+            delivered++;
+            node.receive(from, ByteBuffer.wrap(copy));
+        });
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void schedule(long at, Runnable task) {
+        events.add(new Event(at, seq++, task));
+    }
+
+    // One-way delay of a link, symmetric and fixed for the run
+    static long latency(long a, long b) {
+        long x = Math.min(a, b) * 0x9E3779B97F4A7C15L ^ Math.max(a, b) * 0xC2B2AE3D27D4EB4FL;
+        x ^= x >>> 29;
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 32;
+        return (5 + Math.floorMod(x, 76)) * 1_000_000L;
+    }
+
+    KademliaDht add(long[] id, int k, int alpha) {
+        if (count == nodes.length) {
+            nodes = Arrays.copyOf(nodes, Math.max(16, count * 2));
+            dead = Arrays.copyOf(dead, nodes.length);
+        }
+        KademliaDht node = new KademliaDht(id, count, this, k, alpha);
+        nodes[count++] = node;
+        return node;
+    }
+
+    void kill(int node) {
+        dead[node] = true;
+    }
+
+    // Runs events until none are left
+    void run() {
+        Event e;
+        while ((e = events.poll()) != null) {
+            now = e.at;
+            e.task.run();
+        }
+    }
+
+    static final class Stats {
+        final int[] hops = new int[32];
+        long lookups;
+        long messages;
+        long found;
+        long[] latencies = new long[1024];
+
+        void add(KademliaDht.LookupResult r) {
+            hops[Math.min(r.hops, hops.length - 1)]++;
+            messages += r.messages;
+            if (lookups == latencies.length) latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            latencies[(int) lookups++] = r.nanos;
+        }
+
+        long percentile(double p) {
+            long[] sorted = Arrays.copyOf(latencies, (int) lookups);
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+        }
+
+        double meanHops() {
+            long sum = 0;
+            for (int h = 0; h < hops.length; h++) sum += (long) h * hops[h];
+            return (double) sum / lookups;
+        }
+
+        String histogram() {
+            StringBuilder sb = new StringBuilder();
+            for (int h = 0; h < hops.length; h++) {
+                if (hops[h] != 0) sb.append(String.format(" %d:%.1f%%", h, 100.0 * hops[h] / lookups));
+            }
+            return sb.toString();
+        }
+    }
+
+    // Looks up random targets from random live nodes, a round at a time; checks every tenth
+    // answer against the true closest node, found by a linear scan, and counts answers with
+    // all k contacts, which is how many replicas a STORE gets
+    static Stats lookups(KademliaSimulator sim, long[][] ids, int lookups, int round, int k, Random random) {
+        Stats stats = new Stats();
+        int[] exact = new int[3];  // correct, checked, answers with k contacts
+        long start = System.nanoTime();
+        for (int done = 0; done < lookups; done += round) {
+            for (int i = 0; i < Math.min(round, lookups - done); i++) {
+                int from = randomLive(sim, random);
+                long[] target = KademliaDht.randomId(random);
+                sim.nodes[from].findNode(target, r -> {
+                    if (r.found() == k) exact[2]++;
+                    if (stats.lookups % 10 == 0) {
+                        exact[1]++;
+                        if (r.found() > 0 && closestLive(sim, ids, target) == r.closestAddresses[0]) exact[0]++;
+                    }
+                    stats.add(r);
+                });
+            }
+            sim.run();
+        }
+        long wall = System.nanoTime() - start;
+        stats.found = exact[0];
+        System.out.printf("  %d lookups  %.0f lookups/s wall  hops mean %.2f [%s ]%n", lookups,
+                lookups * 1e9 / wall, stats.meanHops(), stats.histogram());
+        System.out.printf("  messages/lookup %.1f  virtual latency p50 %d ms  p99 %d ms  exact closest %.2f%%  k contacts %.2f%%%n",
+                (double) stats.messages / lookups, stats.percentile(0.5) / 1_000_000,
+                stats.percentile(0.99) / 1_000_000, 100.0 * exact[0] / exact[1], 100.0 * exact[2] / lookups);
+        return stats;
+    }
+
+    static int randomLive(KademliaSimulator sim, Random random) {
+        int n;
+        do {
+            n = random.nextInt(sim.count);
+        } while (sim.dead[n]);
+        return n;
+    }
+
+    static int closestLive(KademliaSimulator sim, long[][] ids, long[] target) {
+        int best = -1;
+        for (int i = 0; i < sim.count; i++) {
+            if (sim.dead[i]) continue;
+            if (best < 0 || KademliaDht.compareDistance(target, 0, ids[i], 0, ids[best], 0) < 0) best = i;
+        }
+        return best;
+    }
+
+    static void values(KademliaSimulator sim, int keys, Random random, String label) {
+        long[][] stored = new long[keys][];
+        for (int i = 0; i < keys; i++) {
+            stored[i] = KademliaDht.hash((label + i).getBytes());
+            sim.nodes[randomLive(sim, random)].store(stored[i], ("value " + i).getBytes(), r -> { });
+        }
+        sim.run();
+        int[] hits = new int[1];
+        Stats stats = new Stats();
+        for (int i = 0; i < keys; i++) {
+            String expected = "value " + i;
+            sim.nodes[randomLive(sim, random)].findValue(stored[i], r -> {
+                stats.add(r);
+                if (r.value != null && new String(r.value).equals(expected)) hits[0]++;
+            });
+        }
+        sim.run();
+        System.out.printf("  STORE + FIND_VALUE: %d/%d found  hops mean %.2f  messages/lookup %.1f%n",
+                hits[0], keys, stats.meanHops(), (double) stats.messages / keys);
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int alpha = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        Random random = new Random(42);
+        KademliaSimulator sim = new KademliaSimulator();
+        long[][] ids = new long[n][];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            ids[i] = KademliaDht.randomId(random);
+            KademliaDht node = sim.add(ids[i], k, alpha);
+            if (i > 0) node.join(random.nextInt(i), r -> { });
+            sim.run();
+            if ((i + 1) % 20_000 == 0) {
+                System.out.printf("  %d joined  %.1f s%n", i + 1, (System.nanoTime() - start) / 1e9);
+            }
+        }
+        long contacts = 0;
+        for (int i = 0; i < n; i++) contacts += sim.nodes[i].contacts();
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf("%d nodes, k=%d alpha=%d: joined in %.1f s, %.1f contacts/node, %d datagrams, heap %d MB%n",
+                n, k, alpha, (System.nanoTime() - start) / 1e9, (double) contacts / n, sim.delivered,
+                (rt.totalMemory() - rt.freeMemory()) >> 20);
+        System.out.printf("  log2(n/k) = %.1f%n", Math.log((double) n / k) / Math.log(2));
+
+        System.out.println("FIND_NODE on a healthy network:");
+        lookups(sim, ids, lookups, 1000, k, random);
+        values(sim, 1000, random, "key-");
+
+        // A tenth of the nodes stop answering; lookups time out on them and the buckets evict them
+        for (int i = 0; i < n / 10; i++) sim.kill(randomLive(sim, random));
+        System.out.println("FIND_NODE after 10% of nodes go silent:");
+        lookups(sim, ids, lookups, 1000, k, random);
+        System.out.println("FIND_NODE again, after buckets have evicted dead contacts:");
+        lookups(sim, ids, lookups, 1000, k, random);
+        values(sim, 1000, random, "after-churn-");
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * KademliaDht over real UDP: each node has one non-blocking DatagramChannel, and one Selector
+ * thread serves them all
+ * A node's address is its IPv4 address and port packed as ip << 16 | port. That fits the
+ * 6 bytes a NODES reply carries for each contact. The loop thread does everything: it reads
+ * whichever channels are readable into one reused direct buffer and hands each datagram to
+ * its node, fires due timers from a priority queue, and runs tasks that other threads
+ * submitted. A submitter wakes the selector, and the select timeout is the next timer's
+ * deadline. Sends go straight out of the node's channel. If the socket buffer is full the
+ * datagram is dropped, and the lookup's timeout deals with it as it would with a loss on
+ * the wire.
+ * main starts a few hundred nodes on 127.0.0.1 and joins them. It then measures lookup
+ * latency one lookup at a time, and throughput with many lookups in flight.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class KademliaUdp implements KademliaDht.Transport, AutoCloseable {
+
+    private static final class Timer {
+        final long at;
+        final long seq;
+        final Runnable task;
+
+        Timer(long at, long seq, Runnable task) {
+            this.at = at;
+            this.seq = seq;
+            this.task = task;
+        }
+    }
+
+    private final Selector selector;
+    private final Thread loop;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) ->
+            a.at != b.at ? Long.compare(a.at, b.at) : Long.compare(a.seq, b.seq));
+    private long timerSeq;
+    private final Map<Long, DatagramChannel> channels = new HashMap<>();
+    private final Map<Long, InetSocketAddress> sockets = new HashMap<>();
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean running = true;
+    private long sent;
+    private long dropped;
+
+    public KademliaUdp() throws IOException {
+        selector = Selector.open();
+        loop = new Thread(this::run, "kademlia-udp");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    static long pack(InetSocketAddress a) {
+        byte[] ip = a.getAddress().getAddress();
+        long v = 0;
+        for (byte b : ip) v = v << 8 | (b & 0xFF);
+        return v << 16 | a.getPort();
+    }
+
+    static InetSocketAddress unpack(long address) throws IOException {
+        int ip = (int) (address >>> 16);
+        byte[] bytes = {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), (int) (address & 0xFFFF));
+    }
+
+    // Runs the task on the loop thread, where every node call must happen
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public <T> CompletableFuture<T> call(java.util.function.Function<KademliaUdp, T> body) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                f.complete(body.apply(this));
+            } catch (Throwable t) {
+                f.completeExceptionally(t);
+            }
+        });
+        return f;
+    }
+
+    // Binds a channel on the loopback interface and creates a node on it; loop thread only
+    KademliaDht open(long[] id, int k, int alpha) {
+        try {
+            DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel.configureBlocking(false);
+            long address = pack((InetSocketAddress) channel.getLocalAddress());
+            KademliaDht node = new KademliaDht(id, address, this, k, alpha);
+            channel.register(selector, SelectionKey.OP_READ, node);
+            channels.put(address, channel);
+            return node;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void send(long from, long to, ByteBuffer message) {
+        DatagramChannel channel = channels.get(from);
+        try {
+            InetSocketAddress target = sockets.get(to);
+            if (target == null) sockets.put(to, target = unpack(to));
+            if (channel.send(message, target) == 0) dropped++;
+            else sent++;
+        } catch (IOException e) {
+            dropped++;
+        }
+    }
+
+    @Override
+    public long now() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void schedule(long at, Runnable task) {
+        timers.add(new Timer(at, timerSeq++, task));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Timer next = timers.peek();
+                long wait = next == null ? 0 : Math.max(1, (next.at - System.nanoTime()) / 1_000_000);
+                if (tasks.isEmpty()) {
+                    if (next == null) selector.select();
+                    else selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    KademliaDht node = (KademliaDht) key.attachment();
+                    InetSocketAddress from;
+                    while (true) {
+                        in.clear();
+                        from = (InetSocketAddress) channel.receive(in);
+                        if (from == null) break;
+                        in.flip();
+                        try {
+                            node.receive(pack(from), in);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                while ((next = timers.peek()) != null && next.at <= now) {
+                    runSafely(timers.poll().task);
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) runSafely(task);
+            } catch (IOException | RuntimeException e) {
+                if (running) e.printStackTrace();
+            }
+        }
+    }
+
+    // A failing timer or task is reported; it must not stop every node on the transport
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (DatagramChannel c : channels.values()) c.close();
+        selector.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        Random random = new Random(7);
+        try (KademliaUdp udp = new KademliaUdp()) {
+            List<KademliaDht> nodes = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                long[] id = KademliaDht.randomId(random);
+                KademliaDht node = udp.call(t -> t.open(id, 20, 3)).get();
+                if (!nodes.isEmpty()) {
+                    long bootstrap = nodes.get(random.nextInt(nodes.size())).address();
+                    CompletableFuture<KademliaDht.LookupResult> joined = new CompletableFuture<>();
+                    udp.execute(() -> node.join(bootstrap, joined::complete));
+                    joined.get(10, TimeUnit.SECONDS);
+                }
+                nodes.add(node);
+            }
+            System.out.printf("%d nodes on %s joined in %d ms%n", n,
+                    unpack(nodes.get(0).address()).getAddress().getHostAddress(),
+                    (System.nanoTime() - start) / 1_000_000);
+
+            // Truncated datagrams of every type from an outside socket are dropped; the lookups
+            // below would time out if one of them had stopped the loop thread
+            try (DatagramChannel stranger = DatagramChannel.open()) {
+                for (byte type = 1; type <= 7; type++) {
+                    ByteBuffer junk = ByteBuffer.allocate(KademliaDht.HEADER);
+                    junk.put(type);
+                    junk.clear();
+                    stranger.send(junk, unpack(nodes.get(0).address()));
+                }
+            }
+
+            // One lookup at a time: latency is the loopback round trips along the lookup path
+            int serial = Math.min(lookups, 2000);
+            long[] latency = new long[serial];
+            int[] hops = new int[16];
+            for (int i = 0; i < serial; i++) {
+                KademliaDht from = nodes.get(random.nextInt(n));
+                long[] target = KademliaDht.randomId(random);
+                CompletableFuture<KademliaDht.LookupResult> f = new CompletableFuture<>();
+                udp.execute(() -> from.findNode(target, f::complete));
+                KademliaDht.LookupResult r = f.get(10, TimeUnit.SECONDS);
+                latency[i] = r.nanos;
+                hops[Math.min(r.hops, hops.length - 1)]++;
+            }
+            Arrays.sort(latency);
+            StringBuilder histogram = new StringBuilder();
+            for (int h = 0; h < hops.length; h++) {
+                if (hops[h] != 0) histogram.append(String.format(" %d:%.1f%%", h, 100.0 * hops[h] / serial));
+            }
+            System.out.printf("serial FIND_NODE: p50 %.1f us  p99 %.1f us  hops [%s ]%n",
+                    latency[serial / 2] / 1e3, latency[serial * 99 / 100] / 1e3, histogram);
+
+            // Many lookups in flight: throughput of the single loop thread
+            CountDownLatch done = new CountDownLatch(lookups);
+            long[] messages = new long[1];
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                KademliaDht from = nodes.get(random.nextInt(n));
+                long[] target = KademliaDht.randomId(random);
+                udp.execute(() -> from.findNode(target, r -> {
+                    messages[0] += r.messages;
+                    done.countDown();
+                }));
+            }
+            done.await(60, TimeUnit.SECONDS);
+            long wall = System.nanoTime() - start;
+            long sent = udp.call(t -> t.sent).get();
+            long dropped = udp.call(t -> t.dropped).get();
+            System.out.printf("concurrent FIND_NODE: %d lookups in %d ms = %.0f lookups/s, %.1f requests/lookup%n",
+                    lookups - done.getCount(), wall / 1_000_000, (lookups - done.getCount()) * 1e9 / wall,
+                    udp.call(t -> (double) messages[0] / lookups).get());
+            System.out.printf("datagrams sent %d, dropped on full socket buffers %d%n", sent, dropped);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Keyed GCRA rate limiter: one theoretical arrival time (TAT) per key, updated by CAS in
+ * open-addressed long tables, with no object per key
+ * GCRA spaces permits one emission interval T apart and allows a burst of b. A request for
+ * n permits at time now computes tat' = max(tat, now) + n * T. It is granted, and the TAT
+ * set to tat', when tat' - now <= b * T. One long per key is the whole state. A TAT at or
+ * before now means a full burst is available, the same state as a key never seen, so a
+ * key can be dropped as soon as its TAT has passed without changing any decision.
+ * Keys are hashed with a bijective 64-bit mix and spread over segments by the top bits of
+ * the hash. Each segment is an AtomicLongArray of (hash, tat) pairs probed linearly from
+ * the low bits. The two longs of a pair share a cache line. A new key claims an empty slot
+ * by CAS on the hash word. A decision is a CAS on the TAT word.
+ * Slots are never emptied in place. Eviction and growth both rebuild a whole segment:
+ * - the rebuilder freezes every empty slot (hash word set to FROZEN_KEY), and sets the sign
+ *   bit of every TAT
+ * - it copies the keys whose TAT is still recent into a table sized for them
+ * - it publishes the new table
+ * A thread that meets a frozen word waits for the new table and retries there. That is the
+ * only time a decision waits for another thread, so no update lands in a table that has
+ * already been copied. A daemon thread rebuilds segments that are mostly idle. A thread
+ * that fills a segment past three quarters rebuilds it at twice the size.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class KeyedRateLimiter implements AutoCloseable {
+
+    static final long EMPTY = 0;
+    static final long FROZEN_KEY = -1;
+    static final long FROZEN = Long.MIN_VALUE;
+    static final int MIN_CAPACITY = 16;
+    static final int BATCH = 16;
+
+    static final class Segment {
+        final AtomicLongArray slots;    // hash, tat, hash, tat, ...
+        final int mask;
+        final AtomicInteger size = new AtomicInteger();
+
+        Segment(int capacity) {
+            slots = new AtomicLongArray(2 * capacity);
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+
+    private final AtomicReferenceArray<Segment> segments;
+    private final Object[] locks;
+    private final int segmentShift;
+    private final long interval;        // T, nanos per permit
+    private final int burst;            // b
+    private final long tolerance;       // b * T
+    private final long base = System.nanoTime();
+    private long idleNanos = 1_000_000_000L;
+    private Thread evictor;
+    private volatile boolean closed;
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    public KeyedRateLimiter(double permitsPerSecond, int burst, int segmentCount) {
+        if (permitsPerSecond <= 0 || burst < 1) throw new IllegalArgumentException("rate and burst must be positive");
+        if (Integer.bitCount(segmentCount) != 1) throw new IllegalArgumentException("segment count must be a power of two");
+        interval = Math.max(1, (long) (1e9 / permitsPerSecond));
+        // A TAT is at most now + 2 * b * T and must stay clear of the sign bit used for freezing
+        if (burst > Long.MAX_VALUE / 4 / interval) throw new IllegalArgumentException("burst window b * T overflows");
+        this.burst = burst;
+        tolerance = interval * burst;
+        segments = new AtomicReferenceArray<>(segmentCount);
+        locks = new Object[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            segments.set(s, new Segment(MIN_CAPACITY));
+            locks[s] = new Object();
+        }
+        segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    // Top bits of the hash; a shift by 64 would be a shift by 0, so one segment is special
+    private int segmentOf(long h) {
+        return segmentShift == 64 ? 0 : (int) (h >>> segmentShift);
+    }
+
+    public KeyedRateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, 1024);
+    }
+
+    // How long a key must have been fully refilled before eviction drops it
+    public KeyedRateLimiter setIdleTimeout(long nanos) {
+        idleNanos = nanos;
+        return this;
+    }
+
+    // Starts the daemon that rebuilds mostly idle segments every period
+    public KeyedRateLimiter startEviction(long periodMillis) {
+        evictor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(periodMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                evictIdle();
+            }
+        }, "rate-limiter-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+        return this;
+    }
+
+    public long now() {
+        return System.nanoTime() - base;
+    }
+
+    // Murmur3's finalizer is a bijection, so distinct keys keep distinct hashes; the two
+    // keys that would hash to a reserved word share a slot with the key hashing to 1
+    static long mix(long key) {
+        long h = key ^ 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == EMPTY || h == FROZEN_KEY ? 1 : h;
+    }
+
+    public boolean tryAcquire(long key, int permits) {
+        return tryAcquire(key, permits, now());
+    }
+
+    // With an explicit time on the now() clock, for tests; eviction judges idleness by now()
+    boolean tryAcquire(long key, int permits, long now) {
+        if (permits <= 0) return true;
+        if (permits > burst) return false;
+        return acquire(mix(key), permits * interval, now);
+    }
+
+    /*
+     * Decides a batch with one clock read. The first pass loads the hash word of each key's
+     * home slot. The loads are independent, so their cache misses overlap, and the second
+     * pass usually finds the lines already in cache. Returns the number granted.
+     */
+    public int tryAcquire(long[] keys, int[] permits, boolean[] out) {
+        long now = now();
+        long[] hashes = new long[BATCH];
+        int granted = 0;
+        for (int from = 0; from < keys.length; from += BATCH) {
+            int n = Math.min(BATCH, keys.length - from);
+            for (int j = 0; j < n; j++) {
+                long h = mix(keys[from + j]);
+                Segment seg = segments.get(segmentOf(h));
+                hashes[j] = h;
+                seg.slots.get(2 * ((int) h & seg.mask));
+            }
+            for (int j = 0; j < n; j++) {
+                int p = permits[from + j];
+                boolean ok = p <= 0 || p <= burst && acquire(hashes[j], p * interval, now);
+                out[from + j] = ok;
+                if (ok) granted++;
+            }
+        }
+        return granted;
+    }
+
+    private boolean acquire(long h, long cost, long now) {
+        int s = segmentOf(h);
+        while (true) {
+            Segment seg = segments.get(s);
+            AtomicLongArray a = seg.slots;
+            int i = locate(s, seg, h);
+            if (i >= 0) {
+                while (true) {
+                    long tat = a.get(2 * i + 1);
+                    if (tat < 0) break;             // frozen by a rebuild
+                    long next = Math.max(tat, now) + cost;
+                    if (next - now > tolerance) return false;
+                    if (a.compareAndSet(2 * i + 1, tat, next)) return true;
+                }
+            }
+            awaitRebuild(s, seg);
+        }
+    }
+
+    // Index of the key's pair, claiming an empty slot if it is new; -1 if the segment is frozen
+    private int locate(int s, Segment seg, long h) {
+        AtomicLongArray a = seg.slots;
+        int mask = seg.mask;
+        int i = (int) h & mask;
+        for (int probes = 0; probes <= mask; ) {
+            long k = a.get(2 * i);
+            if (k == h) return i;
+            if (k == FROZEN_KEY) return -1;
+            if (k == EMPTY) {
+                if (seg.size.get() >= seg.capacity() - (seg.capacity() >> 2)) {
+                    rebuild(s, seg, now());
+                    return -1;
+                }
+                if (a.compareAndSet(2 * i, EMPTY, h)) {
+                    seg.size.incrementAndGet();
+                    return i;
+                }
+                continue;   // lost the slot; see who took it
+            }
+            i = (i + 1) & mask;
+            probes++;
+        }
+        rebuild(s, seg, now());
+        return -1;
+    }
+
+    private void awaitRebuild(int s, Segment seg) {
+        while (segments.get(s) == seg) Thread.yield();
+    }
+
+    /*
+     * Freezes the segment and replaces it with a table holding only its recent keys. Sized
+     * for a load factor of at most one half, which also makes this the growth path.
+     */
+    void rebuild(int s, Segment seg, long now) {
+        synchronized (locks[s]) {
+            if (segments.get(s) != seg) return;
+            AtomicLongArray a = seg.slots;
+            int capacity = seg.capacity();
+            int live = 0;
+            long idleBefore = now - idleNanos;
+            for (int i = 0; i < capacity; i++) {
+                long k;
+                while ((k = a.get(2 * i)) == EMPTY && !a.compareAndSet(2 * i, EMPTY, FROZEN_KEY)) { }
+                if (k == EMPTY) continue;
+                long tat;
+                do {
+                    tat = a.get(2 * i + 1);
+                } while (!a.compareAndSet(2 * i + 1, tat, tat | FROZEN));
+                if (tat > idleBefore) live++;
+            }
+            int target = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, live * 2 - 1)) << 1);
+            Segment next = new Segment(target);
+            AtomicLongArray b = next.slots;
+            int mask = next.mask;
+            for (int i = 0; i < capacity; i++) {
+                long k = a.get(2 * i);
+                if (k == FROZEN_KEY) continue;
+                long tat = a.get(2 * i + 1) & ~FROZEN;
+                if (tat <= idleBefore) continue;
+                int j = (int) k & mask;
+                while (b.get(2 * j) != EMPTY) j = (j + 1) & mask;
+                b.set(2 * j, k);
+                b.set(2 * j + 1, tat);
+            }
+            next.size.set(live);
+            evicted.add(seg.size.get() - live);
+            rebuilds.increment();
+            segments.set(s, next);
+        }
+    }
+
+    // Rebuilds the segments where at least a quarter of the keys are idle, or that are oversized
+    public void evictIdle() {
+        evictIdle(now());
+    }
+
+    void evictIdle(long now) {
+        long idleBefore = now - idleNanos;
+        for (int s = 0; s < segments.length(); s++) {
+            Segment seg = segments.get(s);
+            AtomicLongArray a = seg.slots;
+            int idle = 0;
+            int size = 0;
+            for (int i = 0; i <= seg.mask; i++) {
+                long k = a.get(2 * i);
+                if (k == EMPTY || k == FROZEN_KEY) continue;
+                size++;
+                long tat = a.get(2 * i + 1);
+                if (tat >= 0 && tat <= idleBefore) idle++;
+            }
+            if (idle > 0 && (idle * 4 >= size || seg.capacity() > MIN_CAPACITY && size * 8 < seg.capacity())) {
+                rebuild(s, seg, now);
+            }
+        }
+    }
+
+    public long size() {
+        long n = 0;
+        for (int s = 0; s < segments.length(); s++) n += segments.get(s).size.get();
+        return n;
+    }
+
+    public long capacity() {
+        long n = 0;
+        for (int s = 0; s < segments.length(); s++) n += segments.get(s).capacity();
+        return n;
+    }
+
+    public long evicted() {
+        return evicted.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (evictor != null) evictor.interrupt();
+    }
+
+    /* ---------------------------------------------------------------- benchmark */
+
+    // The object-per-key design this replaces: a map of synchronized limiters
+    static final class ObjectPerKey {
+        static final class Cell {
+            long tat;
+        }
+
+        final ConcurrentHashMap<Long, Cell> cells = new ConcurrentHashMap<>();
+        final long interval;
+        final long tolerance;
+
+        ObjectPerKey(double permitsPerSecond, int burst) {
+            interval = (long) (1e9 / permitsPerSecond);
+            tolerance = interval * burst;
+        }
+
+        boolean tryAcquire(long key, long now) {
+            Cell c = cells.computeIfAbsent(key, x -> new Cell());
+            synchronized (c) {
+                long next = Math.max(c.tat, now) + interval;
+                if (next - now > tolerance) return false;
+                c.tat = next;
+                return true;
+            }
+        }
+    }
+
+    interface Decision {
+        boolean decide(long key);
+    }
+
+    static double run(int threads, long millis, long keySpace, boolean hot, Decision d) throws InterruptedException {
+        LongAdder decisions = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        long end = System.nanoTime() + millis * 1_000_000L;
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                long n = 0;
+                while ((n & 1023) != 0 || System.nanoTime() < end) {
+                    d.decide(hot ? 7 : r.nextLong(keySpace));
+                    n++;
+                }
+                decisions.add(n);
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        return decisions.sum() * 1000.0 / millis;
+    }
+
+    static void correctness() {
+        // 100 permits/s with a burst of 10: over 10 s a busy key gets 10 + 100 * 10
+        KeyedRateLimiter limiter = new KeyedRateLimiter(100, 10, 16);
+        int granted = 0;
+        for (long t = 0; t <= 10_000_000_000L; t += 1_000_000L) {
+            for (int j = 0; j < 5; j++) if (limiter.tryAcquire(99, 1, t)) granted++;
+        }
+        System.out.println("busy key over 10 s at 100/s, burst 10: granted " + granted + " (expected 1010)");
+        // 1 permit/s with a burst of 10: a key that took its burst is refused for the next 10 s
+        limiter = new KeyedRateLimiter(1, 10, 16);
+        long[] keys = new long[200_000];
+        for (int i = 0; i < keys.length; i++) keys[i] = i;
+        int[] permits = new int[keys.length];
+        Arrays.fill(permits, 10);
+        boolean[] out = new boolean[keys.length];
+        int first = limiter.tryAcquire(keys, permits, out);
+        int second = limiter.tryAcquire(keys, permits, out);
+        System.out.println("batch of " + keys.length + " fresh keys taking a full burst: " + first
+                + " granted, then " + second + " granted on repeat");
+        // One segment, and a rate low enough that a large request would overflow n * T
+        limiter = new KeyedRateLimiter(0.001, 5, 1);
+        boolean huge = limiter.tryAcquire(1, 10_000_000, 0);
+        boolean small = limiter.tryAcquire(1, 1, 0);
+        System.out.println("single segment at 0.001/s: 10M permits " + huge + ", then 1 permit " + small);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long keys = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        correctness();
+
+        KeyedRateLimiter limiter = new KeyedRateLimiter(10, 20).setIdleTimeout(600_000_000_000L);
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        long start = System.nanoTime();
+        for (long k = 0; k < keys; k++) limiter.tryAcquire(k, 1);
+        System.out.printf("%nfilled %d keys in %.1f s: %d slots, %d rebuilds%n", keys,
+                (System.nanoTime() - start) / 1e9, limiter.capacity(), limiter.rebuilds.sum());
+        System.gc();
+        System.out.printf("heap for the table: %.1f bytes/key%n",
+                (double) (rt.totalMemory() - rt.freeMemory() - heap) / keys);
+
+        int[] threadCounts = {1, 2, 4};
+        for (int threads : threadCounts) {
+            double uniform = run(threads, 1000, keys, false, k -> limiter.tryAcquire(k, 1));
+            double hot = run(threads, 1000, keys, true, k -> limiter.tryAcquire(k, 1));
+            System.out.printf("threads %d (cpus %d): uniform over %d keys %.2fM decisions/s, one hot key %.2fM/s%n",
+                    threads, cpus, keys, uniform / 1e6, hot / 1e6);
+        }
+
+        int batch = 256;
+        long[] batchKeys = new long[batch];
+        int[] permits = new int[batch];
+        Arrays.fill(permits, 1);
+        boolean[] out = new boolean[batch];
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        for (int round = 0; round < 2; round++) {
+            long n = 0;
+            long end = System.nanoTime() + 1_000_000_000L;
+            start = System.nanoTime();
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < batch; i++) batchKeys[i] = r.nextLong(keys);
+                limiter.tryAcquire(batchKeys, permits, out);
+                n += batch;
+            }
+            double batched = n * 1e9 / (System.nanoTime() - start);
+            n = 0;
+            end = System.nanoTime() + 1_000_000_000L;
+            start = System.nanoTime();
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < batch; i++) batchKeys[i] = r.nextLong(keys);
+                for (int i = 0; i < batch; i++) out[i] = limiter.tryAcquire(batchKeys[i], 1);
+                n += batch;
+            }
+            double single = n * 1e9 / (System.nanoTime() - start);
+            if (round == 1) {
+                System.out.printf("batches of %d: %.2fM decisions/s, one at a time: %.2fM/s%n",
+                        batch, batched / 1e6, single / 1e6);
+            }
+        }
+
+        // Eviction: only a small working set stays busy; everything else goes idle and is dropped
+        limiter.setIdleTimeout(500_000_000L).startEviction(200);
+        long busyUntil = System.nanoTime() + 3_000_000_000L;
+        while (System.nanoTime() < busyUntil) {
+            for (long k = 0; k < 10_000; k++) limiter.tryAcquire(k, 1);
+        }
+        System.out.printf("after 3 s with only 10000 keys busy: %d keys in %d slots, %d evicted%n",
+                limiter.size(), limiter.capacity(), limiter.evicted());
+        limiter.close();
+
+        long baselineKeys = Math.min(keys, 1_000_000L);
+        ObjectPerKey baseline = new ObjectPerKey(10, 20);
+        KeyedRateLimiter compact = new KeyedRateLimiter(10, 20);
+        for (long k = 0; k < baselineKeys; k++) {
+            baseline.tryAcquire(k, 0);
+            compact.tryAcquire(k, 1);
+        }
+        for (int threads : threadCounts) {
+            double objects = run(threads, 1000, baselineKeys, false, k -> baseline.tryAcquire(k, System.nanoTime()));
+            double table = run(threads, 1000, baselineKeys, false, k -> compact.tryAcquire(k, 1));
+            System.out.printf("%d keys, threads %d: synchronized object per key %.2fM/s, CAS table %.2fM/s%n",
+                    baselineKeys, threads, objects / 1e6, table / 1e6);
+        }
+    }
+}
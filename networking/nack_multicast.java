@@ -0,0 +1,848 @@
+/*
+ * NACK-based reliable multicast in the style of NORM and PGM, over non-blocking NIO
+ * The sender batches application messages into datagrams of at most MTU bytes. Each datagram
+ * carries a sequence number and goes to the multicast group once. Receivers never
+ * acknowledge. A receiver that sees a gap waits a random backoff and then unicasts a NACK
+ * listing the missing ranges to the sender. The sender answers a NACK at once with an NCF
+ * (NACK confirm) to the group, as PGM does, and repairs the datagrams with RDATA after a short
+ * holdoff that gathers the NACKs of other receivers. A receiver whose backoff has not yet
+ * expired when the NCF or the repair arrives stays quiet, and NACKs that cross a repair are
+ * ignored for a while after it. So a datagram lost by many receivers costs a few NACKs and
+ * one retransmission, not one of each per receiver.
+ * Retransmissions are served from a ring of the last WINDOW datagrams. Every DATA carries
+ * the trail, the oldest sequence number still in the ring. A receiver gives up on anything
+ * older and counts it as lost. Periodic SPMs (source path messages) carry the lead and the
+ * trail, so a receiver also notices loss at the end of a burst.
+ * A token bucket paces the sender, sharing its rate between new data and repairs, with
+ * repairs first.
+ * Wire format, big-endian. Every packet starts with type (1 byte), a pad byte and session (int):
+ * - DATA and RDATA: seq (long), trail (long), count (short), then count times a length
+ *   (short) followed by that many bytes
+ * - NACK and NCF: count (short), then count ranges of from (long) and length (int)
+ * - SPM: lead (long), trail (long)
+ * Datagrams shorter than their type's fixed part are dropped. A receiver follows one sender:
+ * the first it hears from. Packets from any other address are ignored until that sender has
+ * been silent for the sender timeout; a new session from the same address is a restart.
+ * An EventLoop thread runs a Selector over any number of senders and receivers, each with its
+ * own DatagramChannel. It also fires their timers and runs tasks that other threads submit.
+ * To test recovery on loopback, receivers can drop a share of what they receive on purpose,
+ * and the sender a share of new datagrams. Receiver drops are independent, like loss on
+ * separate tails of the tree. Sender drops are shared, like loss near the source, and are
+ * what NACK suppression is for. main measures goodput and repair traffic as the receiver
+ * count and the loss grow.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+public class NackMulticast {
+
+    static final byte DATA = 1;
+    static final byte RDATA = 2;
+    static final byte NACK = 3;
+    static final byte NCF = 4;
+    static final byte SPM = 5;
+    static final int DATA_HEADER = 24;
+    static final int RANGE_HEADER = 8;
+    static final int SPM_LENGTH = 22;
+    static final int RANGE = 12;
+    static final int WINDOW = 8192;
+
+    // Fixed part of each packet type, which must be present before anything is read; -1 if unknown
+    static int minLength(byte type) {
+        switch (type) {
+            case DATA:
+            case RDATA:
+                return DATA_HEADER;
+            case NACK:
+            case NCF:
+                return RANGE_HEADER;
+            case SPM:
+                return SPM_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    public interface Listener {
+        // The buffer holds one message between position and limit, and is only valid during the call
+        void deliver(ByteBuffer message);
+    }
+
+    interface Endpoint {
+        void receive(ByteBuffer datagram, SocketAddress from) throws IOException;
+    }
+
+    /* ---------------------------------------------------------------- event loop */
+
+    public static final class EventLoop implements AutoCloseable {
+
+        private static final class Timer {
+            final long at;
+            final long seq;
+            final Runnable task;
+
+            Timer(long at, long seq, Runnable task) {
+                this.at = at;
+                this.seq = seq;
+                this.task = task;
+            }
+        }
+
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) ->
+                a.at != b.at ? Long.compare(a.at, b.at) : Long.compare(a.seq, b.seq));
+        private long timerSeq;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        private volatile boolean running = true;
+
+        public EventLoop() throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, "nack-multicast");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Runs the task on the loop thread, where every endpoint call must happen
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Loop thread only
+        void schedule(long delayNanos, Runnable task) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, timerSeq++, task));
+        }
+
+        void register(DatagramChannel channel, Endpoint endpoint) throws ClosedChannelException {
+            channel.register(selector, SelectionKey.OP_READ, endpoint);
+        }
+
+        private void run() {
+            while (running) {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    long now = System.nanoTime();
+                    while (!timers.isEmpty() && timers.peek().at <= now) timers.poll().task.run();
+                    Timer next = timers.peek();
+                    if (!tasks.isEmpty() || (next != null && next.at <= System.nanoTime())) {
+                        selector.selectNow();
+                    } else if (next == null) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, (next.at - System.nanoTime() + 999_999) / 1_000_000));
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        DatagramChannel channel = (DatagramChannel) key.channel();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        // A bounded number per channel per round, so one busy channel cannot starve the rest
+                        for (int i = 0; i < 64; i++) {
+                            in.clear();
+                            SocketAddress from = channel.receive(in);
+                            if (from == null) break;
+                            in.flip();
+                            endpoint.receive(in, from);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (running) e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SelectionKey key : selector.keys()) key.channel().close();
+            selector.close();
+        }
+    }
+
+    static DatagramChannel open(NetworkInterface nif) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /* ---------------------------------------------------------------- sender */
+
+    public static final class Sender implements Endpoint {
+        private final EventLoop loop;
+        private final DatagramChannel channel;
+        private final InetSocketAddress group;
+        private final int session = new Random().nextInt();
+        private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean pumpQueued = new AtomicBoolean();
+        private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+
+        // Ring of the last WINDOW datagrams; the slot of seq next is the one being filled
+        private final byte[][] ring = new byte[WINDOW][];
+        private final int[] lengths = new int[WINDOW];
+        private long next;
+        private int count;
+        private int fill = DATA_HEADER;
+        private long filledSince;
+
+        // Repairs asked for, in arrival order, with a bitmap so each is queued once
+        private final long[] repairs = new long[WINDOW];
+        private final long[] repairing = new long[WINDOW / 64];
+        private final long[] repairedAt = new long[WINDOW];
+        private long repairHead;
+        private long repairTail;
+        private long repairDue;
+
+        private int mtu = 1400;
+        private double rate = 50e6;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private long holdoffNanos = 1_000_000;
+        private long repeatNanos = 5_000_000;
+        private long lingerNanos = 500_000;
+        private long heartbeatNanos = 5_000_000;
+        private boolean timerPending;
+        private boolean heartbeat;
+        private double loss;
+        private final Random random = new Random();
+
+        long datagrams;
+        long retransmissions;
+        long nacks;
+        long confirms;
+        long payloadBytes;
+
+        public Sender(EventLoop loop, InetSocketAddress group, NetworkInterface nif) throws IOException {
+            this.loop = loop;
+            this.group = group;
+            channel = open(nif);
+            channel.bind(new InetSocketAddress(0));
+            loop.execute(() -> {
+                try {
+                    loop.register(channel, this);
+                } catch (ClosedChannelException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        public Sender mtu(int mtu) {
+            if (mtu < DATA_HEADER + 64 || mtu > 65000) throw new IllegalArgumentException("mtu " + mtu);
+            this.mtu = mtu;
+            return this;
+        }
+
+        // Bytes per second, new data and repairs together
+        public Sender rate(double bytesPerSecond) {
+            this.rate = bytesPerSecond;
+            return this;
+        }
+
+        public Sender holdoff(long nanos) {
+            this.holdoffNanos = nanos;
+            return this;
+        }
+
+        // Share of new datagrams dropped on purpose, a loss that every receiver sees
+        public Sender loss(double loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        // NACKs for a datagram repaired less than this long ago are ignored; they crossed the repair
+        public Sender repeatHoldoff(long nanos) {
+            this.repeatNanos = nanos;
+            return this;
+        }
+
+        public Sender linger(long nanos) {
+            this.lingerNanos = nanos;
+            return this;
+        }
+
+        // Oldest sequence number that can still be repaired
+        long trail() {
+            return Math.max(0, next - WINDOW + 1);
+        }
+
+        // Queues a message from any thread; the queue is unbounded
+        public void send(byte[] message) {
+            if (message.length + 2 > mtu - DATA_HEADER) {
+                throw new IllegalArgumentException("message of " + message.length + " bytes does not fit in one datagram");
+            }
+            queue.add(message);
+            if (pumpQueued.compareAndSet(false, true)) loop.execute(this::pump);
+        }
+
+        private void pump() {
+            pumpQueued.set(false);
+            long now = System.nanoTime();
+            double burst = Math.max(4.0 * mtu, rate * 0.002);
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            try {
+                while (repairHead < repairTail && tokens > 0 && now >= repairDue) {
+                    long seq = repairs[(int) (repairHead++ % WINDOW)];
+                    int slot = (int) (seq % WINDOW);
+                    repairing[slot >>> 6] &= ~(1L << slot);
+                    if (seq < trail() || seq >= next) continue;
+                    byte[] d = ring[slot];
+                    d[0] = RDATA;
+                    ByteBuffer.wrap(d).putLong(14, trail());
+                    transmit(d, lengths[slot]);
+                    repairedAt[slot] = now;
+                    retransmissions++;
+                }
+                while (tokens > 0) {
+                    if (!fillDatagram(now)) break;
+                    boolean full = !queue.isEmpty();
+                    if (!full && now - filledSince < lingerNanos) {
+                        wakeAt(filledSince + lingerNanos - now);
+                        break;
+                    }
+                    flush();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            boolean waiting = count > 0 || !queue.isEmpty() || (repairHead < repairTail);
+            if (waiting && tokens <= 0) wakeAt((long) (-tokens * 1e9 / rate) + 1);
+            else if (repairHead < repairTail && now < repairDue) wakeAt(repairDue - now);
+            if (!heartbeat && datagrams > 0) {
+                heartbeat = true;
+                loop.schedule(heartbeatNanos, this::heartbeat);
+            }
+        }
+
+        private void wakeAt(long delayNanos) {
+            if (timerPending) return;
+            timerPending = true;
+            loop.schedule(delayNanos, () -> {
+                timerPending = false;
+                pump();
+            });
+        }
+
+        // Moves queued messages into the datagram for seq next; false if it is still empty
+        private boolean fillDatagram(long now) {
+            int slot = (int) (next % WINDOW);
+            if (ring[slot] == null || ring[slot].length < mtu) ring[slot] = new byte[mtu];
+            byte[] d = ring[slot];
+            if (count == 0) {
+                fill = DATA_HEADER;
+                filledSince = now;
+            }
+            byte[] m;
+            while ((m = queue.peek()) != null && fill + 2 + m.length <= mtu) {
+                queue.poll();
+                d[fill] = (byte) (m.length >>> 8);
+                d[fill + 1] = (byte) m.length;
+                System.arraycopy(m, 0, d, fill + 2, m.length);
+                fill += 2 + m.length;
+                payloadBytes += m.length;
+                count++;
+            }
+            return count > 0;
+        }
+
+        private void flush() throws IOException {
+            int slot = (int) (next % WINDOW);
+            // The slot's previous datagram is gone, so a queued repair of it is dropped
+            repairing[slot >>> 6] &= ~(1L << slot);
+            repairedAt[slot] = Long.MIN_VALUE / 2;
+            byte[] d = ring[slot];
+            ByteBuffer b = ByteBuffer.wrap(d);
+            b.put(0, DATA).put(1, (byte) 0).putInt(2, session).putLong(6, next).putShort(22, (short) count);
+            lengths[slot] = fill;
+            next++;
+            b.putLong(14, trail());
+            if (loss > 0 && random.nextDouble() < loss) tokens -= fill;
+            else transmit(d, fill);
+            datagrams++;
+            count = 0;
+        }
+
+        private void transmit(byte[] d, int length) throws IOException {
+            out.clear();
+            out.put(d, 0, length).flip();
+            // A full socket buffer drops the datagram, and receivers recover it like any other loss
+            channel.send(out, group);
+            tokens -= length;
+        }
+
+        private void heartbeat() {
+            heartbeat = false;
+            out.clear();
+            out.put(SPM).put((byte) 0).putInt(session).putLong(next).putLong(trail()).flip();
+            try {
+                channel.send(out, group);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (count > 0 || !queue.isEmpty() || datagrams > 0) {
+                heartbeat = true;
+                loop.schedule(heartbeatNanos, this::heartbeat);
+            }
+        }
+
+        @Override
+        public void receive(ByteBuffer d, SocketAddress from) throws IOException {
+            if (d.remaining() < RANGE_HEADER || d.get(0) != NACK || d.getInt(2) != session) return;
+            nacks++;
+            int n = Math.min(d.getShort(6) & 0xFFFF, (d.remaining() - RANGE_HEADER) / RANGE);
+            long trail = trail();
+            out.clear();
+            out.put(NCF).put((byte) 0).putInt(session).putShort((short) 0);
+            int confirmed = 0;
+            boolean wasIdle = repairHead == repairTail;
+            long now = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                long first = Math.max(trail, d.getLong(RANGE_HEADER + i * RANGE));
+                long end = Math.min(next, d.getLong(RANGE_HEADER + i * RANGE) + d.getInt(RANGE_HEADER + i * RANGE + 8));
+                long runStart = -1;
+                for (long seq = first; seq < end; seq++) {
+                    int slot = (int) (seq % WINDOW);
+                    boolean recent = now - repairedAt[slot] < repeatNanos;
+                    if (!recent && (repairing[slot >>> 6] & (1L << slot)) == 0) {
+                        repairing[slot >>> 6] |= 1L << slot;
+                        repairs[(int) (repairTail++ % WINDOW)] = seq;
+                    }
+                    // Confirm the runs that will be repaired, which is every seq not repaired just now
+                    if (!recent && runStart < 0) runStart = seq;
+                    if ((recent || seq == end - 1) && runStart >= 0 && out.remaining() >= RANGE) {
+                        out.putLong(runStart).putInt((int) ((recent ? seq : end) - runStart));
+                        confirmed++;
+                        runStart = -1;
+                    }
+                }
+            }
+            if (confirmed == 0) return;
+            if (wasIdle) repairDue = now + holdoffNanos;
+            out.putShort(6, (short) confirmed).flip();
+            channel.send(out, group);
+            confirms++;
+            pump();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d datagrams, %d retransmitted, %d NACKs received, %d NCFs sent",
+                    datagrams, retransmissions, nacks, confirms);
+        }
+    }
+
+    /* ---------------------------------------------------------------- receiver */
+
+    public static final class Receiver implements Endpoint {
+        private final EventLoop loop;
+        private final DatagramChannel channel;
+        private final Listener listener;
+        private final Random random;
+        private double loss;
+        private long backoffNanos = 2_000_000;
+        private long retryNanos = 20_000_000;
+        private long senderTimeoutNanos = 1_000_000_000;
+
+        // Datagrams held until everything before them has arrived; slots are allocated on use
+        private final byte[][] slots = new byte[WINDOW][];
+        private final int[] lengths = new int[WINDOW];
+        private final long[] missing = new long[WINDOW / 64];
+        private final long[] nackAt = new long[WINDOW];
+        private final boolean[] nacked = new boolean[WINDOW];
+        private int missingCount;
+        private boolean synced;
+        private int session;
+        private SocketAddress sender;
+        private long lastHeard;     // when the sender last sent anything in its session
+        private long expected;      // next seq to deliver
+        private long lead;          // one past the highest seq known to exist
+        private boolean tickPending;
+        private final ByteBuffer out = ByteBuffer.allocate(1500);
+
+        long delivered;
+        long deliveredBytes;
+        long nacksSent;
+        long suppressed;
+        long duplicates;
+        long lost;
+        long injected;
+
+        public Receiver(EventLoop loop, InetSocketAddress group, NetworkInterface nif, Listener listener, long seed)
+                throws IOException {
+            this.loop = loop;
+            this.listener = listener;
+            this.random = new Random(seed);
+            channel = open(nif);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            channel.join(group.getAddress(), nif);
+            loop.execute(() -> {
+                try {
+                    loop.register(channel, this);
+                } catch (ClosedChannelException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        // Share of incoming datagrams dropped on purpose
+        public Receiver loss(double loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        public Receiver backoff(long nanos) {
+            this.backoffNanos = nanos;
+            return this;
+        }
+
+        public Receiver retry(long nanos) {
+            this.retryNanos = nanos;
+            return this;
+        }
+
+        // Silence after which another sender on the group may take over
+        public Receiver senderTimeout(long nanos) {
+            this.senderTimeoutNanos = nanos;
+            return this;
+        }
+
+        public long delivered() {
+            return delivered;
+        }
+
+        @Override
+        public void receive(ByteBuffer d, SocketAddress from) {
+            if (loss > 0 && random.nextDouble() < loss) {
+                injected++;
+                return;
+            }
+            if (d.remaining() < 1) return;
+            byte type = d.get(0);
+            int min = minLength(type);
+            if (type == NACK || min < 0 || d.remaining() < min) return;
+            long now = System.nanoTime();
+            boolean current = from.equals(sender) && d.getInt(2) == session;
+            if (!current) {
+                // Another sender on the group is ignored while ours is alive; a new session
+                // from our sender's address, or any sender after a silence, starts over
+                if (sender != null && !from.equals(sender) && now - lastHeard <= senderTimeoutNanos) return;
+                if (type != DATA && type != RDATA && type != SPM) return;
+                sender = from;
+                session = d.getInt(2);
+                synced = false;
+            }
+            lastHeard = now;
+            if (type == DATA || type == RDATA) {
+                sync(d.getLong(14));
+                advanceTrail(d.getLong(14));
+                store(d.getLong(6), d, now, type == RDATA);
+            } else if (type == SPM) {
+                sync(d.getLong(14));
+                advanceTrail(d.getLong(14));
+                extend(d.getLong(6), now);
+            } else if (type == NCF) {
+                int n = Math.min(d.getShort(6) & 0xFFFF, (d.remaining() - RANGE_HEADER) / RANGE);
+                for (int i = 0; i < n; i++) {
+                    long first = Math.max(expected, d.getLong(RANGE_HEADER + i * RANGE));
+                    long end = Math.min(lead, d.getLong(RANGE_HEADER + i * RANGE) + d.getInt(RANGE_HEADER + i * RANGE + 8));
+                    // The repair is on its way: hold our own NACK back until the retry time
+                    for (long seq = first; seq < end; seq++) {
+                        int slot = (int) (seq % WINDOW);
+                        if (isMissing(slot)) nackAt[slot] = now + retryNanos;
+                    }
+                }
+            }
+            deliverReady();
+            if (missingCount > 0 && !tickPending) {
+                tickPending = true;
+                loop.schedule(backoffNanos / 4 + 1, this::tick);
+            }
+        }
+
+        private void sync(long trail) {
+            if (synced) return;
+            synced = true;
+            expected = trail;
+            lead = trail;
+        }
+
+        private boolean isMissing(int slot) {
+            return (missing[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        private void store(long seq, ByteBuffer d, long now, boolean repair) {
+            if (seq < expected) {
+                duplicates++;
+                return;
+            }
+            extend(seq + 1, now);
+            int slot = (int) (seq % WINDOW);
+            if (!isMissing(slot)) {
+                duplicates++;
+                return;
+            }
+            missing[slot >>> 6] &= ~(1L << slot);
+            missingCount--;
+            // Repaired after an NCF or another receiver's NACK, before this one asked
+            if (repair && !nacked[slot]) suppressed++;
+            int n = d.remaining();
+            if (slots[slot] == null || slots[slot].length < n) slots[slot] = new byte[Math.max(n, 1500)];
+            d.get(d.position(), slots[slot], 0, n);
+            lengths[slot] = n;
+        }
+
+        // Marks [lead, newLead) as expected but not yet here
+        private void extend(long newLead, long now) {
+            if (newLead <= lead) return;
+            if (newLead - expected > WINDOW) skipTo(newLead - WINDOW);
+            for (long seq = Math.max(lead, expected); seq < newLead; seq++) {
+                int slot = (int) (seq % WINDOW);
+                missing[slot >>> 6] |= 1L << slot;
+                lengths[slot] = 0;
+                nacked[slot] = false;
+                nackAt[slot] = now + (long) (random.nextDouble() * backoffNanos);
+                missingCount++;
+            }
+            lead = newLead;
+        }
+
+        // The sender can no longer repair anything before its trail
+        private void advanceTrail(long trail) {
+            if (trail > expected) skipTo(trail);
+        }
+
+        // Delivers what is here before seq, and gives up on the rest
+        private void skipTo(long seq) {
+            while (expected < seq) {
+                int slot = (int) (expected % WINDOW);
+                if (expected >= lead) {
+                    lost++;
+                } else if (isMissing(slot)) {
+                    missing[slot >>> 6] &= ~(1L << slot);
+                    missingCount--;
+                    lost++;
+                } else {
+                    deliver(slot);
+                }
+                expected++;
+            }
+            if (lead < expected) lead = expected;
+        }
+
+        private void deliverReady() {
+            while (expected < lead) {
+                int slot = (int) (expected % WINDOW);
+                if (isMissing(slot)) break;
+                deliver(slot);
+                expected++;
+            }
+        }
+
+        private void deliver(int slot) {
+            byte[] d = slots[slot];
+            int count = ((d[22] & 0xFF) << 8) | (d[23] & 0xFF);
+            ByteBuffer view = ByteBuffer.wrap(d, 0, lengths[slot]);
+            int at = DATA_HEADER;
+            for (int i = 0; i < count && at + 2 <= lengths[slot]; i++) {
+                int n = ((d[at] & 0xFF) << 8) | (d[at + 1] & 0xFF);
+                if (at + 2 + n > lengths[slot]) break;   // truncated message
+                view.limit(at + 2 + n).position(at + 2);
+                listener.deliver(view);
+                delivered++;
+                deliveredBytes += n;
+                at += 2 + n;
+            }
+        }
+
+        // Sends one NACK with every missing range whose backoff has expired
+        private void tick() {
+            tickPending = false;
+            if (missingCount == 0) return;
+            long now = System.nanoTime();
+            out.clear();
+            out.put(NACK).put((byte) 0).putInt(session).putShort((short) 0);
+            int ranges = 0;
+            long runStart = -1;
+            long runEnd = -1;
+            for (long seq = expected; seq < lead; ) {
+                int slot = (int) (seq % WINDOW);
+                if ((slot & 63) == 0 && missing[slot >>> 6] == 0) {
+                    seq += 64;
+                    continue;
+                }
+                if (isMissing(slot) && nackAt[slot] <= now) {
+                    nackAt[slot] = now + retryNanos;
+                    nacked[slot] = true;
+                    if (seq != runEnd) {
+                        if (runStart >= 0) ranges = addRange(runStart, runEnd, ranges);
+                        runStart = seq;
+                    }
+                    runEnd = seq + 1;
+                }
+                seq++;
+            }
+            if (runStart >= 0) ranges = addRange(runStart, runEnd, ranges);
+            if (ranges > 0) sendNack(ranges);
+            if (missingCount > 0) {
+                tickPending = true;
+                loop.schedule(backoffNanos / 4 + 1, this::tick);
+            }
+        }
+
+        private int addRange(long from, long to, int ranges) {
+            if (out.remaining() < RANGE) {
+                sendNack(ranges);
+                out.clear();
+                out.put(NACK).put((byte) 0).putInt(session).putShort((short) 0);
+                ranges = 0;
+            }
+            out.putLong(from).putInt((int) (to - from));
+            return ranges + 1;
+        }
+
+        private void sendNack(int ranges) {
+            out.putShort(6, (short) ranges).flip();
+            try {
+                channel.send(out, sender);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            nacksSent++;
+        }
+    }
+
+    /* ---------------------------------------------------------------- goodput test */
+
+    // Delivers numbered messages and checks that they arrive in order, each exactly once
+    static final class Checker implements Listener {
+        long next;
+        long errors;
+
+        @Override
+        public void deliver(ByteBuffer message) {
+            if (message.getLong(message.position()) != next) errors++;
+            next++;
+        }
+    }
+
+    static <T> T onLoop(EventLoop loop, Supplier<T> task) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        loop.execute(() -> result.complete(task.get()));
+        return result.get();
+    }
+
+    // Everything queued has been sent, and every receiver has delivered or given up on all of it
+    static boolean finished(Sender sender, Receiver[] receivers) {
+        if (!sender.queue.isEmpty() || sender.count > 0) return false;
+        for (Receiver r : receivers) if (r.expected < sender.next) return false;
+        return true;
+    }
+
+    /*
+     * With intruder set, a second sender runs on the same group with its own messages, and a
+     * stranger socket sends truncated packets of every type. The receivers must keep following
+     * the first sender, which the checkers verify.
+     */
+    static String run(NetworkInterface nif, int port, int receivers, double loss, boolean shared, int messages, int size,
+                      double rate, boolean intruder) throws Exception {
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.255.77.1"), port);
+        try (EventLoop loop = new EventLoop()) {
+            Checker[] checkers = new Checker[receivers];
+            Receiver[] rs = new Receiver[receivers];
+            for (int i = 0; i < receivers; i++) {
+                checkers[i] = new Checker();
+                rs[i] = new Receiver(loop, group, nif, checkers[i], i).loss(shared ? 0 : loss);
+            }
+            Sender sender = new Sender(loop, group, nif).rate(rate).loss(shared ? loss : 0);
+            Thread.sleep(50);
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                byte[] m = new byte[size];
+                ByteBuffer.wrap(m).putLong(i);
+                sender.send(m);
+            }
+            if (intruder) {
+                Sender other = new Sender(loop, group, nif).rate(rate / 10);
+                for (int i = 0; i < messages / 10; i++) other.send(new byte[size]);
+                try (DatagramChannel stranger = open(nif)) {
+                    for (byte type = DATA; type <= SPM; type++) {
+                        ByteBuffer junk = ByteBuffer.allocate(minLength(type) - 1);
+                        junk.put(type).put((byte) 0).putInt(42).clear();
+                        stranger.send(junk, group);
+                    }
+                }
+            }
+            long deadline = start + 120_000_000_000L;
+            while (System.nanoTime() < deadline && !onLoop(loop, () -> finished(sender, rs))) Thread.sleep(2);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return onLoop(loop, () -> {
+                long delivered = 0;
+                long nacks = 0;
+                long suppressed = 0;
+                long lost = 0;
+                long errors = 0;
+                for (int i = 0; i < receivers; i++) {
+                    delivered += rs[i].delivered;
+                    nacks += rs[i].nacksSent;
+                    suppressed += rs[i].suppressed;
+                    lost += rs[i].lost;
+                    errors += checkers[i].errors;
+                }
+                double goodput = (double) delivered / receivers * size / seconds;
+                return String.format("%3d receivers, %2.0f%% %s loss%s: %5.1f MB/s per receiver, %6.1f MB/s total, "
+                                + "%5.1f%% retransmitted, %6d NACKs, %6d repairs taken unasked, %d lost, %d out of order",
+                        receivers, loss * 100, shared ? "shared" : "independent", intruder ? " + intruder" : "",
+                        goodput / 1e6, goodput * receivers / 1e6,
+                        100.0 * sender.retransmissions / Math.max(1, sender.datagrams), nacks, suppressed, lost, errors);
+            });
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        NetworkInterface nif = NetworkInterface.getByName("lo");
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int size = 200;
+        double rate = 10e6;
+        System.out.printf("%d messages of %d bytes, batched into %d-byte datagrams, sender paced at %.0f MB/s%n",
+                messages, size, 1400, rate / 1e6);
+        int port = 47000;
+        double[] losses = {0, 0.01, 0.05, 0.01, 0.05};
+        boolean[] shared = {false, false, false, true, true};
+        for (int k = 0; k < losses.length; k++) {
+            for (int receivers : new int[]{1, 4, 16, 32}) {
+                System.out.println(run(nif, port++, receivers, losses[k], shared[k], messages, size, rate, false));
+            }
+        }
+        System.out.println(run(nif, port, 4, 0.01, false, messages, size, rate, true));
+    }
+}
@@ -53,4 +53,9 @@ public class OperationalTransformation {
         }
         return sb.toString();
     }
+
+    /* Apply an operation to a rope-backed document in place, without copying the whole text. */
+    public static void apply(RopeDocument doc, Operation op) {
+        TextOperation.of(op, doc.length()).apply(doc);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*
+ * Benchmark for the rope-backed OT path against OperationalTransformation's String path
+ * The document is 5 MB of random words. The edit stream looks like someone typing: 1-char
+ * inserts at a cursor that now and then moves a few chars or jumps, and short backspaces.
+ * The sections are:
+ * - applying the stream with OperationalTransformation.apply(String, Operation), which
+ *   copies the document on every edit, and with the RopeDocument overload
+ * - a client collapsing a burst of pending keystrokes with compose, and applying the result
+ * - a server receiving a burst of operations from clients that lag up to LAG revisions
+ *   behind, with the single-pass transform against the history, compared with transforming
+ *   against each concurrent operation in turn
+ */
+
+import java.util.*;
+
+public class OtBenchmark {
+
+    static final int DOCUMENT = 5_000_000;
+    static final int HISTORY = 20_000;
+    static final int BURST = 5_000;
+    static final int LAG = 2_000;
+
+    static String words(int length, Random random) {
+        StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            for (int i = 2 + random.nextInt(8); i > 0; i--) sb.append((char) ('a' + random.nextInt(26)));
+            sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return sb.substring(0, length);
+    }
+
+    /* Typing-like single edits against a document whose length is tracked as it changes */
+    static final class Typist {
+        final Random random;
+        int length;
+        int cursor;
+
+        Typist(int length, Random random) {
+            this.length = length;
+            this.random = random;
+            cursor = random.nextInt(length + 1);
+        }
+
+        // Mostly types at the cursor; now and then moves it a little, or jumps, or backspaces
+        OperationalTransformation.Operation next() {
+            int move = random.nextInt(50);
+            if (move == 0) cursor = random.nextInt(length + 1);
+            else if (move < 6) cursor = Math.max(0, Math.min(length, cursor + random.nextInt(17) - 8));
+            if (random.nextInt(8) > 0 || cursor == 0) {
+                length++;
+                return new OperationalTransformation.Operation(OperationalTransformation.Type.INSERT, cursor++,
+                        String.valueOf((char) ('a' + random.nextInt(26))));
+            }
+            int count = Math.min(cursor, 1 + random.nextInt(3));
+            cursor -= count;
+            length -= count;
+            return new OperationalTransformation.Operation(OperationalTransformation.Type.DELETE, cursor, "x".repeat(count));
+        }
+    }
+
+    static double perSecond(long count, long start) {
+        return count * 1e9 / (System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DOCUMENT;
+        Random random = new Random(42);
+        String text = words(size, random);
+        System.out.printf("document: %.1f MB%n", size / 1e6);
+
+        // String path: a few hundred edits are enough to see the per-edit copy
+        Typist typist = new Typist(size, new Random(1));
+        List<OperationalTransformation.Operation> stream = new ArrayList<>();
+        for (int i = 0; i < 300_000; i++) stream.add(typist.next());
+        String s = text;
+        int stringOps = 0;
+        long start = System.nanoTime();
+        while (stringOps < stream.size() && (stringOps < 50 || System.nanoTime() - start < 3_000_000_000L)) {
+            s = OperationalTransformation.apply(s, stream.get(stringOps++));
+        }
+        System.out.printf("  String apply                       %10.0f ops/s  (%d ops)%n", perSecond(stringOps, start), stringOps);
+
+        RopeDocument rope = new RopeDocument(text);
+        for (int i = 0; i < stringOps; i++) OperationalTransformation.apply(rope, stream.get(i));
+        System.out.println("  rope and String agree after " + stringOps + " ops: " + rope.toString().equals(s));
+        for (int round = 0; round < 2; round++) {
+            RopeDocument r = new RopeDocument(text);
+            start = System.nanoTime();
+            for (OperationalTransformation.Operation op : stream) OperationalTransformation.apply(r, op);
+            if (round == 1) {
+                System.out.printf("  RopeDocument apply                 %10.0f ops/s  (%d ops)%n", perSecond(stream.size(), start), stream.size());
+            }
+        }
+
+        // Client: keystrokes typed while waiting for an acknowledgement collapse into one operation
+        typist = new Typist(rope.length(), new Random(2));
+        List<TextOperation> keystrokes = new ArrayList<>();
+        for (int i = 0; i < BURST; i++) {
+            int before = typist.length;
+            keystrokes.add(TextOperation.of(typist.next(), before));
+        }
+        start = System.nanoTime();
+        TextOperation pending = keystrokes.get(0);
+        for (int i = 1; i < keystrokes.size(); i++) pending = TextOperation.compose(pending, keystrokes.get(i));
+        System.out.printf("  compose %d keystrokes one by one   %10.0f ops/s, %d components%n", BURST,
+                perSecond(BURST, start), pending.components());
+        start = System.nanoTime();
+        TextOperation pairwise = TextOperation.compose(keystrokes);
+        System.out.printf("  compose %d keystrokes pairwise     %10.0f ops/s, same result: %b%n", BURST,
+                perSecond(BURST, start), pairwise.equals(pending));
+        RopeDocument one = rope.snapshot();
+        RopeDocument each = rope.snapshot();
+        pending.apply(one);
+        for (TextOperation op : keystrokes) op.apply(each);
+        System.out.println("  composed operation gives the same document: " + one.toString().equals(each.toString()));
+
+        server(text);
+    }
+
+    static void server(String text) {
+        Random random = new Random(3);
+        TextOperation.History history = new TextOperation.History(new RopeDocument(text));
+        int[] lengthAt = new int[HISTORY + BURST + 1];
+        lengthAt[0] = text.length();
+        for (int i = 0; i < HISTORY; i++) {
+            history.receive(keystroke(lengthAt[i], random), i);
+            lengthAt[i + 1] = history.document().length();
+        }
+
+        // Each client edits the document as of the revision it last saw
+        int[] revisions = new int[BURST];
+        TextOperation[] burst = new TextOperation[BURST];
+        for (int i = 0; i < BURST; i++) {
+            revisions[i] = HISTORY - random.nextInt(LAG + 1);
+            burst[i] = keystroke(lengthAt[revisions[i]], random);
+        }
+        int head = history.revision();
+        List<TextOperation> ops = new ArrayList<>();
+        for (int i = 0; i < head; i++) ops.add(history.get(i));
+        TextOperation[] single = new TextOperation[BURST];
+        TextOperation[] sequential = new TextOperation[BURST];
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BURST; i++) single[i] = TextOperation.transform(burst[i], ops.subList(revisions[i], head));
+            double a = perSecond(BURST, start);
+            start = System.nanoTime();
+            for (int i = 0; i < BURST; i++) {
+                TextOperation op = burst[i];
+                for (int k = revisions[i]; k < head; k++) op = TextOperation.transform(op, ops.get(k))[0];
+                sequential[i] = op;
+            }
+            double b = perSecond(BURST, start);
+            if (round == 1) {
+                System.out.printf("server: %d-op history, burst of %d ops lagging up to %d revisions%n", head, BURST, LAG);
+                System.out.printf("  single-pass transform              %10.0f ops/s%n", a);
+                System.out.printf("  one transform per concurrent op    %10.0f ops/s%n", b);
+            }
+        }
+        int same = 0;
+        for (int i = 0; i < BURST; i++) if (single[i].equals(sequential[i])) same++;
+        System.out.println("  results identical: " + same + " of " + BURST);
+
+        // End to end: the burst arrives at the server, interleaved with the history growing
+        long start = System.nanoTime();
+        for (int i = 0; i < BURST; i++) history.receive(burst[i], revisions[i]);
+        System.out.printf("  receive (transform + rope apply)   %10.0f ops/s, document %.1f MB%n",
+                perSecond(BURST, start), history.document().length() / 1e6);
+    }
+
+    static TextOperation keystroke(int length, Random random) {
+        int at = random.nextInt(length + 1);
+        if (random.nextInt(6) > 0 || at == length) {
+            return new TextOperation().retain(at).insert(String.valueOf((char) ('a' + random.nextInt(26)))).retain(length - at);
+        }
+        int count = Math.min(length - at, 1 + random.nextInt(5));
+        return new TextOperation().retain(at).delete(count).retain(length - at - count);
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Poptrie: a multibit trie compressed with bit vectors and popcount, for IPv4 and IPv6
+ * longest-prefix match, with RCU-style snapshot swap
+ * The first bits index a direct table, 18 for IPv4 and 16 for IPv6. An entry there is either
+ * a next hop, or a subtree for a prefix of that length that holds longer ones. Below it, each
+ * node consumes 6 bits and is three longs:
+ * - vector: bit i is set if child i is another node
+ * - leafvec: bit i is set where a run of equal leaves starts
+ * - base: the index of the node's first leaf (high half) and its first child node (low half)
+ * Children and leaves are stored contiguously, so the child for index i is base1 plus the
+ * popcount of the vector bits up to i, minus one. A leaf is found the same way from base0
+ * and leafvec. This is the Lulea compressed-bitmap idea carried to 64-way nodes. A lookup
+ * costs one popcount and one array read per 6 bits, and the few hot nodes stay in cache.
+ * An IPv4 address is treated as the top 32 bits of a 64-bit key, so the 6-bit steps at
+ * depths 18, 24 and 30 need no special case, and a /24 is resolved by the first node. IPv6
+ * steps through hi from bit 16 up to bit 64, then through lo. The last step at bit 124 has
+ * only 4 real bits.
+ * Updates go to the RoutingTable. Each direct entry a prefix covers is then rebuilt as a
+ * fresh subtree, so a typical update recompiles one /18 or /16. The writer copies the
+ * direct table the first time a commit epoch changes it, and commit() publishes it with one
+ * volatile write.
+ * Subtrees are immutable, so older snapshots stay valid for their readers. A single writer
+ * thread is assumed.
+ */
+
+import java.util.*;
+
+public class Poptrie {
+
+    public static final int NO_ROUTE = RoutingTable.NO_ROUTE;
+    static final int DIRECT_BITS_V4 = 18;
+    static final int DIRECT_BITS_V6 = 16;
+
+    /*
+     * A subtree is one long[]: three longs per node, then the leaves, so a walk touches a
+     * single array. base0 indexes the leaves from the start of the array.
+     */
+    static int lookup(long[] t, long key, long low) {
+        int at = 0;
+        int shift = 58 - DIRECT_BITS_V6;
+        while (true) {
+            int index;
+            if (shift >= 0) index = (int) (key >>> shift) & 63;
+            else if (shift > -64) index = (int) (low >>> (shift + 64)) & 63;
+            else index = (int) (low << 2) & 63;
+            long bit = 1L << index;
+            long mask = (bit << 1) - 1;
+            long vector = t[at];
+            if ((vector & bit) == 0) return (int) t[(int) (t[at + 2] >>> 32) + Long.bitCount(t[at + 1] & mask) - 1];
+            at = 3 * ((int) t[at + 2] + Long.bitCount(vector & mask) - 1);
+            shift -= 6;
+        }
+    }
+
+    // IPv4 never leaves the first word, so its walk has no word selection
+    static int lookup4(long[] t, long key) {
+        int at = 0;
+        int shift = 58 - DIRECT_BITS_V4;
+        while (true) {
+            long bit = 1L << ((int) (key >>> shift) & 63);
+            long mask = (bit << 1) - 1;
+            long vector = t[at];
+            if ((vector & bit) == 0) return (int) t[(int) (t[at + 2] >>> 32) + Long.bitCount(t[at + 1] & mask) - 1];
+            at = 3 * ((int) t[at + 2] + Long.bitCount(vector & mask) - 1);
+            shift -= 6;
+        }
+    }
+
+    public static final class Snapshot {
+        final int[] direct;
+        final long[][] subtrees;
+
+        Snapshot(int[] direct, long[][] subtrees) {
+            this.direct = direct;
+            this.subtrees = subtrees;
+        }
+
+        public int lookup(int address) {
+            int top = address >>> (32 - DIRECT_BITS_V4);
+            long[] t = subtrees[top];
+            return t == null ? direct[top] : lookup4(t, (address & 0xFFFFFFFFL) << 32);
+        }
+
+        public int lookup(long hi, long lo) {
+            int top = (int) (hi >>> (64 - DIRECT_BITS_V6));
+            long[] t = subtrees[top];
+            return t == null ? direct[top] : Poptrie.lookup(t, hi, lo);
+        }
+
+        /*
+         * Walks the whole batch one level per round instead of one address at a time. The
+         * lookups in a round are independent, so their cache misses overlap, where a single
+         * walk waits for each level before it can start the next.
+         */
+        public void lookup(int[] addresses, int[] out, int n) {
+            int[] direct = this.direct;
+            long[][] subtrees = this.subtrees;
+            int[] pending = new int[n];
+            int[] at = new int[n];
+            long[][] trees = new long[n][];
+            int live = 0;
+            for (int i = 0; i < n; i++) {
+                int top = addresses[i] >>> (32 - DIRECT_BITS_V4);
+                long[] t = subtrees[top];
+                if (t == null) {
+                    out[i] = direct[top];
+                } else {
+                    trees[live] = t;
+                    pending[live++] = i;
+                }
+            }
+            for (int shift = 58 - DIRECT_BITS_V4; live > 0; shift -= 6) {
+                int keep = 0;
+                for (int k = 0; k < live; k++) {
+                    long[] t = trees[k];
+                    int node = at[k];
+                    int i = pending[k];
+                    long bit = 1L << ((int) (((addresses[i] & 0xFFFFFFFFL) << 32) >>> shift) & 63);
+                    long mask = (bit << 1) - 1;
+                    long vector = t[node];
+                    if ((vector & bit) == 0) {
+                        out[i] = (int) t[(int) (t[node + 2] >>> 32) + Long.bitCount(t[node + 1] & mask) - 1];
+                    } else {
+                        trees[keep] = t;
+                        pending[keep] = i;
+                        at[keep++] = 3 * ((int) t[node + 2] + Long.bitCount(vector & mask) - 1);
+                    }
+                }
+                live = keep;
+            }
+        }
+
+        // IPv6 batch; addresses holds (hi, lo) pairs
+        public void lookup(long[] addresses, int[] out, int n) {
+            for (int i = 0; i < n; i++) out[i] = lookup(addresses[2 * i], addresses[2 * i + 1]);
+        }
+    }
+
+    private final RoutingTable rib;
+    private final int directBits;
+    private volatile Snapshot current;
+    private int[] direct;
+    private long[][] subtrees;
+    private boolean shared;
+
+    // Build scratch, reused across subtrees
+    private long[] buildNodes = new long[3 * 64];
+    private int[] buildLeaves = new int[64];
+    private int nodeCount;
+    private int leafCount;
+
+    // Compiles the table from the routes already in the RIB, which it then owns
+    public Poptrie(RoutingTable rib) {
+        this.rib = rib;
+        directBits = rib.width() == 32 ? DIRECT_BITS_V4 : DIRECT_BITS_V6;
+        direct = new int[1 << directBits];
+        subtrees = new long[1 << directBits][];
+        paint(rib.root(), 0, 0, NO_ROUTE);
+        commit();
+    }
+
+    public static Poptrie ipv4() {
+        return new Poptrie(new RoutingTable(32));
+    }
+
+    public static Poptrie ipv6() {
+        return new Poptrie(new RoutingTable(128));
+    }
+
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    public int lookup(int address) {
+        return current.lookup(address);
+    }
+
+    public int lookup(long hi, long lo) {
+        return current.lookup(hi, lo);
+    }
+
+    public int lookup(long[] address) {
+        return current.lookup(address[0], address[1]);
+    }
+
+    public void lookup(int[] addresses, int[] out, int n) {
+        current.lookup(addresses, out, n);
+    }
+
+    public void lookup(long[] addresses, int[] out, int n) {
+        current.lookup(addresses, out, n);
+    }
+
+    public RoutingTable routes() {
+        return rib;
+    }
+
+    public long bytes() {
+        Snapshot s = current;
+        long total = 4L * s.direct.length + 4L * s.subtrees.length;
+        for (long[] t : s.subtrees) if (t != null) total += 8L * t.length + 16;
+        return total;
+    }
+
+    public int nodes() {
+        int total = 0;
+        for (long[] t : current.subtrees) if (t != null) total += (int) (t[2] >>> 32) / 3;
+        return total;
+    }
+
+    /* ---------------------------------------------------------------- updates */
+
+    public void add(int prefix, int length, int nextHop) {
+        add(RoutingTable.v4(prefix), 0, length, nextHop);
+    }
+
+    public void remove(int prefix, int length) {
+        remove(RoutingTable.v4(prefix), 0, length);
+    }
+
+    public void add(long hi, long lo, int length, int nextHop) {
+        rib.add(hi, lo, length, nextHop);
+        repaint(hi, lo, length);
+    }
+
+    public void remove(long hi, long lo, int length) {
+        if (rib.remove(hi, lo, length) != NO_ROUTE) repaint(hi, lo, length);
+    }
+
+    // Makes every update since the last commit visible to readers at once
+    public void commit() {
+        current = new Snapshot(direct, subtrees);
+        shared = true;
+    }
+
+    private void repaint(long hi, long lo, int length) {
+        if (length <= directBits) {
+            int above = length == 0 ? NO_ROUTE : rib.inherited(hi, lo, length - 1);
+            int first = length == 0 ? 0 : (int) (hi >>> (64 - length)) << (directBits - length);
+            paint(rib.find(hi, lo, length), length, first, above);
+        } else {
+            setDirect((int) (hi >>> (64 - directBits)), rib.find(hi, lo, directBits), rib.inherited(hi, lo, directBits));
+        }
+    }
+
+    private void paint(int node, int depth, int first, int inherited) {
+        if (node >= 0 && rib.hop(node) != NO_ROUTE) inherited = rib.hop(node);
+        if (depth == directBits) {
+            setDirect(first, node, inherited);
+        } else if (node < 0 || rib.isLeaf(node)) {
+            for (int i = first; i < first + (1 << (directBits - depth)); i++) setDirect(i, -1, inherited);
+        } else {
+            int half = 1 << (directBits - 1 - depth);
+            paint(rib.child(node, 0), depth + 1, first, inherited);
+            paint(rib.child(node, 1), depth + 1, first + half, inherited);
+        }
+    }
+
+    // One direct entry for the trie node at the direct depth; inherited includes the node's own route
+    private void setDirect(int index, int node, int inherited) {
+        long[] t = node >= 0 && !rib.isLeaf(node) ? build(node, inherited) : null;
+        if (t == null && subtrees[index] == null && direct[index] == inherited) return;
+        if (shared) {
+            direct = direct.clone();
+            subtrees = subtrees.clone();
+            shared = false;
+        }
+        direct[index] = inherited;
+        subtrees[index] = t;
+    }
+
+    private long[] build(int node, int inherited) {
+        nodeCount = 1;
+        leafCount = 0;
+        buildNode(0, node, directBits, inherited);
+        int leavesAt = 3 * nodeCount;
+        long[] t = Arrays.copyOf(buildNodes, leavesAt + leafCount);
+        for (int i = 0; i < nodeCount; i++) t[3 * i + 2] += (long) leavesAt << 32;
+        for (int i = 0; i < leafCount; i++) t[leavesAt + i] = buildLeaves[i];
+        return t;
+    }
+
+    // Fills node slot index for the trie node at depth, then builds its child nodes
+    private void buildNode(int index, int node, int depth, int inherited) {
+        int width = rib.width();
+        int[] children = new int[64];
+        int[] values = new int[64];
+        long vector = 0;
+        for (int j = 0; j < 64; j++) {
+            int n = node;
+            int value = inherited;
+            int s = 0;
+            for (; s < 6 && depth + s < width; s++) {
+                n = rib.child(n, (j >>> (5 - s)) & 1);
+                if (n < 0) break;
+                if (rib.hop(n) != NO_ROUTE) value = rib.hop(n);
+            }
+            values[j] = value;
+            children[j] = -1;
+            if (n >= 0 && s == 6 && depth + 6 < width && !rib.isLeaf(n)) {
+                children[j] = n;
+                vector |= 1L << j;
+            }
+        }
+        long leafvec = 0;
+        int base0 = leafCount;
+        boolean any = false;
+        int previous = 0;
+        for (int j = 0; j < 64; j++) {
+            if ((vector & (1L << j)) != 0) continue;
+            if (!any || values[j] != previous) {
+                leafvec |= 1L << j;
+                if (leafCount == buildLeaves.length) buildLeaves = Arrays.copyOf(buildLeaves, leafCount * 2);
+                buildLeaves[leafCount++] = values[j];
+                previous = values[j];
+                any = true;
+            }
+        }
+        int base1 = nodeCount;
+        nodeCount += Long.bitCount(vector);
+        if (3 * nodeCount > buildNodes.length) buildNodes = Arrays.copyOf(buildNodes, Math.max(3 * nodeCount, buildNodes.length * 2));
+        buildNodes[3 * index] = vector;
+        buildNodes[3 * index + 1] = leafvec;
+        buildNodes[3 * index + 2] = (long) base0 << 32 | base1;
+        int k = 0;
+        for (int j = 0; j < 64; j++) {
+            if (children[j] >= 0) buildNode(base1 + k++, children[j], depth + 6, values[j]);
+        }
+    }
+
+    public static void main(String[] args) {
+        Poptrie v4 = ipv4();
+        v4.add(0xC0A80000, 16, 1);      // 192.168.0.0/16
+        v4.add(0xC0A80100, 24, 2);      // 192.168.1.0/24
+        v4.add(0xC0A80180, 25, 4);      // 192.168.1.128/25
+        v4.add(0x0A000000, 8, 3);       // 10.0.0.0/8
+        v4.add(0, 0, 0);                // default
+        v4.commit();
+        System.out.println(v4.lookup(0xC0A8012A) + " " + v4.lookup(0xC0A801C8) + " " + v4.lookup(0xC0A83201)
+                + " " + v4.lookup(0x0A141E28) + " " + v4.lookup(0x08080808));    // 2 4 1 3 0
+
+        Poptrie v6 = ipv6();
+        v6.add(0x2001_0db8_0000_0000L, 0, 32, 1);               // 2001:db8::/32
+        v6.add(0x2001_0db8_00ab_0000L, 0, 48, 2);               // 2001:db8:ab::/48
+        v6.add(0x2001_0db8_00ab_0000L, 0x1L << 63, 65, 5);      // 2001:db8:ab::8000:0:0:0/65
+        v6.add(0x2001_0db8_00ab_0000L, 0x1234, 128, 6);         // one host
+        v6.commit();
+        System.out.println(v6.lookup(0x2001_0db8_00ab_0000L, 0x1234) + " "
+                + v6.lookup(0x2001_0db8_00ab_0000L, 0x1235) + " "
+                + v6.lookup(new long[]{0x2001_0db8_00ab_0000L, -1L}) + " "
+                + v6.lookup(0x2001_0db8_1000_0000L, 7) + " " + v6.lookup(0x2002L << 48, 0));  // 6 2 5 1 -1
+        FibBenchmark.main(new String[]{"200000"});
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Durable Raft log: append-only segment files with a CRC per record and group commit
+ * Entries are written to the active segment through a FileChannel. Segments are
+ * preallocated to a fixed size, and a new one is started when a record does not fit.
+ * A record is [payload length][CRC32C][term][index][payload]. The CRC covers everything
+ * after itself. On open, each segment is scanned up to the first short, corrupt or
+ * out-of-sequence record, or one whose term is lower than the record before it. That
+ * marks the end of the log (the torn tail of a crash, or the zero-filled preallocated
+ * space). Truncation cuts the file at the new end and zero-fills it back to size, so
+ * records from a removed suffix cannot reappear after later appends overwrite only part
+ * of them.
+ * Writing and syncing are decoupled. Appends only write. A sync thread calls force() and
+ * reports the highest index it covered, and every append issued during a force is covered
+ * by the next one. So a burst of batches costs one fsync (group commit).
+ * Truncation bumps an epoch. A sync that started before a truncation reports the old epoch,
+ * and the caller ignores it.
+ * The current term and vote are kept in a separate small file, replaced atomically.
+ * Once a state machine snapshot covers a prefix of the log, compactUpTo() deletes the
+ * whole segments inside that prefix, and the snapshot's last index and term stand in for
+ * the missing entries. reset() drops the whole log for a snapshot installed from a leader.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+public class RaftLog implements Closeable {
+
+    private static final int HEADER = 24;
+
+    public static final class Entry {
+        public final long index;
+        public final long term;
+        public final byte[] data;
+
+        public Entry(long index, long term, byte[] data) {
+            this.index = index;
+            this.term = term;
+            this.data = data;
+        }
+    }
+
+    /* Called from the sync thread with the highest durable index and the epoch it belongs to */
+    public interface SyncListener {
+        void synced(long index, long epoch);
+    }
+
+    private static final class Segment {
+        final Path path;
+        final FileChannel channel;
+        final long baseIndex;
+        int count;
+        long[] terms = new long[1024];
+        long[] offsets = new long[1024];
+        long writePosition;
+
+        Segment(Path path, FileChannel channel, long baseIndex) {
+            this.path = path;
+            this.channel = channel;
+            this.baseIndex = baseIndex;
+        }
+
+        void add(long term, long offset) {
+            if (count == terms.length) {
+                terms = Arrays.copyOf(terms, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            terms[count] = term;
+            offsets[count] = offset;
+            count++;
+        }
+
+        long lastIndex() {
+            return baseIndex + count - 1;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private volatile Segment active;
+    private long firstIndex = 1;
+    private volatile long lastIndex;
+    private long snapshotIndex;
+    private long snapshotTerm;
+    private volatile long epoch;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32C crc = new CRC32C();
+
+    // Recent entries, so replication and apply rarely go to disk
+    private final Entry[] cache = new Entry[1 << 16];
+
+    private final Thread syncThread;
+    private final Object syncLock = new Object();
+    private long syncRequested;
+    private long syncDone;
+    private boolean closed;
+    private volatile SyncListener listener;
+    private volatile long syncs;
+
+    public RaftLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path p : dir) files.add(p);
+        }
+        Collections.sort(files);
+        boolean truncated = false;
+        long lastTerm = 0;
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            long base = Long.parseLong(name.substring(8, name.length() - 4));
+            // After a torn segment, later segments no longer continue the log
+            if (truncated || !segments.isEmpty() && base != lastIndex + 1) {
+                Files.delete(p);
+                truncated = true;
+                continue;
+            }
+            if (segments.isEmpty()) {
+                firstIndex = base;
+                lastIndex = base - 1;
+            }
+            Segment s = new Segment(p, FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE), base);
+            lastTerm = recover(s, lastTerm);
+            segments.add(s);
+            lastIndex = s.lastIndex();
+        }
+        if (segments.isEmpty()) {
+            segments.add(createSegment(1));
+            firstIndex = 1;
+            lastIndex = 0;
+        }
+        active = segments.get(segments.size() - 1);
+        syncThread = new Thread(this::syncLoop, "raft-log-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    public RaftLog(Path directory) throws IOException {
+        this(directory, 64L << 20);
+    }
+
+    private Segment createSegment(long baseIndex) throws IOException {
+        Path path = directory.resolve(String.format("segment-%020d.log", baseIndex));
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(segmentBytes);
+        }
+        return new Segment(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE), baseIndex);
+    }
+
+    // Loads the records of a segment up to the first bad one; returns the last term seen
+    private long recover(Segment s, long lastTerm) throws IOException {
+        long size = s.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long position = 0;
+        long expected = s.baseIndex;
+        while (position + HEADER <= size) {
+            header.clear();
+            readFully(s.channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            long term = header.getLong();
+            long index = header.getLong();
+            if (length < 0 || position + HEADER + length > size || index != expected || term < lastTerm) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(s.channel, payload, position + HEADER);
+            crc.reset();
+            crc.update(header.array(), 8, 16);
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+            s.add(term, position);
+            position += HEADER + length;
+            expected++;
+            lastTerm = term;
+        }
+        s.writePosition = position;
+        // Anything after the last good record is garbage from here on
+        if (position + HEADER <= size) discardFrom(s, position);
+        return lastTerm;
+    }
+
+    // Cuts the segment at position and zero-fills it back to its preallocated size
+    private void discardFrom(Segment s, long position) throws IOException {
+        s.channel.truncate(position);
+        if (position < segmentBytes) writeFully(s.channel, ByteBuffer.allocate(1), segmentBytes - 1);
+        s.channel.force(true);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new EOFException();
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    /* ---------------------------------------------------------------- access */
+
+    public long firstIndex() {
+        return firstIndex;
+    }
+
+    public long lastIndex() {
+        return lastIndex;
+    }
+
+    public long epoch() {
+        return epoch;
+    }
+
+    public long snapshotIndex() {
+        return snapshotIndex;
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    private Segment segmentFor(long index) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).baseIndex <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    // Term of the entry at index; 0 for index 0, the snapshot's term for its last index
+    public long term(long index) {
+        if (index == 0) return 0;
+        if (index == snapshotIndex && index < firstIndex) return snapshotTerm;
+        if (index < firstIndex || index > lastIndex) throw new IndexOutOfBoundsException("index " + index);
+        Segment s = segmentFor(index);
+        return s.terms[(int) (index - s.baseIndex)];
+    }
+
+    public Entry get(long index) throws IOException {
+        Entry cached = cache[(int) index & (cache.length - 1)];
+        if (cached != null && cached.index == index) return cached;
+        if (index < firstIndex || index > lastIndex) throw new IndexOutOfBoundsException("index " + index);
+        Segment s = segmentFor(index);
+        long position = s.offsets[(int) (index - s.baseIndex)];
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(s.channel, header, position);
+        header.flip();
+        int length = header.getInt();
+        header.getInt();
+        long term = header.getLong();
+        byte[] data = new byte[length];
+        readFully(s.channel, ByteBuffer.wrap(data), position + HEADER);
+        return new Entry(index, term, data);
+    }
+
+    // Entries [from, to] inclusive, at most maxBytes of payload (but at least one entry)
+    public List<Entry> slice(long from, long to, int maxBytes) throws IOException {
+        List<Entry> out = new ArrayList<>();
+        long bytes = 0;
+        for (long i = from; i <= to && (out.isEmpty() || bytes < maxBytes); i++) {
+            Entry e = get(i);
+            out.add(e);
+            bytes += e.data.length + HEADER;
+        }
+        return out;
+    }
+
+    /* ---------------------------------------------------------------- writes */
+
+    // Writes entries that continue the log; they are durable once a sync covers them
+    public void append(List<Entry> entries) throws IOException {
+        int i = 0;
+        while (i < entries.size()) {
+            Segment s = active;
+            long position = s.writePosition;
+            int start = i;
+            writeBuffer.clear();
+            while (i < entries.size()) {
+                Entry e = entries.get(i);
+                if (e.index != lastIndex + 1 + (i - start)) {
+                    throw new IllegalArgumentException("entry " + e.index + " does not follow " + (lastIndex + i - start));
+                }
+                int size = HEADER + e.data.length;
+                // A full segment is rolled; an empty one takes an oversized record anyway
+                if (position + size > segmentBytes && s.count > 0) break;
+                if (writeBuffer.remaining() < size) {
+                    if (i > start) break;
+                    writeBuffer = ByteBuffer.allocateDirect(Math.max(size, writeBuffer.capacity() * 2));
+                }
+                writeRecord(e);
+                s.add(e.term, position);
+                position += size;
+                i++;
+            }
+            if (i > start) {
+                writeBuffer.flip();
+                writeFully(s.channel, writeBuffer, s.writePosition);
+                synchronized (syncLock) {
+                    s.writePosition = position;
+                    lastIndex += i - start;
+                }
+                for (int k = start; k < i; k++) {
+                    Entry e = entries.get(k);
+                    cache[(int) e.index & (cache.length - 1)] = e;
+                }
+            }
+            if (i < entries.size() && position + HEADER + entries.get(i).data.length > segmentBytes && s.count > 0) {
+                roll();
+            }
+        }
+    }
+
+    private void writeRecord(Entry e) {
+        int start = writeBuffer.position();
+        writeBuffer.putInt(e.data.length);
+        writeBuffer.putInt(0);
+        writeBuffer.putLong(e.term);
+        writeBuffer.putLong(e.index);
+        writeBuffer.put(e.data);
+        ByteBuffer view = writeBuffer.duplicate();
+        view.position(start + 8).limit(writeBuffer.position());
+        crc.reset();
+        crc.update(view);
+        writeBuffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    // Starts a new segment; the old one is forced first so a sync only ever needs the active one
+    private void roll() throws IOException {
+        active.channel.force(false);
+        Segment next = createSegment(lastIndex + 1);
+        synchronized (syncLock) {
+            segments.add(next);
+            active = next;
+        }
+    }
+
+    // Removes every entry after index (a follower dropping a conflicting suffix)
+    public void truncateAfter(long index) throws IOException {
+        if (index >= lastIndex) return;
+        if (index < firstIndex - 1) throw new IllegalArgumentException("index " + index + " is compacted");
+        synchronized (syncLock) {
+            epoch++;
+            syncDone = Math.min(syncDone, index);
+            while (segments.size() > 1 && segments.get(segments.size() - 1).baseIndex > index) {
+                Segment s = segments.remove(segments.size() - 1);
+                s.channel.close();
+                Files.delete(s.path);
+            }
+            Segment s = segments.get(segments.size() - 1);
+            s.count = (int) (index - s.baseIndex + 1);
+            s.writePosition = s.count == 0 ? 0 : s.offsets[s.count - 1] + recordSize(s, s.count - 1);
+            discardFrom(s, s.writePosition);
+            active = s;
+            lastIndex = index;
+        }
+        Arrays.fill(cache, null);
+    }
+
+    // Records that a snapshot covers everything up to index, which had the given term
+    public void setSnapshot(long index, long term) {
+        if (index < firstIndex - 1 || index > lastIndex) throw new IllegalArgumentException("index " + index);
+        snapshotIndex = index;
+        snapshotTerm = term;
+    }
+
+    // Deletes the segments that hold only entries up to index; the active segment always stays
+    public void compactUpTo(long index) throws IOException {
+        if (index > snapshotIndex) throw new IllegalArgumentException("index " + index + " is not in a snapshot");
+        synchronized (syncLock) {
+            while (segments.size() > 1 && segments.get(1).baseIndex <= index + 1) {
+                Segment s = segments.remove(0);
+                s.channel.close();
+                Files.delete(s.path);
+            }
+            firstIndex = segments.get(0).baseIndex;
+        }
+    }
+
+    // Replaces the whole log with an empty one that continues after a snapshot
+    public void reset(long index, long term) throws IOException {
+        synchronized (syncLock) {
+            epoch++;
+            for (Segment s : segments) {
+                s.channel.close();
+                Files.delete(s.path);
+            }
+            segments.clear();
+            Segment s = createSegment(index + 1);
+            segments.add(s);
+            active = s;
+            firstIndex = index + 1;
+            lastIndex = index;
+            syncDone = index;
+            snapshotIndex = index;
+            snapshotTerm = term;
+        }
+        Arrays.fill(cache, null);
+    }
+
+    private long recordSize(Segment s, int i) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        readFully(s.channel, b, s.offsets[i]);
+        return HEADER + b.getInt(0);
+    }
+
+    /* ---------------------------------------------------------------- group commit */
+
+    public void setSyncListener(SyncListener listener) {
+        this.listener = listener;
+    }
+
+    // Asks the sync thread to make everything up to index durable; returns immediately
+    public void requestSync(long index) {
+        synchronized (syncLock) {
+            if (index > syncRequested) {
+                syncRequested = index;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    // Number of fsyncs issued by the sync thread
+    public long syncs() {
+        return syncs;
+    }
+
+    // Synchronous variant for callers that must not proceed before the data is on disk
+    public void sync() throws IOException {
+        active.channel.force(false);
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long target;
+            long syncEpoch;
+            Segment segment;
+            synchronized (syncLock) {
+                while (!closed && syncRequested <= syncDone) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                target = lastIndex;
+                syncEpoch = epoch;
+                segment = active;
+            }
+            try {
+                segment.channel.force(false);
+            } catch (IOException e) {
+                // A reset closed the segment under us; anything else ends the sync thread
+                synchronized (syncLock) {
+                    if (closed || epoch == syncEpoch) return;
+                }
+                continue;
+            }
+            syncs++;
+            synchronized (syncLock) {
+                if (epoch == syncEpoch) syncDone = Math.max(syncDone, target);
+            }
+            SyncListener l = listener;
+            if (l != null) l.synced(target, syncEpoch);
+        }
+    }
+
+    /* ---------------------------------------------------------------- term and vote */
+
+    public void saveState(long term, int votedFor) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(16);
+        b.putLong(term).putInt(votedFor);
+        crc.reset();
+        crc.update(b.array(), 0, 12);
+        b.putInt((int) crc.getValue());
+        b.flip();
+        Path tmp = directory.resolve("state.tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, b, 0);
+            ch.force(true);
+        }
+        Files.move(tmp, directory.resolve("state"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // {term, votedFor}; {0, -1} for a new log
+    public long[] loadState() throws IOException {
+        Path p = directory.resolve("state");
+        if (!Files.exists(p)) return new long[]{0, -1};
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(p));
+        long term = b.getLong();
+        int vote = b.getInt();
+        crc.reset();
+        crc.update(b.array(), 0, 12);
+        if (b.getInt() != (int) crc.getValue()) throw new IOException("corrupt state file " + p);
+        return new long[]{term, vote};
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            closed = true;
+            syncLock.notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment s : segments) {
+            s.channel.force(false);
+            s.channel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("raft-log");
+        try (RaftLog log = new RaftLog(dir, 1 << 20)) {
+            List<Entry> batch = new ArrayList<>();
+            for (int i = 1; i <= 50_000; i++) {
+                batch.add(new Entry(i, 1 + i / 20_000, ("command-" + i).getBytes()));
+                if (batch.size() == 1000) {
+                    log.append(batch);
+                    batch.clear();
+                }
+            }
+            log.sync();
+            log.truncateAfter(45_000);
+            log.sync();
+            System.out.println("wrote " + log.lastIndex() + " entries in " + log.segments.size() + " segments");
+        }
+        try (RaftLog log = new RaftLog(dir, 1 << 20)) {
+            System.out.println("recovered up to " + log.lastIndex() + ", term " + log.term(log.lastIndex())
+                    + ", entry 12345 = " + new String(log.get(12345).data));
+        }
+
+        // A follower drops a conflicting suffix and takes a shorter one from a new leader;
+        // the removed entries must not come back on reopen
+        Path conflict = Files.createTempDirectory("raft-log");
+        try (RaftLog log = new RaftLog(conflict, 1 << 20)) {
+            List<Entry> old = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) old.add(new Entry(i, 1, ("old-" + i).getBytes()));
+            log.append(old);
+            log.truncateAfter(5);
+            log.append(List.of(new Entry(6, 2, "new-6".getBytes())));
+            log.sync();
+        }
+        try (RaftLog log = new RaftLog(conflict, 1 << 20)) {
+            if (log.lastIndex() != 6 || log.term(6) != 2) {
+                throw new IllegalStateException("truncated entries reappeared: lastIndex " + log.lastIndex());
+            }
+            System.out.println("after truncate and reappend: lastIndex " + log.lastIndex() + ", term " + log.term(6));
+        }
+    }
+}
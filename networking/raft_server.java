@@ -0,0 +1,1264 @@
+/*
+ * Raft server with group commit, pipelined replication, snapshots and log-free reads
+ * Each server runs one event loop thread that owns all Raft state. The loop takes inbound
+ * messages, fsync completions and client proposals from a queue, so the state itself
+ * needs no locks.
+ * Group commit: the leader drains every queued proposal into one batch, writes the batch
+ * to the RaftLog and asks the log's sync thread for one fsync. Batches that queue up
+ * while an fsync runs share the next one. The leader counts its own log toward the
+ * majority only up to the index that is durable.
+ * Pipelining: for each follower the leader sends batches from nextIndex onwards without
+ * waiting for replies. nextIndex advances optimistically. At most maxInflight requests
+ * are outstanding per follower, and matchIndex moves as replies come back. A rejection
+ * rewinds nextIndex to the follower's hint and drops the in-flight window.
+ * A follower acknowledges an append only once its own fsync covers it.
+ * Elections follow the Raft paper, with a pre-vote round first. The term and vote are
+ * persisted before a vote is granted, and a new leader commits a no-op entry of its own term.
+ * Snapshots: every snapshotThreshold applied entries a SnapshotStateMachine hands out a
+ * copy-on-write view. A background thread writes it to a file while the loop keeps
+ * applying. Then the log drops the whole segments below the snapshot, keeping the last
+ * snapshotRetain entries for followers that are only a little behind. A follower that
+ * needs a compacted entry gets the snapshot file instead, one chunk at a time.
+ * Reads never touch the log:
+ *   LINEARIZABLE (ReadIndex): the leader notes its commit index. It then needs a majority
+ *   to acknowledge a heartbeat round started after the read arrived, and serves the read
+ *   once that index is applied. A follower asks the leader for the index and waits for its
+ *   own state machine to apply it.
+ *   LEASE: a confirmed round that started at time t makes the leader safe until
+ *   t + electionTimeout * (1 - clockDrift). Followers refuse to vote while they hear from a
+ *   leader, and for one election timeout after they start, since a restarted follower may
+ *   have acknowledged the leader just before going down. So until then the leader serves
+ *   reads with no round trip at all.
+ *   STALE: any follower that heard from the leader within staleReadBound serves reads from
+ *   its own state once that state has caught up to the commit index it last heard of.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+public class RaftServer implements Closeable {
+
+    /* Receives committed commands in log order; the no-op a new leader appends has no data */
+    public interface StateMachine {
+        void apply(long index, byte[] command);
+    }
+
+    /* A state machine whose state can be saved and replaced, so the log can be compacted */
+    public interface SnapshotStateMachine extends StateMachine {
+        // Called on the server thread between two applies; must be cheap and return a view
+        // that later applies do not change
+        Snapshot snapshot();
+
+        // Replaces the whole state with what a Snapshot wrote
+        void restore(InputStream in) throws IOException;
+    }
+
+    /* A frozen view of the state, written out on a background thread */
+    public interface Snapshot {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    public enum ReadMode { LINEARIZABLE, LEASE, STALE }
+
+    private static final Object WAKE = new Object();
+
+    private static final class Synced {
+        final long index;
+        final long epoch;
+
+        Synced(long index, long epoch) {
+            this.index = index;
+            this.epoch = epoch;
+        }
+    }
+
+    private static final class Proposal {
+        final byte[] command;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Proposal(byte[] command) {
+            this.command = command;
+        }
+    }
+
+    private static final class ReadRequest {
+        final ReadMode mode;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        ReadRequest(ReadMode mode) {
+            this.mode = mode;
+        }
+    }
+
+    /* A read on its way to being served; future is null when the leader answers a follower */
+    private static final class PendingRead {
+        final CompletableFuture<Long> future;
+        final int from;
+        final long requestId;
+        long seq;       // heartbeat round that must be confirmed
+        long index;     // read index; the state machine must reach it
+        long deadline;  // for reads forwarded to the leader
+
+        PendingRead(CompletableFuture<Long> future, int from, long requestId) {
+            this.future = future;
+            this.from = from;
+            this.requestId = requestId;
+        }
+    }
+
+    private static final class SnapshotWritten {
+        final long index;
+        final long term;
+        final Path path;  // null if writing failed
+
+        SnapshotWritten(long index, long term, Path path) {
+            this.index = index;
+            this.term = term;
+            this.path = path;
+        }
+    }
+
+    private final int id;
+    private final int[] peers;
+    private final RaftTransport transport;
+    private final RaftLog log;
+    private final StateMachine stateMachine;
+    private final LinkedBlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Proposal> proposals = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+    private final Thread loop;
+    private final ExecutorService snapshotWriter;
+    private volatile boolean running = true;
+
+    private long electionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(300);
+    private long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private int maxBatchEntries = 4096;
+    private int maxBatchBytes = 1 << 20;
+    private int maxInflight = 8;
+    private long snapshotThreshold = 1_000_000;
+    private long snapshotRetain = 100_000;
+    private int snapshotChunkBytes = 1 << 20;
+    private double clockDrift = 0.1;
+    private long staleBoundNanos = TimeUnit.MILLISECONDS.toNanos(200);
+
+    // Persistent state (mirrored in the log's state file)
+    private long currentTerm;
+    private int votedFor;
+
+    private volatile Role role = Role.FOLLOWER;
+    private volatile int leaderId = -1;
+    private volatile long commitIndex;
+    private volatile long lastApplied;
+    private long durableIndex;
+    private long electionDeadline;
+    private final Random random;
+    private final boolean[] votes;
+    private boolean preVoting;
+
+    // Latest durable snapshot
+    private long snapshotIndex;
+    private long snapshotTerm;
+    private Path snapshotPath;
+    private boolean snapshotting;
+
+    // Leader state, indexed like peers
+    private final long[] nextIndex;
+    private final long[] matchIndex;
+    private final int[] inflight;
+    private final long[] lastSent;
+    private final long[] lastReply;   // last reply that moved replication along
+    private final long[] sendingSnapshot;  // index of the snapshot being sent, 0 if none
+    private final long[] sendingTerm;
+    private final long[] snapshotOffset;
+    private final Map<Long, CompletableFuture<Long>> waiting = new HashMap<>();
+
+    // Heartbeat rounds, which confirm leadership for reads and extend the lease
+    private long roundSeq;
+    private long lastRound;
+    private boolean roundWanted;
+    private long confirmedSeq;
+    private long quorumContact;  // start of the latest round a majority acknowledged
+    private final long[] ackedSeq;
+    private final long[] roundStart = new long[256];
+    private volatile long leaseUntil;
+    private volatile boolean leaderReady;  // an entry of the current term has committed
+    private final ArrayDeque<PendingRead> unconfirmed = new ArrayDeque<>();
+    private final ArrayDeque<PendingRead> notReady = new ArrayDeque<>();
+    private final PriorityQueue<PendingRead> applyWaiters =
+            new PriorityQueue<>(Comparator.comparingLong((PendingRead r) -> r.index));
+
+    // What a follower knows about its leader, for stale reads and for refusing votes
+    private volatile long lastLeaderContact;
+    private long startedAt;  // when the event loop started; no votes for an election timeout after
+    private volatile long leaderCommitSeen;
+    private final LinkedHashMap<Long, PendingRead> forwarded = new LinkedHashMap<>();
+    private long readIds;
+
+    // Follower acknowledgements waiting for fsync: {leader, term, matchIndex, seq}
+    private final ArrayDeque<long[]> pendingAcks = new ArrayDeque<>();
+
+    // Snapshot being received from the leader
+    private FileChannel incoming;
+    private long incomingIndex;
+    private long incomingOffset;
+
+    public RaftServer(int id, int[] cluster, RaftTransport transport, RaftLog log, StateMachine stateMachine)
+            throws IOException {
+        this.id = id;
+        this.peers = Arrays.stream(cluster).filter(p -> p != id).toArray();
+        this.transport = transport;
+        this.log = log;
+        this.stateMachine = stateMachine;
+        long[] state = log.loadState();
+        currentTerm = state[0];
+        votedFor = (int) state[1];
+        if (stateMachine instanceof SnapshotStateMachine) loadSnapshot();
+        durableIndex = log.lastIndex();
+        random = new Random(id * 7919L + System.nanoTime());
+        votes = new boolean[peers.length];
+        nextIndex = new long[peers.length];
+        matchIndex = new long[peers.length];
+        inflight = new int[peers.length];
+        lastSent = new long[peers.length];
+        lastReply = new long[peers.length];
+        sendingSnapshot = new long[peers.length];
+        sendingTerm = new long[peers.length];
+        snapshotOffset = new long[peers.length];
+        ackedSeq = new long[peers.length];
+        snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "raft-snapshot-" + id);
+            t.setDaemon(true);
+            return t;
+        });
+        log.setSyncListener((index, epoch) -> inbox.add(new Synced(index, epoch)));
+        transport.register(id, inbox::add);
+        loop = new Thread(this::run, "raft-" + id);
+        loop.setDaemon(true);
+    }
+
+    public RaftServer setElectionTimeout(long millis) {
+        electionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    public RaftServer setHeartbeat(long millis) {
+        heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    public RaftServer setBatching(int maxEntries, int maxBytes, int maxInflight) {
+        this.maxBatchEntries = maxEntries;
+        this.maxBatchBytes = maxBytes;
+        this.maxInflight = maxInflight;
+        return this;
+    }
+
+    // Snapshot every threshold applied entries, keep retain entries behind it, send it in chunks
+    public RaftServer setSnapshots(long threshold, long retain, int chunkBytes) {
+        this.snapshotThreshold = threshold;
+        this.snapshotRetain = retain;
+        this.snapshotChunkBytes = chunkBytes;
+        return this;
+    }
+
+    // Largest relative clock rate error between servers that the lease must tolerate
+    public RaftServer setClockDrift(double drift) {
+        this.clockDrift = drift;
+        return this;
+    }
+
+    public RaftServer setStaleReadBound(long millis) {
+        staleBoundNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    public void start() {
+        loop.start();
+    }
+
+    /*
+     * Completes with the command's log index once it is committed and applied here. Fails
+     * at once on a follower, and on a leader that loses leadership first (the command may
+     * still commit).
+     */
+    public CompletableFuture<Long> propose(byte[] command) {
+        Proposal p = new Proposal(command);
+        proposals.add(p);
+        if (wakePending.compareAndSet(false, true)) inbox.add(WAKE);
+        return p.future;
+    }
+
+    /*
+     * Completes once this server's state machine may be read under the given mode, with the
+     * index it has applied. The caller then reads the state machine directly, so its reads
+     * must be safe alongside the server thread's applies. Lease reads on a leader and stale
+     * reads on a follower usually complete right here on the calling thread.
+     */
+    public CompletableFuture<Long> read(ReadMode mode) {
+        long applied = lastApplied;
+        if (mode != ReadMode.LINEARIZABLE) {
+            long now = System.nanoTime();
+            if (role == Role.LEADER) {
+                if (leaderReady && now < leaseUntil && applied >= commitIndex) {
+                    return CompletableFuture.completedFuture(applied);
+                }
+            } else if (mode == ReadMode.STALE && leaderId != -1 && now - lastLeaderContact <= staleBoundNanos
+                    && applied >= leaderCommitSeen) {
+                return CompletableFuture.completedFuture(applied);
+            }
+        }
+        ReadRequest r = new ReadRequest(mode);
+        inbox.add(r);
+        return r.future;
+    }
+
+    public boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    public Role role() {
+        return role;
+    }
+
+    public int leaderId() {
+        return leaderId;
+    }
+
+    public long commitIndex() {
+        return commitIndex;
+    }
+
+    public long lastApplied() {
+        return lastApplied;
+    }
+
+    public long snapshotIndex() {
+        return snapshotIndex;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    /* ---------------------------------------------------------------- event loop */
+
+    private void run() {
+        startedAt = System.nanoTime();
+        resetElectionDeadline();
+        while (running) {
+            try {
+                long wait = role == Role.LEADER ? heartbeatNanos / 2 : electionDeadline - System.nanoTime();
+                Object event = inbox.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                while (event != null) {
+                    handle(event);
+                    event = inbox.poll();
+                }
+                wakePending.set(false);
+                if (role == Role.LEADER) {
+                    acceptProposals();
+                } else {
+                    rejectProposals();
+                }
+                tick();
+                applyCommitted();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // A server whose log fails must not keep voting or acknowledging
+                running = false;
+                failWaiting(e);
+                failReads(e);
+            }
+        }
+    }
+
+    private void handle(Object event) throws IOException {
+        if (event instanceof RaftTransport.AppendRequest) {
+            onAppend((RaftTransport.AppendRequest) event);
+        } else if (event instanceof RaftTransport.AppendResponse) {
+            onAppendResponse((RaftTransport.AppendResponse) event);
+        } else if (event instanceof ReadRequest) {
+            onRead((ReadRequest) event);
+        } else if (event instanceof RaftTransport.ReadIndexRequest) {
+            onReadIndex((RaftTransport.ReadIndexRequest) event);
+        } else if (event instanceof RaftTransport.ReadIndexResponse) {
+            onReadIndexResponse((RaftTransport.ReadIndexResponse) event);
+        } else if (event instanceof RaftTransport.VoteRequest) {
+            onVote((RaftTransport.VoteRequest) event);
+        } else if (event instanceof RaftTransport.VoteResponse) {
+            onVoteResponse((RaftTransport.VoteResponse) event);
+        } else if (event instanceof RaftTransport.SnapshotChunk) {
+            onSnapshotChunk((RaftTransport.SnapshotChunk) event);
+        } else if (event instanceof RaftTransport.SnapshotResponse) {
+            onSnapshotResponse((RaftTransport.SnapshotResponse) event);
+        } else if (event instanceof Synced) {
+            onSynced((Synced) event);
+        } else if (event instanceof SnapshotWritten) {
+            onSnapshotWritten((SnapshotWritten) event);
+        }
+    }
+
+    private void tick() throws IOException {
+        long now = System.nanoTime();
+        Iterator<PendingRead> it = forwarded.values().iterator();
+        while (it.hasNext()) {
+            PendingRead r = it.next();
+            if (r.deadline > now) break;
+            it.remove();
+            r.future.completeExceptionally(new TimeoutException("no read index from leader " + r.from));
+        }
+        if (role == Role.LEADER) {
+            // A leader cut off from the majority steps down instead of holding reads forever. The
+            // margin keeps a loaded follower that acknowledges late from costing an election.
+            if (now - quorumContact > 2 * electionTimeoutNanos) {
+                becomeFollower(currentTerm);
+                return;
+            }
+            if (roundWanted || now - lastRound >= heartbeatNanos) startRound(now);
+            for (int p = 0; p < peers.length; p++) {
+                // Nothing heard for a whole election timeout: assume the window was lost
+                if (inflight[p] > 0 && now - lastReply[p] > electionTimeoutNanos) {
+                    inflight[p] = 0;
+                    nextIndex[p] = matchIndex[p] + 1;
+                    lastReply[p] = now;
+                }
+                replicate(p, now);
+            }
+        } else if (now >= electionDeadline) {
+            startPreVote();
+        }
+    }
+
+    private void send(RaftTransport.Message message) {
+        transport.send(message);
+    }
+
+    private void resetElectionDeadline() {
+        electionDeadline = System.nanoTime() + electionTimeoutNanos
+                + (long) (random.nextDouble() * electionTimeoutNanos);
+    }
+
+    private int majority() {
+        return (peers.length + 1) / 2 + 1;
+    }
+
+    private int peerIndex(int node) {
+        for (int p = 0; p < peers.length; p++) if (peers[p] == node) return p;
+        return -1;
+    }
+
+    // Whether the term of the entry at index is known: in the log, the snapshot's last entry, or 0
+    private boolean termKnown(long index) {
+        return index == 0 || index == log.snapshotIndex() || index >= log.firstIndex() && index <= log.lastIndex();
+    }
+
+    private void heardFromLeader(int leader, long leaderCommit) {
+        leaderId = leader;
+        lastLeaderContact = System.nanoTime();
+        leaderCommitSeen = Math.max(leaderCommitSeen, leaderCommit);
+        preVoting = false;
+        resetElectionDeadline();
+    }
+
+    /* ---------------------------------------------------------------- elections */
+
+    // A pre-vote asks whether peers would vote, so a server cut off from the cluster cannot
+    // keep raising its term and depose a healthy leader when it comes back
+    private void startPreVote() throws IOException {
+        leaderId = -1;
+        resetElectionDeadline();
+        if (majority() == 1) {
+            startElection();
+            return;
+        }
+        preVoting = true;
+        Arrays.fill(votes, false);
+        long last = log.lastIndex();
+        for (int peer : peers) {
+            send(new RaftTransport.VoteRequest(id, peer, currentTerm + 1, last, log.term(last), true));
+        }
+    }
+
+    private void startElection() throws IOException {
+        role = Role.CANDIDATE;
+        preVoting = false;
+        leaderId = -1;
+        currentTerm++;
+        votedFor = id;
+        log.saveState(currentTerm, votedFor);
+        Arrays.fill(votes, false);
+        resetElectionDeadline();
+        if (majority() == 1) {
+            becomeLeader();
+            return;
+        }
+        long last = log.lastIndex();
+        for (int peer : peers) {
+            send(new RaftTransport.VoteRequest(id, peer, currentTerm, last, log.term(last)));
+        }
+    }
+
+    private void onVote(RaftTransport.VoteRequest m) throws IOException {
+        long last = log.lastIndex();
+        long lastTerm = log.term(last);
+        boolean upToDate = m.lastTerm > lastTerm || m.lastTerm == lastTerm && m.lastIndex >= last;
+        // Nobody votes while a leader may be alive; the leader's lease depends on it. Having just
+        // started counts, as the lease may rest on an acknowledgement sent before a restart
+        long now = System.nanoTime();
+        boolean leaderAlive = role == Role.LEADER
+                || leaderId != -1 && now - lastLeaderContact < electionTimeoutNanos
+                || now - startedAt < electionTimeoutNanos;
+        if (m.preVote) {
+            boolean grant = m.term > currentTerm && upToDate && !leaderAlive;
+            send(new RaftTransport.VoteResponse(id, m.from, grant ? m.term : currentTerm, grant, true));
+            return;
+        }
+        if (m.term > currentTerm) {
+            if (leaderAlive) {
+                send(new RaftTransport.VoteResponse(id, m.from, currentTerm, false));
+                return;
+            }
+            becomeFollower(m.term);
+        }
+        boolean grant = m.term == currentTerm && (votedFor == -1 || votedFor == m.from) && upToDate;
+        if (grant) {
+            votedFor = m.from;
+            log.saveState(currentTerm, votedFor);
+            resetElectionDeadline();
+        }
+        send(new RaftTransport.VoteResponse(id, m.from, currentTerm, grant));
+    }
+
+    private void onVoteResponse(RaftTransport.VoteResponse m) throws IOException {
+        int p = peerIndex(m.from);
+        if (m.preVote) {
+            if (!m.granted) {
+                if (m.term > currentTerm) becomeFollower(m.term);
+            } else if (preVoting && m.term == currentTerm + 1 && p >= 0) {
+                votes[p] = true;
+                int count = 1;
+                for (boolean v : votes) if (v) count++;
+                if (count >= majority()) startElection();
+            }
+            return;
+        }
+        if (m.term > currentTerm) {
+            becomeFollower(m.term);
+            return;
+        }
+        if (role != Role.CANDIDATE || m.term != currentTerm || !m.granted || p < 0) return;
+        votes[p] = true;
+        int count = 1;
+        for (boolean v : votes) if (v) count++;
+        if (count >= majority()) becomeLeader();
+    }
+
+    private void becomeLeader() throws IOException {
+        role = Role.LEADER;
+        leaderId = id;
+        lastLeaderContact = System.nanoTime();
+        leaderReady = false;
+        leaseUntil = 0;
+        confirmedSeq = roundSeq;
+        quorumContact = System.nanoTime();
+        Arrays.fill(ackedSeq, 0);
+        roundWanted = true;
+        long last = log.lastIndex();
+        for (int p = 0; p < peers.length; p++) {
+            nextIndex[p] = last + 1;
+            matchIndex[p] = 0;
+            inflight[p] = 0;
+            lastSent[p] = 0;
+            lastReply[p] = System.nanoTime();
+            sendingSnapshot[p] = 0;
+        }
+        // A no-op of the new term lets earlier entries commit
+        log.append(Collections.singletonList(new RaftLog.Entry(last + 1, currentTerm, new byte[0])));
+        log.requestSync(last + 1);
+    }
+
+    private void becomeFollower(long term) throws IOException {
+        if (term > currentTerm) {
+            currentTerm = term;
+            votedFor = -1;
+            log.saveState(currentTerm, votedFor);
+        }
+        if (role == Role.LEADER) {
+            leaseUntil = 0;
+            leaderReady = false;
+            leaderId = -1;
+            IllegalStateException lost = new IllegalStateException("leadership lost");
+            failWaiting(lost);
+            failReads(lost);
+        }
+        role = Role.FOLLOWER;
+        preVoting = false;
+        resetElectionDeadline();
+    }
+
+    private void failWaiting(Exception cause) {
+        for (CompletableFuture<Long> f : waiting.values()) f.completeExceptionally(cause);
+        waiting.clear();
+    }
+
+    /* ---------------------------------------------------------------- leader */
+
+    private void acceptProposals() throws IOException {
+        List<RaftLog.Entry> batch = new ArrayList<>();
+        long index = log.lastIndex();
+        Proposal p;
+        while (batch.size() < maxBatchEntries && (p = proposals.poll()) != null) {
+            index++;
+            batch.add(new RaftLog.Entry(index, currentTerm, p.command));
+            waiting.put(index, p.future);
+        }
+        if (batch.isEmpty()) return;
+        log.append(batch);
+        log.requestSync(index);
+        if (!proposals.isEmpty() && wakePending.compareAndSet(false, true)) inbox.add(WAKE);
+        long now = System.nanoTime();
+        for (int peer = 0; peer < peers.length; peer++) replicate(peer, now);
+    }
+
+    private void rejectProposals() {
+        Proposal p;
+        while ((p = proposals.poll()) != null) {
+            p.future.completeExceptionally(new IllegalStateException("not the leader; leader is " + leaderId));
+        }
+    }
+
+    // Sends batches to one follower until its in-flight window is full
+    private void replicate(int p, long now) throws IOException {
+        long next = nextIndex[p];
+        if (sendingSnapshot[p] == 0 && (next < log.firstIndex() || !termKnown(next - 1))) {
+            if (snapshotPath == null) return;
+            sendingSnapshot[p] = snapshotIndex;
+            sendingTerm[p] = snapshotTerm;
+            snapshotOffset[p] = 0;
+            inflight[p] = 0;
+        }
+        if (sendingSnapshot[p] != 0) {
+            if (inflight[p] == 0) sendSnapshotChunk(p, now);
+            return;
+        }
+        long last = log.lastIndex();
+        while (inflight[p] < maxInflight && nextIndex[p] <= last) {
+            long from = nextIndex[p];
+            List<RaftLog.Entry> entries = log.slice(from, Math.min(last, from + maxBatchEntries - 1), maxBatchBytes);
+            send(new RaftTransport.AppendRequest(id, peers[p], currentTerm, from - 1, log.term(from - 1),
+                    commitIndex, entries, roundSeq));
+            nextIndex[p] = from + entries.size();
+            inflight[p]++;
+            lastSent[p] = now;
+        }
+    }
+
+    // A new heartbeat round; every append sent from now on carries its seq
+    private void startRound(long now) {
+        roundSeq++;
+        roundStart[(int) roundSeq & (roundStart.length - 1)] = now;
+        lastRound = now;
+        roundWanted = false;
+        for (int p = 0; p < peers.length; p++) {
+            long prev = termKnown(matchIndex[p]) ? matchIndex[p] : 0;
+            send(new RaftTransport.AppendRequest(id, peers[p], currentTerm, prev, log.term(prev), commitIndex,
+                    Collections.emptyList(), roundSeq));
+            lastSent[p] = now;
+        }
+        advanceReads();
+    }
+
+    private void onAppendResponse(RaftTransport.AppendResponse m) throws IOException {
+        if (m.term > currentTerm) {
+            becomeFollower(m.term);
+            return;
+        }
+        int p = peerIndex(m.from);
+        if (role != Role.LEADER || m.term != currentTerm || p < 0) return;
+        long now = System.nanoTime();
+        if (m.seq > ackedSeq[p]) {
+            ackedSeq[p] = m.seq;
+            advanceReads();
+        }
+        if (sendingSnapshot[p] != 0) return;
+        // Heartbeat acks say nothing about the in-flight window, so they do not count as replies
+        if (!m.success || m.matchIndex > matchIndex[p]) lastReply[p] = now;
+        if (m.success) {
+            if (inflight[p] > 0 && m.matchIndex > matchIndex[p]) inflight[p]--;
+            if (m.matchIndex > matchIndex[p]) {
+                matchIndex[p] = m.matchIndex;
+                advanceCommit();
+            }
+            nextIndex[p] = Math.max(nextIndex[p], matchIndex[p] + 1);
+        } else {
+            nextIndex[p] = Math.max(matchIndex[p] + 1, Math.min(nextIndex[p], m.hint));
+            inflight[p] = 0;
+        }
+        replicate(p, now);
+    }
+
+    private void advanceCommit() {
+        long[] match = new long[peers.length + 1];
+        match[0] = durableIndex;
+        System.arraycopy(matchIndex, 0, match, 1, peers.length);
+        Arrays.sort(match);
+        long n = match[match.length - majority()];
+        // Only entries of the current term commit by counting replicas
+        if (n > commitIndex && log.term(n) == currentTerm) {
+            commitIndex = n;
+            if (!leaderReady) {
+                leaderReady = true;
+                while (!notReady.isEmpty()) confirm(notReady.poll());
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------- reads */
+
+    private void onRead(ReadRequest r) {
+        long now = System.nanoTime();
+        PendingRead read = new PendingRead(r.future, -1, 0);
+        if (role == Role.LEADER) {
+            if (!leaderReady) {
+                notReady.add(read);
+            } else if (r.mode != ReadMode.LINEARIZABLE && now < leaseUntil) {
+                read.index = commitIndex;
+                awaitApplied(read);
+            } else {
+                confirm(read);
+            }
+        } else if (r.mode == ReadMode.STALE) {
+            if (leaderId != -1 && now - lastLeaderContact <= staleBoundNanos) {
+                read.index = leaderCommitSeen;
+                awaitApplied(read);
+            } else {
+                r.future.completeExceptionally(new IllegalStateException("no leader within the staleness bound"));
+            }
+        } else if (leaderId == -1) {
+            r.future.completeExceptionally(new IllegalStateException("no leader"));
+        } else {
+            PendingRead f = new PendingRead(r.future, leaderId, ++readIds);
+            f.deadline = now + electionTimeoutNanos;
+            forwarded.put(f.requestId, f);
+            send(new RaftTransport.ReadIndexRequest(id, leaderId, currentTerm, f.requestId));
+        }
+    }
+
+    // The read index is the commit index now; it holds once a later round is confirmed
+    private void confirm(PendingRead r) {
+        r.index = commitIndex;
+        r.seq = roundSeq + 1;
+        unconfirmed.add(r);
+        roundWanted = true;
+    }
+
+    private void advanceReads() {
+        long[] acked = new long[peers.length + 1];
+        acked[0] = roundSeq;
+        System.arraycopy(ackedSeq, 0, acked, 1, peers.length);
+        Arrays.sort(acked);
+        long s = acked[acked.length - majority()];
+        if (s <= confirmedSeq) return;
+        confirmedSeq = s;
+        // Followers heard from us after the round started, and none votes for an election timeout
+        if (roundSeq - s < roundStart.length) {
+            quorumContact = roundStart[(int) s & (roundStart.length - 1)];
+            leaseUntil = quorumContact + (long) (electionTimeoutNanos * (1 - clockDrift));
+        }
+        while (!unconfirmed.isEmpty() && unconfirmed.peek().seq <= s) {
+            PendingRead r = unconfirmed.poll();
+            if (r.future == null) {
+                send(new RaftTransport.ReadIndexResponse(id, r.from, currentTerm, r.requestId, true, r.index));
+            } else {
+                awaitApplied(r);
+            }
+        }
+    }
+
+    private void awaitApplied(PendingRead r) {
+        if (lastApplied >= r.index) {
+            r.future.complete(lastApplied);
+        } else {
+            applyWaiters.add(r);
+        }
+    }
+
+    private void failReads(Exception cause) {
+        for (Deque<PendingRead> q : Arrays.asList(unconfirmed, notReady)) {
+            for (PendingRead r : q) {
+                if (r.future != null) {
+                    r.future.completeExceptionally(cause);
+                } else {
+                    send(new RaftTransport.ReadIndexResponse(id, r.from, currentTerm, r.requestId, false, 0));
+                }
+            }
+            q.clear();
+        }
+    }
+
+    private void onReadIndex(RaftTransport.ReadIndexRequest m) throws IOException {
+        if (m.term > currentTerm) becomeFollower(m.term);
+        if (role != Role.LEADER) {
+            send(new RaftTransport.ReadIndexResponse(id, m.from, currentTerm, m.requestId, false, 0));
+            return;
+        }
+        PendingRead r = new PendingRead(null, m.from, m.requestId);
+        if (leaderReady) {
+            confirm(r);
+        } else {
+            notReady.add(r);
+        }
+    }
+
+    private void onReadIndexResponse(RaftTransport.ReadIndexResponse m) {
+        PendingRead r = forwarded.remove(m.requestId);
+        if (r == null) return;
+        if (!m.ok) {
+            r.future.completeExceptionally(new IllegalStateException("server " + m.from + " is not the leader"));
+            return;
+        }
+        r.index = m.readIndex;
+        awaitApplied(r);
+    }
+
+    /* ---------------------------------------------------------------- follower */
+
+    private void onAppend(RaftTransport.AppendRequest m) throws IOException {
+        if (m.term < currentTerm) {
+            send(new RaftTransport.AppendResponse(id, m.from, currentTerm, false, 0, 0, m.seq));
+            return;
+        }
+        if (m.term > currentTerm || role != Role.FOLLOWER) becomeFollower(m.term);
+        heardFromLeader(m.from, m.leaderCommit);
+
+        long last = log.lastIndex();
+        if (m.prevIndex > last) {
+            send(new RaftTransport.AppendResponse(id, m.from, currentTerm, false, 0, last + 1, m.seq));
+            return;
+        }
+        // Entries up to commitIndex match the leader's, whether or not they are still in the log
+        if (m.prevIndex > commitIndex) {
+            long prevTerm = log.term(m.prevIndex);
+            if (prevTerm != m.prevTerm) {
+                // Skip back over the whole conflicting term in one round trip
+                long hint = m.prevIndex;
+                while (hint - 1 > commitIndex && log.term(hint - 1) == prevTerm) hint--;
+                send(new RaftTransport.AppendResponse(id, m.from, currentTerm, false, 0, hint, m.seq));
+                return;
+            }
+        }
+        int i = 0;
+        for (; i < m.entries.size(); i++) {
+            RaftLog.Entry e = m.entries.get(i);
+            if (e.index > log.lastIndex()) break;
+            if (e.index <= commitIndex) continue;
+            if (log.term(e.index) != e.term) {
+                log.truncateAfter(e.index - 1);
+                durableIndex = Math.min(durableIndex, e.index - 1);
+                break;
+            }
+        }
+        if (i < m.entries.size()) {
+            log.append(m.entries.subList(i, m.entries.size()));
+            log.requestSync(log.lastIndex());
+        }
+        long match = m.prevIndex + m.entries.size();
+        commitIndex = Math.max(commitIndex, Math.min(m.leaderCommit, match));
+        if (durableIndex >= match) {
+            send(new RaftTransport.AppendResponse(id, m.from, currentTerm, true, match, 0, m.seq));
+        } else {
+            pendingAcks.add(new long[]{m.from, m.term, match, m.seq});
+        }
+    }
+
+    private void onSynced(Synced s) {
+        if (s.epoch != log.epoch()) {
+            log.requestSync(log.lastIndex());
+            return;
+        }
+        durableIndex = Math.max(durableIndex, Math.min(s.index, log.lastIndex()));
+        if (role == Role.LEADER) {
+            advanceCommit();
+        }
+        while (!pendingAcks.isEmpty() && pendingAcks.peek()[2] <= durableIndex) {
+            long[] ack = pendingAcks.poll();
+            if (ack[1] == currentTerm) {
+                send(new RaftTransport.AppendResponse(id, (int) ack[0], currentTerm, true, ack[2], 0, ack[3]));
+            }
+        }
+    }
+
+    private void applyCommitted() throws IOException {
+        while (lastApplied < commitIndex) {
+            long index = lastApplied + 1;
+            stateMachine.apply(index, log.get(index).data);
+            lastApplied = index;
+            CompletableFuture<Long> f = waiting.remove(index);
+            if (f != null) f.complete(index);
+        }
+        while (!applyWaiters.isEmpty() && applyWaiters.peek().index <= lastApplied) {
+            applyWaiters.poll().future.complete(lastApplied);
+        }
+        if (!snapshotting && stateMachine instanceof SnapshotStateMachine
+                && lastApplied - snapshotIndex >= snapshotThreshold) {
+            takeSnapshot();
+        }
+    }
+
+    /* ---------------------------------------------------------------- snapshots */
+
+    private void takeSnapshot() {
+        Snapshot view = ((SnapshotStateMachine) stateMachine).snapshot();
+        long index = lastApplied;
+        long term = log.term(index);
+        Path file = SnapshotFile.path(log.directory(), index);
+        snapshotting = true;
+        snapshotWriter.execute(() -> {
+            Path written = null;
+            try {
+                SnapshotFile.write(file, index, term, view);
+                written = file;
+            } catch (IOException e) {
+                // Leave the log as it is; the next threshold crossing tries again
+            }
+            inbox.add(new SnapshotWritten(index, term, written));
+        });
+    }
+
+    private void onSnapshotWritten(SnapshotWritten w) throws IOException {
+        snapshotting = false;
+        if (w.path == null) return;
+        if (w.index <= snapshotIndex) {
+            Files.deleteIfExists(w.path);
+            return;
+        }
+        log.setSnapshot(w.index, w.term);
+        if (w.index - snapshotRetain > 0) log.compactUpTo(w.index - snapshotRetain);
+        snapshotDone(w.index, w.term, w.path);
+    }
+
+    // Makes a durable snapshot the current one and deletes older files no transfer still reads
+    private void snapshotDone(long index, long term, Path path) throws IOException {
+        snapshotIndex = index;
+        snapshotTerm = term;
+        snapshotPath = path;
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(log.directory(), "snapshot-*.snap")) {
+            for (Path p : dir) {
+                long i = SnapshotFile.indexOf(p);
+                boolean sending = false;
+                for (long s : sendingSnapshot) sending |= s == i;
+                if (i < index && !sending) Files.delete(p);
+            }
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        Path dir = log.directory();
+        Files.deleteIfExists(dir.resolve("snapshot-incoming.tmp"));
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "snapshot-*.snap")) {
+            for (Path p : stream) files.add(p);
+        }
+        files.sort(Collections.reverseOrder());
+        for (Path p : files) {
+            long[] header = SnapshotFile.verify(p);
+            if (header == null) continue;
+            restore(p);
+            adoptSnapshot(header[0], header[1]);
+            snapshotIndex = header[0];
+            snapshotTerm = header[1];
+            snapshotPath = p;
+            return;
+        }
+    }
+
+    private void restore(Path file) throws IOException {
+        if (!(stateMachine instanceof SnapshotStateMachine)) throw new IOException("state machine cannot restore");
+        try (InputStream in = SnapshotFile.open(file)) {
+            ((SnapshotStateMachine) stateMachine).restore(in);
+        }
+    }
+
+    // Lines the log up with a snapshot the state machine now holds: the log keeps what follows
+    // the snapshot when it continues it, and starts over after the snapshot otherwise
+    private void adoptSnapshot(long index, long term) throws IOException {
+        boolean continues = index == log.firstIndex() - 1
+                || index >= log.firstIndex() && index <= log.lastIndex() && log.term(index) == term;
+        if (continues) {
+            log.setSnapshot(index, term);
+            if (index - snapshotRetain > 0) log.compactUpTo(index - snapshotRetain);
+        } else {
+            log.reset(index, term);
+            pendingAcks.clear();
+            durableIndex = index;
+        }
+        lastApplied = index;
+        commitIndex = Math.max(commitIndex, index);
+    }
+
+    private void sendSnapshotChunk(int p, long now) throws IOException {
+        Path file = SnapshotFile.path(log.directory(), sendingSnapshot[p]);
+        // Nothing sent yet, or the file is gone: send the newest snapshot instead
+        if (snapshotOffset[p] == 0 && sendingSnapshot[p] != snapshotIndex || !Files.exists(file)) {
+            sendingSnapshot[p] = snapshotIndex;
+            sendingTerm[p] = snapshotTerm;
+            snapshotOffset[p] = 0;
+            file = snapshotPath;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(snapshotChunkBytes, size - snapshotOffset[p]));
+            SnapshotFile.readFully(ch, chunk, snapshotOffset[p]);
+            boolean done = snapshotOffset[p] + chunk.capacity() == size;
+            send(new RaftTransport.SnapshotChunk(id, peers[p], currentTerm, sendingSnapshot[p], sendingTerm[p],
+                    snapshotOffset[p], chunk.array(), done));
+        }
+        inflight[p] = 1;
+        lastSent[p] = now;
+    }
+
+    private void onSnapshotResponse(RaftTransport.SnapshotResponse m) throws IOException {
+        if (m.term > currentTerm) {
+            becomeFollower(m.term);
+            return;
+        }
+        int p = peerIndex(m.from);
+        if (role != Role.LEADER || m.term != currentTerm || p < 0 || m.lastIndex != sendingSnapshot[p]) return;
+        long now = System.nanoTime();
+        lastReply[p] = now;
+        inflight[p] = 0;
+        if (m.done) {
+            sendingSnapshot[p] = 0;
+            matchIndex[p] = Math.max(matchIndex[p], m.lastIndex);
+            nextIndex[p] = matchIndex[p] + 1;
+            advanceCommit();
+        } else {
+            snapshotOffset[p] = m.offset;
+        }
+        replicate(p, now);
+    }
+
+    private void onSnapshotChunk(RaftTransport.SnapshotChunk m) throws IOException {
+        if (m.term < currentTerm) {
+            send(new RaftTransport.SnapshotResponse(id, m.from, currentTerm, m.lastIndex, 0, false));
+            return;
+        }
+        if (m.term > currentTerm || role != Role.FOLLOWER) becomeFollower(m.term);
+        heardFromLeader(m.from, 0);
+        if (m.lastIndex <= lastApplied) {
+            send(new RaftTransport.SnapshotResponse(id, m.from, currentTerm, m.lastIndex, 0, true));
+            return;
+        }
+        Path tmp = log.directory().resolve("snapshot-incoming.tmp");
+        if (m.offset == 0) {
+            if (incoming != null) incoming.close();
+            incoming = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            incomingIndex = m.lastIndex;
+            incomingOffset = 0;
+        }
+        if (incoming == null || incomingIndex != m.lastIndex || m.offset != incomingOffset) {
+            long have = incoming != null && incomingIndex == m.lastIndex ? incomingOffset : 0;
+            send(new RaftTransport.SnapshotResponse(id, m.from, currentTerm, m.lastIndex, have, false));
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(m.data);
+        while (data.hasRemaining()) incomingOffset += incoming.write(data, incomingOffset);
+        if (!m.done) {
+            send(new RaftTransport.SnapshotResponse(id, m.from, currentTerm, m.lastIndex, incomingOffset, false));
+            return;
+        }
+        incoming.force(true);
+        incoming.close();
+        incoming = null;
+        long[] header = SnapshotFile.verify(tmp);
+        if (header == null || header[0] != m.lastIndex || header[1] != m.lastTerm) {
+            // Start the transfer over
+            send(new RaftTransport.SnapshotResponse(id, m.from, currentTerm, m.lastIndex, 0, false));
+            return;
+        }
+        Path file = SnapshotFile.path(log.directory(), m.lastIndex);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        restore(file);
+        adoptSnapshot(m.lastIndex, m.lastTerm);
+        snapshotDone(m.lastIndex, m.lastTerm, file);
+        while (!applyWaiters.isEmpty() && applyWaiters.peek().index <= lastApplied) {
+            applyWaiters.poll().future.complete(lastApplied);
+        }
+        send(new RaftTransport.SnapshotResponse(id, m.from, currentTerm, m.lastIndex, incomingOffset, true));
+    }
+
+    /* Snapshot file: [magic][last index][last term][state machine bytes][CRC32C of all before] */
+    static final class SnapshotFile {
+        private static final int MAGIC = 0x52534e50;
+        private static final int HEADER = 20;
+
+        static Path path(Path directory, long index) {
+            return directory.resolve(String.format("snapshot-%020d.snap", index));
+        }
+
+        static long indexOf(Path file) {
+            String name = file.getFileName().toString();
+            return Long.parseLong(name.substring(9, name.length() - 5));
+        }
+
+        static void write(Path file, long index, long term, Snapshot view) throws IOException {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            CRC32C crc = new CRC32C();
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeLong(index);
+                out.writeLong(term);
+                view.writeTo(out);
+                out.flush();
+                fos.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+                fos.getFD().sync();
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // {last index, last term} if the file is whole and its checksum matches, else null
+        static long[] verify(Path file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                long end = ch.size() - 4;
+                if (end < HEADER) return null;
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                readFully(ch, header, 0);
+                CRC32C crc = new CRC32C();
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                for (long position = 0; position < end; ) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    readFully(ch, buffer, position);
+                    buffer.flip();
+                    position += buffer.remaining();
+                    crc.update(buffer);
+                }
+                ByteBuffer tail = ByteBuffer.allocate(4);
+                readFully(ch, tail, end);
+                if (tail.getInt(0) != (int) crc.getValue() || header.getInt(0) != MAGIC) return null;
+                return new long[]{header.getLong(4), header.getLong(12)};
+            }
+        }
+
+        // The state machine's bytes; the reader stops at the end of its own data
+        static InputStream open(Path file) throws IOException {
+            InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+            in.skipNBytes(HEADER);
+            return in;
+        }
+
+        static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) throw new EOFException();
+                position += n;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        loop.interrupt();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotWriter.shutdownNow();
+        if (incoming != null) incoming.close();
+        log.close();
+    }
+
+/* ---------------------------------------------------------------- benchmark */
+
+    static RaftServer[] localCluster(int n, RaftTransport transport, Path root, StateMachine[] machines)
+            throws IOException {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) ids[i] = i;
+        RaftServer[] servers = new RaftServer[n];
+        for (int i = 0; i < n; i++) {
+            servers[i] = new RaftServer(i, ids, transport, new RaftLog(root.resolve("node-" + i)), machines[i]);
+        }
+        for (RaftServer s : servers) s.start();
+        return servers;
+    }
+
+    static RaftServer awaitLeader(RaftServer[] servers) throws InterruptedException {
+        while (true) {
+            for (RaftServer s : servers) if (s.isLeader()) return s;
+            Thread.sleep(10);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int clients = 16;
+        int window = 256;  // outstanding proposals per client
+        byte[] payload = new byte[128];
+        for (int n : new int[]{3, 5}) {
+            Path root = Files.createTempDirectory("raft-bench");
+            StateMachine[] machines = new StateMachine[n];
+            AtomicLong[] applied = new AtomicLong[n];
+            for (int i = 0; i < n; i++) {
+                AtomicLong counter = applied[i] = new AtomicLong();
+                machines[i] = (index, command) -> counter.incrementAndGet();
+            }
+            RaftServer[] servers = localCluster(n, new RaftTransport.Loopback(), root, machines);
+            RaftServer leader = awaitLeader(servers);
+
+            long[] latencies = new long[1 << 24];
+            AtomicInteger recorded = new AtomicInteger();
+            AtomicLong committed = new AtomicLong();
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            Thread[] threads = new Thread[clients];
+            for (int c = 0; c < clients; c++) {
+                threads[c] = new Thread(() -> {
+                    Semaphore permits = new Semaphore(window);
+                    while (System.nanoTime() < end) {
+                        permits.acquireUninterruptibly();
+                        long start = System.nanoTime();
+                        leader.propose(payload).whenComplete((index, error) -> {
+                            if (error == null) {
+                                committed.incrementAndGet();
+                                int slot = recorded.getAndIncrement();
+                                if (slot < latencies.length) latencies[slot] = System.nanoTime() - start;
+                            }
+                            permits.release();
+                        });
+                    }
+                    permits.acquireUninterruptibly(window);
+                });
+                threads[c].start();
+            }
+            long begin = System.nanoTime();
+            for (Thread t : threads) t.join();
+            double elapsed = (System.nanoTime() - begin) / 1e9;
+
+            int count = Math.min(recorded.get(), latencies.length);
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("%d nodes: %.0f committed ops/s, latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, "
+                            + "%.0f entries per leader fsync%n",
+                    n, committed.get() / elapsed, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), (double) leader.log.lastIndex() / Math.max(1, leader.log.syncs()));
+            for (RaftServer s : servers) s.close();
+        }
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) return Double.NaN;
+        return sorted[Math.min(sorted.length - 1, (int) (q * sorted.length))] / 1e6;
+    }
+}
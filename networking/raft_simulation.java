@@ -0,0 +1,323 @@
+/*
+ * Raft reads, snapshots and catch-up on a simulated network
+ * SimulatedNetwork is a RaftTransport that delivers every message after a one-way delay
+ * with random jitter. Each link stays in order, like a TCP connection. It can drop a
+ * fraction of messages and cut nodes off from everyone else.
+ * CowStore is a SnapshotStateMachine: a fixed table of long values kept in pages of 4096.
+ * A snapshot copies only the page table. After that, a write clones its page first if a
+ * snapshot may still be reading it, so the snapshot is written out while applies go on.
+ * The main runs three experiments on a 3-node cluster:
+ *   latency of each ReadMode on the leader and on a follower, next to write latency;
+ *   read throughput from the leader alone, and from every node using stale reads;
+ *   recovery: one follower is cut off while N entries commit (10M by default), then the
+ *   partition heals, and we time how long it takes to apply them all. Most of them arrive
+ *   in a snapshot, because the leader has compacted its log by then.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+public class RaftSimulation {
+
+    static final class SimulatedNetwork implements RaftTransport, Closeable {
+        private static final int MAX_NODES = 64;
+
+        private final Map<Integer, Consumer<Message>> handlers = new ConcurrentHashMap<>();
+        private final DelayQueue<Delivery> queue = new DelayQueue<>();
+        private final long delayNanos;
+        private final long jitterNanos;
+        private final Random random;
+        private final long[][] linkClock = new long[MAX_NODES][MAX_NODES];
+        private final boolean[] isolated = new boolean[MAX_NODES];
+        private double dropRate;
+        private long sequence;
+        private final Thread dispatcher;
+        final AtomicLong snapshotBytes = new AtomicLong();
+
+        private static final class Delivery implements Delayed {
+            final long at;
+            final long sequence;
+            final Message message;
+
+            Delivery(long at, long sequence, Message message) {
+                this.at = at;
+                this.sequence = sequence;
+                this.message = message;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                Delivery d = (Delivery) other;
+                int c = Long.compare(at, d.at);
+                return c != 0 ? c : Long.compare(sequence, d.sequence);
+            }
+        }
+
+        SimulatedNetwork(long delayMicros, long jitterMicros, long seed) {
+            this.delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+            this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+            this.random = new Random(seed);
+            dispatcher = new Thread(this::dispatch, "simulated-network");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+
+        @Override
+        public void register(int node, Consumer<Message> handler) {
+            handlers.put(node, handler);
+        }
+
+        @Override
+        public synchronized void send(Message m) {
+            if (isolated[m.from] || isolated[m.to]) return;
+            if (dropRate > 0 && random.nextDouble() < dropRate) return;
+            long at = System.nanoTime() + delayNanos + (long) (random.nextDouble() * jitterNanos);
+            at = Math.max(at, linkClock[m.from][m.to]);
+            linkClock[m.from][m.to] = at;
+            if (m instanceof SnapshotChunk) snapshotBytes.addAndGet(((SnapshotChunk) m).data.length);
+            queue.add(new Delivery(at, sequence++, m));
+        }
+
+        // Cuts a node off: everything it sends or should receive is lost
+        synchronized void isolate(int node) {
+            isolated[node] = true;
+        }
+
+        synchronized void heal() {
+            Arrays.fill(isolated, false);
+        }
+
+        synchronized void setDropRate(double rate) {
+            dropRate = rate;
+        }
+
+        private void dispatch() {
+            try {
+                while (true) {
+                    Message m = queue.take().message;
+                    Consumer<Message> handler = handlers.get(m.to);
+                    if (handler != null) handler.accept(m);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        @Override
+        public void close() {
+            dispatcher.interrupt();
+        }
+    }
+
+    /* Commands are [key][value], 8 bytes each; reads may run alongside applies */
+    static final class CowStore implements RaftServer.SnapshotStateMachine {
+        private static final int PAGE_BITS = 12;
+        private static final int PAGE = 1 << PAGE_BITS;
+
+        private volatile long[][] pages;
+        private int[] owner;  // epoch in which each page was last cloned
+        private int epoch;
+
+        CowStore(int keys) {
+            pages = new long[(keys + PAGE - 1) >> PAGE_BITS][PAGE];
+            owner = new int[pages.length];
+        }
+
+        @Override
+        public void apply(long index, byte[] command) {
+            if (command.length != 16) return;  // a new leader's no-op
+            ByteBuffer b = ByteBuffer.wrap(command);
+            int key = (int) b.getLong();
+            long value = b.getLong();
+            int p = key >>> PAGE_BITS;
+            long[][] table = pages;
+            if (owner[p] != epoch) {
+                table[p] = table[p].clone();
+                owner[p] = epoch;
+            }
+            table[p][key & (PAGE - 1)] = value;
+        }
+
+        long get(int key) {
+            return pages[key >>> PAGE_BITS][key & (PAGE - 1)];
+        }
+
+        int keys() {
+            return pages.length * PAGE;
+        }
+
+        @Override
+        public RaftServer.Snapshot snapshot() {
+            long[][] frozen = pages.clone();
+            epoch++;
+            return out -> {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(frozen.length);
+                ByteBuffer buffer = ByteBuffer.allocate(PAGE * 8);
+                for (long[] page : frozen) {
+                    buffer.clear();
+                    buffer.asLongBuffer().put(page);
+                    data.write(buffer.array());
+                }
+                data.flush();
+            };
+        }
+
+        @Override
+        public void restore(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            long[][] table = new long[data.readInt()][PAGE];
+            byte[] bytes = new byte[PAGE * 8];
+            for (long[] page : table) {
+                data.readFully(bytes);
+                ByteBuffer.wrap(bytes).asLongBuffer().get(page);
+            }
+            owner = new int[table.length];
+            epoch = 0;
+            pages = table;
+        }
+    }
+
+    static byte[] command(int key, long value) {
+        return ByteBuffer.allocate(16).putLong(key).putLong(value).array();
+    }
+
+    // Commits at least count random writes through whichever server is leader
+    static void write(RaftServer[] servers, long count, int keys, Random random) throws InterruptedException {
+        int window = 16384;
+        Semaphore permits = new Semaphore(window);
+        AtomicLong done = new AtomicLong();
+        while (done.get() < count) {
+            RaftServer leader = RaftServer.awaitLeader(servers);
+            permits.acquire();
+            leader.propose(command(random.nextInt(keys), random.nextLong())).whenComplete((index, error) -> {
+                if (error == null) done.incrementAndGet();
+                permits.release();
+            });
+        }
+        permits.acquire(window);
+        permits.release(window);
+    }
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static void latency(String name, int samples, Op op) throws Exception {
+        long[] nanos = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long start = System.nanoTime();
+            op.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("  %-32s p50 %8.1f us   p99 %8.1f us%n", name,
+                nanos[samples / 2] / 1e3, nanos[(int) (samples * 0.99)] / 1e3);
+    }
+
+    static void throughput(String name, RaftServer[] targets, CowStore[] stores, RaftServer.ReadMode mode,
+                           int threads, int millis) throws InterruptedException {
+        LongAdder reads = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            RaftServer server = targets[t % targets.length];
+            CowStore store = stores[server.id()];
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                long sink = 0;
+                while (System.nanoTime() < end) {
+                    try {
+                        server.read(mode).get();
+                        sink += store.get(random.nextInt(store.keys()));
+                        reads.increment();
+                    } catch (Exception e) {
+                        failed.increment();
+                    }
+                }
+                if (sink == 42) System.out.print("");
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        System.out.printf("  %-32s %10.0f reads/s (%d failed)%n", name, reads.sum() * 1000.0 / millis, failed.sum());
+    }
+
+    public static void main(String[] args) throws Exception {
+        long behind = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        int keys = 1 << 20;
+        int n = 3;
+        Path root = Files.createTempDirectory("raft-sim");
+        SimulatedNetwork network = new SimulatedNetwork(500, 200, 42);
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) ids[i] = i;
+        CowStore[] stores = new CowStore[n];
+        RaftServer[] servers = new RaftServer[n];
+        for (int i = 0; i < n; i++) {
+            stores[i] = new CowStore(keys);
+            servers[i] = new RaftServer(i, ids, network, new RaftLog(root.resolve("node-" + i), 8L << 20), stores[i])
+                    .setSnapshots(1_000_000, 100_000, 1 << 20);
+        }
+        for (RaftServer s : servers) s.start();
+        Random random = new Random(7);
+        write(servers, 200_000, keys, random);
+        RaftServer first = RaftServer.awaitLeader(servers);
+        RaftServer follower = servers[(first.id() + 1) % n];
+        System.out.printf("3 nodes, one-way delay 0.5 ms + up to 0.2 ms jitter, leader %d%n", first.id());
+
+        System.out.println("latency:");
+        latency("write through the log", 2000, () -> first.propose(command(1, 1)).get());
+        latency("ReadIndex at leader", 2000, () -> first.read(RaftServer.ReadMode.LINEARIZABLE).get());
+        latency("ReadIndex at follower", 2000, () -> follower.read(RaftServer.ReadMode.LINEARIZABLE).get());
+        latency("lease read at leader", 20000, () -> first.read(RaftServer.ReadMode.LEASE).get());
+        latency("stale read at follower", 20000, () -> follower.read(RaftServer.ReadMode.STALE).get());
+
+        System.out.println("throughput (4 reader threads):");
+        throughput("ReadIndex, leader only", new RaftServer[]{first}, stores,
+                RaftServer.ReadMode.LINEARIZABLE, 4, 2000);
+        throughput("lease reads, leader only", new RaftServer[]{first}, stores, RaftServer.ReadMode.LEASE, 4, 2000);
+        throughput("stale reads, all nodes", servers, stores, RaftServer.ReadMode.STALE, 4, 2000);
+
+        System.out.printf("recovery: node %d cut off while %,d entries commit%n", follower.id(), behind);
+        network.isolate(follower.id());
+        long start = System.nanoTime();
+        write(servers, behind, keys, random);
+        RaftServer leader = RaftServer.awaitLeader(servers);
+        long target = leader.commitIndex();
+        System.out.printf("  wrote them in %.1f s; leader %d at index %,d, its snapshot at %,d%n",
+                (System.nanoTime() - start) / 1e9, leader.id(), target, leader.snapshotIndex());
+        long bytesBefore = network.snapshotBytes.get();
+        network.heal();
+        start = System.nanoTime();
+        while (follower.lastApplied() < target) Thread.sleep(1);
+        double recovery = (System.nanoTime() - start) / 1e6;
+        System.out.printf("  caught up in %.0f ms: snapshot at %,d (%.1f MB sent), then %,d entries replayed%n",
+                recovery, follower.snapshotIndex(), (network.snapshotBytes.get() - bytesBefore) / 1e6,
+                target - follower.snapshotIndex());
+
+        while (follower.lastApplied() < leader.lastApplied() || leader.lastApplied() < leader.commitIndex()) {
+            Thread.sleep(1);
+        }
+        int mismatches = 0;
+        for (int k = 0; k < keys; k++) if (stores[follower.id()].get(k) != stores[leader.id()].get(k)) mismatches++;
+        System.out.println("  state matches the leader: " + (mismatches == 0) + ", leader is still " + leader.id()
+                + (leader.isLeader() ? "" : " (lost leadership)"));
+
+        for (RaftServer s : servers) s.close();
+        network.close();
+        try (java.util.stream.Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Message transport between Raft servers
+ * A server registers one handler for its inbound messages and sends with send(); delivery
+ * is asynchronous and may drop messages (Raft retries on its own). Loopback delivers
+ * in-process, in order, straight to the destination handler, which is enough for a local
+ * cluster. A network transport would serialize the same message classes.
+ * Appends carry the leader's heartbeat round (seq) and responses echo it, which is how a
+ * leader confirms it is still leader for ReadIndex and for its lease. Vote messages can be
+ * pre-votes, which change no state on the receiver.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+public interface RaftTransport {
+
+    void register(int node, Consumer<Message> handler);
+
+    void send(Message message);
+
+    abstract class Message {
+        public final int from;
+        public final int to;
+        public final long term;
+
+        Message(int from, int to, long term) {
+            this.from = from;
+            this.to = to;
+            this.term = term;
+        }
+    }
+
+    final class VoteRequest extends Message {
+        public final long lastIndex;
+        public final long lastTerm;
+        public final boolean preVote;  // would you vote for me in term? (nobody's term changes)
+
+        public VoteRequest(int from, int to, long term, long lastIndex, long lastTerm, boolean preVote) {
+            super(from, to, term);
+            this.lastIndex = lastIndex;
+            this.lastTerm = lastTerm;
+            this.preVote = preVote;
+        }
+
+        public VoteRequest(int from, int to, long term, long lastIndex, long lastTerm) {
+            this(from, to, term, lastIndex, lastTerm, false);
+        }
+    }
+
+    final class VoteResponse extends Message {
+        public final boolean granted;
+        public final boolean preVote;
+
+        public VoteResponse(int from, int to, long term, boolean granted, boolean preVote) {
+            super(from, to, term);
+            this.granted = granted;
+            this.preVote = preVote;
+        }
+
+        public VoteResponse(int from, int to, long term, boolean granted) {
+            this(from, to, term, granted, false);
+        }
+    }
+
+    final class AppendRequest extends Message {
+        public final long prevIndex;
+        public final long prevTerm;
+        public final long leaderCommit;
+        public final List<RaftLog.Entry> entries;
+        public final long seq;
+
+        public AppendRequest(int from, int to, long term, long prevIndex, long prevTerm, long leaderCommit,
+                             List<RaftLog.Entry> entries, long seq) {
+            super(from, to, term);
+            this.prevIndex = prevIndex;
+            this.prevTerm = prevTerm;
+            this.leaderCommit = leaderCommit;
+            this.entries = entries;
+            this.seq = seq;
+        }
+
+        public AppendRequest(int from, int to, long term, long prevIndex, long prevTerm, long leaderCommit,
+                             List<RaftLog.Entry> entries) {
+            this(from, to, term, prevIndex, prevTerm, leaderCommit, entries, 0);
+        }
+    }
+
+    final class AppendResponse extends Message {
+        public final boolean success;
+        public final long matchIndex;  // on success: last index known to match and be durable
+        public final long hint;        // on failure: where the leader should retry from
+        public final long seq;         // the request's seq
+
+        public AppendResponse(int from, int to, long term, boolean success, long matchIndex, long hint, long seq) {
+            super(from, to, term);
+            this.success = success;
+            this.matchIndex = matchIndex;
+            this.hint = hint;
+            this.seq = seq;
+        }
+
+        public AppendResponse(int from, int to, long term, boolean success, long matchIndex, long hint) {
+            this(from, to, term, success, matchIndex, hint, 0);
+        }
+    }
+
+    /* One piece of the snapshot file covering the log up to lastIndex, sent in order */
+    final class SnapshotChunk extends Message {
+        public final long lastIndex;
+        public final long lastTerm;
+        public final long offset;
+        public final byte[] data;
+        public final boolean done;
+
+        public SnapshotChunk(int from, int to, long term, long lastIndex, long lastTerm, long offset, byte[] data,
+                             boolean done) {
+            super(from, to, term);
+            this.lastIndex = lastIndex;
+            this.lastTerm = lastTerm;
+            this.offset = offset;
+            this.data = data;
+            this.done = done;
+        }
+    }
+
+    final class SnapshotResponse extends Message {
+        public final long lastIndex;
+        public final long offset;   // bytes received so far; the leader continues from here
+        public final boolean done;  // the snapshot is installed
+
+        public SnapshotResponse(int from, int to, long term, long lastIndex, long offset, boolean done) {
+            super(from, to, term);
+            this.lastIndex = lastIndex;
+            this.offset = offset;
+            this.done = done;
+        }
+    }
+
+    /* A follower asking the leader for a read index on behalf of its own client */
+    final class ReadIndexRequest extends Message {
+        public final long requestId;
+
+        public ReadIndexRequest(int from, int to, long term, long requestId) {
+            super(from, to, term);
+            this.requestId = requestId;
+        }
+    }
+
+    final class ReadIndexResponse extends Message {
+        public final long requestId;
+        public final boolean ok;
+        public final long readIndex;
+
+        public ReadIndexResponse(int from, int to, long term, long requestId, boolean ok, long readIndex) {
+            super(from, to, term);
+            this.requestId = requestId;
+            this.ok = ok;
+            this.readIndex = readIndex;
+        }
+    }
+
+    /* In-process transport: send() hands the message to the destination's handler */
+    final class Loopback implements RaftTransport {
+        private final Map<Integer, Consumer<Message>> handlers = new ConcurrentHashMap<>();
+
+        @Override
+        public void register(int node, Consumer<Message> handler) {
+            handlers.put(node, handler);
+        }
+
+        @Override
+        public void send(Message message) {
+            Consumer<Message> handler = handlers.get(message.to);
+            if (handler != null) handler.accept(message);
+        }
+    }
+}
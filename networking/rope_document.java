@@ -0,0 +1,183 @@
+/*
+ * Rope-backed text document for collaborative editing
+ * The text is a sequence of immutable chunks of at most MAX_CHUNK chars, kept in a
+ * MeasuredFingerTree measured by chunk length. An edit at position p splits the tree at the
+ * chunk covering p, rebuilds that chunk and its small neighbours with the change applied, and
+ * concatenates the pieces back. Each insert or delete costs O(log n) tree work plus at most a
+ * few chunks of copying, however large the document is; OperationalTransformation.apply on a
+ * String copies the whole document every time.
+ * Chunks below MIN_CHUNK are merged with a neighbour when an edit touches them, so repeated
+ * small edits do not fragment the tree.
+ * The tree is persistent, so snapshot() is O(1) and older versions stay readable while the
+ * document keeps changing.
+ */
+
+import java.util.*;
+
+public class RopeDocument {
+
+    static final int MAX_CHUNK = 1024;
+    static final int MIN_CHUNK = MAX_CHUNK / 4;
+
+    static final class Chunk implements MeasuredFingerTree.Measured {
+        final String text;
+
+        Chunk(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int measure() {
+            return text.length();
+        }
+    }
+
+    private MeasuredFingerTree<Chunk> tree;
+
+    public RopeDocument() {
+        this("");
+    }
+
+    public RopeDocument(String text) {
+        tree = chunks(MeasuredFingerTree.empty(), text, 0, text.length());
+    }
+
+    private RopeDocument(MeasuredFingerTree<Chunk> tree) {
+        this.tree = tree;
+    }
+
+    public int length() {
+        return tree.measure();
+    }
+
+    // An independent document sharing this one's chunks
+    public RopeDocument snapshot() {
+        return new RopeDocument(tree);
+    }
+
+    public void insert(int position, String text) {
+        checkRange(position, position);
+        if (text.isEmpty()) return;
+        replace(position, position, text);
+    }
+
+    public void delete(int position, int count) {
+        checkRange(position, position + count);
+        if (count == 0) return;
+        replace(position, position + count, "");
+    }
+
+    public char charAt(int position) {
+        checkRange(position, position + 1);
+        MeasuredFingerTree.Split<Chunk> s = tree.split(position);
+        return s.item.text.charAt(position - s.left.measure());
+    }
+
+    public String substring(int from, int to) {
+        checkRange(from, to);
+        if (from == to) return "";
+        StringBuilder sb = new StringBuilder(to - from);
+        MeasuredFingerTree.Split<Chunk> s = tree.split(from);
+        int offset = from - s.left.measure();
+        sb.append(s.item.text, offset, Math.min(s.item.text.length(), offset + to - from));
+        MeasuredFingerTree<Chunk> rest = s.right;
+        while (sb.length() < to - from) {
+            Chunk c = rest.first();
+            rest = rest.removeFirst();
+            sb.append(c.text, 0, Math.min(c.text.length(), to - from - sb.length()));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length());
+        tree.forEach(c -> sb.append(c.text));
+        return sb.toString();
+    }
+
+    private void checkRange(int from, int to) {
+        if (from < 0 || to < from || to > length()) {
+            throw new IndexOutOfBoundsException("range " + from + ".." + to + ", length " + length());
+        }
+    }
+
+    /*
+     * Replaces [from, to) with text. The chunks covering the range, plus one short neighbour
+     * on each side, are cut out, rewritten as a single string and split into fresh chunks.
+     */
+    private void replace(int from, int to, String text) {
+        MeasuredFingerTree<Chunk> left;
+        String head;
+        if (from < length()) {
+            MeasuredFingerTree.Split<Chunk> s = tree.split(from);
+            left = s.left;
+            head = s.item.text.substring(0, from - s.left.measure());
+        } else {
+            left = tree;
+            head = "";
+        }
+        MeasuredFingerTree<Chunk> right;
+        String tail;
+        if (to < length()) {
+            MeasuredFingerTree.Split<Chunk> s = tree.split(to);
+            right = s.right;
+            tail = s.item.text.substring(to - s.left.measure());
+        } else {
+            right = MeasuredFingerTree.empty();
+            tail = "";
+        }
+        if (head.isEmpty() && !left.isEmpty() && left.last().measure() < MIN_CHUNK) {
+            head = left.last().text;
+            left = left.removeLast();
+        }
+        if (!right.isEmpty() && tail.length() + right.first().measure() <= MAX_CHUNK
+                && (tail.length() < MIN_CHUNK || right.first().measure() < MIN_CHUNK)) {
+            tail = tail + right.first().text;
+            right = right.removeFirst();
+        }
+        String middle = head + text + tail;
+        tree = chunks(left, middle, 0, middle.length()).concat(right);
+    }
+
+    // Appends text[from, to) as chunks of near-equal length, none above MAX_CHUNK
+    private static MeasuredFingerTree<Chunk> chunks(MeasuredFingerTree<Chunk> tree, String text, int from, int to) {
+        int n = to - from;
+        if (n == 0) return tree;
+        int pieces = (n + MAX_CHUNK - 1) / MAX_CHUNK;
+        for (int i = 0; i < pieces; i++) {
+            int a = from + (int) ((long) n * i / pieces);
+            int b = from + (int) ((long) n * (i + 1) / pieces);
+            tree = tree.append(new Chunk(text.substring(a, b)));
+        }
+        return tree;
+    }
+
+    public static void main(String[] args) {
+        RopeDocument doc = new RopeDocument("Hello world");
+        RopeDocument before = doc.snapshot();
+        doc.insert(5, ",");
+        doc.insert(doc.length(), "!");
+        doc.delete(0, 1);
+        doc.insert(0, "J");
+        System.out.println(doc + " / " + before + " / " + doc.substring(7, 12));   // Jello, world! / Hello world / world
+
+        Random random = new Random(1);
+        StringBuilder expected = new StringBuilder();
+        RopeDocument rope = new RopeDocument();
+        for (int i = 0; i < 200000; i++) {
+            int position = random.nextInt(expected.length() + 1);
+            if (random.nextInt(3) > 0 || expected.length() == 0) {
+                String text = "x".repeat(1 + random.nextInt(random.nextInt(50) == 0 ? 3000 : 8)) + (char) ('a' + i % 26);
+                expected.insert(position, text);
+                rope.insert(position, text);
+            } else {
+                int count = Math.min(expected.length() - position, random.nextInt(random.nextInt(50) == 0 ? 5000 : 20));
+                expected.delete(position, position + count);
+                rope.delete(position, count);
+            }
+        }
+        System.out.println("random edits agree with StringBuilder: " + expected.toString().equals(rope.toString())
+                + ", " + rope.length() + " chars in " + rope.tree.count() + " chunks");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Routing information base: the authoritative set of prefixes, kept as a binary trie
+ * Keys are up to 128 bits (hi, lo), most significant bit first. An IPv4 address sits in the
+ * top 32 bits of hi, so IPv4 and IPv6 tables share this code, with width 32 or 128. The
+ * trie lives in flat int arrays: two child links and a next hop per node, with -1 for
+ * "none". Removing a prefix prunes the nodes left with neither a route nor children, and
+ * freed nodes are reused.
+ * This is the update-side structure, not the lookup path. The compiled FIBs (Dir248,
+ * Poptrie) walk it to rebuild the part of their tables covered by a changed prefix. Its own
+ * bit-at-a-time lookup is the baseline they are measured against.
+ */
+
+import java.util.*;
+
+public class RoutingTable {
+
+    public static final int NO_ROUTE = -1;
+
+    private final int width;
+    private int[] child;        // 2 per node
+    private int[] hop;
+    private int nodes;
+    private int free = -1;      // free list, linked through child[2n]
+    private int routes;
+
+    public RoutingTable(int width) {
+        if (width != 32 && width != 128) throw new IllegalArgumentException("width must be 32 or 128");
+        this.width = width;
+        child = new int[2 * 1024];
+        hop = new int[1024];
+        allocate();
+    }
+
+    public static long v4(int address) {
+        return (address & 0xFFFFFFFFL) << 32;
+    }
+
+    static int bit(long hi, long lo, int i) {
+        return (int) (i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1;
+    }
+
+    private int allocate() {
+        int n;
+        if (free >= 0) {
+            n = free;
+            free = child[2 * n];
+        } else {
+            if (nodes == hop.length) {
+                hop = Arrays.copyOf(hop, nodes * 2);
+                child = Arrays.copyOf(child, nodes * 4);
+            }
+            n = nodes++;
+        }
+        child[2 * n] = -1;
+        child[2 * n + 1] = -1;
+        hop[n] = NO_ROUTE;
+        return n;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int size() {
+        return routes;
+    }
+
+    public int nodeCount() {
+        return nodes;
+    }
+
+    int root() {
+        return 0;
+    }
+
+    int child(int node, int bit) {
+        return child[2 * node + bit];
+    }
+
+    int hop(int node) {
+        return hop[node];
+    }
+
+    boolean isLeaf(int node) {
+        return child[2 * node] < 0 && child[2 * node + 1] < 0;
+    }
+
+    // Adds or replaces a route; returns the previous next hop for the prefix, or NO_ROUTE
+    public int add(long hi, long lo, int length, int nextHop) {
+        if (length < 0 || length > width) throw new IllegalArgumentException("prefix length " + length);
+        if (nextHop < 0) throw new IllegalArgumentException("next hop must be non-negative");
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            int b = bit(hi, lo, i);
+            int c = child[2 * n + b];
+            if (c < 0) {
+                c = allocate();
+                child[2 * n + b] = c;
+            }
+            n = c;
+        }
+        int previous = hop[n];
+        hop[n] = nextHop;
+        if (previous == NO_ROUTE) routes++;
+        return previous;
+    }
+
+    // Removes a route; returns its next hop, or NO_ROUTE if it was not present
+    public int remove(long hi, long lo, int length) {
+        int[] path = new int[length + 1];
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            path[i] = n;
+            n = child[2 * n + bit(hi, lo, i)];
+            if (n < 0) return NO_ROUTE;
+        }
+        path[length] = n;
+        int previous = hop[n];
+        if (previous == NO_ROUTE) return NO_ROUTE;
+        hop[n] = NO_ROUTE;
+        routes--;
+        for (int d = length; d > 0 && hop[path[d]] == NO_ROUTE && isLeaf(path[d]); d--) {
+            int parent = path[d - 1];
+            child[2 * parent + bit(hi, lo, d - 1)] = -1;
+            child[2 * path[d]] = free;
+            free = path[d];
+        }
+        return previous;
+    }
+
+    // Node for the prefix, or -1 if the trie has no node there
+    int find(long hi, long lo, int length) {
+        int n = 0;
+        for (int i = 0; i < length && n >= 0; i++) n = child[2 * n + bit(hi, lo, i)];
+        return n;
+    }
+
+    // Longest-prefix next hop among the prefixes of at most the given length covering the key
+    int inherited(long hi, long lo, int length) {
+        int best = hop[0];
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            n = child[2 * n + bit(hi, lo, i)];
+            if (n < 0) break;
+            if (hop[n] != NO_ROUTE) best = hop[n];
+        }
+        return best;
+    }
+
+    public int lookup(long hi, long lo) {
+        return inherited(hi, lo, width);
+    }
+
+    public int lookup(int address) {
+        return inherited(v4(address), 0, 32);
+    }
+
+    public static void main(String[] args) {
+        RoutingTable rib = new RoutingTable(32);
+        rib.add(v4(0xC0A80000), 0, 16, 1);      // 192.168.0.0/16
+        rib.add(v4(0xC0A80100), 0, 24, 2);      // 192.168.1.0/24
+        rib.add(v4(0x0A000000), 0, 8, 3);       // 10.0.0.0/8
+        rib.add(0, 0, 0, 0);                    // default
+        System.out.println(rib.lookup(0xC0A8012A) + " " + rib.lookup(0xC0A83201) + " "
+                + rib.lookup(0x0A141E28) + " " + rib.lookup(0x08080808));   // 2 1 3 0
+        rib.remove(v4(0xC0A80100), 0, 24);
+        System.out.println(rib.lookup(0xC0A8012A) + ", " + rib.nodeCount() + " nodes");  // 1
+    }
+}
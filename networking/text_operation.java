@@ -0,0 +1,513 @@
+/*
+ * Multi-component text operations for operational transformation
+ * An operation walks the whole document once, as a list of components:
+ * - retain n: keep the next n chars
+ * - insert s: insert s here
+ * - delete n: remove the next n chars
+ * so one operation can describe any number of edits. Its base length is the length of the
+ * document it applies to, and its target length is the length after it.
+ * compose(a, b) is a single operation with the effect of a followed by b, so a client can
+ * collapse its pending edits into one. transform(a, b), for a and b made concurrently on the
+ * same document, returns (a', b') such that applying a then b' gives the same document as
+ * applying b then a'. When both insert at the same place, a's text goes first.
+ * Components are stored in flat arrays: codes[i] > 0 is retain, codes[i] < 0 is delete, and
+ * codes[i] == 0 is an insert of texts[i]. Adjacent components of the same kind are merged, and
+ * an insert next to a delete is always put before it, so equal effects have equal encodings.
+ * History is the server side. An operation made at an older revision is transformed against
+ * everything since then in one pass: the operation's components stream through a chain of
+ * transform stages, one per concurrent operation, and no intermediate operation is built.
+ * The result is exactly that of transforming against each in turn, which is what clients do
+ * with the operations they receive. Transforming against the composed history would not be:
+ * once a delete brings two inserts together, the composition no longer tells which came
+ * first, and concurrent inserts could be ordered differently on the server and the clients.
+ */
+
+import java.util.*;
+
+public class TextOperation {
+
+    private int[] codes = new int[4];
+    private String[] texts = new String[4];
+    private int size;
+    private int baseLength;
+    private int targetLength;
+
+    public int baseLength() {
+        return baseLength;
+    }
+
+    public int targetLength() {
+        return targetLength;
+    }
+
+    public int components() {
+        return size;
+    }
+
+    public boolean isNoop() {
+        return size == 0 || (size == 1 && codes[0] > 0);
+    }
+
+    /* ---------------------------------------------------------------- building */
+
+    public TextOperation retain(int n) {
+        if (n < 0) throw new IllegalArgumentException("retain " + n);
+        if (n == 0) return this;
+        baseLength += n;
+        targetLength += n;
+        if (size > 0 && codes[size - 1] > 0) codes[size - 1] += n;
+        else push(n, null);
+        return this;
+    }
+
+    public TextOperation insert(String text) {
+        if (text.isEmpty()) return this;
+        targetLength += text.length();
+        if (size > 0 && codes[size - 1] == 0) {
+            texts[size - 1] = texts[size - 1] + text;
+        } else if (size > 0 && codes[size - 1] < 0) {
+            // Keep inserts ahead of deletes
+            if (size > 1 && codes[size - 2] == 0) {
+                texts[size - 2] = texts[size - 2] + text;
+            } else {
+                push(codes[size - 1], null);
+                codes[size - 2] = 0;
+                texts[size - 2] = text;
+            }
+        } else {
+            push(0, text);
+        }
+        return this;
+    }
+
+    public TextOperation delete(int n) {
+        if (n < 0) throw new IllegalArgumentException("delete " + n);
+        if (n == 0) return this;
+        baseLength += n;
+        if (size > 0 && codes[size - 1] < 0) codes[size - 1] -= n;
+        else push(-n, null);
+        return this;
+    }
+
+    private void push(int code, String text) {
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+            texts = Arrays.copyOf(texts, size * 2);
+        }
+        codes[size] = code;
+        texts[size++] = text;
+    }
+
+    // The operation for one OperationalTransformation.Operation on a document of the given length
+    public static TextOperation of(OperationalTransformation.Operation op, int documentLength) {
+        TextOperation result = new TextOperation().retain(op.pos);
+        if (op.type == OperationalTransformation.Type.INSERT) {
+            result.insert(op.text);
+            return result.retain(documentLength - op.pos);
+        }
+        result.delete(op.text.length());
+        return result.retain(documentLength - op.pos - op.text.length());
+    }
+
+    /* ---------------------------------------------------------------- applying */
+
+    public String apply(String document) {
+        checkBase(document.length());
+        StringBuilder sb = new StringBuilder(targetLength);
+        int at = 0;
+        for (int i = 0; i < size; i++) {
+            int c = codes[i];
+            if (c > 0) {
+                sb.append(document, at, at + c);
+                at += c;
+            } else if (c < 0) {
+                at -= c;
+            } else {
+                sb.append(texts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Edits the rope in place, one O(log n) edit per insert or delete component
+    public void apply(RopeDocument document) {
+        checkBase(document.length());
+        int at = 0;
+        for (int i = 0; i < size; i++) {
+            int c = codes[i];
+            if (c > 0) {
+                at += c;
+            } else if (c < 0) {
+                document.delete(at, -c);
+            } else {
+                document.insert(at, texts[i]);
+                at += texts[i].length();
+            }
+        }
+    }
+
+    private void checkBase(int length) {
+        if (length != baseLength) {
+            throw new IllegalArgumentException("operation applies to length " + baseLength + ", document has " + length);
+        }
+    }
+
+    /* ---------------------------------------------------------------- compose and transform */
+
+    /* A stream of components, taken part of a component at a time */
+    private interface Source {
+        boolean done();
+
+        // > 0 retain, < 0 delete, 0 insert
+        int kind();
+
+        int remaining();
+
+        String text(int n);
+
+        void take(int n);
+
+        default boolean isRetain() {
+            return !done() && kind() > 0;
+        }
+
+        default boolean isDelete() {
+            return !done() && kind() < 0;
+        }
+
+        default boolean isInsert() {
+            return !done() && kind() == 0;
+        }
+    }
+
+    private static final class Reader implements Source {
+        final TextOperation op;
+        int index;
+        int used;
+
+        Reader(TextOperation op) {
+            this.op = op;
+        }
+
+        public boolean done() {
+            return index == op.size;
+        }
+
+        public int kind() {
+            return op.codes[index];
+        }
+
+        public int remaining() {
+            int c = op.codes[index];
+            return (c == 0 ? op.texts[index].length() : Math.abs(c)) - used;
+        }
+
+        public String text(int n) {
+            String t = op.texts[index];
+            return used == 0 && n == t.length() ? t : t.substring(used, used + n);
+        }
+
+        public void take(int n) {
+            used += n;
+            if (used == (op.codes[index] == 0 ? op.texts[index].length() : Math.abs(op.codes[index]))) {
+                index++;
+                used = 0;
+            }
+        }
+    }
+
+    /*
+     * The first result of transform(x, y), produced one component at a time as it is read.
+     * Like the builder, it merges adjacent components of a kind and puts each run of inserts
+     * ahead of the deletes around it: the next stage's transform depends on that order, and
+     * unmerged retains would multiply at every stage.
+     */
+    private static final class Transformed implements Source {
+        final Source x;
+        final Reader y;
+        int retainRun;
+        final StringBuilder insertRun = new StringBuilder();
+        int deleteRun;
+        int carry;          // a retain read past the end of the current run
+        int kind;
+        int length;
+        int used;
+        String text;
+
+        Transformed(Source x, TextOperation y) {
+            this.x = x;
+            this.y = new Reader(y);
+            advance();
+        }
+
+        // length stays 0 once both inputs are done
+        private void advance() {
+            used = 0;
+            length = 0;
+            if (retainRun == 0 && insertRun.length() == 0 && deleteRun == 0) fill();
+            if (retainRun > 0) {
+                kind = 1;
+                length = retainRun;
+                retainRun = 0;
+            } else if (insertRun.length() > 0) {
+                kind = 0;
+                text = insertRun.toString();
+                length = text.length();
+                insertRun.setLength(0);
+            } else if (deleteRun > 0) {
+                kind = -1;
+                length = deleteRun;
+                deleteRun = 0;
+            }
+        }
+
+        // Same steps as transform, keeping only a's side: one retain, then inserts and deletes
+        private void fill() {
+            retainRun = carry;
+            carry = 0;
+            while (!x.done() || !y.done()) {
+                int retained = 0;
+                if (x.isInsert()) {
+                    int n = x.remaining();
+                    insertRun.append(x.text(n));
+                    x.take(n);
+                } else if (y.isInsert()) {
+                    retained = y.remaining();
+                    y.take(retained);
+                } else {
+                    int n = Math.min(x.remaining(), y.remaining());
+                    if (y.isRetain()) {
+                        if (x.kind() > 0) retained = n;
+                        else deleteRun += n;
+                    }
+                    x.take(n);
+                    y.take(n);
+                }
+                if (retained > 0) {
+                    if (insertRun.length() > 0 || deleteRun > 0) {
+                        carry = retained;
+                        return;
+                    }
+                    retainRun += retained;
+                }
+            }
+        }
+
+        public boolean done() {
+            return length == 0;
+        }
+
+        public int kind() {
+            return kind;
+        }
+
+        public int remaining() {
+            return length - used;
+        }
+
+        public String text(int n) {
+            return used == 0 && n == length ? text : text.substring(used, used + n);
+        }
+
+        public void take(int n) {
+            used += n;
+            if (used == length) advance();
+        }
+    }
+
+    // The operation with the effect of a followed by b
+    public static TextOperation compose(TextOperation a, TextOperation b) {
+        if (a.targetLength != b.baseLength) {
+            throw new IllegalArgumentException("cannot compose: first ends at length " + a.targetLength
+                    + ", second starts at " + b.baseLength);
+        }
+        TextOperation result = new TextOperation();
+        Reader x = new Reader(a);
+        Reader y = new Reader(b);
+        while (!x.done() || !y.done()) {
+            if (x.isDelete()) {
+                int n = x.remaining();
+                result.delete(n);
+                x.take(n);
+            } else if (y.isInsert()) {
+                int n = y.remaining();
+                result.insert(y.text(n));
+                y.take(n);
+            } else {
+                int n = Math.min(x.remaining(), y.remaining());
+                if (x.isRetain() && y.isRetain()) result.retain(n);
+                else if (x.isInsert() && y.isRetain()) result.insert(x.text(n));
+                else if (x.isRetain() && y.isDelete()) result.delete(n);
+                // an insert deleted by b leaves nothing
+                x.take(n);
+                y.take(n);
+            }
+        }
+        return result;
+    }
+
+    // Composes a run of consecutive operations, pairwise so that each level halves the count
+    public static TextOperation compose(List<TextOperation> ops) {
+        if (ops.isEmpty()) throw new IllegalArgumentException("nothing to compose");
+        List<TextOperation> level = new ArrayList<>(ops);
+        while (level.size() > 1) {
+            List<TextOperation> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) next.add(compose(level.get(i), level.get(i + 1)));
+            if (level.size() % 2 == 1) next.add(level.get(level.size() - 1));
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    // For concurrent a and b: returns {a', b'} with apply(apply(d, a), b') == apply(apply(d, b), a')
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("cannot transform: base lengths " + a.baseLength + " and " + b.baseLength);
+        }
+        TextOperation a2 = new TextOperation();
+        TextOperation b2 = new TextOperation();
+        Reader x = new Reader(a);
+        Reader y = new Reader(b);
+        while (!x.done() || !y.done()) {
+            if (x.isInsert()) {
+                int n = x.remaining();
+                a2.insert(x.text(n));
+                b2.retain(n);
+                x.take(n);
+            } else if (y.isInsert()) {
+                int n = y.remaining();
+                a2.retain(n);
+                b2.insert(y.text(n));
+                y.take(n);
+            } else {
+                int n = Math.min(x.remaining(), y.remaining());
+                if (x.isRetain() && y.isRetain()) {
+                    a2.retain(n);
+                    b2.retain(n);
+                } else if (x.isDelete() && y.isRetain()) {
+                    a2.delete(n);
+                } else if (x.isRetain() && y.isDelete()) {
+                    b2.delete(n);
+                }
+                // both deleting the same chars: neither needs to
+                x.take(n);
+                y.take(n);
+            }
+        }
+        return new TextOperation[]{a2, b2};
+    }
+
+    static final int MAX_STAGES = 256;
+
+    /*
+     * Transforms op against a run of consecutive concurrent operations, with the same result
+     * as transforming against each in turn, in a single pass. The stages are chained at most
+     * MAX_STAGES deep, since each one pulls from the one below it on the stack.
+     */
+    public static TextOperation transform(TextOperation op, List<TextOperation> concurrent) {
+        for (int from = 0; from < concurrent.size(); from += MAX_STAGES) {
+            Source s = new Reader(op);
+            for (int i = from; i < Math.min(from + MAX_STAGES, concurrent.size()); i++) {
+                TextOperation c = concurrent.get(i);
+                if (c.baseLength != (i == from ? op.baseLength : concurrent.get(i - 1).targetLength)) {
+                    throw new IllegalArgumentException("cannot transform: operation " + i + " does not follow on");
+                }
+                s = new Transformed(s, c);
+            }
+            TextOperation result = new TextOperation();
+            while (!s.done()) {
+                int n = s.remaining();
+                if (s.kind() > 0) result.retain(n);
+                else if (s.kind() < 0) result.delete(n);
+                else result.insert(s.text(n));
+                s.take(n);
+            }
+            op = result;
+        }
+        return op;
+    }
+
+    /* ---------------------------------------------------------------- server history */
+
+    public static final class History {
+        private final RopeDocument document;
+        private final List<TextOperation> ops = new ArrayList<>();
+
+        public History(RopeDocument document) {
+            this.document = document;
+        }
+
+        public int revision() {
+            return ops.size();
+        }
+
+        public RopeDocument document() {
+            return document;
+        }
+
+        public TextOperation get(int revision) {
+            return ops.get(revision);
+        }
+
+        /*
+         * Accepts an operation made at the given revision. It is transformed against everything
+         * since then, applied to the document and recorded; the result is what the other
+         * clients need to apply.
+         */
+        public TextOperation receive(TextOperation op, int revision) {
+            if (revision < 0 || revision > ops.size()) {
+                throw new IllegalArgumentException("revision " + revision + ", head " + ops.size());
+            }
+            op = transform(op, ops.subList(revision, ops.size()));
+            op.apply(document);
+            ops.add(op);
+            return op;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TextOperation)) return false;
+        TextOperation that = (TextOperation) o;
+        if (size != that.size || baseLength != that.baseLength) return false;
+        for (int i = 0; i < size; i++) {
+            if (codes[i] != that.codes[i] || !Objects.equals(texts[i], that.texts[i])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = baseLength;
+        for (int i = 0; i < size; i++) h = 31 * h + codes[i] + (texts[i] == null ? 0 : texts[i].hashCode());
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) sb.append(", ");
+            if (codes[i] > 0) sb.append("retain ").append(codes[i]);
+            else if (codes[i] < 0) sb.append("delete ").append(-codes[i]);
+            else sb.append("insert \"").append(texts[i]).append('"');
+        }
+        return sb.append(']').toString();
+    }
+
+    public static void main(String[] args) {
+        String doc = "go to the shop";
+        TextOperation alice = new TextOperation().retain(3).insert("not ").retain(11);
+        TextOperation bob = new TextOperation().retain(6).delete(4).insert("a ").retain(4);
+        TextOperation[] t = transform(alice, bob);
+        System.out.println(t[1].apply(alice.apply(doc)).equals(t[0].apply(bob.apply(doc))) + " "
+                + t[1].apply(alice.apply(doc)));                                        // true go not to a shop
+        TextOperation both = compose(alice, t[1]);
+        System.out.println(both + " -> " + both.apply(doc));
+
+        History server = new History(new RopeDocument(doc));
+        server.receive(alice, 0);
+        server.receive(bob, 0);
+        System.out.println(server.document() + ", revision " + server.revision());     // go not to a shop, revision 2
+    }
+}
@@ -0,0 +1,79 @@
+/* Alias method (Vose's variant) for sampling from a fixed discrete distribution
+   Construction splits the n outcomes into n equal-probability columns, each holding
+   at most two outcomes: the column's own outcome and an "alias" that fills the rest.
+   After O(n) setup, every sample costs one uniform column pick and one biased coin flip. */
+
+import java.util.*;
+
+public class AliasTable {
+
+    private final float[] prob;
+    private final int[] alias;
+
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        if (n == 0) throw new IllegalArgumentException("Distribution must not be empty");
+        prob = new float[n];
+        alias = new int[n];
+        double total = 0;
+        for (double w : weights) {
+            if (w < 0) throw new IllegalArgumentException("Weights must be non-negative");
+            total += w;
+        }
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            prob[s] = (float) scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+        // Leftovers are 1 up to rounding error
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            prob[l] = 1.0f;
+            alias[l] = l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            prob[s] = 1.0f;
+            alias[s] = s;
+        }
+    }
+
+    public int sample(Random rand) {
+        int column = rand.nextInt(prob.length);
+        return rand.nextFloat() < prob[column] ? column : alias[column];
+    }
+
+    public int size() {
+        return prob.length;
+    }
+
+    public static void main(String[] args) {
+        AliasTable table = new AliasTable(new double[]{0.5, 0.3, 0.15, 0.05});
+        int[] counts = new int[table.size()];
+        Random rand = new Random(1);
+        for (int i = 0; i < 1_000_000; i++) {
+            counts[table.sample(rand)]++;
+        }
+        System.out.println(Arrays.toString(counts));
+    }
+}
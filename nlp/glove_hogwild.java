@@ -0,0 +1,458 @@
+/*
+ GloVe with sharded co-occurrence counting and Hogwild training
+ Same model and cost function as GloVe, arranged for corpora that do not fit in memory:
+ 1. The corpus file is streamed once to build the vocabulary.
+ 2. It is streamed again and windowed co-occurrences are counted into a primitive
+    long -> float open-addressing map. When the map reaches its entry budget, it is
+    sorted by (i, j) and spilled to a shard file on disk.
+ 3. The sorted shards are k-way merged (summing duplicate pairs), and every merged
+    record is scattered to a random training shard, which shuffles the data.
+ 4. N threads train lock-free (Hogwild) with AdaGrad. Each reads its own training
+    shards in chunks and shuffles each chunk in memory.
+ Heap use is bounded by the map budget and the vocabulary, independent of corpus size.
+*/
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HogwildGloVe {
+
+    private static final int RECORD_BYTES = 12; // int i, int j, float x
+    private static final int CHUNK_RECORDS = 1 << 16;
+
+    private final int dim;
+    private final int windowSize;
+    private final int minCount;
+    private final int maxMapEntries;
+    private final int numThreads;
+    private final Path workDir;
+
+    private double learningRate = 0.05;
+    private double xMax = 100.0;
+    private double alpha = 0.75;
+
+    private Map<String, Integer> wordToIndex;
+    private String[] indexToWord;
+    private int vocabSize;
+
+    // Row i of W is wordVectors[i * dim .. (i + 1) * dim); contexts likewise
+    private float[] wordVectors;
+    private float[] contextVectors;
+    private float[] bias;
+    private float[] contextBias;
+    private float[] gradSqWord;
+    private float[] gradSqContext;
+    private float[] gradSqBias;
+    private float[] gradSqContextBias;
+
+    private final List<Path> trainingShards = new ArrayList<>();
+
+    public HogwildGloVe(int dim, int windowSize, int minCount, int maxMapEntries, int numThreads, Path workDir) {
+        this.dim = dim;
+        this.windowSize = windowSize;
+        this.minCount = minCount;
+        if (maxMapEntries > LongFloatHashMap.MAX_ENTRIES) {
+            throw new IllegalArgumentException("maxMapEntries must be at most " + LongFloatHashMap.MAX_ENTRIES);
+        }
+        this.maxMapEntries = maxMapEntries;
+        this.numThreads = numThreads;
+        this.workDir = workDir;
+    }
+
+    /* Primitive open-addressing map from packed (i, j) pairs to accumulated weights */
+    static final class LongFloatHashMap {
+        private static final long EMPTY = -1L;
+        // Twice this is the largest power-of-two array length
+        static final int MAX_ENTRIES = 1 << 29;
+        private long[] keys;
+        private float[] values;
+        private int mask;
+        private int size;
+
+        LongFloatHashMap(int expectedEntries) {
+            if (expectedEntries > MAX_ENTRIES) {
+                throw new IllegalArgumentException("At most " + MAX_ENTRIES + " entries, got " + expectedEntries);
+            }
+            int capacity = (int) Long.highestOneBit(Math.max(4, expectedEntries * 2L - 1)) << 1;
+            keys = new long[capacity];
+            values = new float[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        void add(long key, float delta) {
+            int slot = (int) mix(key) & mask;
+            while (true) {
+                long k = keys[slot];
+                if (k == key) {
+                    values[slot] += delta;
+                    return;
+                }
+                if (k == EMPTY) {
+                    keys[slot] = key;
+                    values[slot] = delta;
+                    size++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Compacts the live entries to the front of the arrays, sorted by key, and returns their count
+        int sortInPlace() {
+            int n = 0;
+            for (int s = 0; s < keys.length; s++) {
+                if (keys[s] != EMPTY) {
+                    keys[n] = keys[s];
+                    values[n] = values[s];
+                    n++;
+                }
+            }
+            sort(0, n - 1);
+            return n;
+        }
+
+        // Quicksort on the parallel key/value arrays, so spilling needs no extra memory
+        private void sort(int lo, int hi) {
+            while (hi - lo > 16) {
+                long pivot = keys[(lo + hi) >>> 1];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (keys[i] < pivot) i++;
+                    while (keys[j] > pivot) j--;
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller half to bound the stack depth
+                if (j - lo < hi - i) {
+                    sort(lo, j);
+                    lo = i;
+                } else {
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            long k = keys[a]; keys[a] = keys[b]; keys[b] = k;
+            float v = values[a]; values[a] = values[b]; values[b] = v;
+        }
+
+        void clear() {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+
+    /* Pass 1: vocabulary, most frequent words first */
+    public void buildVocabulary(Path corpus) throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(corpus)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String word : line.trim().split("\\s+")) {
+                    if (!word.isEmpty()) {
+                        counts.merge(word, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue() >= minCount) entries.add(e);
+        }
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        vocabSize = entries.size();
+        wordToIndex = new HashMap<>();
+        indexToWord = new String[vocabSize];
+        for (int i = 0; i < vocabSize; i++) {
+            indexToWord[i] = entries.get(i).getKey();
+            wordToIndex.put(indexToWord[i], i);
+        }
+    }
+
+    /* Pass 2: co-occurrence counting with sorted spills, then merge into shuffled training shards */
+    public void buildCooccurrence(Path corpus, long seed) throws IOException {
+        Files.createDirectories(workDir);
+        List<Path> spills = new ArrayList<>();
+        LongFloatHashMap map = new LongFloatHashMap(maxMapEntries);
+        int[] window = new int[windowSize];
+        try (BufferedReader reader = Files.newBufferedReader(corpus)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int filled = 0;
+                for (String word : line.trim().split("\\s+")) {
+                    Integer id = wordToIndex.get(word);
+                    if (id == null) continue;
+                    // window holds the previous windowSize ids as a ring, newest at (filled - 1) % windowSize
+                    for (int back = 1; back <= Math.min(filled, windowSize); back++) {
+                        int other = window[(filled - back) % windowSize];
+                        float weight = 1.0f / back;
+                        map.add(((long) id << 32) | other, weight);
+                        map.add(((long) other << 32) | id, weight);
+                    }
+                    window[filled % windowSize] = id;
+                    filled++;
+                    if (map.size() >= maxMapEntries - 2 * windowSize) {
+                        spills.add(spill(map, spills.size()));
+                    }
+                }
+            }
+        }
+        if (map.size() > 0) {
+            spills.add(spill(map, spills.size()));
+        }
+        mergeAndScatter(spills, new Random(seed));
+        for (Path spill : spills) {
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    private Path spill(LongFloatHashMap map, int index) throws IOException {
+        Path path = workDir.resolve("cooc-spill-" + index + ".bin");
+        int n = map.sortInPlace();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            for (int s = 0; s < n; s++) {
+                out.writeInt((int) (map.keys[s] >>> 32));
+                out.writeInt((int) map.keys[s]);
+                out.writeFloat(map.values[s]);
+            }
+        }
+        map.clear();
+        return path;
+    }
+
+    private static final class SpillReader {
+        final DataInputStream in;
+        long key;
+        float value;
+
+        SpillReader(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                int i = in.readInt();
+                int j = in.readInt();
+                key = ((long) i << 32) | (j & 0xffffffffL);
+                value = in.readFloat();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+    }
+
+    private void mergeAndScatter(List<Path> spills, Random rand) throws IOException {
+        int numShards = numThreads * 4;
+        DataOutputStream[] outs = new DataOutputStream[numShards];
+        trainingShards.clear();
+        for (int s = 0; s < numShards; s++) {
+            Path path = workDir.resolve("cooc-shard-" + s + ".bin");
+            trainingShards.add(path);
+            outs[s] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        }
+        PriorityQueue<SpillReader> heap = new PriorityQueue<>((a, b) -> Long.compare(a.key, b.key));
+        for (Path spill : spills) {
+            SpillReader reader = new SpillReader(spill);
+            if (reader.next()) heap.add(reader);
+        }
+        while (!heap.isEmpty()) {
+            SpillReader head = heap.poll();
+            long key = head.key;
+            float sum = head.value;
+            if (head.next()) heap.add(head);
+            while (!heap.isEmpty() && heap.peek().key == key) {
+                SpillReader same = heap.poll();
+                sum += same.value;
+                if (same.next()) heap.add(same);
+            }
+            DataOutputStream out = outs[rand.nextInt(numShards)];
+            out.writeInt((int) (key >>> 32));
+            out.writeInt((int) key);
+            out.writeFloat(sum);
+        }
+        for (DataOutputStream out : outs) {
+            out.close();
+        }
+    }
+
+    private void initParameters(long seed) {
+        Random rand = new Random(seed);
+        wordVectors = new float[vocabSize * dim];
+        contextVectors = new float[vocabSize * dim];
+        for (int i = 0; i < wordVectors.length; i++) {
+            wordVectors[i] = (float) ((rand.nextDouble() - 0.5) / dim);
+            contextVectors[i] = (float) ((rand.nextDouble() - 0.5) / dim);
+        }
+        bias = new float[vocabSize];
+        contextBias = new float[vocabSize];
+        gradSqWord = new float[vocabSize * dim];
+        gradSqContext = new float[vocabSize * dim];
+        gradSqBias = new float[vocabSize];
+        gradSqContextBias = new float[vocabSize];
+        Arrays.fill(gradSqWord, 1f);
+        Arrays.fill(gradSqContext, 1f);
+        Arrays.fill(gradSqBias, 1f);
+        Arrays.fill(gradSqContextBias, 1f);
+    }
+
+    /* Hogwild AdaGrad: threads update the shared parameter arrays without locking */
+    public void train(int epochs, long seed) throws IOException, InterruptedException {
+        initParameters(seed);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                List<Future<double[]>> futures = new ArrayList<>();
+                for (int t = 0; t < numThreads; t++) {
+                    final int thread = t;
+                    final long threadSeed = seed * 31 + epoch * 1009L + t;
+                    futures.add(pool.submit(() -> trainShards(thread, threadSeed)));
+                }
+                double cost = 0;
+                long records = 0;
+                for (Future<double[]> future : futures) {
+                    try {
+                        double[] result = future.get();
+                        cost += result[0];
+                        records += (long) result[1];
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause());
+                    }
+                }
+                System.out.printf("Epoch %d completed, cost %.6f over %d records%n",
+                        epoch + 1, cost / Math.max(1, records), records);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private double[] trainShards(int thread, long seed) throws IOException {
+        Random rand = new Random(seed);
+        int[] is = new int[CHUNK_RECORDS];
+        int[] js = new int[CHUNK_RECORDS];
+        float[] xs = new float[CHUNK_RECORDS];
+        double cost = 0;
+        long records = 0;
+        for (int s = thread; s < trainingShards.size(); s += numThreads) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(trainingShards.get(s)), 1 << 16))) {
+                long remaining = Files.size(trainingShards.get(s)) / RECORD_BYTES;
+                while (remaining > 0) {
+                    int n = (int) Math.min(CHUNK_RECORDS, remaining);
+                    for (int r = 0; r < n; r++) {
+                        is[r] = in.readInt();
+                        js[r] = in.readInt();
+                        xs[r] = in.readFloat();
+                    }
+                    remaining -= n;
+                    for (int r = n - 1; r > 0; r--) {
+                        int q = rand.nextInt(r + 1);
+                        int ti = is[r]; is[r] = is[q]; is[q] = ti;
+                        int tj = js[r]; js[r] = js[q]; js[q] = tj;
+                        float tx = xs[r]; xs[r] = xs[q]; xs[q] = tx;
+                    }
+                    for (int r = 0; r < n; r++) {
+                        cost += update(is[r], js[r], xs[r]);
+                    }
+                    records += n;
+                }
+            }
+        }
+        return new double[]{cost, records};
+    }
+
+    private double update(int i, int j, float xij) {
+        int wi = i * dim;
+        int cj = j * dim;
+        double dot = 0;
+        for (int d = 0; d < dim; d++) {
+            dot += wordVectors[wi + d] * contextVectors[cj + d];
+        }
+        double diff = dot + bias[i] + contextBias[j] - Math.log(xij);
+        double weight = xij < xMax ? Math.pow(xij / xMax, alpha) : 1.0;
+        double fdiff = weight * diff;
+        for (int d = 0; d < dim; d++) {
+            double gw = fdiff * contextVectors[cj + d];
+            double gc = fdiff * wordVectors[wi + d];
+            wordVectors[wi + d] -= (float) (learningRate * gw / Math.sqrt(gradSqWord[wi + d]));
+            contextVectors[cj + d] -= (float) (learningRate * gc / Math.sqrt(gradSqContext[cj + d]));
+            gradSqWord[wi + d] += (float) (gw * gw);
+            gradSqContext[cj + d] += (float) (gc * gc);
+        }
+        bias[i] -= (float) (learningRate * fdiff / Math.sqrt(gradSqBias[i]));
+        contextBias[j] -= (float) (learningRate * fdiff / Math.sqrt(gradSqContextBias[j]));
+        gradSqBias[i] += (float) (fdiff * fdiff);
+        gradSqContextBias[j] += (float) (fdiff * fdiff);
+        return 0.5 * weight * diff * diff;
+    }
+
+    /* Word vector plus context vector, as in the reference implementation */
+    public float[] getVector(String word) {
+        Integer idx = wordToIndex.get(word);
+        if (idx == null) return null;
+        float[] vec = new float[dim];
+        for (int d = 0; d < dim; d++) {
+            vec[d] = wordVectors[idx * dim + d] + contextVectors[idx * dim + d];
+        }
+        return vec;
+    }
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    public void deleteShards() throws IOException {
+        for (Path shard : trainingShards) {
+            Files.deleteIfExists(shard);
+        }
+    }
+
+    /* Example usage */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("glove");
+        Path corpus = dir.resolve("corpus.txt");
+        String[] sentences = {
+            "the cat sat on the mat",
+            "the dog sat on the rug",
+            "a cat and a dog played on the mat"
+        };
+        try (BufferedWriter writer = Files.newBufferedWriter(corpus)) {
+            for (int r = 0; r < 200; r++) {
+                writer.write(sentences[r % sentences.length]);
+                writer.newLine();
+            }
+        }
+        // A tiny map budget forces several spills so the merge path is exercised
+        HogwildGloVe glove = new HogwildGloVe(16, 3, 1, 64, 4, dir);
+        glove.buildVocabulary(corpus);
+        glove.buildCooccurrence(corpus, 1);
+        glove.train(10, 42);
+        System.out.println("Vector for 'cat': " + Arrays.toString(glove.getVector("cat")));
+        glove.deleteShards();
+    }
+}
@@ -0,0 +1,219 @@
+/* Top-k / top-p sampling directly over a float[] logits array
+   Unlike TopPSampler, nothing is boxed and the vocabulary is never fully sorted:
+   - top-k: quickselect partitions the k largest logits to the front in O(V).
+   - top-p: the pass that computes the softmax normalizer also builds a histogram of
+     probability mass over log-probability buckets. The bucket where the cumulative
+     mass reaches p is found, tokens above it are partitioned to the front, and only
+     the tokens in that boundary bucket are sorted to find the exact cut.
+   The exponentials are computed once per call into a reusable buffer, and sampling
+   touches only the retained candidates. All buffers are allocated once, so a
+   sampler can be reused for every token without allocating. */
+
+import java.util.*;
+
+public class LogitsSampler {
+
+    // Histogram of (max - logit) / T in steps of 1/32, everything past 32 in the last bucket
+    private static final int BUCKETS = 1025;
+    private static final float BUCKET_SCALE = 32f;
+
+    private final int[] index;
+    private final float[] weights;
+    private final double[] bucketMass = new double[BUCKETS];
+    private final Random rand;
+
+    public LogitsSampler(int vocabSize, long seed) {
+        this.index = new int[vocabSize];
+        this.weights = new float[vocabSize];
+        this.rand = new Random(seed);
+    }
+
+    /**
+     * Samples a token id.
+     *
+     * @param logits      raw scores, length at most the sampler's vocabulary size
+     * @param temperature divides the logits; must be > 0
+     * @param topK        keep at most this many candidates, or 0 for no limit
+     * @param topP        keep the smallest prefix whose probability reaches topP, or 1 for no limit
+     */
+    public int sample(float[] logits, float temperature, int topK, float topP) {
+        int n = logits.length;
+        int[] idx = index;
+        for (int i = 0; i < n; i++) {
+            idx[i] = i;
+        }
+        float invT = 1.0f / temperature;
+
+        int limit = topK > 0 ? Math.min(topK, n) : n;
+        if (limit < n) {
+            select(logits, idx, 0, n - 1, limit);
+        }
+
+        float max = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < limit; c++) {
+            max = Math.max(max, logits[idx[c]]);
+        }
+        boolean nucleus = topP < 1.0f;
+        double[] mass = bucketMass;
+        if (nucleus) {
+            Arrays.fill(mass, 0);
+        }
+        // Unnormalized weights of the candidate pool indexed by token id, plus their histogram
+        float[] w = weights;
+        double z = 0;
+        for (int c = 0; c < limit; c++) {
+            int token = idx[c];
+            float delta = (max - logits[token]) * invT;
+            float e = (float) Math.exp(-delta);
+            w[token] = e;
+            z += e;
+            if (nucleus) {
+                mass[bucket(delta)] += e;
+            }
+        }
+
+        int keep = limit;
+        if (nucleus) {
+            double target = topP * z;
+            double before = 0;
+            int cut = 0;
+            while (cut < BUCKETS - 1 && before + mass[cut] < target) {
+                before += mass[cut++];
+            }
+            // Tokens in buckets above the cut are all in the nucleus; the cut bucket goes right after them
+            int front = 0;
+            for (int c = 0; c < limit; c++) {
+                int token = idx[c];
+                if (bucket((max - logits[token]) * invT) < cut) {
+                    idx[c] = idx[front];
+                    idx[front++] = token;
+                }
+            }
+            int boundary = front;
+            for (int c = front; c < limit; c++) {
+                int token = idx[c];
+                if (bucket((max - logits[token]) * invT) == cut) {
+                    idx[c] = idx[boundary];
+                    idx[boundary++] = token;
+                }
+            }
+            sortDescending(logits, idx, front, boundary - 1);
+            keep = boundary;
+            for (int c = front; c < boundary; c++) {
+                before += w[idx[c]];
+                if (before >= target) {
+                    keep = c + 1;
+                    break;
+                }
+            }
+        }
+
+        float total = 0;
+        for (int c = 0; c < keep; c++) {
+            total += w[idx[c]];
+        }
+        float r = rand.nextFloat() * total;
+        for (int c = 0; c < keep; c++) {
+            r -= w[idx[c]];
+            if (r <= 0) {
+                return idx[c];
+            }
+        }
+        return idx[keep - 1];
+    }
+
+    public int sampleTopP(float[] logits, float topP) {
+        return sample(logits, 1.0f, 0, topP);
+    }
+
+    private static int bucket(float delta) {
+        return (int) Math.min(BUCKETS - 1, delta * BUCKET_SCALE);
+    }
+
+    // Partitions idx[lo..hi] so that the k largest logits occupy idx[lo .. lo + k)
+    private static void select(float[] logits, int[] idx, int lo, int hi, int k) {
+        int target = lo + k - 1;
+        while (lo < hi) {
+            long bounds = partition(logits, idx, lo, hi);
+            int lt = (int) (bounds >>> 32);
+            int gt = (int) bounds;
+            if (target < lt) {
+                hi = lt - 1;
+            } else if (target > gt) {
+                lo = gt + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /* Three-way partition in descending order around a median-of-three pivot, so runs of
+       equal logits (e.g. masked tokens at -infinity) do not degrade to quadratic time.
+       Returns lt << 32 | gt where idx[lt..gt] equal the pivot. */
+    private static long partition(float[] logits, int[] idx, int lo, int hi) {
+        int mid = (lo + hi) >>> 1;
+        if (logits[idx[mid]] > logits[idx[lo]]) swap(idx, mid, lo);
+        if (logits[idx[hi]] > logits[idx[lo]]) swap(idx, hi, lo);
+        if (logits[idx[mid]] > logits[idx[hi]]) swap(idx, mid, hi);
+        float pivot = logits[idx[hi]];
+        int lt = lo;
+        int gt = hi;
+        int i = lo;
+        while (i <= gt) {
+            float v = logits[idx[i]];
+            if (v > pivot) {
+                swap(idx, i++, lt++);
+            } else if (v < pivot) {
+                swap(idx, i, gt--);
+            } else {
+                i++;
+            }
+        }
+        return ((long) lt << 32) | gt;
+    }
+
+    private static void sortDescending(float[] logits, int[] idx, int lo, int hi) {
+        while (hi - lo > 16) {
+            long bounds = partition(logits, idx, lo, hi);
+            int lt = (int) (bounds >>> 32);
+            int gt = (int) bounds;
+            if (lt - lo < hi - gt) {
+                sortDescending(logits, idx, lo, lt - 1);
+                lo = gt + 1;
+            } else {
+                sortDescending(logits, idx, gt + 1, hi);
+                hi = lt - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && logits[idx[j - 1]] < logits[idx[j]]; j--) {
+                swap(idx, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(int[] idx, int a, int b) {
+        int t = idx[a];
+        idx[a] = idx[b];
+        idx[b] = t;
+    }
+
+    public static void main(String[] args) {
+        int vocab = 128 * 1024;
+        Random rand = new Random(7);
+        float[] logits = new float[vocab];
+        for (int i = 0; i < vocab; i++) {
+            logits[i] = (float) (rand.nextGaussian() * 3);
+        }
+        LogitsSampler sampler = new LogitsSampler(vocab, 1);
+        System.out.println("top-p token: " + sampler.sampleTopP(logits, 0.9f));
+        System.out.println("top-k token: " + sampler.sample(logits, 0.8f, 40, 1.0f));
+
+        int iterations = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sampler.sample(logits, 1.0f, 0, 0.9f);
+        }
+        System.out.printf("%.3f ms per top-p sample at V=%d%n", (System.nanoTime() - start) / 1e6 / iterations, vocab);
+    }
+}
@@ -11,6 +11,18 @@ public class MarkovChainGenerator {
     private final int order; // n-gram order
     private final Map<List<String>, List<String>> transitions = new HashMap<>();
     private final Random rand = new Random();
+    // Per-state alias tables over the distinct successors, rebuilt after the chain changes
+    private Map<List<String>, Successors> compiled;
+
+    private static final class Successors {
+        final String[] words;
+        final AliasTable table;
+
+        Successors(String[] words, AliasTable table) {
+            this.words = words;
+            this.table = table;
+        }
+    }
 
     public MarkovChainGenerator(int order) {
         if (order <= 0) throw new IllegalArgumentException("Order must be > 0");
@@ -26,18 +38,40 @@ public class MarkovChainGenerator {
             String next = words[i + order];
             transitions.computeIfAbsent(key, k -> new ArrayList<>()).add(next);
         }
+        compiled = null;
+    }
+
+    /* Collapse each successor list into distinct words weighted by count */
+    public void compile() {
+        compiled = new HashMap<>();
+        for (Map.Entry<List<String>, List<String>> entry : transitions.entrySet()) {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (String word : entry.getValue()) {
+                counts.merge(word, 1, Integer::sum);
+            }
+            String[] words = new String[counts.size()];
+            double[] weights = new double[counts.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                words[i] = count.getKey();
+                weights[i] = count.getValue();
+                i++;
+            }
+            compiled.put(entry.getKey(), new Successors(words, new AliasTable(weights)));
+        }
     }
 
     /* Generate a sequence of words with the specified length */
     public String generate(int length) {
         if (transitions.isEmpty()) throw new IllegalStateException("Chain not built");
+        if (compiled == null) compile();
         List<String> current = new ArrayList<>(transitions.keySet().iterator().next());
         StringBuilder sb = new StringBuilder(String.join(" ", current));
 
         for (int i = 0; i < length; i++) {
-            List<String> nextWords = transitions.get(current);
-            if (nextWords == null) break;
-            String next = nextWords.get(rand.nextInt(nextWords.size()));
+            Successors successors = compiled.get(current);
+            if (successors == null) break;
+            String next = successors.words[successors.table.sample(rand)];
             sb.append(" ").append(next);R1
             current.add(next);
             current.remove(0);
@@ -21,6 +21,48 @@ class AlphaBeta {
         return maxValue(root, Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
 
+    // Same search, memoizing bounds in a transposition table keyed by keyOf (which must tell the two sides apart)
+    public static int alphaBeta(Node root, TranspositionTable tt, java.util.function.ToLongFunction<Node> keyOf) {
+        tt.newSearch();
+        return search(root, Integer.MIN_VALUE, Integer.MAX_VALUE, true, tt, keyOf);
+    }
+
+    private static int search(Node node, int alpha, int beta, boolean maximizing,
+                              TranspositionTable tt, java.util.function.ToLongFunction<Node> keyOf) {
+        if (node.isTerminal()) {
+            return node.getValue();
+        }
+        long key = keyOf.applyAsLong(node);
+        long entry = tt.probe(key);
+        int bound = TranspositionTable.bound(entry);
+        int stored = TranspositionTable.value(entry);
+        if (bound == TranspositionTable.EXACT
+                || bound == TranspositionTable.LOWER && stored >= beta
+                || bound == TranspositionTable.UPPER && stored <= alpha) {
+            return stored;
+        }
+        int a = alpha;
+        int b = beta;
+        int v = maximizing ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        for (Node child : node.getChildren()) {
+            int value = search(child, a, b, !maximizing, tt, keyOf);
+            if (maximizing) {
+                v = Math.max(v, value);
+                a = Math.max(a, v);
+            } else {
+                v = Math.min(v, value);
+                b = Math.min(b, v);
+            }
+            if (b <= a) {
+                break;
+            }
+        }
+        // Terminal states are solved exactly, so the entries carry the maximum depth
+        int newBound = v <= alpha ? TranspositionTable.UPPER : v >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+        tt.store(key, v, -1, 255, newBound);
+        return v;
+    }
+
     private static int maxValue(Node node, int alpha, int beta) {
         if (node.isTerminal()) {
             return node.getValue();
@@ -81,4 +81,26 @@ public class AStar {
         }
         return Collections.emptyList(); // No path found
     }
+
+    /* One open grid per thread, kept while the size stays the same, so repeated queries reuse its search state. */
+    private static final ThreadLocal<GridPathfinder> OPEN_GRID = new ThreadLocal<>();
+
+    /* Same query on GridPathfinder's flat arrays and bucket queue. */
+    public static List<Node> findPathFast(int width, int height,
+                                          int startX, int startY,
+                                          int goalX, int goalY) {
+        GridPathfinder grid = OPEN_GRID.get();
+        if (grid == null || grid.width() != width || grid.height() != height) {
+            grid = new GridPathfinder(width, height);
+            OPEN_GRID.set(grid);
+        }
+        int[] cells = grid.findPath(startX, startY, goalX, goalY, GridPathfinder.Mode.ASTAR_4);
+        List<Node> path = new ArrayList<>();
+        for (int i = 0; cells != null && i < cells.length; i++) {
+            Node n = new Node(cells[i] % width, cells[i] / width);
+            n.gScore = i;
+            path.add(n);
+        }
+        return path;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,769 @@
+/*
+ * Block-Max WAND index for learned sparse retrieval
+ * Postings are doc-ID-sorted (docId, impact) pairs, where impact is the quantized term
+ * weight of a document (e.g. a SPLADE weight, or the term frequency). Each posting list
+ * is cut into blocks of 128. A block stores its doc gaps and then its impacts as LEB128
+ * varints. A skip table per term keeps each block's last doc ID, maximum impact and byte
+ * offset, so a cursor can jump past whole blocks and bound their score without decoding.
+ *
+ * Documents are buffered in memory and flushed into immutable segment files, which are
+ * opened with a MappedByteBuffer. When too many segments pile up, a background thread
+ * merges the smallest ones into a new file and swaps it in atomically.
+ *
+ * Queries use Block-Max WAND (Ding and Suel, 2011). Cursors are kept sorted by current
+ * doc. The pivot is the first doc whose summed term upper bounds can beat the current
+ * top-k threshold. That doc is scored only if the block maxima of the cursors at or
+ * before the pivot also beat the threshold. Otherwise every cursor jumps past the
+ * nearest block boundary.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BlockMaxWandIndex implements Closeable {
+
+    static final int BLOCK = 128;
+    private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+    private static final int MAGIC = 0x4C535249; // "LSRI"
+    private static final int SKIP_ENTRY = 12;     // lastDoc, maxImpact, offset
+
+    private final Path directory;
+    private volatile List<Segment> segments = Collections.emptyList();
+    private final Set<Segment> merging = new HashSet<>();
+    private Exception mergeFailure;   // first failed background merge, reported by awaitMerges
+    private final Set<Path> pendingDeletes = new LinkedHashSet<>();   // merged-away files not yet deleted
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "segment-merger");
+        t.setDaemon(true);
+        return t;
+    });
+    private int nextGeneration;
+    private int mergeFactor = 8;
+    private long maxSegmentBytes = 1L << 30;
+    private long flushPostings = 4_000_000;
+
+    // In-memory buffer of postings packed as docId << 32 | impact
+    private final Map<String, LongList> buffer = new HashMap<>();
+    private long bufferedPostings;
+
+    public BlockMaxWandIndex(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Segment> open = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory, "segment-*.bmw")) {
+            for (Path p : dir) {
+                open.add(new Segment(p));
+                String name = p.getFileName().toString();
+                int generation = Integer.parseInt(name.substring(8, name.length() - 4));
+                nextGeneration = Math.max(nextGeneration, generation + 1);
+            }
+        }
+        segments = Collections.unmodifiableList(open);
+    }
+
+    public void setMergeFactor(int mergeFactor) {
+        this.mergeFactor = mergeFactor;
+    }
+
+    // Postings buffered before an automatic flush
+    public void setFlushThreshold(long postings) {
+        this.flushPostings = postings;
+    }
+
+    /* ---------------------------------------------------------------- indexing */
+
+    /*
+     * Doc IDs must be non-negative and unique across the whole index. Every posting of a
+     * document has to land in the same segment, because each segment is searched on its
+     * own, so this never flushes; addDocument checks the threshold once the whole document
+     * is buffered.
+     */
+    public synchronized void addPosting(String term, int docId, int impact) {
+        if (docId < 0 || impact < 0) throw new IllegalArgumentException("Negative doc ID or impact");
+        buffer.computeIfAbsent(term, k -> new LongList()).add((long) docId << 32 | impact);
+        bufferedPostings++;
+    }
+
+    public synchronized void addDocument(int docId, Map<String, Integer> impacts) throws IOException {
+        for (Map.Entry<String, Integer> e : impacts.entrySet()) {
+            addPosting(e.getKey(), docId, e.getValue());
+        }
+        if (bufferedPostings >= flushPostings) {
+            flush();
+        }
+    }
+
+    // Term frequencies as impacts, tokenized like LearnedSparseRetrieval
+    public void addDocument(int docId, String text) throws IOException {
+        Map<String, Integer> freq = new HashMap<>();
+        for (String t : text.toLowerCase().split("\\s+")) {
+            freq.merge(t, 1, Integer::sum);
+        }
+        addDocument(docId, freq);
+    }
+
+    /* Writes the buffered postings as a new immutable segment */
+    public synchronized void flush() throws IOException {
+        if (buffer.isEmpty()) return;
+        Path path = directory.resolve(segmentName(nextGeneration++));
+        try (SegmentWriter writer = new SegmentWriter(path)) {
+            for (String term : new TreeSet<>(buffer.keySet())) {
+                LongList postings = buffer.get(term);
+                Arrays.sort(postings.data, 0, postings.size);
+                writer.addTerm(term, postings.data, postings.size);
+            }
+        }
+        buffer.clear();
+        bufferedPostings = 0;
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(new Segment(path));
+        segments = Collections.unmodifiableList(next);
+        maybeMerge();
+    }
+
+    private static String segmentName(int generation) {
+        return String.format("segment-%08d.bmw", generation);
+    }
+
+    // Picks the smallest segments not already being merged, up to maxSegmentBytes in total
+    private synchronized void maybeMerge() {
+        List<Segment> candidates = new ArrayList<>();
+        for (Segment s : segments) {
+            if (!merging.contains(s)) candidates.add(s);
+        }
+        if (candidates.size() < mergeFactor) return;
+        candidates.sort(Comparator.comparingLong(s -> s.sizeBytes));
+        List<Segment> picked = new ArrayList<>();
+        long total = 0;
+        for (Segment s : candidates) {
+            if (picked.size() == mergeFactor || total + s.sizeBytes > maxSegmentBytes) break;
+            picked.add(s);
+            total += s.sizeBytes;
+        }
+        if (picked.size() < 2) return;
+        merging.addAll(picked);
+        Path path = directory.resolve(segmentName(nextGeneration++));
+        merger.submit(() -> {
+            Segment merged;
+            try {
+                merged = writeMerged(picked, path);
+            } catch (Exception e) {
+                // The inputs stay live and can be picked again; a half-written output must not be opened later
+                synchronized (this) {
+                    merging.removeAll(picked);
+                    if (mergeFailure == null) mergeFailure = e;
+                    else mergeFailure.addSuppressed(e);
+                }
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".tmp"));
+                return null;
+            }
+            synchronized (this) {
+                List<Segment> next = new ArrayList<>(segments);
+                next.removeAll(picked);
+                next.add(merged);
+                segments = Collections.unmodifiableList(next);
+                merging.removeAll(picked);
+                for (Segment s : picked) pendingDeletes.add(s.path);
+            }
+            // From here on the merged segment is live; failures only leave stale files behind
+            deletePending();
+            maybeMerge();
+            return null;
+        });
+    }
+
+    // Writes the inputs' postings into a new segment and opens it; the caller swaps it in
+    private Segment writeMerged(List<Segment> inputs, Path path) throws IOException {
+        TreeSet<String> terms = new TreeSet<>();
+        for (Segment s : inputs) terms.addAll(s.terms.keySet());
+        try (SegmentWriter writer = new SegmentWriter(path)) {
+            LongList postings = new LongList();
+            for (String term : terms) {
+                postings.size = 0;
+                for (Segment s : inputs) {
+                    int[] entry = s.terms.get(term);
+                    if (entry != null) s.readPostings(entry, postings);
+                }
+                Arrays.sort(postings.data, 0, postings.size);
+                writer.addTerm(term, postings.data, postings.size);
+            }
+        }
+        return new Segment(path);
+    }
+
+    /*
+     * Deletes the files of merged-away segments. Readers that still hold the old segments keep
+     * their mappings alive. A file that cannot be deleted yet (still mapped on Windows, say) is
+     * kept in the list and retried after the next merge and on close; until then a reopen
+     * would see its documents twice.
+     */
+    private void deletePending() {
+        List<Path> paths;
+        synchronized (this) {
+            paths = new ArrayList<>(pendingDeletes);
+        }
+        for (Path p : paths) {
+            try {
+                Files.deleteIfExists(p);
+                synchronized (this) {
+                    pendingDeletes.remove(p);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not delete merged segment " + p + ", will retry: " + e);
+            }
+        }
+    }
+
+    // Blocks until background merges, including those they cascade into, are done; rethrows a failed one
+    public void awaitMerges() throws InterruptedException, ExecutionException {
+        while (true) {
+            merger.submit(() -> { }).get();
+            synchronized (this) {
+                if (mergeFailure != null) {
+                    Exception e = mergeFailure;
+                    mergeFailure = null;
+                    throw new ExecutionException("Background merge failed", e);
+                }
+                if (merging.isEmpty()) return;
+            }
+        }
+    }
+
+    public int numSegments() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        merger.shutdown();
+        try {
+            merger.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deletePending();
+    }
+
+    /* ---------------------------------------------------------------- segment files */
+
+    /*
+     * Layout: per term a skip table (lastDoc, maxImpact, offset per block) followed by
+     * the blocks; then the dictionary (term, df, maxImpact, numBlocks, skip offset);
+     * then a footer (dictionary offset, term count, magic). Offsets are ints, so a
+     * segment stays below 2 GB.
+     */
+    static final class SegmentWriter implements Closeable {
+        private final Path path;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        private final DataOutputStream dict = new DataOutputStream(dictionary);
+        private final byte[] blockBytes = new byte[BLOCK * 10];
+        private final int[] skip = new int[3];
+        private long offset;
+        private int numTerms;
+
+        SegmentWriter(Path path) throws IOException {
+            this.path = path;
+            this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+        }
+
+        void addTerm(String term, long[] postings, int n) throws IOException {
+            if (n == 0) return;
+            int numBlocks = (n + BLOCK - 1) / BLOCK;
+            // First pass: encode blocks to learn their sizes for the skip table
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int[] skipTable = new int[numBlocks * 3];
+            int maxImpact = 0;
+            int prev = -1;
+            for (int b = 0; b < numBlocks; b++) {
+                int from = b * BLOCK;
+                int to = Math.min(n, from + BLOCK);
+                int pos = 0;
+                int blockMax = 0;
+                for (int i = from; i < to; i++) {
+                    int doc = (int) (postings[i] >>> 32);
+                    if (doc <= prev) throw new IllegalStateException("Duplicate doc " + doc + " for term " + term);
+                    pos = LEB128.putUnsigned(blockBytes, pos, doc - prev);
+                    prev = doc;
+                }
+                for (int i = from; i < to; i++) {
+                    int impact = (int) postings[i];
+                    pos = LEB128.putUnsigned(blockBytes, pos, impact);
+                    blockMax = Math.max(blockMax, impact);
+                }
+                skipTable[3 * b] = prev;
+                skipTable[3 * b + 1] = blockMax;
+                skipTable[3 * b + 2] = data.size();
+                data.write(blockBytes, 0, pos);
+                maxImpact = Math.max(maxImpact, blockMax);
+            }
+            long skipOffset = offset;
+            for (int v : skipTable) out.writeInt(v);
+            data.writeTo(out);
+            offset += 4L * skipTable.length + data.size();
+            if (offset > Integer.MAX_VALUE) throw new IOException("Segment exceeds 2 GB");
+
+            byte[] utf = term.getBytes(StandardCharsets.UTF_8);
+            dict.writeShort(utf.length);
+            dict.write(utf);
+            dict.writeInt(n);
+            dict.writeInt(maxImpact);
+            dict.writeInt(numBlocks);
+            dict.writeInt((int) skipOffset);
+            numTerms++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            dict.flush();
+            dictionary.writeTo(out);
+            out.writeLong(offset);
+            out.writeInt(numTerms);
+            out.writeInt(MAGIC);
+            out.close();
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final long sizeBytes;
+        // term -> {df, maxImpact, numBlocks, skipOffset}
+        final Map<String, int[]> terms = new HashMap<>();
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                sizeBytes = channel.size();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, sizeBytes);
+            }
+            int footer = (int) sizeBytes - 16;
+            if (buffer.getInt(footer + 12) != MAGIC) throw new IOException("Not a segment: " + path);
+            int dictOffset = (int) buffer.getLong(footer);
+            int numTerms = buffer.getInt(footer + 8);
+            ByteBuffer dict = buffer.duplicate();
+            dict.position(dictOffset);
+            for (int t = 0; t < numTerms; t++) {
+                int length = dict.getShort() & 0xffff;
+                byte[] utf = new byte[length];
+                dict.get(utf);
+                String term = new String(utf, StandardCharsets.UTF_8);
+                terms.put(term, new int[]{dict.getInt(), dict.getInt(), dict.getInt(), dict.getInt()});
+            }
+        }
+
+        // Appends the packed postings of a term, used when merging
+        void readPostings(int[] entry, LongList out) {
+            Cursor cursor = new Cursor(this, entry, 1f);
+            while (cursor.doc != NO_MORE_DOCS) {
+                out.add((long) cursor.doc << 32 | cursor.impacts[cursor.pos]);
+                cursor.next();
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------- posting cursors */
+
+    static final class Cursor {
+        final ByteBuffer view;
+        final ByteBuffer skips;
+        final int df;
+        final int numBlocks;
+        final int skipOffset;
+        final int dataOffset;
+        final float weight;
+        final float maxScore;
+        final int[] docs = new int[BLOCK];
+        final int[] impacts = new int[BLOCK];
+        int block;
+        int shallowBlock;
+        int count;
+        int pos;
+        int doc;
+
+        Cursor(Segment segment, int[] entry, float weight) {
+            this.skips = segment.buffer;
+            this.view = segment.buffer.duplicate();
+            this.df = entry[0];
+            this.numBlocks = entry[2];
+            this.skipOffset = entry[3];
+            this.dataOffset = skipOffset + numBlocks * SKIP_ENTRY;
+            this.weight = weight;
+            this.maxScore = weight * entry[1];
+            decode(0);
+            doc = docs[0];
+        }
+
+        int lastDoc(int b) {
+            return skips.getInt(skipOffset + b * SKIP_ENTRY);
+        }
+
+        private void decode(int b) {
+            block = b;
+            shallowBlock = Math.max(shallowBlock, b);
+            view.position(dataOffset + skips.getInt(skipOffset + b * SKIP_ENTRY + 8));
+            count = b == numBlocks - 1 ? df - b * BLOCK : BLOCK;
+            int prev = b == 0 ? -1 : lastDoc(b - 1);
+            for (int i = 0; i < count; i++) {
+                prev += (int) LEB128.getUnsigned(view);
+                docs[i] = prev;
+            }
+            for (int i = 0; i < count; i++) {
+                impacts[i] = (int) LEB128.getUnsigned(view);
+            }
+            pos = 0;
+        }
+
+        void next() {
+            if (++pos < count) {
+                doc = docs[pos];
+            } else if (block + 1 < numBlocks) {
+                decode(block + 1);
+                doc = docs[0];
+            } else {
+                doc = NO_MORE_DOCS;
+            }
+        }
+
+        // Moves to the first doc >= target
+        void advance(int target) {
+            if (doc >= target) return;
+            int b = block;
+            while (b < numBlocks && lastDoc(b) < target) b++;
+            if (b == numBlocks) {
+                doc = NO_MORE_DOCS;
+                return;
+            }
+            if (b != block) decode(b);
+            while (docs[pos] < target) pos++;
+            doc = docs[pos];
+        }
+
+        // Moves the block-max window to the block that would contain target, without decoding
+        void shallowAdvance(int target) {
+            while (shallowBlock < numBlocks && lastDoc(shallowBlock) < target) shallowBlock++;
+        }
+
+        float blockMaxScore() {
+            return shallowBlock < numBlocks ? weight * skips.getInt(skipOffset + shallowBlock * SKIP_ENTRY + 4) : 0f;
+        }
+
+        int blockLastDoc() {
+            return shallowBlock < numBlocks ? lastDoc(shallowBlock) : NO_MORE_DOCS;
+        }
+
+        float score() {
+            return weight * impacts[pos];
+        }
+    }
+
+    /* ---------------------------------------------------------------- querying */
+
+    // Min-heap of the best k (score, doc) pairs
+    static final class TopK {
+        final float[] scores;
+        final int[] docs;
+        int size;
+
+        TopK(int k) {
+            scores = new float[k];
+            docs = new int[k];
+        }
+
+        float threshold() {
+            return size < scores.length ? 0f : scores[0];
+        }
+
+        void insert(int doc, float score) {
+            if (size < scores.length) {
+                int i = size++;
+                while (i > 0 && scores[(i - 1) >> 1] > score) {
+                    scores[i] = scores[(i - 1) >> 1];
+                    docs[i] = docs[(i - 1) >> 1];
+                    i = (i - 1) >> 1;
+                }
+                scores[i] = score;
+                docs[i] = doc;
+            } else if (score > scores[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && scores[child + 1] < scores[child]) child++;
+                    if (scores[child] >= score) break;
+                    scores[i] = scores[child];
+                    docs[i] = docs[child];
+                    i = child;
+                }
+                scores[i] = score;
+                docs[i] = doc;
+            }
+        }
+    }
+
+    public List<Integer> query(String query, int topK) {
+        Map<String, Integer> qFreq = new HashMap<>();
+        for (String t : query.toLowerCase().split("\\s+")) {
+            qFreq.merge(t, 1, Integer::sum);
+        }
+        String[] terms = new String[qFreq.size()];
+        float[] weights = new float[qFreq.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> e : qFreq.entrySet()) {
+            terms[i] = e.getKey();
+            weights[i++] = e.getValue();
+        }
+        TopK top = search(terms, weights, topK, true);
+        return results(top);
+    }
+
+    // Weighted query (e.g. expanded by a learned query encoder); results by descending score
+    public List<Integer> query(String[] terms, float[] weights, int topK) {
+        return results(search(terms, weights, topK, true));
+    }
+
+    // Scores every matching document; used to validate the pruned search
+    List<Integer> queryExhaustive(String[] terms, float[] weights, int topK) {
+        return results(search(terms, weights, topK, false));
+    }
+
+    private static List<Integer> results(TopK top) {
+        Integer[] order = new Integer[top.size];
+        for (int i = 0; i < top.size; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Float.compare(top.scores[b], top.scores[a]));
+        List<Integer> docs = new ArrayList<>(top.size);
+        for (int i : order) docs.add(top.docs[i]);
+        return docs;
+    }
+
+    TopK search(String[] terms, float[] weights, int k, boolean prune) {
+        TopK top = new TopK(k);
+        for (Segment segment : segments) {
+            List<Cursor> list = new ArrayList<>();
+            for (int t = 0; t < terms.length; t++) {
+                int[] entry = segment.terms.get(terms[t]);
+                if (entry != null && weights[t] > 0) list.add(new Cursor(segment, entry, weights[t]));
+            }
+            if (!list.isEmpty()) {
+                blockMaxWand(list.toArray(new Cursor[0]), top, prune);
+            }
+        }
+        return top;
+    }
+
+    private static void blockMaxWand(Cursor[] cursors, TopK top, boolean prune) {
+        int n = cursors.length;
+        while (true) {
+            // Insertion sort by current doc; cursors move a little at a time
+            for (int i = 1; i < n; i++) {
+                Cursor c = cursors[i];
+                int j = i - 1;
+                while (j >= 0 && cursors[j].doc > c.doc) {
+                    cursors[j + 1] = cursors[j];
+                    j--;
+                }
+                cursors[j + 1] = c;
+            }
+            float threshold = prune ? top.threshold() : -1f;
+            float upper = 0;
+            int pivot = -1;
+            for (int i = 0; i < n; i++) {
+                if (cursors[i].doc == NO_MORE_DOCS) break;
+                upper += cursors[i].maxScore;
+                if (upper > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) return;
+            int pivotDoc = cursors[pivot].doc;
+            while (pivot + 1 < n && cursors[pivot + 1].doc == pivotDoc) pivot++;
+
+            float blockUpper = 0;
+            for (int i = 0; i <= pivot; i++) {
+                cursors[i].shallowAdvance(pivotDoc);
+                blockUpper += cursors[i].blockMaxScore();
+            }
+            if (blockUpper > threshold) {
+                if (cursors[0].doc == pivotDoc) {
+                    float score = 0;
+                    for (int i = 0; i <= pivot; i++) {
+                        score += cursors[i].score();
+                        cursors[i].next();
+                    }
+                    if (score > threshold) top.insert(pivotDoc, score);
+                } else {
+                    for (int i = 0; i < pivot && cursors[i].doc < pivotDoc; i++) {
+                        cursors[i].advance(pivotDoc);
+                    }
+                }
+            } else {
+                // No doc before the nearest block end (or the next cursor's doc) can make it
+                int nextDoc = pivot + 1 < n ? cursors[pivot + 1].doc : NO_MORE_DOCS;
+                for (int i = 0; i <= pivot; i++) {
+                    int last = cursors[i].blockLastDoc();
+                    if (last != NO_MORE_DOCS) nextDoc = Math.min(nextDoc, last + 1);
+                }
+                for (int i = 0; i <= pivot; i++) {
+                    cursors[i].advance(nextDoc);
+                }
+            }
+        }
+    }
+
+    static final class LongList {
+        long[] data = new long[8];
+        int size;
+
+        void add(long x) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = x;
+        }
+    }
+
+    /*
+     * Many small segments, then the same collection merged, against scoring every document
+     * directly. Weights and impacts are small integers, so float sums are exact and the
+     * top-k scores must agree.
+     */
+    static void bruteForceCheck(Path dir) throws Exception {
+        Random rand = new Random(7);
+        int numDocs = 10_000;
+        int vocab = 300;
+        List<Map<String, Integer>> docs = new ArrayList<>();
+        try (BlockMaxWandIndex index = new BlockMaxWandIndex(dir)) {
+            index.setFlushThreshold(1_000);
+            index.setMergeFactor(Integer.MAX_VALUE);
+            for (int d = 0; d < numDocs; d++) {
+                Map<String, Integer> doc = new HashMap<>();
+                for (int k = 5 + rand.nextInt(20); k > 0; k--) {
+                    doc.merge("t" + (int) (vocab * Math.pow(rand.nextDouble(), 2)), 1 + rand.nextInt(255), Math::max);
+                }
+                docs.add(doc);
+                if (d < numDocs - 1) index.addDocument(d, doc);
+            }
+            index.flush();
+            for (int phase = 0; phase < 2; phase++) {
+                if (phase == 1) {
+                    index.setMergeFactor(4);
+                    index.addDocument(numDocs - 1, docs.get(numDocs - 1));
+                    index.flush();
+                    index.awaitMerges();
+                }
+                for (int q = 0; q < 300; q++) {
+                    int len = 1 + rand.nextInt(8);
+                    String[] terms = new String[len];
+                    float[] weights = new float[len];
+                    Set<String> seen = new HashSet<>();
+                    for (int k = 0; k < len; k++) {
+                        do terms[k] = "t" + rand.nextInt(vocab); while (!seen.add(terms[k]));
+                        weights[k] = 1 + rand.nextInt(100);
+                    }
+                    float[] all = new float[numDocs];
+                    int present = phase == 0 ? numDocs - 1 : numDocs;
+                    int matching = 0;
+                    for (int d = 0; d < present; d++) {
+                        for (int k = 0; k < len; k++) {
+                            Integer impact = docs.get(d).get(terms[k]);
+                            if (impact != null) all[d] += weights[k] * impact;
+                        }
+                        if (all[d] > 0) matching++;
+                    }
+                    Arrays.sort(all);
+                    float[] expected = Arrays.copyOfRange(all, numDocs - Math.min(10, matching), numDocs);
+                    for (boolean prune : new boolean[]{true, false}) {
+                        TopK top = index.search(terms, weights, 10, prune);
+                        float[] got = Arrays.copyOf(top.scores, top.size);
+                        Arrays.sort(got);
+                        Set<Integer> unique = new HashSet<>();
+                        for (int i = 0; i < top.size; i++) unique.add(top.docs[i]);
+                        if (!Arrays.equals(got, expected) || unique.size() != top.size) {
+                            throw new IllegalStateException("Brute-force mismatch on query " + q + ", prune=" + prune);
+                        }
+                    }
+                }
+                System.out.printf("brute force: 300 queries agree over %d segments%n", index.numSegments());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("bmw-index");
+        try (BlockMaxWandIndex index = new BlockMaxWandIndex(dir)) {
+            index.addDocument(1, "the quick brown fox");
+            index.addDocument(2, "the lazy dog sleeps");
+            index.addDocument(3, "quick quick dog");
+            index.flush();
+            System.out.println("quick dog -> " + index.query("quick dog", 2));
+            bruteForceCheck(Files.createTempDirectory("bmw-check"));
+
+            // Synthetic SPLADE-like collection: Zipfian vocabulary, quantized impacts
+            int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 300_000;
+            int vocab = 30_000;
+            Random rand = new Random(42);
+            double[] cdf = new double[vocab];
+            double sum = 0;
+            for (int t = 0; t < vocab; t++) {
+                sum += 1.0 / (t + 10);
+                cdf[t] = sum;
+            }
+            index.setFlushThreshold(2_000_000);
+            long start = System.nanoTime();
+            for (int d = 4; d < numDocs; d++) {
+                int len = 20 + rand.nextInt(40);
+                Map<String, Integer> doc = new HashMap<>();
+                for (int k = 0; k < len; k++) {
+                    int t = Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+                    t = t < 0 ? -t - 1 : t;
+                    doc.merge("t" + t, 1 + rand.nextInt(255), Math::max);
+                }
+                index.addDocument(d, doc);
+            }
+            index.flush();
+            index.awaitMerges();
+            System.out.printf("Indexed %d docs in %.1f s into %d segments%n",
+                    numDocs, (System.nanoTime() - start) / 1e9, index.numSegments());
+
+            int queries = 200;
+            String[][] qTerms = new String[queries][];
+            float[][] qWeights = new float[queries][];
+            for (int q = 0; q < queries; q++) {
+                int len = 4 + rand.nextInt(12);
+                qTerms[q] = new String[len];
+                qWeights[q] = new float[len];
+                for (int k = 0; k < len; k++) {
+                    qTerms[q][k] = "t" + rand.nextInt(vocab / 4);
+                    qWeights[q][k] = 1 + rand.nextInt(100);
+                }
+            }
+            long pruned = 0;
+            long exhaustive = 0;
+            for (int q = 0; q < queries; q++) {
+                long t0 = System.nanoTime();
+                TopK fast = index.search(qTerms[q], qWeights[q], 10, true);
+                long t1 = System.nanoTime();
+                TopK slow = index.search(qTerms[q], qWeights[q], 10, false);
+                long t2 = System.nanoTime();
+                pruned += t1 - t0;
+                exhaustive += t2 - t1;
+                float[] a = Arrays.copyOf(fast.scores, fast.size);
+                float[] b = Arrays.copyOf(slow.scores, slow.size);
+                Arrays.sort(a);
+                Arrays.sort(b);
+                if (!Arrays.equals(a, b)) throw new IllegalStateException("Top-k mismatch on query " + q);
+            }
+            System.out.printf("top-10: Block-Max WAND %.3f ms, exhaustive %.3f ms per query%n",
+                    pruned / 1e6 / queries, exhaustive / 1e6 / queries);
+        }
+    }
+}
@@ -1,253 +1,1040 @@
+/*
+ * Conflict-Driven Clause Learning (CDCL) SAT solver
+ * Idea: assign variables by decision and unit propagation. When a clause is
+ * falsified, analyze the implication graph to learn a clause that explains the
+ * conflict (first unique implication point), jump back to the second-highest
+ * level in that clause, and continue.
+ * The core follows the MiniSat/Glucose design:
+ *  - clauses live in one flat int[] arena and are referenced by offset
+ *  - two-watched-literal propagation with blocker literals
+ *  - 1-UIP learning with recursive clause minimization
+ *  - VSIDS variable activities in a binary heap, with phase saving
+ *  - Luby or Glucose-style (LBD moving average) restarts
+ *  - periodic learnt-clause deletion by LBD and activity, with arena compaction
+ * Variables are 1-based in the public API (DIMACS convention); internally a literal
+ * is 2 * var + sign with 0-based variables.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
 public class CDCLSatSolver {
-    // Representation of a literal: positive integers for variables, negative for negation
-    private static final int TRUE = 1;
-    private static final int FALSE = -1;
-
-    private int numVars;                       // Number of variables
-    private Clause[] clauses;                  // Array of clauses
-    private int numClauses;                    // Number of clauses
-
-    private int[] assignment;                  // 0 = unassigned, 1 = true, -1 = false
-    private int[] decisionLevel;               // Decision level of each variable
-    private int currentLevel;                  // Current decision level
-    private int trailSize;                     // Size of the trail
-    private int[] trail;                       // Trail of assigned literals (variable indices)
-    private int trailPtr;                      // Trail pointer
-
-    // Constructor
+
+    public static final int SATISFIABLE = 10;
+    public static final int UNSATISFIABLE = 20;
+    public static final int UNKNOWN = 0;
+
+    public enum RestartPolicy { LUBY, GLUCOSE }
+
+    /* Clause exchange between solvers working on the same formula (see ParallelSatSolver) */
+    public interface ClauseSharing {
+        // Called for every learnt clause; lits holds DIMACS literals and is only valid during the call
+        void exportClause(int[] lits, int size, int lbd);
+
+        // Called at decision level 0 after each restart; may call addSharedClause
+        void importClauses(CDCLSatSolver solver);
+    }
+
+    // Clause header: [size, flags, lbd, activity bits], followed by the literals
+    private static final int HEADER = 4;
+    private static final int LEARNT = 1;
+    private static final int DELETED = 2;
+
+    private static final int UNDEF = -1;
+
+    private int numVars;
+    private boolean ok = true;
+
+    private int[] arena = new int[1 << 12];
+    private int arenaSize;
+    private int wasted;
+    private IntVec clauses = new IntVec();
+    private IntVec learnts = new IntVec();
+
+    private IntVec[] watches = new IntVec[0];   // watches[lit]: (clause ref, blocker) pairs of clauses watching lit
+    private byte[] assigns = new byte[0];       // per var: 0 undefined, 1 true, -1 false
+    private int[] level = new int[0];
+    private int[] reason = new int[0];
+    private boolean[] polarity = new boolean[0]; // saved phase, true = negative
+    private double[] activity = new double[0];
+    private double varInc = 1.0;
+    private double varDecay = 0.95;
+    private double clauseInc = 1.0;
+    private double clauseDecay = 0.999;
+    private VarHeap heap = new VarHeap();
+
+    private int[] trail = new int[0];
+    private int trailSize;
+    private IntVec trailLim = new IntVec();
+    private int qhead;
+
+    // conflict analysis scratch
+    private byte[] seen = new byte[0];
+    private final IntVec learntClause = new IntVec();
+    private final IntVec analyzeStack = new IntVec();
+    private final IntVec analyzeToClear = new IntVec();
+    private int[] lbdStamp = new int[0];
+    private int lbdCounter;
+
+    // configuration
+    private RestartPolicy restartPolicy = RestartPolicy.GLUCOSE;
+    private boolean defaultNegativePhase = true;
+    private Random random = new Random(91648253);
+    private double randomDecisionFreq = 0.0;
+    private int firstReduce = 2000;
+    private int reduceIncrement = 300;
+    private long nextReduce = 2000;
+
+    // restart state
+    private final double[] lbdQueue = new double[50];
+    private int lbdQueueSize;
+    private int lbdQueueHead;
+    private double lbdQueueSum;
+    private double lbdTotal;
+
+    private volatile boolean interrupted;
+    private long conflictBudget = -1;
+    private int[] assumptions = new int[0];
+    private boolean failedAssumption;
+    private ClauseSharing sharing;
+    private int[] exportBuffer = new int[16];
+
+    // statistics
+    private long conflicts;
+    private long decisions;
+    private long propagations;
+    private long restarts;
+    private long reductions;
+
     public CDCLSatSolver(int numVars) {
-        this.numVars = numVars;
-        this.assignment = new int[numVars + 1];
-        this.decisionLevel = new int[numVars + 1];
-        this.trail = new int[numVars + 1];
-        this.trailPtr = 0;
-        this.currentLevel = 0;
-        this.clauses = new Clause[1000];
-        this.numClauses = 0;
+        ensureVars(numVars);
+    }
+
+    public CDCLSatSolver() {
+        this(0);
     }
 
-    // Clause class
-    private static class Clause {
-        int[] lits;
-        Clause(int[] lits) {
-            this.lits = lits;
+    /* ---------------------------------------------------------------- setup */
+
+    private void ensureVars(int n) {
+        if (n <= numVars) return;
+        int old = numVars;
+        numVars = n;
+        watches = Arrays.copyOf(watches, 2 * n);
+        for (int l = 2 * old; l < 2 * n; l++) watches[l] = new IntVec();
+        assigns = Arrays.copyOf(assigns, n);
+        level = Arrays.copyOf(level, n);
+        reason = Arrays.copyOf(reason, n);
+        polarity = Arrays.copyOf(polarity, n);
+        activity = Arrays.copyOf(activity, n);
+        seen = Arrays.copyOf(seen, n);
+        trail = Arrays.copyOf(trail, n);
+        lbdStamp = Arrays.copyOf(lbdStamp, n + 1);
+        heap.grow(n);
+        for (int v = old; v < n; v++) {
+            reason[v] = UNDEF;
+            polarity[v] = defaultNegativePhase;
+            heap.insert(v);
         }
     }
 
-    // Add a clause to the solver
-    public void addClause(int... lits) {
-        clauses[numClauses++] = new Clause(lits);
+    public int numVars() {
+        return numVars;
     }
 
-    // Solve the SAT instance
-    public boolean solve() {
-        // Initial propagation
-        if (!propagate()) {
-            return false; // Conflict at level 0
-        }
+    public int numClauses() {
+        return clauses.size();
+    }
 
-        while (true) {
-            if (isFullyAssigned()) {
-                return true; // All variables assigned without conflict
+    // Adds a clause of DIMACS literals; returns false if the formula became trivially unsatisfiable
+    public boolean addClause(int... lits) {
+        if (!ok) return false;
+        if (decisionLevel() != 0) {
+            cancelUntil(0);
+        }
+        int[] internal = new int[lits.length];
+        int maxVar = 0;
+        for (int i = 0; i < lits.length; i++) {
+            if (lits[i] == 0) throw new IllegalArgumentException("0 is not a literal");
+            maxVar = Math.max(maxVar, Math.abs(lits[i]));
+            internal[i] = toInternal(lits[i]);
+        }
+        ensureVars(maxVar);
+        Arrays.sort(internal);
+        int size = 0;
+        int prev = UNDEF;
+        for (int lit : internal) {
+            int value = litValue(lit);
+            if (value > 0 || lit == (prev ^ 1)) {
+                return true; // satisfied at level 0 or tautology
             }
+            if (value == 0 && lit != prev) {
+                internal[size++] = lit;
+                prev = lit;
+            }
+        }
+        if (size == 0) {
+            return ok = false;
+        }
+        if (size == 1) {
+            enqueue(internal[0], UNDEF);
+            return ok = (propagate() == UNDEF);
+        }
+        int cref = allocClause(internal, size, false, 0);
+        clauses.push(cref);
+        attach(cref);
+        return true;
+    }
 
-            int v = selectUnassignedVariable();
-            currentLevel++;
-            assign(v, TRUE, -1); // Decision literal with no reason
+    private static int toInternal(int dimacs) {
+        int v = Math.abs(dimacs) - 1;
+        return 2 * v + (dimacs < 0 ? 1 : 0);
+    }
 
-            while (true) {
-                int conflictClause = propagate();
-                if (conflictClause == -1) {
-                    break; // No conflict
-                }
-                Clause learned = analyzeConflict(conflictClause);
-                addClause(learned.lits); // Add learned clause
-                int backtrackLevel = determineBacktrackLevel(learned);
-                backtrack(backtrackLevel);
-                assign(getFirstLiteral(learned), TRUE, numClauses - 1);
-            }
+    private static int toDimacs(int lit) {
+        int v = (lit >> 1) + 1;
+        return (lit & 1) != 0 ? -v : v;
+    }
+
+    public void setRestartPolicy(RestartPolicy policy) {
+        this.restartPolicy = policy;
+    }
+
+    // Initial phase for variables that have never been assigned
+    public void setDefaultPhase(boolean positive) {
+        this.defaultNegativePhase = !positive;
+        for (int v = 0; v < numVars; v++) {
+            if (assigns[v] == 0) polarity[v] = !positive;
+        }
+    }
+
+    // Seeds random decisions and perturbs the initial activities so seeds explore differently
+    public void setSeed(long seed, double randomDecisionFreq) {
+        this.random = new Random(seed);
+        this.randomDecisionFreq = randomDecisionFreq;
+        for (int v = 0; v < numVars; v++) {
+            activity[v] = random.nextDouble() * 0.00001;
+            heap.update(v);
+        }
+    }
+
+    public void setConflictBudget(long budget) {
+        this.conflictBudget = budget;
+    }
+
+    // Asks a running (or the next) solve() to stop; it then returns UNKNOWN
+    public void interrupt() {
+        interrupted = true;
+    }
+
+    public void setClauseSharing(ClauseSharing sharing) {
+        this.sharing = sharing;
+    }
+
+    /* ---------------------------------------------------------------- clause arena */
+
+    private int allocClause(int[] lits, int size, boolean learnt, int lbd) {
+        int need = HEADER + size;
+        if (arenaSize + need > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + need));
         }
+        int cref = arenaSize;
+        arena[cref] = size;
+        arena[cref + 1] = learnt ? LEARNT : 0;
+        arena[cref + 2] = lbd;
+        arena[cref + 3] = Float.floatToRawIntBits(0f);
+        System.arraycopy(lits, 0, arena, cref + HEADER, size);
+        arenaSize += need;
+        return cref;
+    }
+
+    private int clauseSize(int cref) { return arena[cref]; }
+    private boolean isLearnt(int cref) { return (arena[cref + 1] & LEARNT) != 0; }
+    private int lit(int cref, int i) { return arena[cref + HEADER + i]; }
+    private float clauseActivity(int cref) { return Float.intBitsToFloat(arena[cref + 3]); }
+
+    private void attach(int cref) {
+        int l0 = lit(cref, 0);
+        int l1 = lit(cref, 1);
+        watches[l0 ^ 1].push2(cref, l1);
+        watches[l1 ^ 1].push2(cref, l0);
+    }
+
+    /* ---------------------------------------------------------------- assignment */
+
+    private int litValue(int lit) {
+        int a = assigns[lit >> 1];
+        return (lit & 1) != 0 ? -a : a;
+    }
+
+    private int decisionLevel() {
+        return trailLim.size();
     }
 
-    // Unit propagation
+    private void enqueue(int lit, int from) {
+        int v = lit >> 1;
+        assigns[v] = (byte) ((lit & 1) != 0 ? -1 : 1);
+        level[v] = decisionLevel();
+        reason[v] = from;
+        trail[trailSize++] = lit;
+    }
+
+    private void cancelUntil(int lvl) {
+        if (decisionLevel() <= lvl) return;
+        int stop = trailLim.get(lvl);
+        for (int i = trailSize - 1; i >= stop; i--) {
+            int lit = trail[i];
+            int v = lit >> 1;
+            assigns[v] = 0;
+            reason[v] = UNDEF;
+            polarity[v] = (lit & 1) != 0;
+            if (!heap.contains(v)) heap.insert(v);
+        }
+        trailSize = stop;
+        qhead = stop;
+        trailLim.shrinkTo(lvl);
+    }
+
+    /* Two-watched-literal unit propagation; returns the conflicting clause or UNDEF */
     private int propagate() {
-        while (trailPtr < trailSize) {
-            int lit = trail[trailPtr++];
-            int var = Math.abs(lit);
-            for (int i = 0; i < numClauses; i++) {
-                Clause clause = clauses[i];
-                boolean clauseSatisfied = false;
-                int unassignedCount = 0;
-                int lastUnassignedLit = 0;
-
-                for (int l : clause.lits) {
-                    int val = assignment[Math.abs(l)];
-                    if (l > 0 && val == TRUE) {
-                        clauseSatisfied = true;
-                        break;
-                    } else if (l < 0 && val == FALSE) {
-                        clauseSatisfied = true;
+        int confl = UNDEF;
+        while (qhead < trailSize) {
+            int p = trail[qhead++];
+            int falseLit = p ^ 1;
+            IntVec ws = watches[p];
+            int[] w = ws.data;
+            int n = ws.size;
+            int i = 0;
+            int j = 0;
+            propagations++;
+            while (i < n) {
+                int cref = w[i];
+                int blocker = w[i + 1];
+                if (litValue(blocker) > 0) {
+                    w[j++] = cref;
+                    w[j++] = blocker;
+                    i += 2;
+                    continue;
+                }
+                int base = cref + HEADER;
+                // Make sure the false literal is at position 1
+                if (arena[base] == falseLit) {
+                    arena[base] = arena[base + 1];
+                    arena[base + 1] = falseLit;
+                }
+                i += 2;
+                int first = arena[base];
+                if (first != blocker && litValue(first) > 0) {
+                    w[j++] = cref;
+                    w[j++] = first;
+                    continue;
+                }
+                // Look for a new literal to watch
+                int size = arena[cref];
+                boolean found = false;
+                for (int k = 2; k < size; k++) {
+                    int l = arena[base + k];
+                    if (litValue(l) >= 0) {
+                        arena[base + 1] = l;
+                        arena[base + k] = falseLit;
+                        watches[l ^ 1].push2(cref, first);
+                        found = true;
                         break;
-                    } else if (val == 0) {
-                        unassignedCount++;
-                        lastUnassignedLit = l;
                     }
                 }
-
-                if (clauseSatisfied) {
+                if (found) {
                     continue;
                 }
+                w[j++] = cref;
+                w[j++] = first;
+                if (litValue(first) < 0) {
+                    confl = cref;
+                    qhead = trailSize;
+                    while (i < n) {
+                        w[j++] = w[i++];
+                    }
+                } else {
+                    enqueue(first, cref);
+                }
+            }
+            ws.size = j;
+            if (confl != UNDEF) break;
+        }
+        return confl;
+    }
 
-                if (unassignedCount == 0) {
-                    return i; // Conflict detected
-                } else if (unassignedCount == 1) {
-                    int varToAssign = Math.abs(lastUnassignedLit);
-                    if (assignment[varToAssign] != 0) {
-                        continue; // Already assigned
+    /* ---------------------------------------------------------------- conflict analysis */
+
+    // 1-UIP learning; leaves the learnt clause in learntClause with the asserting literal first
+    private int analyze(int confl) {
+        IntVec out = learntClause;
+        out.clear();
+        out.push(UNDEF);
+        int pathCount = 0;
+        int p = UNDEF;
+        int index = trailSize - 1;
+        do {
+            if (isLearnt(confl)) bumpClause(confl);
+            int size = clauseSize(confl);
+            for (int k = (p == UNDEF ? 0 : 1); k < size; k++) {
+                int q = lit(confl, k);
+                int v = q >> 1;
+                if (seen[v] == 0 && level[v] > 0) {
+                    bumpVar(v);
+                    seen[v] = 1;
+                    if (level[v] >= decisionLevel()) {
+                        pathCount++;
+                    } else {
+                        out.push(q);
                     }
-                    int value = lastUnassignedLit > 0 ? TRUE : FALSE;
-                    assign(varToAssign, value, i);
                 }
             }
+            while (seen[trail[index] >> 1] == 0) index--;
+            p = trail[index--];
+            confl = reason[p >> 1];
+            seen[p >> 1] = 0;
+            pathCount--;
+        } while (pathCount > 0);
+        out.set(0, p ^ 1);
+
+        // Recursive minimization: drop literals implied by the rest of the clause
+        analyzeToClear.clear();
+        for (int k = 1; k < out.size(); k++) analyzeToClear.push(out.get(k));
+        int abstractLevels = 0;
+        for (int k = 1; k < out.size(); k++) abstractLevels |= abstractLevel(out.get(k) >> 1);
+        int kept = 1;
+        for (int k = 1; k < out.size(); k++) {
+            int q = out.get(k);
+            if (reason[q >> 1] == UNDEF || !litRedundant(q, abstractLevels)) {
+                out.set(kept++, q);
+            }
         }
-        return -1; // No conflict
+        out.shrinkTo(kept);
+
+        // Second-highest level goes to position 1 so it is watched
+        int backtrack = 0;
+        if (out.size() > 1) {
+            int maxIndex = 1;
+            for (int k = 2; k < out.size(); k++) {
+                if (level[out.get(k) >> 1] > level[out.get(maxIndex) >> 1]) maxIndex = k;
+            }
+            int tmp = out.get(1);
+            out.set(1, out.get(maxIndex));
+            out.set(maxIndex, tmp);
+            backtrack = level[out.get(1) >> 1];
+        }
+        for (int k = 0; k < analyzeToClear.size(); k++) seen[analyzeToClear.get(k) >> 1] = 0;
+        return backtrack;
     }
 
-    // Assign a value to a variable
-    private void assign(int var, int value, int reason) {
-        assignment[var] = value;
-        decisionLevel[var] = currentLevel;
-        trail[trailSize++] = (value == TRUE ? var : -var);
+    private int abstractLevel(int v) {
+        return 1 << (level[v] & 31);
     }
 
-    // Check if all variables are assigned
-    private boolean isFullyAssigned() {
-        for (int i = 1; i <= numVars; i++) {
-            if (assignment[i] == 0) {
-                return false;
+    private boolean litRedundant(int p, int abstractLevels) {
+        analyzeStack.clear();
+        analyzeStack.push(p);
+        int top = analyzeToClear.size();
+        while (analyzeStack.size() > 0) {
+            int q = analyzeStack.pop();
+            int c = reason[q >> 1];
+            int size = clauseSize(c);
+            for (int k = 1; k < size; k++) {
+                int l = lit(c, k);
+                int v = l >> 1;
+                if (seen[v] == 0 && level[v] > 0) {
+                    if (reason[v] != UNDEF && (abstractLevel(v) & abstractLevels) != 0) {
+                        seen[v] = 1;
+                        analyzeStack.push(l);
+                        analyzeToClear.push(l);
+                    } else {
+                        for (int r = top; r < analyzeToClear.size(); r++) seen[analyzeToClear.get(r) >> 1] = 0;
+                        analyzeToClear.shrinkTo(top);
+                        return false;
+                    }
+                }
             }
         }
         return true;
     }
 
-    // Select an unassigned variable (simple heuristic)
-    private int selectUnassignedVariable() {
-        for (int i = 1; i <= numVars; i++) {
-            if (assignment[i] == 0) {
-                return i;
+    // Literal block distance: number of distinct decision levels in the clause
+    private int computeLbd(IntVec lits) {
+        lbdCounter++;
+        int lbd = 0;
+        for (int k = 0; k < lits.size(); k++) {
+            int l = level[lits.get(k) >> 1];
+            if (lbdStamp[l] != lbdCounter) {
+                lbdStamp[l] = lbdCounter;
+                lbd++;
             }
         }
-        return -1;R1
+        return lbd;
     }
 
-    // Conflict analysis (learning clause)
-    private Clause analyzeConflict(int conflictClauseIndex) {
-        Clause conflictClause = clauses[conflictClauseIndex];
-        boolean[] seen = new boolean[numVars + 1];
-        int[] stack = new int[conflictClause.lits.length];
-        int stackSize = 0;
+    private void bumpVar(int v) {
+        if ((activity[v] += varInc) > 1e100) {
+            for (int i = 0; i < numVars; i++) activity[i] *= 1e-100;
+            varInc *= 1e-100;
+        }
+        if (heap.contains(v)) heap.update(v);
+    }
 
-        for (int lit : conflictClause.lits) {
-            int var = Math.abs(lit);
-            if (decisionLevel[var] == currentLevel) {
-                stack[stackSize++] = var;
-                seen[var] = true;
+    private void bumpClause(int cref) {
+        float a = clauseActivity(cref) + (float) clauseInc;
+        arena[cref + 3] = Float.floatToRawIntBits(a);
+        if (a > 1e20f) {
+            for (int k = 0; k < learnts.size(); k++) {
+                int c = learnts.get(k);
+                arena[c + 3] = Float.floatToRawIntBits(clauseActivity(c) * 1e-20f);
             }
+            clauseInc *= 1e-20;
         }
+    }
 
-        while (stackSize > 0) {
-            int var = stack[--stackSize];
-            int reasonClauseIndex = getReasonClauseIndex(var);
-            if (reasonClauseIndex == -1) {
-                continue;
+    /* ---------------------------------------------------------------- clause database */
+
+    private boolean locked(int cref) {
+        int v = lit(cref, 0) >> 1;
+        return reason[v] == cref && litValue(lit(cref, 0)) > 0;
+    }
+
+    // Keeps glue clauses (LBD <= 2) and the better half of the rest by (LBD, activity)
+    private void reduceDb() {
+        reductions++;
+        int n = learnts.size();
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; k++) order[k] = learnts.get(k);
+        Arrays.sort(order, (a, b) -> {
+            int la = arena[a + 2];
+            int lb = arena[b + 2];
+            if (la != lb) return Integer.compare(lb, la);
+            return Float.compare(clauseActivity(a), clauseActivity(b));
+        });
+        int limit = n / 2;
+        IntVec keep = new IntVec();
+        for (int k = 0; k < n; k++) {
+            int c = order[k];
+            if (k < limit && arena[c + 2] > 2 && clauseSize(c) > 2 && !locked(c)) {
+                arena[c + 1] |= DELETED;
+                wasted += HEADER + clauseSize(c);
+            } else {
+                keep.push(c);
             }
-            Clause reasonClause = clauses[reasonClauseIndex];
-            for (int lit : reasonClause.lits) {
-                int v = Math.abs(lit);
-                if (v == var) {
-                    continue;
+        }
+        learnts = keep;
+        compact();
+    }
+
+    // Copies live clauses to a fresh arena, remaps reasons and rebuilds the watch lists
+    private void compact() {
+        int[] fresh = new int[Math.max(1 << 12, arenaSize - wasted + (arenaSize >> 2))];
+        int freshSize = 0;
+        // After copying, the old header's LBD slot holds the new offset
+        IntVec[] lists = {clauses, learnts};
+        for (IntVec list : lists) {
+            for (int k = 0; k < list.size(); k++) {
+                int c = list.get(k);
+                int len = HEADER + clauseSize(c);
+                System.arraycopy(arena, c, fresh, freshSize, len);
+                arena[c + 2] = freshSize;
+                list.set(k, freshSize);
+                freshSize += len;
+            }
+        }
+        for (int v = 0; v < numVars; v++) {
+            int c = reason[v];
+            if (c != UNDEF) {
+                reason[v] = arena[c + 2]; // reasons are locked, never deleted
+            }
+        }
+        arena = fresh;
+        arenaSize = freshSize;
+        wasted = 0;
+        for (IntVec ws : watches) ws.clear();
+        for (IntVec list : lists) {
+            for (int k = 0; k < list.size(); k++) attach(list.get(k));
+        }
+    }
+
+    /* ---------------------------------------------------------------- search */
+
+    private int pickBranchLit() {
+        int next = UNDEF;
+        if (randomDecisionFreq > 0 && random.nextDouble() < randomDecisionFreq && heap.size() > 0) {
+            next = heap.at(random.nextInt(heap.size()));
+        }
+        while (next == UNDEF || assigns[next] != 0) {
+            if (heap.size() == 0) return UNDEF;
+            next = heap.removeMax();
+        }
+        return 2 * next + (polarity[next] ? 1 : 0);
+    }
+
+    private static double luby(double y, int x) {
+        int size = 1;
+        int seq = 0;
+        while (size < x + 1) {
+            seq++;
+            size = 2 * size + 1;
+        }
+        while (size - 1 != x) {
+            size = (size - 1) >> 1;
+            seq--;
+            x = x % size;
+        }
+        return Math.pow(y, seq);
+    }
+
+    private boolean shouldRestart(long conflictsThisRestart, long lubyLimit) {
+        if (restartPolicy == RestartPolicy.LUBY) {
+            return conflictsThisRestart >= lubyLimit;
+        }
+        // Glucose: restart when recent learnt clauses are much worse than the average
+        return lbdQueueSize == lbdQueue.length
+                && (lbdQueueSum / lbdQueueSize) * 0.8 > lbdTotal / conflicts;
+    }
+
+    private void recordLbd(int lbd) {
+        lbdTotal += lbd;
+        if (lbdQueueSize == lbdQueue.length) {
+            lbdQueueSum -= lbdQueue[lbdQueueHead];
+        } else {
+            lbdQueueSize++;
+        }
+        lbdQueue[lbdQueueHead] = lbd;
+        lbdQueueSum += lbd;
+        lbdQueueHead = (lbdQueueHead + 1) % lbdQueue.length;
+    }
+
+    // Search until a result or a restart is due; returns SAT/UNSAT/UNKNOWN (restart)
+    private int search(long lubyLimit) {
+        long conflictsThisRestart = 0;
+        while (true) {
+            int confl = propagate();
+            if (confl != UNDEF) {
+                conflicts++;
+                conflictsThisRestart++;
+                if (decisionLevel() == 0) {
+                    return UNSATISFIABLE;
+                }
+                int backtrack = analyze(confl);
+                int lbd = computeLbd(learntClause);
+                recordLbd(lbd);
+                cancelUntil(backtrack);
+                if (learntClause.size() == 1) {
+                    enqueue(learntClause.get(0), UNDEF);
+                } else {
+                    int cref = allocClause(learntClause.data, learntClause.size(), true, lbd);
+                    learnts.push(cref);
+                    attach(cref);
+                    bumpClause(cref);
+                    enqueue(learntClause.get(0), cref);
+                }
+                if (sharing != null) {
+                    int size = learntClause.size();
+                    if (exportBuffer.length < size) exportBuffer = new int[size * 2];
+                    for (int k = 0; k < size; k++) exportBuffer[k] = toDimacs(learntClause.get(k));
+                    sharing.exportClause(exportBuffer, size, lbd);
+                }
+                varInc /= varDecay;
+                clauseInc /= clauseDecay;
+                if (restartPolicy == RestartPolicy.GLUCOSE && shouldRestart(conflictsThisRestart, lubyLimit)) {
+                    lbdQueueSize = 0;
+                    lbdQueueSum = 0;
+                    lbdQueueHead = 0;
+                    cancelUntil(0);
+                    return UNKNOWN;
+                }
+            } else {
+                if ((restartPolicy == RestartPolicy.LUBY && shouldRestart(conflictsThisRestart, lubyLimit))
+                        || interrupted || (conflictBudget >= 0 && conflicts >= conflictBudget)) {
+                    cancelUntil(0);
+                    return UNKNOWN;
                 }
-                if (!seen[v] && decisionLevel[v] == currentLevel) {
-                    seen[v] = true;
-                    stack[stackSize++] = v;
+                if (conflicts >= nextReduce && learnts.size() > 0) {
+                    reduceDb();
+                    nextReduce = conflicts + firstReduce + (long) reduceIncrement * reductions;
                 }
+                int next = UNDEF;
+                // Assumptions are decided first, one per level
+                while (decisionLevel() < assumptions.length) {
+                    int p = assumptions[decisionLevel()];
+                    int value = litValue(p);
+                    if (value > 0) {
+                        trailLim.push(trailSize);
+                    } else if (value < 0) {
+                        failedAssumption = true;
+                        return UNSATISFIABLE;
+                    } else {
+                        next = p;
+                        break;
+                    }
+                }
+                if (next == UNDEF) {
+                    next = pickBranchLit();
+                    if (next == UNDEF) {
+                        return SATISFIABLE;
+                    }
+                }
+                decisions++;
+                trailLim.push(trailSize);
+                enqueue(next, UNDEF);
             }
         }
+    }
 
-        // Build learned clause
-        int learnedSize = 0;
-        for (int i = 1; i <= numVars; i++) {
-            if (seen[i]) {
-                int value = assignment[i];
-                learnedSize++;
+    /*
+     * Returns SATISFIABLE, UNSATISFIABLE, or UNKNOWN when interrupted or out of budget.
+     * Optional assumptions (DIMACS literals) hold for this call only; UNSATISFIABLE under
+     * assumptions leaves the solver usable, see failedAssumptions().
+     */
+    public int solveLimited(int... assumptionLits) {
+        cancelUntil(0);
+        assumptions = new int[assumptionLits.length];
+        for (int i = 0; i < assumptionLits.length; i++) {
+            ensureVars(Math.abs(assumptionLits[i]));
+            assumptions[i] = toInternal(assumptionLits[i]);
+        }
+        failedAssumption = false;
+        int status = ok ? UNKNOWN : UNSATISFIABLE;
+        int restartIndex = 0;
+        while (status == UNKNOWN && !interrupted) {
+            double limit = luby(2, restartIndex++) * 100;
+            status = search((long) limit);
+            if (status == UNKNOWN) {
+                restarts++;
+                if (conflictBudget >= 0 && conflicts >= conflictBudget) break;
+                if (sharing != null) {
+                    sharing.importClauses(this);
+                    if (!ok) status = UNSATISFIABLE;
+                }
             }
         }
+        if (status == UNSATISFIABLE && !failedAssumption) {
+            ok = false;
+        }
+        interrupted = false;
+        return status;
+    }
 
-        int[] learnedLits = new int[learnedSize];
-        int idx = 0;
-        for (int i = 1; i <= numVars; i++) {
-            if (seen[i]) {
-                int value = assignment[i];
-                learnedLits[idx++] = (value == TRUE ? i : -i);
-            }
-        }R1
-        return new Clause(learnedLits);
+    // True if the last UNSATISFIABLE answer was caused by the assumptions rather than the formula
+    public boolean failedAssumptions() {
+        return failedAssumption;
+    }
+
+    /* Adds a clause implied by the formula (e.g. learnt by another solver); only acts at level 0 */
+    public boolean addSharedClause(int[] lits, int size, int lbd) {
+        if (!ok || decisionLevel() != 0) return ok;
+        int[] internal = new int[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int lit = toInternal(lits[i]);
+            if ((lit >> 1) >= numVars) return true;
+            int value = litValue(lit);
+            if (value > 0) return true;
+            if (value == 0) internal[n++] = lit;
+        }
+        if (n == 0) return ok = false;
+        if (n == 1) {
+            enqueue(internal[0], UNDEF);
+            return ok = (propagate() == UNDEF);
+        }
+        int cref = allocClause(internal, n, true, Math.min(lbd, n));
+        learnts.push(cref);
+        attach(cref);
+        return true;
     }
 
-    // Get the clause index that caused the assignment of a variable
-    private int getReasonClauseIndex(int var) {
-        // In this simplified implementation, we do not track reasons
-        // Therefore we return -1 to indicate no reason
-        return -1;
+    /* ---------------------------------------------------------------- lookahead */
+
+    // Decides lit on a new level and propagates; on conflict the level is undone and false returned
+    boolean decide(int dimacsLit) {
+        int lit = toInternal(dimacsLit);
+        if (litValue(lit) != 0) return litValue(lit) > 0;
+        trailLim.push(trailSize);
+        enqueue(lit, UNDEF);
+        if (propagate() != UNDEF) {
+            cancelUntil(decisionLevel() - 1);
+            return false;
+        }
+        return true;
     }
 
-    // Determine backtrack level from learned clause
-    private int determineBacktrackLevel(Clause learned) {
-        int maxLevel = 0;
-        for (int lit : learned.lits) {
-            int var = Math.abs(lit);
-            if (decisionLevel[var] > maxLevel && decisionLevel[var] < currentLevel) {
-                maxLevel = decisionLevel[var];
-            }
+    // Number of literals implied by lit at the current state, or -1 if lit fails; state is unchanged
+    int probe(int dimacsLit) {
+        int lit = toInternal(dimacsLit);
+        if (litValue(lit) != 0) return litValue(lit) > 0 ? 0 : -1;
+        int start = trailSize;
+        trailLim.push(trailSize);
+        enqueue(lit, UNDEF);
+        boolean conflict = propagate() != UNDEF;
+        int implied = trailSize - start;
+        cancelUntil(decisionLevel() - 1);
+        return conflict ? -1 : implied;
+    }
+
+    void backtrack(int level) {
+        cancelUntil(level);
+    }
+
+    int level() {
+        return decisionLevel();
+    }
+
+    boolean isAssigned(int var) {
+        return assigns[var - 1] != 0;
+    }
+
+    boolean isOk() {
+        return ok;
+    }
+
+    // Solve the SAT instance
+    public boolean solve() {
+        int status = solveLimited();
+        if (status == UNKNOWN) throw new IllegalStateException("Search was interrupted");
+        return status == SATISFIABLE;
+    }
+
+    // Value of a 1-based variable in the model found by the last successful solve
+    public boolean value(int var) {
+        return assigns[var - 1] > 0;
+    }
+
+    public int[] model() {
+        int[] model = new int[numVars];
+        for (int v = 0; v < numVars; v++) {
+            model[v] = assigns[v] > 0 ? v + 1 : -(v + 1);
+        }
+        return model;
+    }
+
+    public long getConflicts() { return conflicts; }
+    public long getDecisions() { return decisions; }
+    public long getPropagations() { return propagations; }
+    public long getRestarts() { return restarts; }
+
+    /* ---------------------------------------------------------------- DIMACS */
+
+    public static CDCLSatSolver fromDimacs(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path)) {
+            return fromDimacs(reader);
         }
-        return maxLevel;
     }
 
-    // Backtrack to a specified level
-    private void backtrack(int level) {
-        while (trailSize > 0) {
-            int lit = trail[trailSize - 1];
-            int var = Math.abs(lit);
-            if (decisionLevel[var] > level) {
-                assignment[var] = 0;
-                decisionLevel[var] = 0;
-                trailSize--;
+    public static CDCLSatSolver fromDimacs(Reader reader) throws IOException {
+        CDCLSatSolver solver = new CDCLSatSolver();
+        int declared = readDimacs(reader, solver::addClause);
+        solver.ensureVars(declared);
+        return solver;
+    }
+
+    /* Streams the clauses of a DIMACS CNF file to sink; returns the declared variable count */
+    public static int readDimacs(Reader reader, java.util.function.Consumer<int[]> sink) throws IOException {
+        StreamTokenizer tokens = new StreamTokenizer(reader);
+        tokens.resetSyntax();
+        tokens.whitespaceChars(0, ' ');
+        tokens.wordChars('!', '~');
+        tokens.eolIsSignificant(true);
+        IntVec clause = new IntVec();
+        int declared = 0;
+        boolean lineStart = true;
+        while (tokens.nextToken() != StreamTokenizer.TT_EOF) {
+            if (tokens.ttype == StreamTokenizer.TT_EOL) {
+                lineStart = true;
+                continue;
+            }
+            String word = tokens.sval;
+            if (lineStart && word.equals("%")) {
+                break; // SATLIB end marker
+            }
+            if (lineStart && word.equals("c")) {
+                while (tokens.nextToken() != StreamTokenizer.TT_EOL && tokens.ttype != StreamTokenizer.TT_EOF) { }
+                continue;
+            }
+            if (lineStart && word.equals("p")) {
+                tokens.nextToken(); // "cnf"
+                tokens.nextToken();
+                declared = Integer.parseInt(tokens.sval);
+                tokens.nextToken(); // clause count
+                lineStart = false;
+                continue;
+            }
+            lineStart = false;
+            int lit = Integer.parseInt(word);
+            if (lit == 0) {
+                sink.accept(Arrays.copyOf(clause.data, clause.size()));
+                clause.clear();
             } else {
-                break;
+                clause.push(lit);
+            }
+        }
+        if (clause.size() > 0) {
+            sink.accept(Arrays.copyOf(clause.data, clause.size()));
+        }
+        return declared;
+    }
+
+    /* ---------------------------------------------------------------- helpers */
+
+    static final class IntVec {
+        int[] data = new int[4];
+        int size;
+
+        void push(int x) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = x;
+        }
+
+        void push2(int a, int b) {
+            if (size + 2 > data.length) data = Arrays.copyOf(data, Math.max(4, data.length * 2));
+            data[size++] = a;
+            data[size++] = b;
+        }
+
+        int pop() { return data[--size]; }
+        int get(int i) { return data[i]; }
+        void set(int i, int x) { data[i] = x; }
+        int size() { return size; }
+        void clear() { size = 0; }
+        void shrinkTo(int n) { size = n; }
+    }
+
+    // Max-heap of variables ordered by activity
+    private final class VarHeap {
+        private int[] heap = new int[0];
+        private int[] indices = new int[0];
+        private int size;
+
+        void grow(int n) {
+            int old = indices.length;
+            heap = Arrays.copyOf(heap, n);
+            indices = Arrays.copyOf(indices, n);
+            Arrays.fill(indices, old, n, -1);
+        }
+
+        int size() { return size; }
+        int at(int i) { return heap[i]; }
+        boolean contains(int v) { return indices[v] >= 0; }
+
+        void insert(int v) {
+            heap[size] = v;
+            indices[v] = size;
+            up(size++);
+        }
+
+        void update(int v) {
+            if (contains(v)) {
+                up(indices[v]);
+                down(indices[v]);
+            }
+        }
+
+        int removeMax() {
+            int top = heap[0];
+            heap[0] = heap[--size];
+            indices[heap[0]] = 0;
+            indices[top] = -1;
+            if (size > 0) down(0);
+            return top;
+        }
+
+        private void up(int i) {
+            int v = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (activity[heap[parent]] >= activity[v]) break;
+                heap[i] = heap[parent];
+                indices[heap[i]] = i;
+                i = parent;
             }
+            heap[i] = v;
+            indices[v] = i;
+        }
+
+        private void down(int i) {
+            int v = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && activity[heap[child + 1]] > activity[heap[child]]) child++;
+                if (activity[heap[child]] <= activity[v]) break;
+                heap[i] = heap[child];
+                indices[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = v;
+            indices[v] = i;
         }
-        currentLevel = level;
     }
 
-    // Get the first literal of a clause
-    private int getFirstLiteral(Clause clause) {
-        return clause.lits[0];
+    // Uniform random 3-SAT at the given clause/variable ratio, used when no instances are given
+    static CDCLSatSolver random3Sat(int vars, double ratio, long seed) {
+        Random rand = new Random(seed);
+        CDCLSatSolver solver = new CDCLSatSolver(vars);
+        int numClauses = (int) (vars * ratio);
+        for (int c = 0; c < numClauses; c++) {
+            int[] clause = new int[3];
+            for (int k = 0; k < 3; k++) {
+                int v = 1 + rand.nextInt(vars);
+                clause[k] = rand.nextBoolean() ? v : -v;
+            }
+            solver.addClause(clause);
+        }
+        return solver;
     }
 
-    // Main method for demonstration
-    public static void main(String[] args) {
+    /*
+     * Benchmark: pass DIMACS .cnf files or directories (e.g. the SATLIB uf/uuf sets);
+     * without arguments a small formula and a few random 3-SAT instances are solved.
+     */
+    public static void main(String[] args) throws IOException {
         CDCLSatSolver solver = new CDCLSatSolver(3);
         // Example formula: (x1 OR x2) AND (¬x1 OR x3) AND (¬x2 OR ¬x3)
         solver.addClause(1, 2);
         solver.addClause(-1, 3);
         solver.addClause(-2, -3);
-
         boolean result = solver.solve();
         System.out.println("Satisfiable: " + result);
         if (result) {
-            for (int i = 1; i <= solver.numVars; i++) {
-                System.out.println("Variable " + i + " = " + (solver.assignment[i] == TRUE));
+            for (int i = 1; i <= solver.numVars(); i++) {
+                System.out.println("Variable " + i + " = " + solver.value(i));
             }
         }
+
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                try (DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.cnf")) {
+                    for (Path p : dir) files.add(p);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        Collections.sort(files);
+        long totalConflicts = 0;
+        long totalPropagations = 0;
+        long totalNanos = 0;
+        int count = files.isEmpty() ? 10 : files.size();
+        for (int i = 0; i < count; i++) {
+            CDCLSatSolver s = files.isEmpty() ? random3Sat(200, 4.26, i) : fromDimacs(files.get(i));
+            String name = files.isEmpty() ? "random-3sat-200-" + i : files.get(i).getFileName().toString();
+            long start = System.nanoTime();
+            int status = s.solveLimited();
+            long nanos = System.nanoTime() - start;
+            totalNanos += nanos;
+            totalConflicts += s.getConflicts();
+            totalPropagations += s.getPropagations();
+            System.out.printf("%-24s %-6s %8d conflicts %10d props %8.1f ms%n", name,
+                    status == SATISFIABLE ? "SAT" : status == UNSATISFIABLE ? "UNSAT" : "?",
+                    s.getConflicts(), s.getPropagations(), nanos / 1e6);
+        }
+        double seconds = totalNanos / 1e9;
+        System.out.printf("Total: %.2f s, %.0f conflicts/s, %.0f props/s%n",
+                seconds, totalConflicts / seconds, totalPropagations / seconds);
     }
-}
\ No newline at end of file
+}
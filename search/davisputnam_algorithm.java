@@ -11,6 +11,18 @@ public class DavisPutnam {
         return dpll(clauses, assignment);
     }
 
+    // Delegates to the CDCL solver, which scales to industrial-size formulas
+    public boolean isSatisfiableCdcl(List<Set<Integer>> clauses) {
+        CDCLSatSolver solver = new CDCLSatSolver();
+        for (Set<Integer> clause : clauses) {
+            int[] lits = new int[clause.size()];
+            int i = 0;
+            for (int lit : clause) lits[i++] = lit;
+            if (!solver.addClause(lits)) return false;
+        }
+        return solver.solve();
+    }
+
     private boolean dpll(List<Set<Integer>> clauses, Map<Integer, Integer> assignment) {
         // Apply unit propagation and pure literal elimination
         boolean changed;
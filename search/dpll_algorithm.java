@@ -13,6 +13,17 @@ public class DPLL {
         return dpll(formula, assignment);
     }
 
+    // Same question answered by the watched-literal CDCL core, for formulas too large to branch on naively
+    public static boolean solveCdcl(List<List<Integer>> formula) {
+        CDCLSatSolver solver = new CDCLSatSolver();
+        for (List<Integer> clause : formula) {
+            int[] lits = new int[clause.size()];
+            for (int i = 0; i < lits.length; i++) lits[i] = clause.get(i);
+            if (!solver.addClause(lits)) return false;
+        }
+        return solver.solve();
+    }
+
     private static boolean dpll(List<List<Integer>> formula, Map<Integer, Boolean> assignment) {
         // Unit propagation
         boolean unitFound = true;
@@ -47,6 +47,24 @@ class DPLL {
         return dpllRecursive();
     }
 
+    // Solves the propositional skeleton with the CDCL core and copies its model into assignment
+    boolean solveCdcl() {
+        CDCLSatSolver solver = new CDCLSatSolver(numVars);
+        for (Clause clause : formula.clauses) {
+            int[] lits = new int[clause.lits.size()];
+            for (int i = 0; i < lits.length; i++) {
+                Literal lit = clause.lits.get(i);
+                lits[i] = lit.isNeg ? -lit.var : lit.var;
+            }
+            if (!solver.addClause(lits)) return false;
+        }
+        if (!solver.solve()) return false;
+        for (int v = 1; v <= numVars; v++) {
+            assignment[v] = solver.value(v) ? 1 : 0;
+        }
+        return true;
+    }
+
     private boolean dpllRecursive() {
         // Unit propagation
         boolean changed;
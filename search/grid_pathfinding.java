@@ -0,0 +1,512 @@
+/*
+ * Grid pathfinding engine shared by the A*, jump point search and Lee solvers
+ * The map is one byte array with a border of walls, so neighbour lookups need no bounds
+ * checks; cell (x, y) is index (y + 1) * stride + (x + 1). Per-query state (g-score, parent,
+ * open/closed mark) lives in flat int arrays owned by a reusable Search context. Each query
+ * bumps a generation counter instead of clearing the arrays: a cell whose mark is older than
+ * the current generation is simply unvisited.
+ * The open list is a bucket queue (Dial's algorithm) indexed by integer f = g + h. With a
+ * consistent heuristic, f never decreases and every open f lies within twice the largest
+ * edge cost of the current one, so a circular array of buckets is enough.
+ * Costs: 4-connected moves cost 1 (Manhattan heuristic). 8-connected moves cost 5 straight
+ * and 7 diagonal (octile heuristic); diagonals may not cut corners.
+ * JPS+ (Rabin, 2015) precomputes, for every cell and each of the 8 directions, the distance
+ * to the next jump point in that direction, or minus the distance to the next wall. A
+ * search then moves from jump point to jump point with table lookups and never scans rows.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GridPathfinder {
+
+    public enum Mode { BFS, ASTAR_4, ASTAR_8, JPS_PLUS }
+
+    public static final int STRAIGHT = 5;
+    public static final int DIAGONAL = 7;
+
+    // Directions clockwise from north; even directions are cardinal
+    private static final int[] DX = {0, 1, 1, 1, 0, -1, -1, -1};
+    private static final int[] DY = {-1, -1, 0, 1, 1, 1, 0, -1};
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final byte[] blocked;
+    private final int[] offset = new int[8];
+    private short[] jump;  // JPS+ distances, 8 per cell
+    private final ConcurrentLinkedQueue<Search> contexts = new ConcurrentLinkedQueue<>();
+
+    public GridPathfinder(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 2;
+        blocked = new byte[(height + 2) * stride];
+        Arrays.fill(blocked, (byte) 1);
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(blocked, cell(0, y), cell(0, y) + width, (byte) 0);
+        }
+        for (int d = 0; d < 8; d++) offset[d] = DY[d] * stride + DX[d];
+    }
+
+    // grid[row][col], nonzero for walls; x is the column and y the row
+    public static GridPathfinder fromRows(int[][] grid) {
+        GridPathfinder g = new GridPathfinder(grid[0].length, grid.length);
+        g.setRows(grid);
+        return g;
+    }
+
+    // Overwrites every cell from a grid of the same size; pooled search contexts are kept
+    public void setRows(int[][] grid) {
+        if (grid.length != height || grid[0].length != width) {
+            throw new IllegalArgumentException("grid is " + grid[0].length + "x" + grid.length + ", not " + width + "x" + height);
+        }
+        for (int y = 0; y < height; y++) {
+            int row = cell(0, y);
+            for (int x = 0; x < width; x++) blocked[row + x] = (byte) (grid[y][x] != 0 ? 1 : 0);
+        }
+        jump = null;
+    }
+
+    private int cell(int x, int y) {
+        return (y + 1) * stride + (x + 1);
+    }
+
+    private int x(int c) {
+        return c % stride - 1;
+    }
+
+    private int y(int c) {
+        return c / stride - 1;
+    }
+
+    // Invalidates the JPS+ table; call preprocess() again before JPS_PLUS queries
+    public void setBlocked(int x, int y, boolean wall) {
+        blocked[cell(x, y)] = (byte) (wall ? 1 : 0);
+        jump = null;
+    }
+
+    public boolean isBlocked(int x, int y) {
+        return blocked[cell(x, y)] != 0;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    private boolean canMove(int c, int d) {
+        if (blocked[c + offset[d]] != 0) return false;
+        // No corner cutting: both cardinal cells beside a diagonal step must be free
+        return (d & 1) == 0 || blocked[c + offset[d - 1]] == 0 && blocked[c + offset[(d + 1) & 7]] == 0;
+    }
+
+    /* ---------------------------------------------------------------- JPS+ preprocessing */
+
+    // Builds the jump distance table (8 shorts per cell)
+    public void preprocess() {
+        if (width > Short.MAX_VALUE || height > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("JPS+ supports grids up to 32767 cells wide");
+        }
+        short[] table = new short[blocked.length * 8];
+        // Cardinals: the neighbour in direction d must be done before the cell itself
+        for (int d = 0; d < 8; d += 2) {
+            boolean reverseY = DY[d] > 0;
+            boolean reverseX = DX[d] > 0;
+            for (int i = 0; i < height; i++) {
+                int y = reverseY ? height - 1 - i : i;
+                for (int j = 0; j < width; j++) {
+                    int x = reverseX ? width - 1 - j : j;
+                    int c = cell(x, y);
+                    if (blocked[c] == 0) table[c * 8 + d] = straightDistance(table, c, d);
+                }
+            }
+        }
+        // Diagonals depend on the cardinals and on the diagonal neighbour one row closer
+        for (int d = 1; d < 8; d += 2) {
+            boolean reverseY = DY[d] > 0;
+            for (int i = 0; i < height; i++) {
+                int y = reverseY ? height - 1 - i : i;
+                for (int x = 0; x < width; x++) {
+                    int c = cell(x, y);
+                    if (blocked[c] == 0) table[c * 8 + d] = diagonalDistance(table, c, d);
+                }
+            }
+        }
+        jump = table;
+    }
+
+    private short straightDistance(short[] table, int c, int d) {
+        int n = c + offset[d];
+        if (blocked[n] != 0) return 0;
+        if (isJumpPoint(n, d)) return 1;
+        int next = table[n * 8 + d];
+        return (short) (next > 0 ? next + 1 : next - 1);
+    }
+
+    // Entering n in cardinal direction d, a wall beside the previous cell that ends beside n forces a turn
+    private boolean isJumpPoint(int n, int d) {
+        int p = n - offset[d];
+        for (int side : new int[]{(d + 2) & 7, (d + 6) & 7}) {
+            if (blocked[p + offset[side]] != 0 && blocked[n + offset[side]] == 0) return true;
+        }
+        return false;
+    }
+
+    private short diagonalDistance(short[] table, int c, int d) {
+        if (!canMove(c, d)) return 0;
+        int n = c + offset[d];
+        if (table[n * 8 + d - 1] > 0 || table[n * 8 + ((d + 1) & 7)] > 0) return 1;
+        int next = table[n * 8 + d];
+        return (short) (next > 0 ? next + 1 : next - 1);
+    }
+
+    /* ---------------------------------------------------------------- queries */
+
+    // Path as cells packed y * width + x from start to goal inclusive, or null if unreachable
+    public int[] findPath(int sx, int sy, int gx, int gy, Mode mode) {
+        Search search = acquire();
+        try {
+            return search.run(cell(sx, sy), cell(gx, gy), mode);
+        } finally {
+            contexts.add(search);
+        }
+    }
+
+    /*
+     * Answers queries {sx, sy, gx, gy} on the given number of threads. Each thread keeps one
+     * Search context, and contexts are pooled across calls.
+     */
+    public int[][] findPaths(int[][] queries, Mode mode, int threads) throws InterruptedException {
+        int[][] paths = new int[queries.length][];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    Search search = acquire();
+                    try {
+                        for (int i = next.getAndIncrement(); i < queries.length; i = next.getAndIncrement()) {
+                            int[] q = queries[i];
+                            paths[i] = search.run(cell(q[0], q[1]), cell(q[2], q[3]), mode);
+                        }
+                    } finally {
+                        contexts.add(search);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return paths;
+    }
+
+    private Search acquire() {
+        Search search = contexts.poll();
+        return search != null ? search : new Search();
+    }
+
+    // Cost of a packed path under the 8-connected costs (4-connected paths cost 5 per step)
+    public static int pathCost(int[] path, int width) {
+        int cost = 0;
+        for (int i = 1; i < path.length; i++) {
+            boolean diagonal = path[i] % width != path[i - 1] % width && path[i] / width != path[i - 1] / width;
+            cost += diagonal ? DIAGONAL : STRAIGHT;
+        }
+        return cost;
+    }
+
+    /* Per-thread query state, valid only for marks equal to the current generation */
+    private final class Search {
+        final int[] mark = new int[blocked.length];  // gen: open, gen + 1: closed
+        final int[] g = new int[blocked.length];
+        final int[] parent = new int[blocked.length];
+        final byte[] arrival = new byte[blocked.length];
+        int gen;
+
+        // Bucket queue: circular buckets of linked entries
+        final int bucketMask;
+        final int[] bucketHead;
+        final int[] bucketGen;
+        int[] entryCell = new int[1024];
+        int[] entryNext = new int[1024];
+        int entries;
+        int size;
+        int current;
+
+        int goal;
+        int goalX;
+        int goalY;
+        boolean eight;
+
+        Search() {
+            int maxEdge = Math.max(width, height) * DIAGONAL;
+            int buckets = Integer.highestOneBit(2 * maxEdge + 2) << 1;
+            bucketMask = buckets - 1;
+            bucketHead = new int[buckets];
+            bucketGen = new int[buckets];
+        }
+
+        void begin(int goal, boolean eight) {
+            gen += 2;
+            if (gen < 0) {
+                Arrays.fill(mark, 0);
+                Arrays.fill(bucketGen, 0);
+                gen = 2;
+            }
+            entries = 0;
+            size = 0;
+            this.goal = goal;
+            this.goalX = x(goal);
+            this.goalY = y(goal);
+            this.eight = eight;
+        }
+
+        int h(int c) {
+            int dx = Math.abs(x(c) - goalX);
+            int dy = Math.abs(y(c) - goalY);
+            if (!eight) return dx + dy;
+            return STRAIGHT * Math.max(dx, dy) + (DIAGONAL - STRAIGHT) * Math.min(dx, dy);
+        }
+
+        void push(int c, int f) {
+            if (size == 0 || f < current) current = f;
+            int b = f & bucketMask;
+            if (bucketGen[b] != gen) {
+                bucketGen[b] = gen;
+                bucketHead[b] = -1;
+            }
+            if (entries == entryCell.length) {
+                entryCell = Arrays.copyOf(entryCell, entries * 2);
+                entryNext = Arrays.copyOf(entryNext, entries * 2);
+            }
+            entryCell[entries] = c;
+            entryNext[entries] = bucketHead[b];
+            bucketHead[b] = entries++;
+            size++;
+        }
+
+        // Lowest-f cell, or -1; entries for cells closed since they were pushed are skipped
+        int pop() {
+            while (size > 0) {
+                int b = current & bucketMask;
+                if (bucketGen[b] == gen && bucketHead[b] >= 0) {
+                    int e = bucketHead[b];
+                    bucketHead[b] = entryNext[e];
+                    size--;
+                    int c = entryCell[e];
+                    if (mark[c] == gen) return c;
+                } else {
+                    current++;
+                }
+            }
+            return -1;
+        }
+
+        // Records a better g for n (reached from c in direction d) and queues it
+        void relax(int c, int n, int d, int cost) {
+            int ng = g[c] + cost;
+            if (mark[n] == gen + 1 || mark[n] == gen && g[n] <= ng) return;
+            mark[n] = gen;
+            g[n] = ng;
+            parent[n] = c;
+            arrival[n] = (byte) d;
+            push(n, ng + h(n));
+        }
+
+        int[] run(int start, int goal, Mode mode) {
+            if (blocked[start] != 0 || blocked[goal] != 0) return null;
+            if (mode == Mode.BFS) return bfs(start, goal);
+            if (mode == Mode.JPS_PLUS && jump == null) {
+                throw new IllegalStateException("call preprocess() before JPS_PLUS queries");
+            }
+            begin(goal, mode != Mode.ASTAR_4);
+            mark[start] = gen;
+            g[start] = 0;
+            parent[start] = -1;
+            arrival[start] = -1;
+            push(start, h(start));
+            for (int c = pop(); c >= 0; c = pop()) {
+                if (c == goal) return mode == Mode.JPS_PLUS ? expandJumps(start, goal) : trace(start, goal);
+                mark[c] = gen + 1;
+                if (mode == Mode.ASTAR_4) {
+                    for (int d = 0; d < 8; d += 2) {
+                        if (blocked[c + offset[d]] == 0) relax(c, c + offset[d], d, 1);
+                    }
+                } else if (mode == Mode.ASTAR_8) {
+                    for (int d = 0; d < 8; d++) {
+                        if (canMove(c, d)) relax(c, c + offset[d], d, (d & 1) == 0 ? STRAIGHT : DIAGONAL);
+                    }
+                } else {
+                    expandJps(c);
+                }
+            }
+            return null;
+        }
+
+        private void expandJps(int c) {
+            int from = arrival[c];
+            int cx = x(c);
+            int cy = y(c);
+            int base = c * 8;
+            for (int d = 0; d < 8; d++) {
+                // Never turn back more than 90 degrees from the arrival direction
+                if (from >= 0) {
+                    int turn = (d - from) & 7;
+                    if (turn >= 3 && turn <= 5) continue;
+                }
+                int dist = jump[base + d];
+                int reach = Math.abs(dist);
+                int dx = goalX - cx;
+                int dy = goalY - cy;
+                if ((d & 1) == 0) {
+                    // Goal straight ahead within reach
+                    boolean onLine = DX[d] == 0 ? dx == 0 && Integer.signum(dy) == DY[d] && Math.abs(dy) <= reach
+                            : dy == 0 && Integer.signum(dx) == DX[d] && Math.abs(dx) <= reach;
+                    if (onLine) {
+                        relax(c, goal, d, STRAIGHT * (Math.abs(dx) + Math.abs(dy)));
+                        continue;
+                    }
+                    if (dist > 0) relax(c, c + dist * offset[d], d, STRAIGHT * dist);
+                } else {
+                    // Goal in this quadrant: stop where a straight line to it begins
+                    if (Integer.signum(dx) == DX[d] && Integer.signum(dy) == DY[d]) {
+                        int steps = Math.min(Math.abs(dx), Math.abs(dy));
+                        if (steps <= reach) {
+                            relax(c, c + steps * offset[d], d, DIAGONAL * steps);
+                            continue;
+                        }
+                    }
+                    if (dist > 0) relax(c, c + dist * offset[d], d, DIAGONAL * dist);
+                }
+            }
+        }
+
+        private int[] bfs(int start, int goal) {
+            begin(goal, false);
+            int[] queue = entryCell.length >= blocked.length ? entryCell : (entryCell = Arrays.copyOf(entryCell, blocked.length));
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            mark[start] = gen;
+            parent[start] = -1;
+            while (head < tail) {
+                int c = queue[head++];
+                if (c == goal) return trace(start, goal);
+                for (int d = 0; d < 8; d += 2) {
+                    int n = c + offset[d];
+                    if (blocked[n] == 0 && mark[n] != gen) {
+                        mark[n] = gen;
+                        parent[n] = c;
+                        queue[tail++] = n;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private int[] trace(int start, int goal) {
+            int length = 1;
+            for (int c = goal; c != start; c = parent[c]) length++;
+            int[] path = new int[length];
+            for (int c = goal, i = length - 1; i >= 0; c = parent[c], i--) path[i] = y(c) * width + x(c);
+            return path;
+        }
+
+        // Jump points are joined by straight or diagonal lines; fill in the cells between them
+        private int[] expandJumps(int start, int goal) {
+            int length = 1;
+            for (int c = goal; c != start; c = parent[c]) {
+                int p = parent[c];
+                length += Math.max(Math.abs(x(c) - x(p)), Math.abs(y(c) - y(p)));
+            }
+            int[] path = new int[length];
+            int i = length - 1;
+            for (int c = goal; ; c = parent[c]) {
+                path[i--] = y(c) * width + x(c);
+                if (c == start) break;
+                int p = parent[c];
+                int step = -offset[arrival[c]];
+                for (int k = c + step; k != p; k += step) path[i--] = y(k) * width + x(k);
+            }
+            return path;
+        }
+    }
+
+    /* ---------------------------------------------------------------- benchmark */
+
+    // Rooms and corridors: random rectangular obstacles on an open map
+    static GridPathfinder randomMap(int size, int obstacles, long seed) {
+        GridPathfinder grid = new GridPathfinder(size, size);
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < obstacles; i++) {
+            int w = 1 + random.nextInt(size / 32);
+            int h = 1 + random.nextInt(size / 32);
+            int x0 = random.nextInt(size - w);
+            int y0 = random.nextInt(size - h);
+            for (int y = y0; y < y0 + h; y++) {
+                Arrays.fill(grid.blocked, grid.cell(x0, y), grid.cell(x0, y) + w, (byte) 1);
+            }
+        }
+        return grid;
+    }
+
+    static int[][] randomQueries(GridPathfinder grid, int n, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[][] queries = new int[n][];
+        for (int i = 0; i < n; i++) {
+            int[] q = new int[4];
+            for (int k = 0; k < 4; k += 2) {
+                do {
+                    q[k] = random.nextInt(grid.width);
+                    q[k + 1] = random.nextInt(grid.height);
+                } while (grid.isBlocked(q[k], q[k + 1]));
+            }
+            queries[i] = q;
+        }
+        return queries;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        GridPathfinder grid = randomMap(size, size * 2, 7);
+        long t0 = System.nanoTime();
+        grid.preprocess();
+        System.out.printf("%dx%d map, JPS+ preprocessing %.0f ms, %d available processors%n",
+                size, size, (System.nanoTime() - t0) / 1e6, Runtime.getRuntime().availableProcessors());
+
+        int[][] queries = randomQueries(grid, numQueries, 11);
+        int[][] reference = grid.findPaths(queries, Mode.ASTAR_8, 1);
+        int[][] jps = grid.findPaths(queries, Mode.JPS_PLUS, 1);
+        int mismatches = 0;
+        for (int i = 0; i < queries.length; i++) {
+            boolean same = reference[i] == null ? jps[i] == null
+                    : jps[i] != null && pathCost(reference[i], size) == pathCost(jps[i], size);
+            if (!same) mismatches++;
+        }
+        System.out.println("JPS+ vs A* cost mismatches: " + mismatches);
+
+        for (Mode mode : new Mode[]{Mode.ASTAR_8, Mode.JPS_PLUS}) {
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                long start = System.nanoTime();
+                grid.findPaths(queries, mode, threads);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-8s %d threads: %8.0f queries/s%n", mode, threads, queries.length / seconds);
+            }
+        }
+    }
+}
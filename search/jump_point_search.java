@@ -7,6 +7,8 @@ public class JumpPointSearch {
     private int[][] grid;
     private int width, height;
     private int goalX, goalY;
+    private GridPathfinder plus; // JPS+ tables, built on first use
+    private boolean plusStale;   // walls changed since the tables were built
 
     public JumpPointSearch(int[][] grid) {
         this.grid = grid;
@@ -44,6 +46,39 @@ public class JumpPointSearch {
         return Collections.emptyList();
     }
 
+    // Changes a wall; findPathPlus rebuilds its tables before the next query. Writes straight
+    // into the array passed to the constructor are not seen by findPathPlus once it has run
+    public void setWall(int x, int y, boolean wall) {
+        grid[x][y] = wall ? 1 : 0;
+        if (plus != null) {
+            plus.setBlocked(y, x, wall);
+            plusStale = true;
+        }
+    }
+
+    // JPS+ over precomputed jump distances (8-connected, no corner cutting)
+    public List<Point> findPathPlus(Point start, Point goal) {
+        if (plusStale) {
+            plus.preprocess();
+            plusStale = false;
+        }
+        if (plus == null) {
+            plus = new GridPathfinder(width, height);
+            for (int x = 0; x < height; x++) {
+                for (int y = 0; y < width; y++) {
+                    if (grid[x][y] == 1) plus.setBlocked(y, x, true);
+                }
+            }
+            plus.preprocess();
+        }
+        int[] cells = plus.findPath(start.y, start.x, goal.y, goal.x, GridPathfinder.Mode.JPS_PLUS);
+        List<Point> path = new ArrayList<>();
+        for (int i = 0; cells != null && i < cells.length; i++) {
+            path.add(new Point(cells[i] / width, cells[i] % width));
+        }
+        return path;
+    }
+
     private List<Point> reconstructPath(Node node) {
         List<Point> path = new ArrayList<>();
         while (node != null) {
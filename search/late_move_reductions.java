@@ -19,6 +19,9 @@ public class ChessSearch {
         void undoMove(Move m) {}
         // Determine if a move is a capture
         boolean isCapture(Move m) { return false; }
+        // Zobrist key of the position (see TranspositionTable.Zobrist); 0 when the board keeps
+        // none, and then the transposition table is skipped rather than shared by every position
+        long zobristKey() { return 0; }
     }
 
     // Simplified representation of a chess move
@@ -26,6 +29,13 @@ public class ChessSearch {
         // ... move representation omitted
     }
 
+    // Optional table shared between searches (and threads, see LazySMP)
+    private TranspositionTable tt;
+
+    public void setTranspositionTable(TranspositionTable tt) {
+        this.tt = tt;
+    }
+
     // Static evaluation of a board
     int evaluate(Board board) {
         // Simplified evaluation: material only
@@ -43,7 +53,32 @@ public class ChessSearch {
             return evaluate(board);
         }
 
+        long key = board.zobristKey();
+        boolean useTable = tt != null && key != 0;
+        int originalAlpha = alpha;
+        int swapped = -1;
+        if (useTable) {
+            long entry = tt.probe(key);
+            if (TranspositionTable.bound(entry) != TranspositionTable.NONE) {
+                int value = TranspositionTable.value(entry);
+                int bound = TranspositionTable.bound(entry);
+                if (!isRoot && TranspositionTable.depth(entry) >= depth
+                        && (bound == TranspositionTable.EXACT
+                        || bound == TranspositionTable.LOWER && value >= beta
+                        || bound == TranspositionTable.UPPER && value <= alpha)) {
+                    return value;
+                }
+                // Search the stored best move first
+                int ttMove = TranspositionTable.move(entry);
+                if (ttMove > 0 && ttMove < moves.size()) {
+                    java.util.Collections.swap(moves, 0, ttMove);
+                    swapped = ttMove;
+                }
+            }
+        }
+
         int bestValue = Integer.MIN_VALUE;
+        int bestIndex = -1;
         int moveCount = 0;
         for (Move move : moves) {
             moveCount++;
@@ -69,6 +104,7 @@ public class ChessSearch {
 
             if (score > bestValue) {
                 bestValue = score;
+                bestIndex = moveCount - 1;
             }
             if (bestValue > alpha) {
                 alpha = bestValue;
@@ -77,6 +113,13 @@ public class ChessSearch {
                 break; // beta cutoff
             }
         }
+        if (useTable) {
+            int bound = bestValue >= beta ? TranspositionTable.LOWER
+                    : bestValue > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+            // The next visit generates the moves afresh, so store the index in generation order
+            int generated = swapped > 0 && bestIndex == 0 ? swapped : swapped > 0 && bestIndex == swapped ? 0 : bestIndex;
+            tt.store(key, bestValue, generated, depth, bound);
+        }
         return bestValue;
     }
 
@@ -0,0 +1,372 @@
+/*
+ * Lazy SMP: parallel alpha-beta search through a shared transposition table
+ * N threads run the same iterative-deepening search on the same position. They share
+ * nothing but the lock-free TranspositionTable. Helper threads start at staggered depths
+ * and order moves a little differently, so they fill the table with bounds and best moves
+ * that the main thread then hits instead of searching again.
+ * Each thread runs negamax with principal variation search and late move reductions.
+ * From depth 4 on, each iteration starts with an aspiration window around the previous
+ * score, and the window is widened whenever the search fails outside it.
+ * The search stops when the main thread finishes its target depth; the main thread's
+ * best move is the result.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class LazySMP {
+
+    public static final int WIN = 1_000_000;
+    public static final int MAX_PLY = 128;
+    private static final int INF = WIN + 1;
+    private static final int ASPIRATION = 25;
+
+    /* Game position as seen by the search; scores are from the side to move */
+    public interface Position {
+        long key();
+        // Writes the legal moves (0..0xFFFE) to out and returns how many there are
+        int moves(int[] out);
+        Position play(int move);
+        boolean isTerminal();
+        // Static score; for terminal positions -WIN for a loss and 0 for a draw
+        int evaluate();
+        // Captures and similar moves are never reduced
+        default boolean isTactical(int move) {
+            return false;
+        }
+    }
+
+    private final int threads;
+    private final TranspositionTable tt;
+    private final ExecutorService pool;
+    private volatile boolean stop;
+    private final AtomicLong nodes = new AtomicLong();
+    private long[] depthNanos = new long[0];
+    private int bestMove = -1;
+    private int bestScore;
+    private long elapsedNanos;
+
+    public LazySMP(int threads, TranspositionTable tt) {
+        this.threads = threads;
+        this.tt = tt;
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "smp-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Searches to the given depth and returns the main thread's best move
+    public int search(Position root, int depth) throws InterruptedException {
+        tt.newSearch();
+        stop = false;
+        nodes.set(0);
+        depthNanos = new long[depth + 1];
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Worker worker = new Worker(t, start);
+            futures.add(pool.submit(() -> {
+                worker.iterate(root, worker.id == 0 ? depth : MAX_PLY - 1);
+                nodes.addAndGet(worker.nodes);
+                if (worker.id == 0) {
+                    bestMove = worker.rootMove;
+                    bestScore = worker.rootScore;
+                    stop = true;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+        return bestMove;
+    }
+
+    public int bestScore() {
+        return bestScore;
+    }
+
+    public long nodes() {
+        return nodes.get();
+    }
+
+    public double nodesPerSecond() {
+        return nodes.get() / (elapsedNanos / 1e9);
+    }
+
+    // Wall time at which the main thread completed each depth
+    public long nanosToDepth(int depth) {
+        return depthNanos[depth];
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private final class Worker {
+        final int id;
+        final long start;
+        final int[][] moves = new int[MAX_PLY][256];
+        long nodes;
+        int rootMove = -1;
+        int rootScore;
+
+        Worker(int id, long start) {
+            this.id = id;
+            this.start = start;
+        }
+
+        void iterate(Position root, int maxDepth) {
+            int score = 0;
+            // Odd helpers skip every other depth so the threads spread over depths
+            for (int depth = 1 + (id & 1); depth <= maxDepth && !stop; depth++) {
+                int alpha = -INF;
+                int beta = INF;
+                int delta = ASPIRATION;
+                if (depth >= 4) {
+                    alpha = Math.max(-INF, score - delta);
+                    beta = Math.min(INF, score + delta);
+                }
+                while (true) {
+                    int value = search(root, depth, alpha, beta, 0);
+                    if (stop) return; // helpers only: the main thread is the one that stops
+                    if (value <= alpha) {
+                        beta = (alpha + beta) / 2;
+                        alpha = Math.max(-INF, value - delta);
+                    } else if (value >= beta) {
+                        beta = Math.min(INF, value + delta);
+                    } else {
+                        score = value;
+                        break;
+                    }
+                    delta += delta / 2 + 1;
+                    if (delta > WIN / 2) {
+                        alpha = -INF;
+                        beta = INF;
+                    }
+                }
+                rootScore = score;
+                if (id == 0) depthNanos[depth] = System.nanoTime() - start;
+                if (Math.abs(score) >= WIN - MAX_PLY && id == 0) {
+                    // Forced result found; deeper iterations cannot change it
+                    for (int d = depth + 1; d <= maxDepth; d++) depthNanos[d] = depthNanos[depth];
+                    return;
+                }
+            }
+        }
+
+        int search(Position pos, int depth, int alpha, int beta, int ply) {
+            nodes++;
+            if (stop && ply > 0) return 0;
+            if (pos.isTerminal()) {
+                int v = pos.evaluate();
+                return v <= -WIN ? -WIN + ply : v >= WIN ? WIN - ply : v;
+            }
+            if (depth <= 0 || ply >= MAX_PLY - 1) return pos.evaluate();
+
+            long key = pos.key();
+            long entry = tt.probe(key);
+            int ttMove = -1;
+            if (TranspositionTable.bound(entry) != TranspositionTable.NONE) {
+                ttMove = TranspositionTable.move(entry);
+                if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                    int v = fromTable(TranspositionTable.value(entry), ply);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || bound == TranspositionTable.LOWER && v >= beta
+                            || bound == TranspositionTable.UPPER && v <= alpha) {
+                        return v;
+                    }
+                }
+            }
+
+            int[] list = moves[ply];
+            int n = pos.moves(list);
+            order(list, n, ttMove, ply);
+            int originalAlpha = alpha;
+            int best = -INF;
+            int bestAt = -1;
+            for (int i = 0; i < n; i++) {
+                int move = list[i];
+                Position child = pos.play(move);
+                int score;
+                if (i == 0) {
+                    score = -search(child, depth - 1, -beta, -alpha, ply + 1);
+                } else {
+                    // Late quiet moves get a reduced null-window search first
+                    int reduction = depth >= 3 && i >= 3 && !pos.isTactical(move) ? 1 + (i >= 6 ? 1 : 0) : 0;
+                    score = -search(child, depth - 1 - reduction, -alpha - 1, -alpha, ply + 1);
+                    if (score > alpha && reduction > 0) {
+                        score = -search(child, depth - 1, -alpha - 1, -alpha, ply + 1);
+                    }
+                    if (score > alpha && score < beta) {
+                        score = -search(child, depth - 1, -beta, -alpha, ply + 1);
+                    }
+                }
+                if (stop && ply > 0) return 0;
+                if (score > best) {
+                    best = score;
+                    bestAt = move;
+                    if (ply == 0) {
+                        rootMove = move;
+                    }
+                }
+                if (score > alpha) alpha = score;
+                if (alpha >= beta) break;
+            }
+            if (n == 0) return pos.evaluate();
+            int bound = best >= beta ? TranspositionTable.LOWER
+                    : best > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+            if (!stop) tt.store(key, toTable(best, ply), bestAt, depth, bound);
+            return best;
+        }
+
+        // Table move first; helpers rotate the remaining moves to diversify their trees
+        private void order(int[] list, int n, int ttMove, int ply) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (list[i] == ttMove) {
+                    list[i] = list[0];
+                    list[0] = ttMove;
+                    start = 1;
+                    break;
+                }
+            }
+            int rest = n - start;
+            int shift = id == 0 || rest < 2 ? 0 : (id + ply) % rest;
+            if (shift > 0) {
+                int[] copy = Arrays.copyOfRange(list, start, n);
+                for (int i = 0; i < rest; i++) list[start + i] = copy[(i + shift) % rest];
+            }
+        }
+    }
+
+    // Mate scores are stored relative to the node, not the root
+    private static int toTable(int v, int ply) {
+        return v >= WIN - MAX_PLY ? v + ply : v <= -WIN + MAX_PLY ? v - ply : v;
+    }
+
+    private static int fromTable(int v, int ply) {
+        return v >= WIN - MAX_PLY ? v - ply : v <= -WIN + MAX_PLY ? v + ply : v;
+    }
+
+    /* ---------------------------------------------------------------- demo position */
+
+    // Connect Four on 7-bit column bitboards with an incrementally updated Zobrist key
+    static final class ConnectFour implements Position {
+        private static final TranspositionTable.Zobrist ZOBRIST = new TranspositionTable.Zobrist(49, 2, 42);
+        private static final int[] ORDER = {3, 2, 4, 1, 5, 0, 6};
+        private static final int[] WEIGHT = new int[49];
+
+        static {
+            // Number of four-in-a-row windows through each cell
+            int[][] dirs = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+            for (int c = 0; c < 7; c++) {
+                for (int r = 0; r < 6; r++) {
+                    for (int[] d : dirs) {
+                        int end = c + 3 * d[0];
+                        int top = r + 3 * d[1];
+                        if (end >= 7 || top < 0 || top >= 6) continue;
+                        for (int k = 0; k < 4; k++) WEIGHT[7 * (c + k * d[0]) + r + k * d[1]]++;
+                    }
+                }
+            }
+        }
+
+        private final long mine;   // stones of the side to move
+        private final long both;
+        private final int count;
+        private final long key;
+
+        ConnectFour() {
+            this(0, 0, 0, 0);
+        }
+
+        private ConnectFour(long mine, long both, int count, long key) {
+            this.mine = mine;
+            this.both = both;
+            this.count = count;
+            this.key = key;
+        }
+
+        // Plays a sequence of columns such as "4453"
+        static ConnectFour of(String columns) {
+            ConnectFour p = new ConnectFour();
+            for (char ch : columns.toCharArray()) p = (ConnectFour) p.play(ch - '1');
+            return p;
+        }
+
+        @Override
+        public long key() {
+            return key;
+        }
+
+        @Override
+        public int moves(int[] out) {
+            int n = 0;
+            for (int col : ORDER) {
+                if ((both & (1L << (7 * col + 5))) == 0) out[n++] = col;
+            }
+            return n;
+        }
+
+        @Override
+        public Position play(int col) {
+            long newBoth = both | (both + (1L << (7 * col)));
+            long stone = newBoth ^ both;
+            int square = Long.numberOfTrailingZeros(stone);
+            long newKey = key ^ ZOBRIST.key(square, count & 1) ^ ZOBRIST.sideToMove;
+            return new ConnectFour((mine | stone) ^ newBoth, newBoth, count + 1, newKey);
+        }
+
+        private static boolean fourInRow(long b) {
+            for (int shift : new int[]{1, 7, 6, 8}) {
+                long m = b & (b >>> shift);
+                if ((m & (m >>> (2 * shift))) != 0) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isTerminal() {
+            return count == 42 || fourInRow(mine ^ both);
+        }
+
+        @Override
+        public int evaluate() {
+            if (fourInRow(mine ^ both)) return -WIN;
+            if (count == 42) return 0;
+            return weight(mine) - weight(mine ^ both);
+        }
+
+        private static int weight(long stones) {
+            int sum = 0;
+            for (long b = stones; b != 0; b &= b - 1) sum += WEIGHT[Long.numberOfTrailingZeros(b)];
+            return sum;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 14;
+        Position root = ConnectFour.of("4453");
+        System.out.printf("%d available processors, depth %d%n", Runtime.getRuntime().availableProcessors(), depth);
+        double base = 0;
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            TranspositionTable tt = TranspositionTable.ofMegabytes(64);
+            LazySMP smp = new LazySMP(threads, tt);
+            int move = smp.search(root, depth);
+            double ms = smp.nanosToDepth(depth) / 1e6;
+            if (threads == 1) base = ms;
+            System.out.printf("%d threads: move %d score %d, %.0f nodes/s, time to depth %.0f ms (%.2fx), hashfull %d%n",
+                    threads, move + 1, smp.bestScore(), smp.nodesPerSecond(), ms, base / ms, tt.hashfull());
+            smp.shutdown();
+        }
+    }
+}
@@ -32,6 +32,21 @@ public class LearnedSparseRetrieval {
         }
     }
 
+    // Copies the postings into a compressed on-disk index served with Block-Max WAND,
+    // one whole document at a time so that no document is split across segments
+    public void exportTo(BlockMaxWandIndex index) throws java.io.IOException {
+        Map<Integer, Map<String, Integer>> byDoc = new TreeMap<>();
+        for (Map.Entry<String, Map<Integer, Integer>> term : termDocFreq.entrySet()) {
+            for (Map.Entry<Integer, Integer> posting : term.getValue().entrySet()) {
+                byDoc.computeIfAbsent(posting.getKey(), k -> new HashMap<>()).put(term.getKey(), posting.getValue());
+            }
+        }
+        for (Map.Entry<Integer, Map<String, Integer>> doc : byDoc.entrySet()) {
+            index.addDocument(doc.getKey(), doc.getValue());
+        }
+        index.flush();
+    }
+
     public List<Integer> query(String query, int topK) {
         String[] qTokens = query.toLowerCase().split("\\s+");
         Map<String, Integer> qFreq = new HashMap<>();
@@ -69,6 +69,32 @@ public class MazeSolverLee {
         return path;
     }
 
+    // One engine per thread, kept while the maze size stays the same, so repeated calls
+    // reuse its search state and only reload the walls
+    private static final ThreadLocal<GridPathfinder> GRID = new ThreadLocal<>();
+
+    /**
+     * Same result as solve, using GridPathfinder's breadth-first search over flat arrays.
+     */
+    public static java.util.List<int[]> solveFast(int[][] maze, int[] start, int[] goal) {
+        GridPathfinder grid = GRID.get();
+        if (grid == null || grid.width() != maze[0].length || grid.height() != maze.length) {
+            grid = new GridPathfinder(maze[0].length, maze.length);
+            GRID.set(grid);
+        }
+        grid.setRows(maze);
+        int cols = maze[0].length;
+        int[] cells = grid.findPath(start[1], start[0], goal[1], goal[0], GridPathfinder.Mode.BFS);
+        if (cells == null) {
+            return null; // No path found
+        }
+        java.util.List<int[]> path = new java.util.ArrayList<>();
+        for (int c : cells) {
+            path.add(new int[]{c / cols, c % cols});
+        }
+        return path;
+    }
+
     // Example usage and simple test
     public static void main(String[] args) {
         int[][] maze = {
@@ -0,0 +1,414 @@
+/*
+ * MinHash with one-permutation hashing and banded LSH
+ * A document is a set of tokens. Each token is hashed once to 64 bits. The top log2(K)
+ * bits choose one of K bins and the remaining bits are the value; each bin keeps its
+ * minimum. Empty bins are filled by "optimal densification" (Shrivastava, 2017): an
+ * empty bin copies the value of a non-empty bin chosen by a fixed hash sequence, so two
+ * documents that agree on the chosen bin also agree on the copy. The fraction of equal
+ * bins estimates Jaccard similarity at the cost of one hash per token instead of K.
+ * The K values are cut into b bands of r rows, and each band hashes into a bucket table.
+ * Two documents become candidates if they share a bucket in any band, which happens
+ * with probability 1 - (1 - s^r)^b for Jaccard similarity s.
+ * Dedup mode walks the buckets of all bands in parallel. Each pair is verified once, in
+ * the first band where it collides, and merged in a lock-free union-find.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.*;
+
+public class MinHashIndex implements SimilaritySearch.Index {
+
+    private static final long EMPTY = -1L;
+
+    private final int numHashes;
+    private final int logHashes;
+    private final int bands;
+    private final int rows;
+    private final BucketTable[] tables;
+    private long[] signatures = new long[0];
+    private long[] bandKeys = new long[0];
+    private int numDocs;
+
+    /* numHashes must be a power of two and a multiple of bands */
+    public MinHashIndex(int numHashes, int bands) {
+        if (Integer.bitCount(numHashes) != 1 || numHashes % bands != 0) {
+            throw new IllegalArgumentException("numHashes must be a power of two divisible by bands");
+        }
+        this.numHashes = numHashes;
+        this.logHashes = Integer.numberOfTrailingZeros(numHashes);
+        this.bands = bands;
+        this.rows = numHashes / bands;
+        this.tables = new BucketTable[bands];
+        for (int b = 0; b < bands; b++) tables[b] = new BucketTable();
+    }
+
+    /* Picks the band count whose S-curve midpoint (1/b)^(1/r) is closest below threshold */
+    public static MinHashIndex forThreshold(int numHashes, double threshold) {
+        int best = 1;
+        for (int b = 1; b <= numHashes; b++) {
+            if (numHashes % b != 0) continue;
+            int r = numHashes / b;
+            if (Math.pow(1.0 / b, 1.0 / r) <= threshold) {
+                best = b;
+                break;
+            }
+        }
+        return new MinHashIndex(numHashes, best);
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    public int bands() {
+        return bands;
+    }
+
+    /* ---------------------------------------------------------------- hashing */
+
+    // MurmurHash3 64-bit finalizer
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 code units, then mixed
+    public static long hash64(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    // One-permutation MinHash signature of the tokens into out[0, numHashes)
+    public void signature(Collection<String> tokens, long[] out) {
+        Arrays.fill(out, 0, numHashes, EMPTY);
+        long valueMask = -1L >>> logHashes;
+        for (String token : tokens) {
+            long h = hash64(token);
+            int bin = logHashes == 0 ? 0 : (int) (h >>> (64 - logHashes));
+            long value = h & valueMask;
+            if (out[bin] == EMPTY || value < out[bin]) {
+                out[bin] = value;
+            }
+        }
+        densify(out);
+    }
+
+    private void densify(long[] sig) {
+        int filled = 0;
+        for (int i = 0; i < numHashes; i++) {
+            if (sig[i] != EMPTY) filled++;
+        }
+        if (filled == 0 || filled == numHashes) return;
+        boolean[] original = new boolean[numHashes];
+        for (int i = 0; i < numHashes; i++) original[i] = sig[i] != EMPTY;
+        for (int i = 0; i < numHashes; i++) {
+            if (original[i]) continue;
+            for (long attempt = 1; ; attempt++) {
+                int j = (int) ((mix64((long) i << 32 | attempt) & Long.MAX_VALUE) % numHashes);
+                if (original[j]) {
+                    sig[i] = sig[j];
+                    break;
+                }
+            }
+        }
+    }
+
+    private long bandKey(long[] sig, int offset, int band) {
+        long h = band + 1;
+        int from = offset + band * rows;
+        for (int k = from; k < from + rows; k++) {
+            h = (h + sig[k]) * 0x9E3779B97F4A7C15L;
+        }
+        return mix64(h);
+    }
+
+    /* ---------------------------------------------------------------- indexing */
+
+    @Override
+    public synchronized int add(Set<String> tokens) {
+        long[] sig = new long[numHashes];
+        signature(tokens, sig);
+        return insert(sig, 0);
+    }
+
+    // Computes the signatures in parallel, then inserts them in order; returns the first doc ID
+    public synchronized int addAll(List<? extends Collection<String>> docs) {
+        long[] sigs = new long[docs.size() * numHashes];
+        IntStream.range(0, docs.size()).parallel().forEach(d -> {
+            long[] sig = new long[numHashes];
+            signature(docs.get(d), sig);
+            System.arraycopy(sig, 0, sigs, d * numHashes, numHashes);
+        });
+        int first = numDocs;
+        for (int d = 0; d < docs.size(); d++) {
+            insert(sigs, d * numHashes);
+        }
+        return first;
+    }
+
+    private int insert(long[] sig, int offset) {
+        int doc = numDocs++;
+        if ((long) numDocs * numHashes > signatures.length) {
+            int capacity = Math.max(16, numDocs * 2);
+            signatures = Arrays.copyOf(signatures, capacity * numHashes);
+            bandKeys = Arrays.copyOf(bandKeys, capacity * bands);
+        }
+        System.arraycopy(sig, offset, signatures, doc * numHashes, numHashes);
+        for (int b = 0; b < bands; b++) {
+            long key = bandKey(sig, offset, b);
+            bandKeys[doc * bands + b] = key;
+            tables[b].add(key, doc);
+        }
+        return doc;
+    }
+
+    /* ---------------------------------------------------------------- queries */
+
+    @Override
+    public int[] candidates(Set<String> tokens) {
+        long[] sig = new long[numHashes];
+        signature(tokens, sig);
+        return candidates(sig);
+    }
+
+    private synchronized int[] candidates(long[] sig) {
+        Set<Integer> seen = new HashSet<>();
+        for (int b = 0; b < bands; b++) {
+            for (int doc = tables[b].head(bandKey(sig, 0, b)); doc >= 0; doc = tables[b].next(doc)) {
+                seen.add(doc);
+            }
+        }
+        int[] out = new int[seen.size()];
+        int i = 0;
+        for (int doc : seen) out[i++] = doc;
+        return out;
+    }
+
+    // Candidates whose estimated Jaccard similarity reaches threshold
+    public List<Integer> query(Set<String> tokens, double threshold) {
+        long[] sig = new long[numHashes];
+        signature(tokens, sig);
+        List<Integer> results = new ArrayList<>();
+        for (int doc : candidates(sig)) {
+            if (estimate(sig, 0, signatures, doc * numHashes) >= threshold) results.add(doc);
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    @Override
+    public double estimate(int a, int b) {
+        return estimate(signatures, a * numHashes, signatures, b * numHashes);
+    }
+
+    private double estimate(long[] x, int xo, long[] y, int yo) {
+        int equal = 0;
+        for (int k = 0; k < numHashes; k++) {
+            if (x[xo + k] == y[yo + k]) equal++;
+        }
+        return equal / (double) numHashes;
+    }
+
+    /* ---------------------------------------------------------------- dedup */
+
+    @Override
+    public synchronized int[] dedup(double threshold) {
+        AtomicIntegerArray parent = new AtomicIntegerArray(numDocs);
+        for (int i = 0; i < numDocs; i++) parent.set(i, i);
+        IntStream.range(0, bands).parallel().forEach(b -> tables[b].forEachBucket(members -> {
+            for (int x = 0; x < members.length; x++) {
+                for (int y = x + 1; y < members.length; y++) {
+                    int i = members[x];
+                    int j = members[y];
+                    if (firstCollision(i, j) == b && find(parent, i) != find(parent, j)
+                            && estimate(i, j) >= threshold) {
+                        union(parent, i, j);
+                    }
+                }
+            }
+        }));
+        int[] cluster = new int[numDocs];
+        for (int i = 0; i < numDocs; i++) cluster[i] = find(parent, i);
+        return cluster;
+    }
+
+    private int firstCollision(int i, int j) {
+        for (int b = 0; b < bands; b++) {
+            if (bandKeys[i * bands + b] == bandKeys[j * bands + b]) return b;
+        }
+        return -1;
+    }
+
+    static int find(AtomicIntegerArray parent, int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x) return x;
+            int gp = parent.get(p);
+            parent.compareAndSet(x, p, gp); // path halving
+            x = gp;
+        }
+    }
+
+    // Links the larger root under the smaller, so every cluster ends up rooted at its smallest doc
+    static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            int ra = find(parent, a);
+            int rb = find(parent, b);
+            if (ra == rb) return;
+            if (ra < rb) {
+                int t = ra;
+                ra = rb;
+                rb = t;
+            }
+            if (parent.compareAndSet(ra, ra, rb)) return;
+        }
+    }
+
+    /* ---------------------------------------------------------------- buckets */
+
+    /* Open-addressing map from bucket key to the newest doc; older docs are chained via next[doc] */
+    static final class BucketTable {
+        private long[] keys = new long[16];
+        private int[] heads = filled(16);
+        private int[] next = new int[16];
+        private int size;
+
+        private static int[] filled(int n) {
+            int[] a = new int[n];
+            Arrays.fill(a, -1);
+            return a;
+        }
+
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int i = (int) mix64(key) & mask;
+            while (heads[i] >= 0 && keys[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        void add(long key, int doc) {
+            if (doc >= next.length) next = Arrays.copyOf(next, Math.max(doc + 1, next.length * 2));
+            if (2 * (size + 1) > keys.length) grow();
+            int i = slot(key);
+            if (heads[i] < 0) {
+                keys[i] = key;
+                size++;
+            }
+            next[doc] = heads[i];
+            heads[i] = doc;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads;
+            keys = new long[oldKeys.length * 2];
+            heads = filled(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldHeads[i] >= 0) {
+                    int s = slot(oldKeys[i]);
+                    keys[s] = oldKeys[i];
+                    heads[s] = oldHeads[i];
+                }
+            }
+        }
+
+        int head(long key) {
+            return heads[slot(key)];
+        }
+
+        int next(int doc) {
+            return next[doc];
+        }
+
+        // Calls action with the members of every bucket holding at least two docs
+        void forEachBucket(java.util.function.Consumer<int[]> action) {
+            int[] scratch = new int[16];
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] < 0 || next[heads[i]] < 0) continue;
+                int n = 0;
+                for (int doc = heads[i]; doc >= 0; doc = next[doc]) {
+                    if (n == scratch.length) scratch = Arrays.copyOf(scratch, n * 2);
+                    scratch[n++] = doc;
+                }
+                action.accept(Arrays.copyOf(scratch, n));
+            }
+        }
+    }
+
+    // Templates whose copies form exactly one cluster, with nothing else in it
+    private static int exactClusters(int[] cluster, int numTemplates, int copies) {
+        int exact = 0;
+        for (int t = 0; t < numTemplates; t++) {
+            boolean ok = true;
+            for (int c = 0; c < copies; c++) ok &= cluster[t * copies + c] == t * copies;
+            if (ok) exact++;
+        }
+        return exact;
+    }
+
+    public static void main(String[] args) {
+        // Near-duplicate corpus: templates with a few words replaced
+        Random rand = new Random(11);
+        String[] vocab = new String[20000];
+        for (int i = 0; i < vocab.length; i++) vocab[i] = "w" + i;
+        int numTemplates = 5000;
+        int copies = 10;
+        List<Set<String>> docs = new ArrayList<>();
+        for (int t = 0; t < numTemplates; t++) {
+            String[] words = new String[60];
+            for (int k = 0; k < words.length; k++) words[k] = vocab[rand.nextInt(vocab.length)];
+            for (int c = 0; c < copies; c++) {
+                Set<String> doc = new HashSet<>(Arrays.asList(words));
+                for (int k = 0; k < 3; k++) {
+                    doc.remove(words[rand.nextInt(words.length)]);
+                    doc.add(vocab[rand.nextInt(vocab.length)]);
+                }
+                docs.add(doc);
+            }
+        }
+        double threshold = 0.7;
+        MinHashIndex minhash = MinHashIndex.forThreshold(128, threshold);
+        long start = System.nanoTime();
+        minhash.addAll(docs);
+        double build = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        int[] clusters = minhash.dedup(threshold);
+        double dedup = (System.nanoTime() - start) / 1e6;
+        System.out.printf("MinHash (%d bands): indexed %d docs in %.0f ms, dedup in %.0f ms, %d clusters, %d of %d templates exact%n",
+                minhash.bands(), docs.size(), build, dedup, IntStream.of(clusters).distinct().count(),
+                exactClusters(clusters, numTemplates, copies), numTemplates);
+
+        // SimHash thresholds are in bits: these copies need about 11 of 64 to chain together.
+        // Eight blocks instead of the exact 12 keep buckets small and lose almost nothing here
+        int bits = 11;
+        SimHashIndex simhash = new SimHashIndex(bits, 8);
+        start = System.nanoTime();
+        for (Set<String> doc : docs) simhash.add(doc);
+        int[] simClusters = simhash.dedup(1 - bits / 64.0);
+        System.out.printf("SimHash (%d bits, 8 blocks): index + dedup in %.0f ms, %d clusters, %d of %d templates exact%n",
+                bits, (System.nanoTime() - start) / 1e6, IntStream.of(simClusters).distinct().count(),
+                exactClusters(simClusters, numTemplates, copies), numTemplates);
+
+        // Query against exact Jaccard over the whole collection
+        Set<String> query = docs.get(42);
+        start = System.nanoTime();
+        List<Integer> hits = minhash.query(query, threshold);
+        double lsh = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        int exact = 0;
+        for (Set<String> doc : docs) {
+            if (SimilaritySearch.computeJaccard(query, doc) >= threshold) exact++;
+        }
+        double scan = (System.nanoTime() - start) / 1e6;
+        System.out.printf("query: %d LSH hits in %.2f ms, %d exact in %.1f ms by full scan%n", hits.size(), lsh, exact, scan);
+    }
+}
@@ -8,6 +8,7 @@
          int value; // evaluation value for leaf nodes
          List<Node> children = new ArrayList<>();
          boolean isLeaf;
+         final long key = java.util.concurrent.ThreadLocalRandom.current().nextLong(); // transposition table key
 
          Node(int value, boolean isLeaf) {
              this.value = value;
@@ -69,6 +70,61 @@
          }
      }
 
+     // MTD(f) over a transposition table: each zero-window pass reuses the bounds stored by the previous ones
+     public static int mtdf(Node root, int depth, int initialGuess, TranspositionTable tt) {
+         int lowerBound = Integer.MIN_VALUE;
+         int upperBound = Integer.MAX_VALUE;
+         int guess = initialGuess;
+         tt.newSearch();
+         while (lowerBound < upperBound) {
+             int beta = guess == lowerBound ? guess + 1 : guess;
+             guess = alphaBetaWithMemory(root, depth, beta - 1, beta, true, tt);
+             if (guess < beta) {
+                 upperBound = guess;
+             } else {
+                 lowerBound = guess;
+             }
+         }
+         return guess;
+     }
+
+     private static int alphaBetaWithMemory(Node node, int depth, int alpha, int beta, boolean maximizingPlayer,
+                                            TranspositionTable tt) {
+         if (node.isLeaf || depth == 0) {
+             return node.value;
+         }
+         long entry = tt.probe(node.key);
+         if (TranspositionTable.bound(entry) != TranspositionTable.NONE && TranspositionTable.depth(entry) >= depth) {
+             int v = TranspositionTable.value(entry);
+             int bound = TranspositionTable.bound(entry);
+             if (bound == TranspositionTable.EXACT
+                     || bound == TranspositionTable.LOWER && v >= beta
+                     || bound == TranspositionTable.UPPER && v <= alpha) {
+                 return v;
+             }
+         }
+         int a = alpha;
+         int b = beta;
+         int best = maximizingPlayer ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+         int bestChild = -1;
+         for (int i = 0; i < node.children.size() && a < b; i++) {
+             int v = alphaBetaWithMemory(node.children.get(i), depth - 1, a, b, !maximizingPlayer, tt);
+             if (maximizingPlayer ? v > best : v < best) {
+                 best = v;
+                 bestChild = i;
+             }
+             if (maximizingPlayer) {
+                 a = Math.max(a, v);
+             } else {
+                 b = Math.min(b, v);
+             }
+         }
+         int bound = best <= alpha ? TranspositionTable.UPPER
+                 : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+         tt.store(node.key, best, bestChild, depth, bound);
+         return best;
+     }
+
      // Example usage
      public static void main(String[] args) {
          Node root = new Node(0, false);
@@ -86,6 +142,7 @@
          root.addChild(a);
          root.addChild(b);
 
+         System.out.println("MTD-f with transposition table: " + mtdf(root, 2, 0, new TranspositionTable(1 << 10)));
          int result = mtdf(root, 2, 0);
          System.out.println("MTD-f result: " + result);
      }
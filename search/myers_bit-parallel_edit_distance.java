@@ -0,0 +1,220 @@
+/*
+ * Myers' Bit-Parallel Edit Distance (with Hyyro's blocked extension)
+ * Computes the Levenshtein distance by encoding one column of the DP matrix as
+ * vertical +1/-1 delta bit-vectors, so each text character updates up to 64 pattern
+ * rows with a handful of word operations. Patterns longer than 64 characters are
+ * split into 64-row blocks that pass their horizontal delta down to the next block.
+ * The per-character match masks are the same as in Bitap and are kept in a
+ * reusable Pattern so a query can be compared against many words without
+ * rebuilding them. A banded O(k * n) DP is provided for threshold checks.
+ */
+
+import java.util.*;
+
+public class MyersLevenshtein {
+
+    // Preprocessed pattern: Peq masks per block, ASCII in a flat table and other characters in a small map
+    public static final class Pattern {
+        final String text;
+        final int length;
+        final int blocks;
+        final long[] ascii;
+        final Map<Character, long[]> other = new HashMap<>();
+
+        public Pattern(String text) {
+            this.text = text;
+            this.length = text.length();
+            this.blocks = Math.max(1, (length + 63) >>> 6);
+            this.ascii = new long[128 * blocks];
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                int block = i >>> 6;
+                long bit = 1L << (i & 63);
+                if (c < 128) {
+                    ascii[c * blocks + block] |= bit;
+                } else {
+                    other.computeIfAbsent(c, x -> new long[blocks])[block] |= bit;
+                }
+            }
+        }
+
+        long peq(char c, int block) {
+            if (c < 128) {
+                return ascii[c * blocks + block];
+            }
+            long[] masks = other.get(c);
+            return masks == null ? 0 : masks[block];
+        }
+
+        public String text() {
+            return text;
+        }
+    }
+
+    public static int distance(String s, String t) {
+        return distance(new Pattern(s), t, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * Edit distance between the pattern and text, or k + 1 as soon as the distance
+     * is known to exceed k.
+     */
+    public static int distance(Pattern p, String t, int k) {
+        int m = p.length;
+        int n = t.length();
+        if (m == 0) return Math.min(n, k + 1);
+        if (n == 0) return Math.min(m, k + 1);
+        if (Math.abs(m - n) > k) return k + 1;
+        if (p.blocks == 1) {
+            return singleWord(p, t, k);
+        }
+        return blocked(p, t, k);
+    }
+
+    private static int singleWord(Pattern p, String t, int k) {
+        int m = p.length;
+        int n = t.length();
+        long last = 1L << (m - 1);
+        long pv = -1L;
+        long mv = 0;
+        int score = m;
+        for (int j = 0; j < n; j++) {
+            long eq = p.peq(t.charAt(j), 0);
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0) {
+                score++;
+            } else if ((mh & last) != 0) {
+                score--;
+            }
+            // The score can drop by at most one per remaining text character
+            if (score - (n - j - 1) > k) {
+                return k + 1;
+            }
+            ph = (ph << 1) | 1;
+            mh = mh << 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+        }
+        return score <= k ? score : k + 1;
+    }
+
+    private static int blocked(Pattern p, String t, int k) {
+        int m = p.length;
+        int n = t.length();
+        int blocks = p.blocks;
+        long[] pv = new long[blocks];
+        long[] mv = new long[blocks];
+        Arrays.fill(pv, -1L);
+        long lastBit = 1L << ((m - 1) & 63);
+        int score = m;
+        for (int j = 0; j < n; j++) {
+            char c = t.charAt(j);
+            int hin = 1;
+            for (int b = 0; b < blocks; b++) {
+                long eq = p.peq(c, b);
+                long pvb = pv[b];
+                long mvb = mv[b];
+                long xv = eq | mvb;
+                if (hin < 0) {
+                    eq |= 1;
+                }
+                long xh = (((eq & pvb) + pvb) ^ pvb) | eq;
+                long ph = mvb | ~(xh | pvb);
+                long mh = pvb & xh;
+                long high = b == blocks - 1 ? lastBit : 1L << 63;
+                int hout = (ph & high) != 0 ? 1 : (mh & high) != 0 ? -1 : 0;
+                ph <<= 1;
+                mh <<= 1;
+                if (hin < 0) {
+                    mh |= 1;
+                } else if (hin > 0) {
+                    ph |= 1;
+                }
+                pv[b] = mh | ~(xv | ph);
+                mv[b] = ph & xv;
+                hin = hout;
+            }
+            score += hin;
+            if (score - (n - j - 1) > k) {
+                return k + 1;
+            }
+        }
+        return score <= k ? score : k + 1;
+    }
+
+    /**
+     * Banded Levenshtein distance: only cells with |i - j| <= k are evaluated, and the
+     * scan stops once every cell of a row exceeds k. Returns k + 1 when the distance is larger.
+     */
+    public static int boundedDistance(String s, String t, int k) {
+        int m = s.length();
+        int n = t.length();
+        if (Math.abs(m - n) > k) return k + 1;
+        if (m == 0 || n == 0) return Math.max(m, n);
+        int inf = k + 1;
+        int width = 2 * k + 1;
+        // row[d] holds dp[i][i - k + d]
+        int[] prev = new int[width + 2];
+        int[] curr = new int[width + 2];
+        for (int d = 0; d < width; d++) {
+            int j = d - k;
+            prev[d + 1] = j >= 0 && j <= n ? j : inf;
+        }
+        prev[0] = inf;
+        prev[width + 1] = inf;
+        for (int i = 1; i <= m; i++) {
+            int rowMin = inf;
+            curr[0] = inf;
+            curr[width + 1] = inf;
+            char sc = s.charAt(i - 1);
+            for (int d = 0; d < width; d++) {
+                int j = i - k + d;
+                int value;
+                if (j < 0 || j > n) {
+                    value = inf;
+                } else if (j == 0) {
+                    value = i;
+                } else {
+                    int cost = sc == t.charAt(j - 1) ? 0 : 1;
+                    // diagonal dp[i-1][j-1] sits at the same d, up dp[i-1][j] at d+1, left dp[i][j-1] at d-1
+                    value = prev[d + 1] + cost;
+                    value = Math.min(value, prev[d + 2] + 1);
+                    value = Math.min(value, curr[d] + 1);
+                }
+                value = Math.min(value, inf);
+                curr[d + 1] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > k) {
+                return inf;
+            }
+            int[] tmp = prev;
+            prev = curr;
+            curr = tmp;
+        }
+        return prev[n - m + k + 1];
+    }
+
+    public static boolean distanceAtMost(String s, String t, int k) {
+        return boundedDistance(s, t, k) <= k;
+    }
+
+    public static void main(String[] args) {
+        System.out.println(distance("kitten", "sitting"));
+        System.out.println(boundedDistance("kitten", "sitting", 2));
+        System.out.println(distanceAtMost("flaw", "lawn", 2));
+
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        Random rand = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            char c = (char) ('a' + rand.nextInt(4));
+            a.append(c);
+            b.append(rand.nextInt(10) == 0 ? 'x' : c);
+        }
+        System.out.println(distance(a.toString(), b.toString()));
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Parallel Monte Carlo Tree Search
+ * Tree parallelism: all worker threads grow one shared tree. A thread that walks through
+ * a node adds a "virtual loss" to its visit count, which lowers that node's UCT value so
+ * concurrent threads spread over different lines. Backpropagation turns the virtual
+ * visits into real ones. Statistics are atomic integers (visits, and wins counted in
+ * half points so a draw is 1), and a node is expanded by whichever thread wins a CAS on
+ * its expansion flag.
+ * Root parallelism: every thread grows a private tree from the same root, and the root
+ * children's visit counts are summed at the end.
+ * Nodes live in a preallocated struct-of-arrays pool. Children of a node occupy one
+ * contiguous block, so a node only stores the index of its first child and the child
+ * count. After a move is played, advance() copies the chosen subtree into a second pool
+ * and swaps the pools, so the search statistics carry over to the next move.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ParallelMCTS {
+
+    public enum Mode { TREE, ROOT }
+
+    /* Optional fast path for states that can list their moves without boxing */
+    public interface FastMoves {
+        // Writes the legal moves to out and returns how many there are
+        int legalMoves(int[] out);
+    }
+
+    private static final int UNEXPANDED = 0;
+    private static final int EXPANDING = 1;
+    private static final int EXPANDED = 2;
+
+    private final int threads;
+    private final Mode mode;
+    private final ExecutorService pool;
+    private final Tree[] trees;   // one shared tree, or one per thread in ROOT mode
+    private final Tree[] spares;  // targets for subtree compaction in advance()
+    private double exploration = Math.sqrt(2);
+    private int virtualLoss = 3;
+    private long lastPlayouts;
+    private long lastNanos;
+
+    public ParallelMCTS(int threads, int nodeCapacity, Mode mode) {
+        this.threads = threads;
+        this.mode = mode;
+        int numTrees = mode == Mode.TREE ? 1 : threads;
+        int capacity = mode == Mode.TREE ? nodeCapacity : nodeCapacity / threads;
+        trees = new Tree[numTrees];
+        spares = new Tree[numTrees];
+        for (int t = 0; t < numTrees; t++) {
+            trees[t] = new Tree(capacity);
+            spares[t] = new Tree(capacity);
+        }
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "mcts-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setExploration(double c) {
+        this.exploration = c;
+    }
+
+    public void setVirtualLoss(int virtualLoss) {
+        this.virtualLoss = virtualLoss;
+    }
+
+    /* ---------------------------------------------------------------- node pool */
+
+    static final class Tree {
+        final int capacity;
+        final int[] parent;
+        final int[] firstChild;
+        final int[] numChildren;
+        final int[] move;
+        final byte[] mover;              // player who made the move into the node
+        final GameState[] state;
+        final AtomicIntegerArray visits;
+        final AtomicIntegerArray wins2;  // 2 per win, 1 per draw, for the mover
+        final AtomicIntegerArray expand;
+        final AtomicInteger size = new AtomicInteger();
+        int root = -1;
+
+        Tree(int capacity) {
+            this.capacity = capacity;
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            numChildren = new int[capacity];
+            move = new int[capacity];
+            mover = new byte[capacity];
+            state = new GameState[capacity];
+            visits = new AtomicIntegerArray(capacity);
+            wins2 = new AtomicIntegerArray(capacity);
+            expand = new AtomicIntegerArray(capacity);
+        }
+
+        void init(int i, int parentIndex, int mv, int moverPlayer, GameState s) {
+            parent[i] = parentIndex;
+            firstChild[i] = -1;
+            numChildren[i] = 0;
+            move[i] = mv;
+            mover[i] = (byte) moverPlayer;
+            state[i] = s;
+            visits.set(i, 0);
+            wins2.set(i, 0);
+            expand.set(i, UNEXPANDED);
+        }
+
+        void reset(GameState rootState) {
+            Arrays.fill(state, 0, Math.min(capacity, size.get()), null);
+            size.set(1);
+            root = 0;
+            init(0, -1, -1, -rootState.getCurrentPlayer(), rootState);
+        }
+    }
+
+    static int legalMoves(GameState s, int[] out) {
+        if (s instanceof FastMoves) {
+            return ((FastMoves) s).legalMoves(out);
+        }
+        List<Integer> moves = s.getLegalMoves();
+        for (int i = 0; i < moves.size(); i++) out[i] = moves.get(i);
+        return moves.size();
+    }
+
+    /* ---------------------------------------------------------------- search */
+
+    public void setRoot(GameState state) {
+        for (Tree tree : trees) tree.reset(state);
+    }
+
+    /*
+     * Re-roots every tree at the child reached by move, keeping its subtree. Call after
+     * the move is played (by either side); unknown moves start a fresh tree.
+     */
+    public void advance(int move) {
+        for (int t = 0; t < trees.length; t++) {
+            Tree from = trees[t];
+            Tree to = spares[t];
+            int child = -1;
+            if (from.root >= 0 && from.expand.get(from.root) == EXPANDED) {
+                for (int c = from.firstChild[from.root], end = c + from.numChildren[from.root]; c < end; c++) {
+                    if (from.move[c] == move) child = c;
+                }
+            }
+            if (child < 0) {
+                GameState next = from.state[from.root].applyMove(move);
+                from.reset(next);
+                continue;
+            }
+            compact(from, child, to);
+            trees[t] = to;
+            spares[t] = from;
+        }
+    }
+
+    // Breadth-first copy of the subtree under oldRoot; sibling blocks stay contiguous
+    private static void compact(Tree from, int oldRoot, Tree to) {
+        Arrays.fill(to.state, 0, Math.min(to.capacity, to.size.get()), null);
+        int[] queue = new int[Math.min(from.size.get(), from.capacity)];
+        int head = 0;
+        int tail = 0;
+        int size = 1;
+        copyNode(from, oldRoot, to, 0, -1);
+        queue[tail++] = oldRoot;
+        int[] newIndex = new int[queue.length];
+        newIndex[0] = 0;
+        while (head < tail) {
+            int old = queue[head];
+            int now = newIndex[head];
+            head++;
+            // A node left childless by a full pool keeps the UNEXPANDED state init gave it,
+            // so it can grow now that the new tree has room
+            if (from.expand.get(old) != EXPANDED || from.numChildren[old] == 0) continue;
+            int n = from.numChildren[old];
+            if (size + n > to.capacity) {
+                to.expand.set(now, UNEXPANDED);
+                continue;
+            }
+            to.firstChild[now] = size;
+            to.numChildren[now] = n;
+            for (int k = 0; k < n; k++) {
+                int oldChild = from.firstChild[old] + k;
+                copyNode(from, oldChild, to, size, now);
+                queue[tail] = oldChild;
+                newIndex[tail] = size;
+                tail++;
+                size++;
+            }
+            to.expand.set(now, EXPANDED);
+        }
+        to.size.set(size);
+        to.root = 0;
+        Arrays.fill(from.state, 0, Math.min(from.capacity, from.size.get()), null);
+        from.size.set(0);
+        from.root = -1;
+    }
+
+    private static void copyNode(Tree from, int i, Tree to, int j, int parentIndex) {
+        to.init(j, parentIndex, from.move[i], from.mover[i], from.state[i]);
+        to.visits.set(j, from.visits.get(i));
+        to.wins2.set(j, from.wins2.get(i));
+    }
+
+    // Runs the given number of playouts from the current root and returns the most visited move
+    public int search(int playouts) throws InterruptedException {
+        AtomicLong remaining = new AtomicLong(playouts);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            Tree tree = trees[mode == Mode.TREE ? 0 : w];
+            int vl = mode == Mode.TREE && threads > 1 ? virtualLoss : 0;
+            long seed = System.nanoTime() ^ (w * 0x9E3779B97F4A7C15L);
+            futures.add(pool.submit(() -> {
+                Worker worker = new Worker(tree, vl, seed);
+                while (remaining.getAndDecrement() > 0) {
+                    worker.playout();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        lastNanos = System.nanoTime() - start;
+        lastPlayouts = playouts;
+        return bestMove();
+    }
+
+    public int search(GameState state, int playouts) throws InterruptedException {
+        setRoot(state);
+        return search(playouts);
+    }
+
+    // Most visited root move, with visits summed over all trees in ROOT mode
+    public int bestMove() {
+        Map<Integer, Long> visitsByMove = new HashMap<>();
+        for (Tree tree : trees) {
+            int root = tree.root;
+            if (tree.expand.get(root) != EXPANDED) continue;
+            for (int c = tree.firstChild[root], end = c + tree.numChildren[root]; c < end; c++) {
+                visitsByMove.merge(tree.move[c], (long) tree.visits.get(c), Long::sum);
+            }
+        }
+        int best = -1;
+        long bestVisits = -1;
+        for (Map.Entry<Integer, Long> e : visitsByMove.entrySet()) {
+            if (e.getValue() > bestVisits) {
+                bestVisits = e.getValue();
+                best = e.getKey();
+            }
+        }
+        return best;
+    }
+
+    public double playoutsPerSecond() {
+        return lastPlayouts / (lastNanos / 1e9);
+    }
+
+    public int treeSize() {
+        int total = 0;
+        for (Tree tree : trees) total += Math.min(tree.size.get(), tree.capacity);
+        return total;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private final class Worker {
+        private final Tree tree;
+        private final int vl;
+        private final SplittableRandom random;
+        private int[] moves = new int[256];
+
+        Worker(Tree tree, int vl, long seed) {
+            this.tree = tree;
+            this.vl = vl;
+            this.random = new SplittableRandom(seed);
+        }
+
+        void playout() {
+            Tree t = tree;
+            int node = t.root;
+            t.visits.addAndGet(node, vl);
+            while (true) {
+                int status = t.expand.get(node);
+                if (status == EXPANDED && t.numChildren[node] > 0) {
+                    node = select(node);
+                    t.visits.addAndGet(node, vl);
+                    continue;
+                }
+                if (status == UNEXPANDED && !t.state[node].isTerminal()
+                        && t.expand.compareAndSet(node, UNEXPANDED, EXPANDING) && expand(node)) {
+                    node = t.firstChild[node] + random.nextInt(t.numChildren[node]);
+                    t.visits.addAndGet(node, vl);
+                }
+                break; // new leaf, terminal, out of pool space, or being expanded by another thread
+            }
+            int winner = rollout(t.state[node]);
+            for (int n = node; n >= 0; n = n == t.root ? -1 : t.parent[n]) {
+                t.visits.addAndGet(n, 1 - vl);
+                if (winner == 0) {
+                    t.wins2.addAndGet(n, 1);
+                } else if (winner == t.mover[n]) {
+                    t.wins2.addAndGet(n, 2);
+                }
+            }
+        }
+
+        private int select(int node) {
+            Tree t = tree;
+            int first = t.firstChild[node];
+            int end = first + t.numChildren[node];
+            double logN = Math.log(Math.max(1, t.visits.get(node)));
+            int best = first;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int c = first; c < end; c++) {
+                int n = t.visits.get(c);
+                if (n == 0) {
+                    return c;
+                }
+                double value = t.wins2.get(c) / (2.0 * n) + exploration * Math.sqrt(logN / n);
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        // Called by the thread that won the expansion CAS; false if the pool is full
+        private boolean expand(int node) {
+            Tree t = tree;
+            GameState s = t.state[node];
+            int k = legalMoves(s);
+            if (k == 0) {
+                t.expand.set(node, EXPANDED);
+                return false;
+            }
+            int base = t.size.getAndAdd(k);
+            if (base + k > t.capacity) {
+                t.expand.set(node, EXPANDED); // numChildren stays 0: a leaf until advance() compacts the tree
+                return false;
+            }
+            int player = s.getCurrentPlayer();
+            for (int i = 0; i < k; i++) {
+                t.init(base + i, node, moves[i], player, s.applyMove(moves[i]));
+            }
+            t.firstChild[node] = base;
+            t.numChildren[node] = k;
+            t.expand.set(node, EXPANDED); // volatile write publishes the children
+            return true;
+        }
+
+        private int legalMoves(GameState s) {
+            if (!(s instanceof FastMoves)) {
+                int n = s.getLegalMoves().size();
+                if (n > moves.length) moves = new int[n];
+            }
+            return ParallelMCTS.legalMoves(s, moves);
+        }
+
+        private int rollout(GameState s) {
+            while (!s.isTerminal()) {
+                int n = legalMoves(s);
+                s = s.applyMove(moves[random.nextInt(n)]);
+            }
+            return s.getWinner();
+        }
+    }
+
+    /* ---------------------------------------------------------------- demo game */
+
+    // Connect Four on two 49-bit bitboards (7 columns of 6 rows plus a sentinel row)
+    static final class ConnectFour implements GameState, FastMoves {
+        private final long mine;    // stones of the player to move
+        private final long both;
+        private final int player;
+        private final int moves;
+
+        ConnectFour() {
+            this(0, 0, 1, 0);
+        }
+
+        private ConnectFour(long mine, long both, int player, int moves) {
+            this.mine = mine;
+            this.both = both;
+            this.player = player;
+            this.moves = moves;
+        }
+
+        @Override
+        public int legalMoves(int[] out) {
+            int n = 0;
+            for (int col = 0; col < 7; col++) {
+                if ((both & (1L << (7 * col + 5))) == 0) out[n++] = col;
+            }
+            return isTerminal() ? 0 : n;
+        }
+
+        @Override
+        public List<Integer> getLegalMoves() {
+            int[] out = new int[7];
+            int n = legalMoves(out);
+            List<Integer> list = new ArrayList<>();
+            for (int i = 0; i < n; i++) list.add(out[i]);
+            return list;
+        }
+
+        @Override
+        public GameState applyMove(int col) {
+            long newBoth = both | (both + (1L << (7 * col)));
+            long moverStones = mine | (newBoth ^ both);
+            // The opponent of the mover becomes the player to move
+            return new ConnectFour(moverStones ^ newBoth, newBoth, -player, moves + 1);
+        }
+
+        private static boolean fourInRow(long b) {
+            for (int shift : new int[]{1, 7, 6, 8}) {
+                long m = b & (b >>> shift);
+                if ((m & (m >>> (2 * shift))) != 0) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isTerminal() {
+            return moves == 42 || fourInRow(mine ^ both);
+        }
+
+        @Override
+        public int getWinner() {
+            // Only the player who just moved can have completed a line
+            return fourInRow(mine ^ both) ? -player : 0;
+        }
+
+        @Override
+        public int getCurrentPlayer() {
+            return player;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int playouts = 100_000;
+        System.out.printf("%d available processors%n", Runtime.getRuntime().availableProcessors());
+        for (Mode mode : Mode.values()) {
+            double base = 0;
+            for (int threads = 1; threads <= 32; threads *= 2) {
+                ParallelMCTS mcts = new ParallelMCTS(threads, 2_000_000, mode);
+                int move = mcts.search(new ConnectFour(), playouts);
+                double rate = mcts.playoutsPerSecond();
+                if (threads == 1) base = rate;
+                System.out.printf("%-4s %2d threads: %9.0f playouts/s (%.2fx), best move %d, %d nodes%n",
+                        mode, threads, rate, rate / base, move, mcts.treeSize());
+                mcts.shutdown();
+            }
+        }
+
+        // Self-play with tree reuse
+        ParallelMCTS mcts = new ParallelMCTS(4, 2_000_000, Mode.TREE);
+        GameState state = new ConnectFour();
+        mcts.setRoot(state);
+        StringBuilder game = new StringBuilder();
+        while (!state.isTerminal()) {
+            int move = mcts.search(20_000);
+            state = state.applyMove(move);
+            mcts.advance(move);
+            game.append(move);
+        }
+        mcts.shutdown();
+        System.out.println("Self-play " + game + ", winner " + state.getWinner());
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Parallel SAT solving on top of CDCLSatSolver
+ * Portfolio: every thread runs its own CDCLSatSolver on the whole formula, diversified
+ * by seed, restart policy, initial phase and random decision frequency. Short or low-LBD
+ * learnt clauses are published to a lock-free ring buffer and imported by the other
+ * workers at their next restart. The first worker to answer interrupts the others.
+ * Cube-and-conquer: a lookahead pass splits the formula into cubes (partial assignments)
+ * by branching on the variables whose two polarities propagate the most (product score).
+ * Failed literals prune the cube tree on the way. Workers then solve the formula under
+ * each cube as assumptions; any SAT cube answers the whole formula, and the formula is
+ * UNSAT once every cube is refuted.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ParallelSatSolver {
+
+    public enum Strategy { PORTFOLIO, CUBE_AND_CONQUER }
+
+    private final List<int[]> clauses = new ArrayList<>();
+    private int numVars;
+    private final int threads;
+    private int maxSharedSize = 8;
+    private int maxSharedLbd = 2;
+    private int cubeDepth = -1;
+
+    private int[] model;
+    private int winner = -1;
+    private long totalConflicts;
+    private long sharedClauses;
+    private int numCubes;
+
+    public ParallelSatSolver(int threads) {
+        this.threads = threads;
+    }
+
+    public static ParallelSatSolver fromDimacs(Path path, int threads) throws IOException {
+        ParallelSatSolver solver = new ParallelSatSolver(threads);
+        try (Reader reader = Files.newBufferedReader(path)) {
+            int declared = CDCLSatSolver.readDimacs(reader, solver::addClause);
+            solver.numVars = Math.max(solver.numVars, declared);
+        }
+        return solver;
+    }
+
+    public void addClause(int... lits) {
+        for (int lit : lits) numVars = Math.max(numVars, Math.abs(lit));
+        clauses.add(lits.clone());
+    }
+
+    // Clauses are shared if they have at most maxSize literals or an LBD of at most maxLbd
+    public void setSharingLimits(int maxSize, int maxLbd) {
+        this.maxSharedSize = maxSize;
+        this.maxSharedLbd = maxLbd;
+    }
+
+    // Cube tree depth; by default enough for about 16 cubes per thread
+    public void setCubeDepth(int depth) {
+        this.cubeDepth = depth;
+    }
+
+    /* ---------------------------------------------------------------- clause exchange */
+
+    static final class SharedClause {
+        final long seq;
+        final int producer;
+        final int lbd;
+        final int[] lits;
+
+        SharedClause(long seq, int producer, int lbd, int[] lits) {
+            this.seq = seq;
+            this.producer = producer;
+            this.lbd = lbd;
+            this.lits = lits;
+        }
+    }
+
+    /*
+     * Multi-producer ring of shared clauses. Writers claim a sequence number with one
+     * getAndIncrement and publish into slot seq & mask; readers keep a private cursor and
+     * recognise unpublished or overwritten slots by the stored sequence number. Readers
+     * that fall a full ring behind skip ahead, so nobody ever blocks.
+     */
+    static final class ClauseExchange {
+        private final AtomicReferenceArray<SharedClause> ring;
+        private final int mask;
+        private final AtomicLong cursor = new AtomicLong();
+
+        ClauseExchange(int capacityPow2) {
+            ring = new AtomicReferenceArray<>(capacityPow2);
+            mask = capacityPow2 - 1;
+        }
+
+        void publish(int producer, int lbd, int[] lits, int size) {
+            long seq = cursor.getAndIncrement();
+            ring.set((int) (seq & mask), new SharedClause(seq, producer, lbd, Arrays.copyOf(lits, size)));
+        }
+
+        // Imports clauses from readSeq onwards into solver; returns the new read position
+        long drain(long readSeq, int consumer, CDCLSatSolver solver) {
+            long end = cursor.get();
+            if (end - readSeq > mask + 1) {
+                readSeq = end - (mask + 1);
+            }
+            while (readSeq < end) {
+                SharedClause c = ring.get((int) (readSeq & mask));
+                if (c == null || c.seq < readSeq) {
+                    break; // claimed but not yet published
+                }
+                if (c.seq == readSeq && c.producer != consumer) {
+                    if (!solver.addSharedClause(c.lits, c.lits.length, c.lbd)) {
+                        return readSeq + 1;
+                    }
+                }
+                readSeq++;
+            }
+            return readSeq;
+        }
+
+        long published() {
+            return cursor.get();
+        }
+    }
+
+    private final class Sharing implements CDCLSatSolver.ClauseSharing {
+        private final ClauseExchange exchange;
+        private final int id;
+        private long readSeq;
+
+        Sharing(ClauseExchange exchange, int id) {
+            this.exchange = exchange;
+            this.id = id;
+        }
+
+        @Override
+        public void exportClause(int[] lits, int size, int lbd) {
+            if (size <= maxSharedSize || lbd <= maxSharedLbd) {
+                exchange.publish(id, lbd, lits, size);
+            }
+        }
+
+        @Override
+        public void importClauses(CDCLSatSolver solver) {
+            readSeq = exchange.drain(readSeq, id, solver);
+        }
+    }
+
+    private CDCLSatSolver newWorker(int id, ClauseExchange exchange) {
+        CDCLSatSolver solver = new CDCLSatSolver(numVars);
+        for (int[] clause : clauses) {
+            solver.addClause(clause);
+        }
+        // Worker 0 keeps the default configuration so the portfolio is never worse than one solver
+        if (id > 0) {
+            solver.setRestartPolicy(id % 2 == 0 ? CDCLSatSolver.RestartPolicy.GLUCOSE : CDCLSatSolver.RestartPolicy.LUBY);
+            solver.setDefaultPhase(id % 4 >= 2);
+            solver.setSeed(id, id % 3 == 0 ? 0.0 : 0.01 * (id % 3));
+        }
+        solver.setClauseSharing(new Sharing(exchange, id));
+        return solver;
+    }
+
+    /* ---------------------------------------------------------------- solving */
+
+    /* Returns CDCLSatSolver.SATISFIABLE or CDCLSatSolver.UNSATISFIABLE */
+    public int solve(Strategy strategy) throws InterruptedException {
+        model = null;
+        winner = -1;
+        totalConflicts = 0;
+        numCubes = 0;
+        return strategy == Strategy.PORTFOLIO ? solvePortfolio() : solveCubes();
+    }
+
+    private int solvePortfolio() throws InterruptedException {
+        ClauseExchange exchange = new ClauseExchange(1 << 14);
+        CDCLSatSolver[] workers = new CDCLSatSolver[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = newWorker(i, exchange);
+        }
+        AtomicInteger result = new AtomicInteger(CDCLSatSolver.UNKNOWN);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int id = i;
+                futures.add(pool.submit(() -> {
+                    int status = workers[id].solveLimited();
+                    if (status != CDCLSatSolver.UNKNOWN && result.compareAndSet(CDCLSatSolver.UNKNOWN, status)) {
+                        winner = id;
+                        if (status == CDCLSatSolver.SATISFIABLE) {
+                            model = workers[id].model();
+                        }
+                        for (CDCLSatSolver other : workers) {
+                            if (other != workers[id]) other.interrupt();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            awaitAll(futures);
+        } finally {
+            pool.shutdown();
+        }
+        for (CDCLSatSolver w : workers) totalConflicts += w.getConflicts();
+        sharedClauses = exchange.published();
+        return result.get();
+    }
+
+    private int solveCubes() throws InterruptedException {
+        int depth = cubeDepth >= 0 ? cubeDepth
+                : 32 - Integer.numberOfLeadingZeros(Math.max(1, threads * 16) - 1);
+        List<int[]> cubes = makeCubes(depth);
+        numCubes = cubes.size();
+        if (cubes.isEmpty()) {
+            return CDCLSatSolver.UNSATISFIABLE;
+        }
+        ClauseExchange exchange = new ClauseExchange(1 << 14);
+        CDCLSatSolver[] workers = new CDCLSatSolver[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = newWorker(i, exchange);
+        }
+        AtomicInteger nextCube = new AtomicInteger();
+        AtomicInteger result = new AtomicInteger(CDCLSatSolver.UNKNOWN);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int id = i;
+                futures.add(pool.submit(() -> {
+                    CDCLSatSolver solver = workers[id];
+                    int c;
+                    while (result.get() == CDCLSatSolver.UNKNOWN && (c = nextCube.getAndIncrement()) < cubes.size()) {
+                        int status = solver.solveLimited(cubes.get(c));
+                        if (status == CDCLSatSolver.SATISFIABLE
+                                || (status == CDCLSatSolver.UNSATISFIABLE && !solver.failedAssumptions())) {
+                            // A model, or a refutation that did not depend on the cube
+                            if (result.compareAndSet(CDCLSatSolver.UNKNOWN, status)) {
+                                winner = id;
+                                if (status == CDCLSatSolver.SATISFIABLE) {
+                                    model = solver.model();
+                                }
+                                for (CDCLSatSolver other : workers) {
+                                    if (other != solver) other.interrupt();
+                                }
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            awaitAll(futures);
+        } finally {
+            pool.shutdown();
+        }
+        for (CDCLSatSolver w : workers) totalConflicts += w.getConflicts();
+        sharedClauses = exchange.published();
+        result.compareAndSet(CDCLSatSolver.UNKNOWN, CDCLSatSolver.UNSATISFIABLE);
+        return result.get();
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------- lookahead cubing */
+
+    // Splits the formula into at most 2^depth cubes; refuted branches are dropped
+    List<int[]> makeCubes(int depth) {
+        CDCLSatSolver solver = new CDCLSatSolver(numVars);
+        for (int[] clause : clauses) {
+            solver.addClause(clause);
+        }
+        List<int[]> cubes = new ArrayList<>();
+        if (!solver.isOk()) {
+            return cubes;
+        }
+        // Lookahead candidates: the most frequent variables
+        int[] occurrences = new int[numVars + 1];
+        for (int[] clause : clauses) {
+            for (int lit : clause) occurrences[Math.abs(lit)]++;
+        }
+        Integer[] byCount = new Integer[numVars];
+        for (int v = 0; v < numVars; v++) byCount[v] = v + 1;
+        Arrays.sort(byCount, (a, b) -> Integer.compare(occurrences[b], occurrences[a]));
+        int[] candidates = new int[Math.min(numVars, 64)];
+        for (int i = 0; i < candidates.length; i++) candidates[i] = byCount[i];
+
+        split(solver, candidates, new int[0], depth, cubes);
+        return cubes;
+    }
+
+    private void split(CDCLSatSolver solver, int[] candidates, int[] cube, int depth, List<int[]> out) {
+        int level = solver.level();
+        int best = 0;
+        while (depth > 0) {
+            // March-style score: product of the propagations of both polarities
+            long bestScore = -1;
+            best = 0;
+            boolean forced = false;
+            for (int v : candidates) {
+                if (solver.isAssigned(v)) continue;
+                int pos = solver.probe(v);
+                int neg = solver.probe(-v);
+                if (pos < 0 && neg < 0) {
+                    solver.backtrack(level);
+                    return; // cube refuted
+                }
+                if (pos < 0 || neg < 0) {
+                    // Failed literal: the other polarity is implied under this cube
+                    int implied = pos < 0 ? -v : v;
+                    if (!solver.decide(implied)) {
+                        solver.backtrack(level);
+                        return;
+                    }
+                    cube = append(cube, implied);
+                    forced = true;
+                    break;
+                }
+                long score = (long) (pos + 1) * (neg + 1);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = v;
+                }
+            }
+            if (!forced) break;
+        }
+        if (depth == 0 || best == 0) {
+            out.add(cube);
+        } else {
+            int inner = solver.level();
+            for (int lit : new int[]{best, -best}) {
+                if (solver.decide(lit)) {
+                    split(solver, candidates, append(cube, lit), depth - 1, out);
+                    solver.backtrack(inner);
+                }
+            }
+        }
+        solver.backtrack(level);
+    }
+
+    private static int[] append(int[] cube, int lit) {
+        int[] next = Arrays.copyOf(cube, cube.length + 1);
+        next[cube.length] = lit;
+        return next;
+    }
+
+    /* ---------------------------------------------------------------- results */
+
+    public int[] model() {
+        return model;
+    }
+
+    public int winner() {
+        return winner;
+    }
+
+    public long totalConflicts() {
+        return totalConflicts;
+    }
+
+    public long sharedClauses() {
+        return sharedClauses;
+    }
+
+    public int numCubes() {
+        return numCubes;
+    }
+
+    /*
+     * Speedup over a single CDCLSatSolver on a fixed benchmark set: the DIMACS files or
+     * directories given as arguments, or hard random 3-SAT instances at the threshold.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                try (DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.cnf")) {
+                    for (Path p : dir) files.add(p);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        Collections.sort(files);
+        int count = files.isEmpty() ? 6 : files.size();
+        double singleTotal = 0;
+        double portfolioTotal = 0;
+        double cubeTotal = 0;
+        System.out.printf("%d threads%n", threads);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            List<int[]> cnf = new ArrayList<>();
+            if (files.isEmpty()) {
+                Random rand = new Random(i);
+                for (int c = 0; c < (int) (200 * 4.26); c++) {
+                    int[] clause = new int[3];
+                    for (int k = 0; k < 3; k++) {
+                        int v = 1 + rand.nextInt(200);
+                        clause[k] = rand.nextBoolean() ? v : -v;
+                    }
+                    cnf.add(clause);
+                }
+            } else {
+                try (Reader reader = Files.newBufferedReader(files.get(i))) {
+                    CDCLSatSolver.readDimacs(reader, cnf::add);
+                }
+            }
+            String name = files.isEmpty() ? "random-3sat-200-" + index : files.get(index).getFileName().toString();
+
+            CDCLSatSolver single = new CDCLSatSolver();
+            for (int[] clause : cnf) single.addClause(clause);
+            long start = System.nanoTime();
+            int expected = single.solveLimited();
+            double singleMs = (System.nanoTime() - start) / 1e6;
+
+            ParallelSatSolver portfolio = new ParallelSatSolver(threads);
+            for (int[] clause : cnf) portfolio.addClause(clause);
+            start = System.nanoTime();
+            int p = portfolio.solve(Strategy.PORTFOLIO);
+            double portfolioMs = (System.nanoTime() - start) / 1e6;
+
+            ParallelSatSolver cuber = new ParallelSatSolver(threads);
+            for (int[] clause : cnf) cuber.addClause(clause);
+            start = System.nanoTime();
+            int c = cuber.solve(Strategy.CUBE_AND_CONQUER);
+            double cubeMs = (System.nanoTime() - start) / 1e6;
+
+            if (p != expected || c != expected) {
+                throw new IllegalStateException("Answers disagree on " + name);
+            }
+            singleTotal += singleMs;
+            portfolioTotal += portfolioMs;
+            cubeTotal += cubeMs;
+            System.out.printf("%-22s %-5s single %8.1f ms  portfolio %8.1f ms (%d shared)  cubes %8.1f ms (%d cubes)%n",
+                    name, expected == CDCLSatSolver.SATISFIABLE ? "SAT" : "UNSAT",
+                    singleMs, portfolioMs, portfolio.sharedClauses(), cubeMs, cuber.numCubes());
+        }
+        System.out.printf("Speedup: portfolio %.2fx, cube-and-conquer %.2fx%n",
+                singleTotal / portfolioTotal, singleTotal / cubeTotal);
+    }
+}
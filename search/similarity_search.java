@@ -46,6 +46,37 @@ public class SimilaritySearch {
         return results;
     }
 
+    /* Locality-sensitive index over token sets, e.g. MinHashIndex or SimHashIndex */
+    public interface Index {
+        // Adds a document and returns its doc ID (0, 1, 2, ...)
+        int add(Set<String> tokens);
+
+        // Doc IDs that collide with the tokens in at least one LSH bucket
+        int[] candidates(Set<String> tokens);
+
+        // Estimated similarity of two indexed documents, on the backend's own scale
+        // (Jaccard for MinHashIndex, 1 - Hamming distance / 64 for SimHashIndex)
+        double estimate(int a, int b);
+
+        // For each doc, the smallest doc ID of its near-duplicate cluster; threshold is on the estimate scale
+        int[] dedup(double threshold);
+    }
+
+    // Same search, but only the LSH candidates of an index built over dataSet are compared exactly
+    public static List<String> findSimilar(String target, List<String> dataSet, Index index, double threshold) {
+        Set<String> targetSet = tokenize(target);
+        List<String> results = new ArrayList<>();
+        int[] candidates = index.candidates(targetSet);
+        Arrays.sort(candidates);
+        for (int doc : candidates) {
+            String item = dataSet.get(doc);
+            if (computeJaccard(targetSet, tokenize(item)) >= threshold) {
+                results.add(item);
+            }
+        }
+        return results;
+    }
+
     public static void main(String[] args) {
         List<String> dataSet = Arrays.asList(
                 "The quick brown fox jumps over the lazy dog",
@@ -0,0 +1,412 @@
+/*
+ * Cache-friendly layouts for searching a static sorted array
+ * Binary search on a plain sorted array jumps far ahead at every early step, so almost
+ * every comparison on a large array is a cache miss. Two read-only layouts fix this:
+ * Eytzinger (BFS) order stores the implicit binary search tree level by level. Node k has
+ * children 2k and 2k + 1, so the first levels share a few cache lines. The descent
+ * k = 2k + (t[k] < x) has no data-dependent branch. The answer is recovered from k by
+ * dropping the trailing right turns.
+ * S+ tree (static B+ tree): nodes of 16 keys (one 64-byte line of ints) with 17 children,
+ * stored layer by layer from the root. The leaf layer is the sorted array itself, padded to
+ * whole nodes. A lookup reads one line per layer, log17(n) lines in total, and picks the
+ * child by counting the keys smaller than x.
+ * The batch lowerBound runs a group of queries level by level in lockstep. Their loads are
+ * independent, so the CPU keeps several misses in flight. Java has no prefetch intrinsic,
+ * so this interleaving is what hides memory latency.
+ * lowerBound returns the index of the first element >= key in the original array (n if none).
+ * BFS slots are tracked as longs: for n >= 2^30 the descent passes slot 2^30 and its next
+ * step, 2^31, no longer fits an int.
+ */
+
+import java.util.*;
+
+public class StaticSearchTree {
+
+    private static final int B = 16;       // keys per S+ tree node
+    private static final int BATCH = 32;   // queries interleaved by the batch lookups
+
+    public interface IntIndex {
+        int lowerBound(int key);
+        void lowerBound(int[] queries, int[] out);
+        int size();
+    }
+
+    public interface LongIndex {
+        int lowerBound(long key);
+        void lowerBound(long[] queries, int[] out);
+        int size();
+    }
+
+    public static IntIndex eytzinger(int[] sorted) {
+        return new IntEytzinger(sorted);
+    }
+
+    public static LongIndex eytzinger(long[] sorted) {
+        return new LongEytzinger(sorted);
+    }
+
+    public static IntIndex sTree(int[] sorted) {
+        return new IntSTree(sorted);
+    }
+
+    public static LongIndex sTree(long[] sorted) {
+        return new LongSTree(sorted);
+    }
+
+    /* ---------------------------------------------------------------- Eytzinger */
+
+    // In-order walk of the implicit tree assigns sorted positions to BFS slots 1..n
+    static int[] eytzingerOrder(int n) {
+        int[] order = new int[n + 1];
+        int i = 0;
+        long k = n == 0 ? 0 : 1;
+        // Iterative in-order traversal: leftmost descent, then successor steps
+        while (k > 0 && 2 * k <= n) k *= 2;
+        while (k > 0) {
+            order[(int) k] = i++;
+            if (2 * k + 1 <= n) {
+                k = 2 * k + 1;
+                while (2 * k <= n) k *= 2;
+            } else {
+                // Climb while we are a right child
+                while ((k & 1) == 1) k >>= 1;
+                k >>= 1;
+            }
+        }
+        return order;
+    }
+
+    // Levels every lookup is guaranteed to visit before the last, partially filled one
+    static int fullLevels(int n) {
+        return 31 - Integer.numberOfLeadingZeros(n + 1);
+    }
+
+    static final class IntEytzinger implements IntIndex {
+        private final int[] keys;   // keys[k] for BFS slot k, slot 0 unused
+        private final int[] rank;   // sorted position of slot k
+        private final int n;
+        private final int levels;
+
+        IntEytzinger(int[] sorted) {
+            n = sorted.length;
+            rank = eytzingerOrder(n);
+            keys = new int[n + 1];
+            for (int k = 1; k <= n; k++) keys[k] = sorted[rank[k]];
+            levels = fullLevels(n);
+        }
+
+        @Override
+        public int lowerBound(int key) {
+            long k = 1;
+            while (k <= n) k = 2 * k + (keys[(int) k] < key ? 1 : 0);
+            // Each trailing 1 bit is a right turn past a smaller key; undo them and one more step
+            k >>>= Long.numberOfTrailingZeros(~k) + 1;
+            return k == 0 ? n : rank[(int) k];
+        }
+
+        @Override
+        public void lowerBound(int[] queries, int[] out) {
+            long[] k = new long[BATCH];
+            for (int base = 0; base < queries.length; base += BATCH) {
+                int m = Math.min(BATCH, queries.length - base);
+                Arrays.fill(k, 0, m, 1);
+                for (int level = 0; level < levels; level++) {
+                    for (int j = 0; j < m; j++) k[j] = 2 * k[j] + (keys[(int) k[j]] < queries[base + j] ? 1 : 0);
+                }
+                for (int j = 0; j < m; j++) {
+                    long s = k[j];
+                    if (s <= n) s = 2 * s + (keys[(int) s] < queries[base + j] ? 1 : 0);
+                    s >>>= Long.numberOfTrailingZeros(~s) + 1;
+                    out[base + j] = s == 0 ? n : rank[(int) s];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return n;
+        }
+    }
+
+    static final class LongEytzinger implements LongIndex {
+        private final long[] keys;
+        private final int[] rank;
+        private final int n;
+        private final int levels;
+
+        LongEytzinger(long[] sorted) {
+            n = sorted.length;
+            rank = eytzingerOrder(n);
+            keys = new long[n + 1];
+            for (int k = 1; k <= n; k++) keys[k] = sorted[rank[k]];
+            levels = fullLevels(n);
+        }
+
+        @Override
+        public int lowerBound(long key) {
+            long k = 1;
+            while (k <= n) k = 2 * k + (keys[(int) k] < key ? 1 : 0);
+            k >>>= Long.numberOfTrailingZeros(~k) + 1;
+            return k == 0 ? n : rank[(int) k];
+        }
+
+        @Override
+        public void lowerBound(long[] queries, int[] out) {
+            long[] k = new long[BATCH];
+            for (int base = 0; base < queries.length; base += BATCH) {
+                int m = Math.min(BATCH, queries.length - base);
+                Arrays.fill(k, 0, m, 1);
+                for (int level = 0; level < levels; level++) {
+                    for (int j = 0; j < m; j++) k[j] = 2 * k[j] + (keys[(int) k[j]] < queries[base + j] ? 1 : 0);
+                }
+                for (int j = 0; j < m; j++) {
+                    long s = k[j];
+                    if (s <= n) s = 2 * s + (keys[(int) s] < queries[base + j] ? 1 : 0);
+                    s >>>= Long.numberOfTrailingZeros(~s) + 1;
+                    out[base + j] = s == 0 ? n : rank[(int) s];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return n;
+        }
+    }
+
+    /* ---------------------------------------------------------------- S+ tree */
+
+    /*
+     * Node counts per layer, leaves first. A layer with c nodes has ceil(c / 17) parents,
+     * up to a single root.
+     */
+    static int[] layerSizes(int n) {
+        List<Integer> sizes = new ArrayList<>();
+        int nodes = Math.max(1, (n + B - 1) / B);
+        sizes.add(nodes);
+        while (nodes > 1) {
+            nodes = (nodes + B) / (B + 1);
+            sizes.add(nodes);
+        }
+        int[] out = new int[sizes.size()];
+        for (int i = 0; i < out.length; i++) out[i] = sizes.get(i);
+        return out;
+    }
+
+    // Node offsets with the root layer first; offsets[layers - 1] is the leaf layer
+    static int[] layerOffsets(int[] sizes) {
+        int[] offsets = new int[sizes.length];
+        int offset = 0;
+        for (int i = sizes.length - 1, layer = 0; i >= 0; i--, layer++) {
+            offsets[layer] = offset;
+            offset += sizes[i];
+        }
+        return offsets;
+    }
+
+    static final class IntSTree implements IntIndex {
+        private final int[] keys;
+        private final int[] offset;  // first node of each layer, root layer first
+        private final int n;
+
+        IntSTree(int[] sorted) {
+            n = sorted.length;
+            int[] sizes = layerSizes(n);
+            offset = layerOffsets(sizes);
+            int layers = sizes.length;
+            int totalNodes = offset[layers - 1] + sizes[0];
+            if ((long) totalNodes * B > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("too many keys: " + n);
+            keys = new int[totalNodes * B];
+            Arrays.fill(keys, Integer.MAX_VALUE);
+            System.arraycopy(sorted, 0, keys, offset[layers - 1] * B, n);
+            // Key j of an internal node is the smallest key under child j + 1
+            long leavesPerChild = 1;
+            for (int layer = layers - 2; layer >= 0; layer--) {
+                leavesPerChild *= B + 1;
+                int nodes = sizes[layers - 1 - layer];
+                for (int i = 0; i < nodes; i++) {
+                    for (int j = 0; j < B; j++) {
+                        long leaf = ((long) i * (B + 1) + j + 1) * (leavesPerChild / (B + 1));
+                        long pos = leaf * B;
+                        keys[(offset[layer] + i) * B + j] = pos < n ? sorted[(int) pos] : Integer.MAX_VALUE;
+                    }
+                }
+            }
+        }
+
+        // Number of keys in the node that are smaller than key; straight-line code
+        private int rankInNode(int node, int key) {
+            int base = node * B;
+            int count = 0;
+            for (int j = 0; j < B; j++) count += keys[base + j] < key ? 1 : 0;
+            return count;
+        }
+
+        @Override
+        public int lowerBound(int key) {
+            int node = 0;
+            int layers = offset.length;
+            for (int layer = 0; layer < layers - 1; layer++) {
+                node = node * (B + 1) + rankInNode(offset[layer] + node, key);
+            }
+            return Math.min(n, node * B + rankInNode(offset[layers - 1] + node, key));
+        }
+
+        @Override
+        public void lowerBound(int[] queries, int[] out) {
+            int[] node = new int[BATCH];
+            int layers = offset.length;
+            for (int base = 0; base < queries.length; base += BATCH) {
+                int m = Math.min(BATCH, queries.length - base);
+                Arrays.fill(node, 0, m, 0);
+                for (int layer = 0; layer < layers - 1; layer++) {
+                    for (int j = 0; j < m; j++) {
+                        node[j] = node[j] * (B + 1) + rankInNode(offset[layer] + node[j], queries[base + j]);
+                    }
+                }
+                for (int j = 0; j < m; j++) {
+                    out[base + j] = Math.min(n, node[j] * B + rankInNode(offset[layers - 1] + node[j], queries[base + j]));
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return n;
+        }
+    }
+
+    static final class LongSTree implements LongIndex {
+        private final long[] keys;
+        private final int[] offset;
+        private final int n;
+
+        LongSTree(long[] sorted) {
+            n = sorted.length;
+            int[] sizes = layerSizes(n);
+            offset = layerOffsets(sizes);
+            int layers = sizes.length;
+            int totalNodes = offset[layers - 1] + sizes[0];
+            if ((long) totalNodes * B > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("too many keys: " + n);
+            keys = new long[totalNodes * B];
+            Arrays.fill(keys, Long.MAX_VALUE);
+            System.arraycopy(sorted, 0, keys, offset[layers - 1] * B, n);
+            long leavesPerChild = 1;
+            for (int layer = layers - 2; layer >= 0; layer--) {
+                leavesPerChild *= B + 1;
+                int nodes = sizes[layers - 1 - layer];
+                for (int i = 0; i < nodes; i++) {
+                    for (int j = 0; j < B; j++) {
+                        long leaf = ((long) i * (B + 1) + j + 1) * (leavesPerChild / (B + 1));
+                        long pos = leaf * B;
+                        keys[(offset[layer] + i) * B + j] = pos < n ? sorted[(int) pos] : Long.MAX_VALUE;
+                    }
+                }
+            }
+        }
+
+        private int rankInNode(int node, long key) {
+            int base = node * B;
+            int count = 0;
+            for (int j = 0; j < B; j++) count += keys[base + j] < key ? 1 : 0;
+            return count;
+        }
+
+        @Override
+        public int lowerBound(long key) {
+            int node = 0;
+            int layers = offset.length;
+            for (int layer = 0; layer < layers - 1; layer++) {
+                node = node * (B + 1) + rankInNode(offset[layer] + node, key);
+            }
+            return Math.min(n, node * B + rankInNode(offset[layers - 1] + node, key));
+        }
+
+        @Override
+        public void lowerBound(long[] queries, int[] out) {
+            int[] node = new int[BATCH];
+            int layers = offset.length;
+            for (int base = 0; base < queries.length; base += BATCH) {
+                int m = Math.min(BATCH, queries.length - base);
+                Arrays.fill(node, 0, m, 0);
+                for (int layer = 0; layer < layers - 1; layer++) {
+                    for (int j = 0; j < m; j++) {
+                        node[j] = node[j] * (B + 1) + rankInNode(offset[layer] + node[j], queries[base + j]);
+                    }
+                }
+                for (int j = 0; j < m; j++) {
+                    out[base + j] = Math.min(n, node[j] * B + rankInNode(offset[layers - 1] + node[j], queries[base + j]));
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return n;
+        }
+    }
+
+    /* ---------------------------------------------------------------- benchmark */
+
+    private static int binaryLowerBound(int[] a, int key) {
+        int i = Arrays.binarySearch(a, key);
+        return i >= 0 ? i : -i - 1;  // keys are distinct, so a hit is the first match
+    }
+
+    public static void main(String[] args) {
+        // 1G ints needs a 16 GB heap for the copies; by default stop where the heap allows
+        long maxN = args.length > 0 ? Long.parseLong(args[0])
+                : Math.min(1L << 30, Runtime.getRuntime().maxMemory() / 4 / 5);
+        int numQueries = 1 << 20;
+        SplittableRandom random = new SplittableRandom(1);
+        System.out.printf("%12s %12s %12s %12s %12s %12s%n", "n", "binary ns", "eytz ns", "eytz batch", "stree ns", "stree batch");
+        for (long size = 1 << 10; size <= maxN; size <<= 2) {
+            int n = (int) size;
+            int[] sorted = new int[n];
+            int value = 0;
+            for (int i = 0; i < n; i++) {
+                value += 1 + random.nextInt(3);
+                sorted[i] = value;
+            }
+            int[] queries = new int[numQueries];
+            for (int i = 0; i < numQueries; i++) queries[i] = random.nextInt(value + 2);
+
+            IntIndex eytzinger = eytzinger(sorted);
+            IntIndex sTree = sTree(sorted);
+            int[] expected = new int[numQueries];
+            int[] out = new int[numQueries];
+            double binary = time(() -> {
+                for (int i = 0; i < numQueries; i++) expected[i] = binaryLowerBound(sorted, queries[i]);
+            }) / numQueries;
+            double eytzSingle = time(() -> {
+                for (int i = 0; i < numQueries; i++) out[i] = eytzinger.lowerBound(queries[i]);
+            }) / numQueries;
+            check(expected, out, "eytzinger");
+            double eytzBatch = time(() -> eytzinger.lowerBound(queries, out)) / numQueries;
+            check(expected, out, "eytzinger batch");
+            double sTreeSingle = time(() -> {
+                for (int i = 0; i < numQueries; i++) out[i] = sTree.lowerBound(queries[i]);
+            }) / numQueries;
+            check(expected, out, "s-tree");
+            double sTreeBatch = time(() -> sTree.lowerBound(queries, out)) / numQueries;
+            check(expected, out, "s-tree batch");
+            System.out.printf("%12d %12.1f %12.1f %12.1f %12.1f %12.1f%n",
+                    n, binary, eytzSingle, eytzBatch, sTreeSingle, sTreeBatch);
+        }
+    }
+
+    // Best of three runs, in nanoseconds
+    private static double time(Runnable run) {
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < 3; r++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void check(int[] expected, int[] actual, String name) {
+        if (!Arrays.equals(expected, actual)) throw new IllegalStateException(name + " disagrees with Arrays.binarySearch");
+    }
+}
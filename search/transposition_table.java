@@ -0,0 +1,179 @@
+/*
+ * Lock-free transposition table for alpha-beta searches
+ * Fixed number of slots, each two longs in one long[]: (key ^ data, data). The data word
+ * packs value, best move, depth, bound type and search age. Threads read and write slots
+ * without locks. A torn slot (one word from one writer, the other from another) fails the
+ * check (word0 ^ word1) == key, so it reads as a miss instead of as wrong data
+ * (Hyatt and Mann's "lockless hashing").
+ * Replacement prefers depth. A slot is overwritten by the same position, by an entry
+ * left over from an earlier search, or by a search of at least the same depth.
+ * Zobrist keys: a random 64-bit number per (square, piece). A position's key is the XOR
+ * of the numbers of its pieces, so making a move updates the key with one or two XORs.
+ */
+
+import java.util.*;
+
+public class TranspositionTable {
+
+    public static final int NONE = 0;
+    public static final int LOWER = 1;  // value is a lower bound (fail high)
+    public static final int UPPER = 2;  // value is an upper bound (fail low)
+    public static final int EXACT = 3;
+    public static final int NO_MOVE = 0xFFFF;
+
+    private final long[] table;
+    private final int mask;
+    private int age;
+
+    // Table with at least the given number of slots (rounded up to a power of two)
+    public TranspositionTable(int slots) {
+        if (slots > 1 << 29) throw new IllegalArgumentException("at most 2^29 slots, got " + slots);
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        table = new long[2 * size];
+        mask = size - 1;
+    }
+
+    // Capped at 2^29 slots, since the backing long[] holds two words per slot
+    public static TranspositionTable ofMegabytes(int megabytes) {
+        return new TranspositionTable((int) Math.min(1 << 29, (long) megabytes << 20 >>> 4));
+    }
+
+    /* ---------------------------------------------------------------- packing */
+
+    static long pack(int value, int move, int depth, int bound, int age) {
+        return (value & 0xFFFFFFFFL)
+                | (long) (move & 0xFFFF) << 32
+                | (long) (depth & 0xFF) << 48
+                | (long) (bound & 3) << 56
+                | (long) (age & 0x3F) << 58;
+    }
+
+    public static int value(long data) {
+        return (int) data;
+    }
+
+    public static int move(long data) {
+        int move = (int) (data >>> 32) & 0xFFFF;
+        return move == NO_MOVE ? -1 : move;
+    }
+
+    public static int depth(long data) {
+        return (int) (data >>> 48) & 0xFF;
+    }
+
+    public static int bound(long data) {
+        return (int) (data >>> 56) & 3;
+    }
+
+    private static int age(long data) {
+        return (int) (data >>> 58) & 0x3F;
+    }
+
+    /* ---------------------------------------------------------------- access */
+
+    // Data word for key, or 0 (bound NONE) if the slot holds another or a torn entry
+    public long probe(long key) {
+        int i = (int) key & mask;
+        long data = table[2 * i + 1];
+        long check = table[2 * i];
+        return (check ^ data) == key ? data : 0;
+    }
+
+    // move < 0 means no best move is known
+    public void store(long key, int value, int move, int depth, int bound) {
+        int i = (int) key & mask;
+        long oldData = table[2 * i + 1];
+        long oldKey = table[2 * i] ^ oldData;
+        if (bound(oldData) != NONE && oldKey != key && age(oldData) == age && depth(oldData) > depth) {
+            return;
+        }
+        if (move < 0 && oldKey == key) {
+            move = move(oldData); // keep the old best move
+        }
+        long data = pack(value, move < 0 ? NO_MOVE : move, Math.min(depth, 255), bound, age);
+        table[2 * i] = key ^ data;
+        table[2 * i + 1] = data;
+    }
+
+    // Starts a new search: entries from earlier searches become preferred victims
+    public void newSearch() {
+        age = (age + 1) & 0x3F;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+    }
+
+    // Fraction of a sample of slots written by the current search, in permille
+    public int hashfull() {
+        int sample = Math.min(1000, mask + 1);
+        int used = 0;
+        for (int i = 0; i < sample; i++) {
+            long data = table[2 * i + 1];
+            if (bound(data) != NONE && age(data) == age) used++;
+        }
+        return used * 1000 / sample;
+    }
+
+    public int slots() {
+        return mask + 1;
+    }
+
+    /* ---------------------------------------------------------------- zobrist keys */
+
+    public static final class Zobrist {
+        private final long[] keys;
+        private final int pieces;
+        public final long sideToMove;
+
+        public Zobrist(int squares, int pieces, long seed) {
+            SplittableRandom random = new SplittableRandom(seed);
+            this.pieces = pieces;
+            keys = new long[squares * pieces];
+            for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong();
+            sideToMove = random.nextLong();
+        }
+
+        public long key(int square, int piece) {
+            return keys[square * pieces + piece];
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        TranspositionTable tt = new TranspositionTable(1 << 16);
+        Zobrist zobrist = new Zobrist(64, 12, 1);
+        long key = zobrist.key(12, 0) ^ zobrist.key(52, 6);
+        tt.store(key, -37, 1234, 9, EXACT);
+        long data = tt.probe(key);
+        System.out.println("value " + value(data) + ", move " + move(data) + ", depth " + depth(data)
+                + ", bound " + bound(data));
+        // A shallower result for a different position in the same slot does not evict it
+        tt.store(key + (long) tt.slots(), 5, 1, 3, LOWER);
+        System.out.println("kept deep entry: " + (tt.probe(key) != 0));
+
+        // Hammer one slot from several threads: probes never return a mixed entry
+        TranspositionTable shared = new TranspositionTable(2);
+        long[] keys = {0x1111_0000_0000_0000L, 0x2222_0000_0000_0000L, 0x3333_0000_0000_0000L, 0x4444_0000_0000_0000L};
+        Thread[] writers = new Thread[keys.length];
+        long[] torn = new long[1];
+        for (int t = 0; t < keys.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (int n = 0; n < 2_000_000; n++) {
+                    shared.store(keys[id], id * 1000, id, n & 127, EXACT);
+                    for (int k = 0; k < keys.length; k++) {
+                        long d = shared.probe(keys[k]);
+                        if (d != 0 && value(d) != k * 1000) {
+                            synchronized (torn) {
+                                torn[0]++;
+                            }
+                        }
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) w.join();
+        System.out.println("torn entries returned: " + torn[0]);
+    }
+}
@@ -0,0 +1,1048 @@
+/*
+ * Trigram index with regular-expression prefiltering
+ * Every document is reduced to the set of 3-byte grams of its (ASCII-lowercased) bytes.
+ * Each gram maps to a sorted posting list of doc IDs, stored as LEB128 doc gaps.
+ * - Similarity search (as in TrigramSearch) count-merges the posting lists of the
+ *   query's grams. Only docs that share enough grams to reach the threshold are kept,
+ *   and their similarity is computed exactly from the stored per-doc gram counts.
+ * - Regex search follows Russ Cox's codesearch. The regex is parsed and analysed
+ *   bottom-up into exact strings, possible prefixes/suffixes and a trigram AND/OR
+ *   query. Only docs whose posting lists satisfy that query are run through
+ *   java.util.regex.
+ * The index is a list of shards covering consecutive doc-ID ranges. New documents are
+ *   indexed in parallel, one shard per chunk. Chunks are merged pairwise in parallel,
+ *   and the shard list is kept logarithmic by merging neighbours of similar size.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class TrigramIndex {
+
+    private static final int MAGIC = 0x54524749; // "TRGI"
+    private static final int CHUNK_DOCS = 4096;
+
+    private final List<Shard> shards = new ArrayList<>();
+    private int[] docGrams = new int[1024]; // distinct grams per doc
+    private int numDocs;
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    public int numShards() {
+        return shards.size();
+    }
+
+    /* ---------------------------------------------------------------- grams */
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b & 0xff;
+    }
+
+    // Writes the distinct grams of data[0, len) to out in ascending order; returns their count
+    static int distinctGrams(byte[] data, int len, int[] out) {
+        int n = 0;
+        for (int i = 0; i + 2 < len; i++) {
+            out[n++] = lower(data[i]) << 16 | lower(data[i + 1]) << 8 | lower(data[i + 2]);
+        }
+        Arrays.sort(out, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || out[distinct - 1] != out[i]) out[distinct++] = out[i];
+        }
+        return distinct;
+    }
+
+    static int[] distinctGrams(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int[] grams = new int[Math.max(0, bytes.length - 2)];
+        return Arrays.copyOf(grams, distinctGrams(bytes, bytes.length, grams));
+    }
+
+    /* ---------------------------------------------------------------- shards */
+
+    static final class Shard {
+        final int firstDoc;
+        final int numDocs;
+        final int[] grams;    // sorted
+        final int[] df;
+        final int[] offsets;  // postings of grams[g] start at data[offsets[g]]
+        final byte[] data;
+
+        Shard(int firstDoc, int numDocs, int[] grams, int[] df, int[] offsets, byte[] data) {
+            this.firstDoc = firstDoc;
+            this.numDocs = numDocs;
+            this.grams = grams;
+            this.df = df;
+            this.offsets = offsets;
+            this.data = data;
+        }
+
+        int[] postings(int g) {
+            int[] docs = new int[df[g]];
+            ByteBuffer in = ByteBuffer.wrap(data, offsets[g], data.length - offsets[g]);
+            int prev = firstDoc - 1;
+            for (int i = 0; i < docs.length; i++) {
+                prev += (int) LEB128.getUnsigned(in);
+                docs[i] = prev;
+            }
+            return docs;
+        }
+
+        // Byte length of the encoded postings of grams[g]
+        int encodedLength(int g) {
+            return (g + 1 < grams.length ? offsets[g + 1] : data.length) - offsets[g];
+        }
+
+        long bytes() {
+            return data.length + 12L * grams.length;
+        }
+    }
+
+    // Growable byte array for encoding postings
+    static final class ByteSink {
+        byte[] buf = new byte[1024];
+        int size;
+
+        void putUnsigned(long value) {
+            if (size + 10 > buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            size = LEB128.putUnsigned(buf, size, value);
+        }
+
+        void put(byte[] src, int from, int len) {
+            if (size + len > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + len));
+            System.arraycopy(src, from, buf, size, len);
+            size += len;
+        }
+    }
+
+    // Builds a shard from sorted (gram << 32 | doc) pairs
+    static Shard fromPairs(long[] pairs, int n, int firstDoc, int numDocs) {
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32)) distinct++;
+        }
+        int[] grams = new int[distinct];
+        int[] df = new int[distinct];
+        int[] offsets = new int[distinct];
+        ByteSink sink = new ByteSink();
+        int g = -1;
+        int prev = 0;
+        for (int i = 0; i < n; i++) {
+            int gram = (int) (pairs[i] >>> 32);
+            int doc = (int) pairs[i];
+            if (g < 0 || grams[g] != gram) {
+                g++;
+                grams[g] = gram;
+                offsets[g] = sink.size;
+                prev = firstDoc - 1;
+            }
+            sink.putUnsigned(doc - prev);
+            prev = doc;
+            df[g]++;
+        }
+        return new Shard(firstDoc, numDocs, grams, df, offsets, Arrays.copyOf(sink.buf, sink.size));
+    }
+
+    /*
+     * Merges two shards with adjacent doc ranges. Postings of a are copied verbatim; the
+     * postings of b only need their first gap re-based, the rest is copied as well.
+     */
+    static Shard merge(Shard a, Shard b) {
+        if (b.firstDoc != a.firstDoc + a.numDocs) throw new IllegalArgumentException("Shards are not adjacent");
+        int[] grams = new int[a.grams.length + b.grams.length];
+        int[] df = new int[grams.length];
+        int[] offsets = new int[grams.length];
+        ByteSink sink = new ByteSink();
+        int i = 0;
+        int j = 0;
+        int g = 0;
+        while (i < a.grams.length || j < b.grams.length) {
+            int ga = i < a.grams.length ? a.grams[i] : Integer.MAX_VALUE;
+            int gb = j < b.grams.length ? b.grams[j] : Integer.MAX_VALUE;
+            int gram = Math.min(ga, gb);
+            grams[g] = gram;
+            offsets[g] = sink.size;
+            int last = a.firstDoc - 1;
+            if (ga == gram) {
+                sink.put(a.data, a.offsets[i], a.encodedLength(i));
+                int[] docs = a.postings(i);
+                last = docs[docs.length - 1];
+                df[g] += a.df[i++];
+            }
+            if (gb == gram) {
+                ByteBuffer in = ByteBuffer.wrap(b.data, b.offsets[j], b.encodedLength(j));
+                int first = b.firstDoc - 1 + (int) LEB128.getUnsigned(in);
+                sink.putUnsigned(first - last);
+                sink.put(b.data, in.position(), in.remaining());
+                df[g] += b.df[j++];
+            }
+            g++;
+        }
+        return new Shard(a.firstDoc, a.numDocs + b.numDocs, Arrays.copyOf(grams, g), Arrays.copyOf(df, g),
+                Arrays.copyOf(offsets, g), Arrays.copyOf(sink.buf, sink.size));
+    }
+
+    /* ---------------------------------------------------------------- indexing */
+
+    public interface DocumentLoader {
+        byte[] load(int index) throws IOException;
+    }
+
+    public synchronized int addDocument(String text) {
+        return addDocuments(Collections.singletonList(text));
+    }
+
+    // Indexes the strings in parallel; returns the doc ID of the first one
+    public int addDocuments(List<String> docs) {
+        try {
+            return addAll(docs.size(), i -> docs.get(i).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Indexes the files in parallel; doc IDs follow the order of the list
+    public int addFiles(List<Path> files) throws IOException {
+        return addAll(files.size(), i -> Files.readAllBytes(files.get(i)));
+    }
+
+    private synchronized int addAll(int count, DocumentLoader loader) throws IOException {
+        int first = numDocs;
+        if (count == 0) return first;
+        // Fixed-size chunks keep doc IDs deterministic regardless of scheduling
+        int numChunks = (count + CHUNK_DOCS - 1) / CHUNK_DOCS;
+        int[] gramCounts = new int[count];
+        List<Shard> built;
+        try {
+            built = IntStream.range(0, numChunks).parallel()
+                    .mapToObj(c -> buildChunk(loader, c * CHUNK_DOCS, Math.min(count, (c + 1) * CHUNK_DOCS), first, gramCounts))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // Pairwise parallel merge down to one shard per call
+        while (built.size() > 1) {
+            List<Shard> level = built;
+            built = IntStream.range(0, (level.size() + 1) / 2).parallel()
+                    .mapToObj(p -> 2 * p + 1 < level.size() ? merge(level.get(2 * p), level.get(2 * p + 1)) : level.get(2 * p))
+                    .collect(Collectors.toList());
+        }
+        if (numDocs + count > docGrams.length) {
+            docGrams = Arrays.copyOf(docGrams, Math.max(docGrams.length * 2, numDocs + count));
+        }
+        System.arraycopy(gramCounts, 0, docGrams, numDocs, count);
+        numDocs += count;
+        shards.add(built.get(0));
+        // Keep shard sizes roughly geometric so lookups touch O(log n) shards
+        while (shards.size() >= 2
+                && shards.get(shards.size() - 2).numDocs <= 2L * shards.get(shards.size() - 1).numDocs) {
+            Shard b = shards.remove(shards.size() - 1);
+            Shard a = shards.remove(shards.size() - 1);
+            shards.add(merge(a, b));
+        }
+        return first;
+    }
+
+    private static Shard buildChunk(DocumentLoader loader, int from, int to, int firstDoc, int[] gramCounts) {
+        long[] pairs = new long[1024];
+        int n = 0;
+        int[] scratch = new int[1024];
+        for (int i = from; i < to; i++) {
+            byte[] doc;
+            try {
+                doc = loader.load(i);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (scratch.length < doc.length) scratch = new int[doc.length];
+            int distinct = distinctGrams(doc, doc.length, scratch);
+            gramCounts[i] = distinct;
+            if (n + distinct > pairs.length) pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, n + distinct));
+            long docId = firstDoc + i;
+            for (int k = 0; k < distinct; k++) {
+                pairs[n++] = (long) scratch[k] << 32 | docId;
+            }
+        }
+        Arrays.sort(pairs, 0, n);
+        return fromPairs(pairs, n, firstDoc + from, to - from);
+    }
+
+    /* ---------------------------------------------------------------- similarity search */
+
+    /*
+     * Docs whose trigram similarity |Q ∩ D| / max(|Q|, |D|) reaches threshold. Since the
+     * denominator is at least |Q|, a doc needs ceil(threshold * |Q|) shared grams, which
+     * the count-merge checks before the exact test.
+     */
+    public List<Integer> similar(String query, double threshold) {
+        int[] q = distinctGrams(query);
+        List<Integer> results = new ArrayList<>();
+        int minOverlap = (int) Math.ceil(threshold * q.length - 1e-9);
+        if (minOverlap <= 0) {
+            for (int d = 0; d < numDocs; d++) {
+                if (similarity(q.length, 0, docGrams[d]) >= threshold) results.add(d);
+            }
+            return results;
+        }
+        for (Shard shard : shards) {
+            int[] counts = new int[shard.numDocs];
+            for (int gram : q) {
+                int g = Arrays.binarySearch(shard.grams, gram);
+                if (g < 0) continue;
+                for (int doc : shard.postings(g)) {
+                    counts[doc - shard.firstDoc]++;
+                }
+            }
+            for (int local = 0; local < counts.length; local++) {
+                if (counts[local] >= minOverlap) {
+                    int doc = shard.firstDoc + local;
+                    if (similarity(q.length, counts[local], docGrams[doc]) >= threshold) results.add(doc);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static double similarity(int queryGrams, int shared, int docGrams) {
+        if (queryGrams == 0 && docGrams == 0) return 1.0;
+        return shared / (double) Math.max(queryGrams, docGrams);
+    }
+
+    /* ---------------------------------------------------------------- regex search */
+
+    // Doc IDs that may match the regex, or all docs if the regex gives no trigram constraint
+    public int[] candidates(String regex) {
+        return candidates(RegexPlanner.plan(regex));
+    }
+
+    public int[] candidates(Query query) {
+        IntStream.Builder all = IntStream.builder();
+        for (Shard shard : shards) {
+            int[] docs = evaluate(shard, query);
+            if (docs == null) {
+                for (int d = shard.firstDoc; d < shard.firstDoc + shard.numDocs; d++) all.add(d);
+            } else {
+                for (int d : docs) all.add(d);
+            }
+        }
+        return all.build().toArray();
+    }
+
+    /* Docs whose content matches the regex; loader returns the content of a doc ID */
+    public List<Integer> grep(String regex, DocumentLoader loader) throws IOException {
+        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(regex);
+        List<Integer> matches = new ArrayList<>();
+        for (int doc : candidates(regex)) {
+            String text = new String(loader.load(doc), StandardCharsets.UTF_8);
+            if (pattern.matcher(text).find()) matches.add(doc);
+        }
+        return matches;
+    }
+
+    // Sorted doc IDs satisfying the query within a shard, or null for "every doc"
+    private static int[] evaluate(Shard shard, Query q) {
+        switch (q.op) {
+            case ALL:
+                return null;
+            case NONE:
+                return new int[0];
+            case TRIGRAM: {
+                int g = Arrays.binarySearch(shard.grams, q.trigram);
+                return g < 0 ? new int[0] : shard.postings(g);
+            }
+            case AND: {
+                // Most selective trigrams first
+                List<Query> subs = new ArrayList<>(q.subs);
+                subs.sort(Comparator.comparingInt(s -> estimate(shard, s)));
+                int[] result = null;
+                for (Query sub : subs) {
+                    int[] docs = evaluate(shard, sub);
+                    if (docs == null) continue;
+                    result = result == null ? docs : intersect(result, docs);
+                    if (result.length == 0) break;
+                }
+                return result;
+            }
+            default: {
+                int[] result = new int[0];
+                for (Query sub : q.subs) {
+                    int[] docs = evaluate(shard, sub);
+                    if (docs == null) return null;
+                    result = union(result, docs);
+                }
+                return result;
+            }
+        }
+    }
+
+    private static int estimate(Shard shard, Query q) {
+        if (q.op == Query.Op.TRIGRAM) {
+            int g = Arrays.binarySearch(shard.grams, q.trigram);
+            return g < 0 ? 0 : shard.df[g];
+        }
+        return q.op == Query.Op.NONE ? 0 : Integer.MAX_VALUE;
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                out[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                out[n++] = b[j++];
+            } else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /* ---------------------------------------------------------------- trigram queries */
+
+    public static final class Query {
+        enum Op { ALL, NONE, TRIGRAM, AND, OR }
+
+        static final Query ALL = new Query(Op.ALL, 0, Collections.emptyList());
+        static final Query NONE = new Query(Op.NONE, 0, Collections.emptyList());
+
+        final Op op;
+        final int trigram;
+        final List<Query> subs;
+
+        private Query(Op op, int trigram, List<Query> subs) {
+            this.op = op;
+            this.trigram = trigram;
+            this.subs = subs;
+        }
+
+        static Query trigram(int gram) {
+            return new Query(Op.TRIGRAM, gram, Collections.emptyList());
+        }
+
+        static Query and(Query a, Query b) {
+            if (a.op == Op.NONE || b.op == Op.NONE) return NONE;
+            if (a.op == Op.ALL) return b;
+            if (b.op == Op.ALL) return a;
+            return combine(Op.AND, a, b);
+        }
+
+        static Query or(Query a, Query b) {
+            if (a.op == Op.ALL || b.op == Op.ALL) return ALL;
+            if (a.op == Op.NONE) return b;
+            if (b.op == Op.NONE) return a;
+            return combine(Op.OR, a, b);
+        }
+
+        private static Query combine(Op op, Query a, Query b) {
+            List<Query> subs = new ArrayList<>();
+            for (Query q : new Query[]{a, b}) {
+                if (q.op == op) {
+                    subs.addAll(q.subs);
+                } else {
+                    subs.add(q);
+                }
+            }
+            // Drop duplicate subqueries
+            Set<String> seen = new HashSet<>();
+            subs.removeIf(q -> !seen.add(q.toString()));
+            return subs.size() == 1 ? subs.get(0) : new Query(op, 0, subs);
+        }
+
+        @Override
+        public String toString() {
+            switch (op) {
+                case ALL: return "+";
+                case NONE: return "-";
+                case TRIGRAM: {
+                    byte[] b = {(byte) (trigram >> 16), (byte) (trigram >> 8), (byte) trigram};
+                    return "\"" + new String(b, StandardCharsets.ISO_8859_1) + "\"";
+                }
+                default: {
+                    StringJoiner joiner = new StringJoiner(op == Op.AND ? " " : "|", "(", ")");
+                    for (Query q : subs) joiner.add(q.toString());
+                    return joiner.toString();
+                }
+            }
+        }
+    }
+
+    /*
+     * Regex to trigram query, after codesearch. Each subexpression is summarised by
+     * whether it can match the empty string, its exact set of matching strings (if
+     * small), otherwise sets of possible prefixes and suffixes, and a trigram query
+     * every match satisfies. Concatenation crosses suffixes with prefixes to find
+     * trigrams spanning the boundary. Unsupported syntax degrades to "any string",
+     * which is always safe; syntax that changes how the rest of the pattern reads
+     * (\x{..}, \N{..}, \k<name>, the COMMENTS flag) gives up on the whole plan.
+     * Literals are lowercased like the index; non-ASCII letters under UNICODE_CASE
+     * matching are not folded.
+     */
+    static final class RegexPlanner {
+        private static final int MAX_EXACT = 16;
+        private static final int MAX_SET = 32;
+        private static final int MAX_CLASS = 8;
+
+        static final class Info {
+            boolean canEmpty;
+            Set<String> exact;   // null when unknown
+            Set<String> prefix;  // "" means any prefix
+            Set<String> suffix;
+            Query match = Query.ALL;
+        }
+
+        private final String re;
+        private int pos;
+        private boolean unsupported;
+
+        private RegexPlanner(String re) {
+            this.re = re;
+        }
+
+        static Query plan(String regex) {
+            RegexPlanner planner = new RegexPlanner(unquote(regex));
+            Info info = planner.parseAlternation();
+            if (planner.unsupported || planner.pos != planner.re.length()) {
+                return Query.ALL; // unbalanced parenthesis or syntax the planner does not model
+            }
+            if (info.exact != null) {
+                return Query.and(info.match, trigramsOf(info.exact));
+            }
+            simplify(info, true);
+            return Query.and(info.match, Query.and(trigramsOf(info.prefix), trigramsOf(info.suffix)));
+        }
+
+        // Rewrites \Q...\E as escaped single characters, since a quantifier after \E binds to the last one
+        private static String unquote(String regex) {
+            StringBuilder sb = new StringBuilder();
+            int i = 0;
+            while (i < regex.length()) {
+                if (regex.startsWith("\\Q", i)) {
+                    int end = regex.indexOf("\\E", i + 2);
+                    String quoted = regex.substring(i + 2, end < 0 ? regex.length() : end);
+                    for (char c : quoted.toCharArray()) {
+                        if (!Character.isLetterOrDigit(c)) sb.append('\\');
+                        sb.append(c);
+                    }
+                    i = end < 0 ? regex.length() : end + 2;
+                } else if (regex.charAt(i) == '\\' && i + 1 < regex.length()) {
+                    sb.append(regex, i, i + 2);
+                    i += 2;
+                } else {
+                    sb.append(regex.charAt(i++));
+                }
+            }
+            return sb.toString();
+        }
+
+        /* ------------------------------------------------ info algebra */
+
+        static Info emptyString() {
+            Info i = new Info();
+            i.canEmpty = true;
+            i.exact = new HashSet<>(Collections.singleton(""));
+            return i;
+        }
+
+        static Info anyChar() {
+            Info i = new Info();
+            i.prefix = new HashSet<>(Collections.singleton(""));
+            i.suffix = new HashSet<>(Collections.singleton(""));
+            return i;
+        }
+
+        static Info anyString() {
+            Info i = anyChar();
+            i.canEmpty = true;
+            return i;
+        }
+
+        static Info chars(Set<String> chars) {
+            Info i = new Info();
+            i.exact = chars;
+            return i;
+        }
+
+        // OR over the strings of (AND over each string's trigrams); strings under 3 bytes match anything
+        static Query trigramsOf(Set<String> strings) {
+            Query q = Query.NONE;
+            for (String s : strings) {
+                int[] grams = distinctGrams(s);
+                if (grams.length == 0) return Query.ALL;
+                Query and = Query.ALL;
+                for (int g : grams) and = Query.and(and, Query.trigram(g));
+                q = Query.or(q, and);
+            }
+            return q;
+        }
+
+        static Set<String> cross(Set<String> a, Set<String> b) {
+            Set<String> out = new HashSet<>();
+            for (String x : a) {
+                for (String y : b) out.add(x + y);
+            }
+            return out;
+        }
+
+        static Set<String> union(Set<String> a, Set<String> b) {
+            Set<String> out = new HashSet<>(a);
+            out.addAll(b);
+            return out;
+        }
+
+        /* Folds exact sets that grew too large (or all of them, if forced) into match and
+           prefix/suffix form, then trims prefixes and suffixes to two characters. */
+        static void simplify(Info info, boolean force) {
+            if (info.exact != null && (force || info.exact.size() > MAX_EXACT)) {
+                info.match = Query.and(info.match, trigramsOf(info.exact));
+                info.prefix = info.exact;
+                info.suffix = info.exact;
+                info.exact = null;
+            }
+            if (info.exact == null) {
+                info.match = Query.and(info.match, Query.and(trigramsOf(info.prefix), trigramsOf(info.suffix)));
+                info.prefix = trim(info.prefix, true);
+                info.suffix = trim(info.suffix, false);
+            }
+        }
+
+        private static Set<String> trim(Set<String> strings, boolean keepStart) {
+            Set<String> out = new HashSet<>();
+            for (String s : strings) {
+                if (s.length() <= 2) {
+                    out.add(s);
+                } else {
+                    out.add(keepStart ? s.substring(0, 2) : s.substring(s.length() - 2));
+                }
+            }
+            if (out.size() > MAX_SET) {
+                out = new HashSet<>(Collections.singleton(""));
+            }
+            return out;
+        }
+
+        private static Set<String> prefixOf(Info i) {
+            return i.exact != null ? i.exact : i.prefix;
+        }
+
+        private static Set<String> suffixOf(Info i) {
+            return i.exact != null ? i.exact : i.suffix;
+        }
+
+        static Info concat(Info x, Info y) {
+            Info r = new Info();
+            r.canEmpty = x.canEmpty && y.canEmpty;
+            r.match = Query.and(x.match, y.match);
+            if (x.exact != null && y.exact != null && x.exact.size() * y.exact.size() <= MAX_EXACT) {
+                r.exact = cross(x.exact, y.exact);
+                return r;
+            }
+            Set<String> xs = suffixOf(x);
+            Set<String> yp = prefixOf(y);
+            if (xs.size() * yp.size() <= MAX_SET) {
+                r.match = Query.and(r.match, trigramsOf(cross(xs, yp)));
+            }
+            if (x.exact != null) {
+                r.match = Query.and(r.match, trigramsOf(x.exact));
+                r.prefix = x.exact.size() * yp.size() <= MAX_SET ? cross(x.exact, yp) : x.exact;
+            } else {
+                r.prefix = x.canEmpty ? union(x.prefix, yp) : x.prefix;
+            }
+            if (y.exact != null) {
+                r.match = Query.and(r.match, trigramsOf(y.exact));
+                r.suffix = xs.size() * y.exact.size() <= MAX_SET ? cross(xs, y.exact) : y.exact;
+            } else {
+                r.suffix = y.canEmpty ? union(xs, y.suffix) : y.suffix;
+            }
+            simplify(r, false);
+            return r;
+        }
+
+        static Info alternate(Info x, Info y) {
+            Info r = new Info();
+            r.canEmpty = x.canEmpty || y.canEmpty;
+            if (x.exact != null && y.exact != null) {
+                r.exact = union(x.exact, y.exact);
+                simplify(r, false);
+                return r;
+            }
+            simplify(x, true);
+            simplify(y, true);
+            r.match = Query.or(x.match, y.match);
+            r.prefix = union(x.prefix, y.prefix);
+            r.suffix = union(x.suffix, y.suffix);
+            simplify(r, false);
+            return r;
+        }
+
+        // x+ starts and ends with a match of x and contains one
+        static Info plus(Info x) {
+            simplify(x, true);
+            return x;
+        }
+
+        static Info quest(Info x) {
+            return alternate(x, emptyString());
+        }
+
+        /* ------------------------------------------------ parser */
+
+        private boolean more() {
+            return pos < re.length();
+        }
+
+        private Info parseAlternation() {
+            Info info = parseConcat();
+            while (more() && re.charAt(pos) == '|') {
+                pos++;
+                info = alternate(info, parseConcat());
+            }
+            return info;
+        }
+
+        private Info parseConcat() {
+            Info info = emptyString();
+            while (more() && re.charAt(pos) != '|' && re.charAt(pos) != ')') {
+                info = concat(info, parseRepeat());
+            }
+            return info;
+        }
+
+        private Info parseRepeat() {
+            Info atom = parseAtom();
+            while (more()) {
+                char c = re.charAt(pos);
+                int min;
+                if (c == '*') {
+                    min = 0;
+                    pos++;
+                } else if (c == '+') {
+                    min = 1;
+                    pos++;
+                } else if (c == '?') {
+                    atom = quest(atom);
+                    pos++;
+                    skipModifier();
+                    continue;
+                } else if (c == '{' && re.indexOf('}', pos) > pos && re.substring(pos + 1, re.indexOf('}', pos)).matches("\\d+(,\\d*)?")) {
+                    String body = re.substring(pos + 1, re.indexOf('}', pos));
+                    min = Integer.parseInt(body.split(",")[0]);
+                    pos = re.indexOf('}', pos) + 1;
+                } else {
+                    break;
+                }
+                skipModifier();
+                atom = min == 0 ? anyString() : plus(atom);
+            }
+            return atom;
+        }
+
+        // Lazy '?' and possessive '+' modifiers do not change what can match
+        private void skipModifier() {
+            if (more() && (re.charAt(pos) == '?' || re.charAt(pos) == '+')) pos++;
+        }
+
+        private Info parseAtom() {
+            char c = re.charAt(pos++);
+            switch (c) {
+                case '(':
+                    return parseGroup();
+                case '[':
+                    return parseClass();
+                case '.':
+                    return anyChar();
+                case '^':
+                case '$':
+                    return emptyString();
+                case '\\':
+                    return parseEscape();
+                default:
+                    return literal(c);
+            }
+        }
+
+        private Info parseGroup() {
+            boolean zeroWidth = false;
+            if (more() && re.charAt(pos) == '?') {
+                pos++;
+                char kind = more() ? re.charAt(pos) : ')';
+                if (kind == '=' || kind == '!') {
+                    zeroWidth = true;
+                    pos++;
+                } else if (kind == '<' && pos + 1 < re.length() && (re.charAt(pos + 1) == '=' || re.charAt(pos + 1) == '!')) {
+                    zeroWidth = true;
+                    pos += 2;
+                } else if (kind == '<') {
+                    pos = re.indexOf('>', pos) + 1; // named group
+                } else {
+                    // Inline flags (?i) or (?i:...); turning on COMMENTS makes whitespace and # special
+                    boolean on = true;
+                    while (more() && re.charAt(pos) != ':' && re.charAt(pos) != ')') {
+                        char flag = re.charAt(pos++);
+                        if (flag == '-') on = false;
+                        if (flag == 'x' && on) unsupported = true;
+                    }
+                    if (more() && re.charAt(pos) == ')') {
+                        pos++;
+                        return emptyString();
+                    }
+                    pos++;
+                }
+            }
+            Info inner = parseAlternation();
+            if (!more()) return anyString();
+            pos++; // ')'
+            return zeroWidth ? emptyString() : inner;
+        }
+
+        private Info parseClass() {
+            boolean negated = more() && re.charAt(pos) == '^';
+            if (negated) pos++;
+            Set<String> chars = new HashSet<>();
+            boolean overflow = false;
+            boolean first = true;
+            while (more() && (re.charAt(pos) != ']' || first)) {
+                first = false;
+                int lo = classChar();
+                if (lo < 0) {
+                    overflow = true;
+                    continue;
+                }
+                int hi = lo;
+                if (pos + 1 < re.length() && re.charAt(pos) == '-' && re.charAt(pos + 1) != ']') {
+                    pos++;
+                    hi = classChar();
+                    if (hi < 0) {
+                        overflow = true;
+                        continue;
+                    }
+                }
+                if (hi - lo >= MAX_CLASS) {
+                    overflow = true;
+                    continue;
+                }
+                for (int ch = lo; ch <= hi; ch++) chars.add(fold((char) ch));
+            }
+            pos++; // ']'
+            if (negated || overflow || chars.isEmpty() || chars.size() > MAX_CLASS) {
+                return anyChar();
+            }
+            return chars(chars);
+        }
+
+        // One character of a class, or -1 for an escape that stands for a set (\d, \p{..}) or a nested class
+        private int classChar() {
+            char c = re.charAt(pos++);
+            if (c == '[') {
+                int depth = 1;
+                while (more() && depth > 0) {
+                    char d = re.charAt(pos++);
+                    if (d == '[') depth++;
+                    if (d == ']') depth--;
+                }
+                return -1;
+            }
+            if (c != '\\') return c;
+            char e = re.charAt(pos++);
+            switch (e) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                default:
+                    if (Character.isLetterOrDigit(e)) {
+                        if ((e == 'p' || e == 'P') && more() && re.charAt(pos) == '{') pos = re.indexOf('}', pos) + 1;
+                        return -1;
+                    }
+                    return e;
+            }
+        }
+
+        private Info parseEscape() {
+            char e = re.charAt(pos++);
+            switch (e) {
+                case 't': return literal('\t');
+                case 'n': return literal('\n');
+                case 'r': return literal('\r');
+                case 'f': return literal('\f');
+                case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+                    return emptyString();
+                case 'x':
+                    return hex(2);
+                case 'u':
+                    return hex(4);
+                case 'k':
+                case 'N':
+                    unsupported = true; // \k<name> backreference, \N{name} character
+                    return anyString();
+                default:
+                    if (Character.isDigit(e)) {
+                        while (more() && Character.isDigit(re.charAt(pos))) pos++;
+                        return anyString(); // backreference
+                    }
+                    if (Character.isLetter(e)) {
+                        if ((e == 'p' || e == 'P') && more() && re.charAt(pos) == '{') pos = re.indexOf('}', pos) + 1;
+                        return anyChar(); // \d, \w, \s, \p{..} and friends
+                    }
+                    return literal(e);
+            }
+        }
+
+        // A character given as exactly n hex digits; anything else (\x{..}) is not modelled
+        private Info hex(int n) {
+            if (pos + n > re.length() || !re.substring(pos, pos + n).matches("[0-9a-fA-F]+")) {
+                unsupported = true;
+                return anyString();
+            }
+            int code = Integer.parseInt(re.substring(pos, pos + n), 16);
+            pos += n;
+            return literal((char) code);
+        }
+
+        private static Info literal(char c) {
+            return chars(new HashSet<>(Collections.singleton(fold(c))));
+        }
+
+        private static String fold(char c) {
+            return String.valueOf(c >= 'A' && c <= 'Z' ? (char) (c + 32) : c);
+        }
+    }
+
+    /* ---------------------------------------------------------------- persistence */
+
+    public synchronized void save(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numDocs);
+            for (int d = 0; d < numDocs; d++) out.writeInt(docGrams[d]);
+            out.writeInt(shards.size());
+            for (Shard s : shards) {
+                out.writeInt(s.firstDoc);
+                out.writeInt(s.numDocs);
+                out.writeInt(s.grams.length);
+                for (int g = 0; g < s.grams.length; g++) {
+                    out.writeInt(s.grams[g]);
+                    out.writeInt(s.df[g]);
+                    out.writeInt(s.offsets[g]);
+                }
+                out.writeInt(s.data.length);
+                out.write(s.data);
+            }
+        }
+    }
+
+    public static TrigramIndex load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a trigram index: " + path);
+            TrigramIndex index = new TrigramIndex();
+            index.numDocs = in.readInt();
+            index.docGrams = new int[Math.max(1024, index.numDocs)];
+            for (int d = 0; d < index.numDocs; d++) index.docGrams[d] = in.readInt();
+            int numShards = in.readInt();
+            for (int s = 0; s < numShards; s++) {
+                int firstDoc = in.readInt();
+                int docs = in.readInt();
+                int n = in.readInt();
+                int[] grams = new int[n];
+                int[] df = new int[n];
+                int[] offsets = new int[n];
+                for (int g = 0; g < n; g++) {
+                    grams[g] = in.readInt();
+                    df[g] = in.readInt();
+                    offsets[g] = in.readInt();
+                }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                index.shards.add(new Shard(firstDoc, docs, grams, df, offsets, data));
+            }
+            return index;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> corpus = Arrays.asList("apple pie", "apple tart", "banana bread", "grape juice", "pineapple");
+        TrigramIndex index = new TrigramIndex();
+        index.addDocuments(corpus);
+        for (int doc : index.similar("apple", 0.4)) System.out.println("similar: " + corpus.get(doc));
+        System.out.println("plan for (apple|banana) (pie|bread): " + RegexPlanner.plan("(apple|banana) (pie|bread)"));
+        for (int doc : index.grep("(apple|banana) (pie|bread)", i -> corpus.get(i).getBytes(StandardCharsets.UTF_8))) {
+            System.out.println("grep: " + corpus.get(doc));
+        }
+        // Syntax the planner only partly models must never lose a match
+        for (String regex : new String[]{"\\Qapple pie\\E", "\\x{61}pple", "\\x61pple", "(?<c>p)\\k<c>le",
+                "\\N{LATIN SMALL LETTER A}pple", "(?x) ap ple \\  pie", "(?i-x:APPLE) pie"}) {
+            java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(regex);
+            List<Integer> expected = new ArrayList<>();
+            for (int d = 0; d < corpus.size(); d++) if (pattern.matcher(corpus.get(d)).find()) expected.add(d);
+            List<Integer> got = index.grep(regex, i -> corpus.get(i).getBytes(StandardCharsets.UTF_8));
+            if (!got.equals(expected)) throw new IllegalStateException("grep " + regex + " -> " + got + ", expected " + expected);
+        }
+        System.out.println("plan for \\Qapple pie\\E: " + RegexPlanner.plan("\\Qapple pie\\E"));
+
+        // Synthetic source corpus
+        Random rand = new Random(3);
+        String[] words = new String[5000];
+        for (int w = 0; w < words.length; w++) {
+            StringBuilder sb = new StringBuilder();
+            int len = 3 + rand.nextInt(8);
+            for (int k = 0; k < len; k++) sb.append((char) ('a' + rand.nextInt(26)));
+            words[w] = sb.toString();
+        }
+        List<String> docs = new ArrayList<>();
+        for (int d = 0; d < 200_000; d++) {
+            StringBuilder sb = new StringBuilder();
+            int len = 20 + rand.nextInt(80);
+            for (int k = 0; k < len; k++) sb.append(words[rand.nextInt(words.length)]).append(' ');
+            docs.add(sb.toString());
+        }
+        TrigramIndex big = new TrigramIndex();
+        long start = System.nanoTime();
+        for (int from = 0; from < docs.size(); from += 50_000) {
+            big.addDocuments(docs.subList(from, Math.min(docs.size(), from + 50_000)));
+        }
+        System.out.printf("Indexed %d docs in %.2f s, %d shards%n", big.numDocs(), (System.nanoTime() - start) / 1e9, big.numShards());
+
+        String regex = words[0] + "\\s+(" + words[1] + "|" + words[2] + ")";
+        start = System.nanoTime();
+        int[] candidates = big.candidates(regex);
+        List<Integer> hits = big.grep(regex, i -> docs.get(i).getBytes(StandardCharsets.UTF_8));
+        double indexed = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(regex);
+        int scanned = 0;
+        for (String doc : docs) {
+            if (pattern.matcher(doc).find()) scanned++;
+        }
+        double full = (System.nanoTime() - start) / 1e6;
+        System.out.printf("regex %s: %d candidates, %d matches in %.1f ms (full scan %d matches in %.1f ms)%n",
+                regex, candidates.length, hits.size(), indexed, scanned, full);
+    }
+}
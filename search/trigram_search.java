@@ -40,4 +40,14 @@ public class TrigramSearch {
         }
         return results;
     }
+
+    // Same search through a prebuilt TrigramIndex over the corpus: only docs sharing
+    // enough trigrams with the query are looked at
+    public List<String> search(String query, TrigramIndex index, List<String> corpus, double threshold) {
+        List<String> results = new ArrayList<>();
+        for (int doc : index.similar(query, threshold)) {
+            results.add(corpus.get(doc));
+        }
+        return results;
+    }
 }
\ No newline at end of file